@@ -56,6 +56,17 @@ class AppsDaoTest {
         assertFalse(retrieved.contains(app1))
     }
 
+    @Test
+    fun insertsApplicationsTogether() {
+        val app1 = App(name = "app1")
+        val app2 = App(name = "app2")
+
+        db.appsDao().insertApps(listOf(app1, app2))
+        val retrieved = db.appsDao().getAllApps().blockingObserve()!!
+
+        assertEquals(setOf(app1, app2), retrieved.toSet())
+    }
+
     companion object {
         val DEFAULT_NAME = "test"
     }
@@ -13,6 +13,7 @@ import android.net.NetworkCapabilities
 import android.net.Uri
 import android.net.wifi.WifiManager
 import android.os.* // ktlint-disable no-wildcard-imports
+import android.text.format.Formatter
 import com.google.android.material.textfield.TextInputEditText
 import androidx.localbroadcastmanager.content.LocalBroadcastManager
 import androidx.appcompat.app.AppCompatActivity
@@ -50,6 +51,7 @@ import tech.ula.viewmodel.* // ktlint-disable no-wildcard-imports
 import tech.ula.ui.FilesystemListFragment
 import tech.ula.model.repositories.DownloadMetadata
 import tech.ula.utils.preferences.* // ktlint-disable no-wildcard-imports
+import java.io.File
 
 class MainActivity : AppCompatActivity(), SessionListFragment.SessionSelection, AppsListFragment.AppSelection, FilesystemListFragment.FilesystemListProgress {
 
@@ -90,6 +92,10 @@ class MainActivity : AppCompatActivity(), SessionListFragment.SessionSelection,
         ContributionPrompter(this, findViewById(R.id.layout_user_prompt_insert))
     }
 
+    // The download manager only broadcasts finished downloads, so byte progress is polled in between.
+    private val downloadProgressHandler = Handler(Looper.getMainLooper())
+    private val downloadProgressPoller = Runnable { viewModel.pollDownloadProgress() }
+
     private val downloadBroadcastReceiver = object : BroadcastReceiver() {
         override fun onReceive(context: Context, intent: Intent) {
             val id = intent.getLongExtra(DownloadManager.EXTRA_DOWNLOAD_ID, -1)
@@ -126,15 +132,24 @@ class MainActivity : AppCompatActivity(), SessionListFragment.SessionSelection,
         val ulaDatabase = UlaDatabase.getInstance(this)
 
         val assetPreferences = AssetPreferences(this)
-        val githubApiClient = GithubApiClient(ulaFiles)
-        val assetRepository = AssetRepository(filesDir.path, assetPreferences, githubApiClient)
+        val httpClient = HttpClients.client
+        val metadataClient = HttpClients.getMetadataClient(cacheDir)
+        val githubApiClient = GithubApiClient(ulaFiles, client = metadataClient)
+        val assetRepository = AssetRepository(filesDir.path, assetPreferences, githubApiClient, HttpStream(metadataClient))
 
-        val filesystemManager = FilesystemManager(ulaFiles, busyboxExecutor)
+        val filesystemCloningEnabled = defaultSharedPreferences.getBoolean("pref_filesystem_cloning_enabled", false)
+        val filesystemManager = FilesystemManager(ulaFiles, busyboxExecutor, filesystemCloningEnabled = filesystemCloningEnabled)
         val storageCalculator = StorageCalculator(StatFs(filesDir.path))
 
-        val downloadManager = getSystemService(Context.DOWNLOAD_SERVICE) as DownloadManager
-        val downloadManagerWrapper = DownloadManagerWrapper(downloadManager)
-        val assetDownloader = AssetDownloader(assetPreferences, downloadManagerWrapper, ulaFiles)
+        val downloadEngine = if (defaultSharedPreferences.getBoolean("pref_http_downloads_enabled", false)) {
+            val httpDownloadEngine = HttpDownloadEngine(File(ulaFiles.emulatedScopedDir, "partialDownloads"), httpClient)
+            httpDownloadEngine.onDownloadComplete = { id -> runOnUiThread { viewModel.submitCompletedDownloadId(id) } }
+            httpDownloadEngine
+        } else {
+            val downloadManager = getSystemService(Context.DOWNLOAD_SERVICE) as DownloadManager
+            DownloadManagerWrapper(downloadManager)
+        }
+        val assetDownloader = AssetDownloader(assetPreferences, downloadEngine, ulaFiles)
 
         val appsStartupFsm = AppsStartupFsm(ulaDatabase, filesystemManager, ulaFiles)
         val sessionStartupFsm = SessionStartupFsm(ulaDatabase, assetRepository, filesystemManager, assetDownloader, storageCalculator)
@@ -292,6 +307,7 @@ class MainActivity : AppCompatActivity(), SessionListFragment.SessionSelection,
         LocalBroadcastManager.getInstance(this)
                 .unregisterReceiver(serverServiceBroadcastReceiver)
         unregisterReceiver(downloadBroadcastReceiver)
+        downloadProgressHandler.removeCallbacks(downloadProgressPoller)
     }
 
     override fun appHasBeenSelected(app: App, autoStart: Boolean) {
@@ -469,6 +485,9 @@ class MainActivity : AppCompatActivity(), SessionListFragment.SessionSelection,
             "playStoreMissingForClient" ->
                 displayGenericErrorDialog(R.string.alert_need_client_app_title,
                     R.string.alert_need_client_app_message)
+            "serverFailedToStart" ->
+                displayGenericErrorDialog(R.string.general_error_title,
+                    R.string.alert_server_failed_to_start_message)
         }
     }
 
@@ -489,7 +508,7 @@ class MainActivity : AppCompatActivity(), SessionListFragment.SessionSelection,
     private fun handleClearSupportFiles() {
         val appsPreferences = AppsPreferences(this)
         val assetDirectoryNames = appsPreferences.getDistributionsList().plus("support")
-        val assetFileClearer = AssetFileClearer(ulaFiles, assetDirectoryNames, busyboxExecutor)
+        val assetFileClearer = AssetFileClearer(ulaFiles, assetDirectoryNames)
         CoroutineScope(Dispatchers.Main).launch { viewModel.handleClearSupportFiles(assetFileClearer) }
     }
 
@@ -518,8 +537,16 @@ class MainActivity : AppCompatActivity(), SessionListFragment.SessionSelection,
             }
             is DownloadProgress -> {
                 val step = getString(R.string.progress_downloading)
-                val details = getString(R.string.progress_downloading_out_of, state.numComplete, state.numTotal)
+                val details = if (state.totalBytes > 0) {
+                    val downloaded = Formatter.formatShortFileSize(this, state.bytesDownloaded)
+                    val total = Formatter.formatShortFileSize(this, state.totalBytes)
+                    getString(R.string.progress_downloading_bytes_out_of, downloaded, total)
+                } else {
+                    getString(R.string.progress_downloading_out_of, state.numComplete, state.numTotal)
+                }
                 updateProgressBar(step, details)
+                downloadProgressHandler.removeCallbacks(downloadProgressPoller)
+                downloadProgressHandler.postDelayed(downloadProgressPoller, 1000)
             }
             is CopyingDownloads -> {
                 val step = getString(R.string.progress_copying_downloads)
@@ -535,7 +562,11 @@ class MainActivity : AppCompatActivity(), SessionListFragment.SessionSelection,
             }
             is FilesystemExtractionStep -> {
                 val step = getString(R.string.progress_setting_up_filesystem)
-                val details = getString(R.string.progress_extraction_details, state.extractionTarget)
+                val details = if (state.totalBytes > 0) {
+                    val extracted = Formatter.formatShortFileSize(this, state.bytesExtracted)
+                    val total = Formatter.formatShortFileSize(this, state.totalBytes)
+                    getString(R.string.progress_extracting_bytes_out_of, extracted, total)
+                } else ""
                 updateProgressBar(step, details)
             }
             is ClearingSupportFiles -> {
@@ -548,14 +579,23 @@ class MainActivity : AppCompatActivity(), SessionListFragment.SessionSelection,
         }
     }
 
-    override fun updateFilesystemExportProgress(details: String) {
+    override fun updateFilesystemExportProgress(details: String, bytesExported: Long) {
         val step = getString(R.string.progress_exporting_filesystem)
-        updateProgressBar(step, details)
+        if (bytesExported < 0) {
+            updateProgressBar(step, details)
+            return
+        }
+        val exported = getString(R.string.progress_bytes_exported, Formatter.formatShortFileSize(this, bytesExported))
+        updateProgressBar(step, "$exported\n$details")
     }
 
-    override fun updateFilesystemDeleteProgress() {
+    override fun updateFilesystemDeleteProgress(entriesDeleted: Long) {
         val step = getString(R.string.progress_deleting_filesystem)
-        updateProgressBar(step, "")
+        if (entriesDeleted <= 0) {
+            updateProgressBar(step, "")
+            return
+        }
+        updateProgressBar(step, getString(R.string.progress_entries_deleted, entriesDeleted))
     }
 
     override fun stopProgressFromFilesystemList() {
@@ -585,6 +625,7 @@ class MainActivity : AppCompatActivity(), SessionListFragment.SessionSelection,
     }
 
     private fun killProgressBar() {
+        downloadProgressHandler.removeCallbacks(downloadProgressPoller)
         val outAnimation = AlphaAnimation(1f, 0f)
         outAnimation.duration = 200
         layout_progress.animation = outAnimation
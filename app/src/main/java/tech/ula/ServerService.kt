@@ -42,6 +42,10 @@ class ServerService : Service(), CoroutineScope {
         LocalServerManager(this.filesDir.path, busyboxExecutor)
     }
 
+    private val resourceMonitor by lazy {
+        SessionResourceMonitor.getInstance()
+    }
+
     override fun onCreate() {
         broadcaster = LocalBroadcastManager.getInstance(this)
     }
@@ -102,6 +106,7 @@ class ServerService : Service(), CoroutineScope {
 
     private fun removeSession(session: Session) {
         activeSessions.remove(session.pid)
+        resourceMonitor.untrack(session.id)
         if (activeSessions.isEmpty()) {
             stopForeground(true)
             stopSelf()
@@ -124,6 +129,14 @@ class ServerService : Service(), CoroutineScope {
         session.pid = localServerManager.startServer(session)
 
         while (!localServerManager.isServerRunning(session)) {
+            if (localServerManager.sessionHasExited(session)) {
+                sendDialogBroadcast("serverFailedToStart")
+                if (activeSessions.isEmpty()) {
+                    stopForeground(true)
+                    stopSelf()
+                }
+                return
+            }
             delay(500)
         }
 
@@ -131,6 +144,7 @@ class ServerService : Service(), CoroutineScope {
         updateSession(session)
         startClient(session)
         activeSessions[session.pid] = session
+        resourceMonitor.track(session.id) { listOf(session.pid, localServerManager.getServerPid(session)) }
     }
 
     private fun stopApp(app: App) {
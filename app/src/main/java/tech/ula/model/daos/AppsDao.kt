@@ -22,4 +22,7 @@ interface AppsDao {
 
     @Insert(onConflict = OnConflictStrategy.REPLACE)
     fun insertApp(application: App)
-}
\ No newline at end of file
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    fun insertApps(applications: List<App>)
+}
@@ -3,5 +3,6 @@ package tech.ula.model.entities
 data class Asset(
     val name: String,
     val type: String, // Either "support" or a distribution type
-    val pathName: String = "$type/$name"
+    val pathName: String = "$type/$name",
+    val sha256: String? = null
 )
\ No newline at end of file
@@ -22,9 +22,9 @@ class UrlProvider {
 class GithubApiClient(
     private val ulaFiles: UlaFiles,
     private val urlProvider: UrlProvider = UrlProvider(),
-    private val logger: Logger = SentryLogger()
+    private val logger: Logger = SentryLogger(),
+    private val client: OkHttpClient = OkHttpClient()
 ) {
-    private val client = OkHttpClient()
     private val latestResults: HashMap<String, ReleasesResponse?> = hashMapOf()
 
     // This function can be used to tune the release used for each asset type for testing purposes.
@@ -57,6 +57,24 @@ class GithubApiClient(
         return@withContext result.assets.find { it.name == assetName }!!.downloadUrl
     }
 
+    @Throws(IOException::class)
+    suspend fun releaseHasAsset(assetType: String, repo: String): Boolean = withContext(Dispatchers.IO) {
+        val result = latestResults[repo] ?: queryLatestRelease(repo)
+        val assetName = "${ulaFiles.getArchType()}-$assetType"
+
+        return@withContext result.assets.any { it.name == assetName }
+    }
+
+    // Releases published before GitHub started recording digests have none.
+    @Throws(IOException::class)
+    suspend fun getAssetSha256(assetType: String, repo: String): String? = withContext(Dispatchers.IO) {
+        val result = latestResults[repo] ?: queryLatestRelease(repo)
+        val assetName = "${ulaFiles.getArchType()}-$assetType"
+        val digest = result.assets.find { it.name == assetName }?.digest ?: return@withContext null
+
+        return@withContext if (digest.startsWith("sha256:")) digest.removePrefix("sha256:") else null
+    }
+
     // Query latest release data and memoize results.
     @Throws(IOException::class, UnknownHostException::class)
     private suspend fun queryLatestRelease(repo: String): ReleasesResponse = withContext(Dispatchers.IO) {
@@ -97,6 +115,7 @@ class GithubApiClient(
     internal data class GithubAsset(
         val url: String,
         val name: String,
-        @Json(name = "browser_download_url") val downloadUrl: String
+        @Json(name = "browser_download_url") val downloadUrl: String,
+        val digest: String? = null
     )
 }
\ No newline at end of file
@@ -3,6 +3,7 @@ package tech.ula.model.repositories
 import androidx.lifecycle.LiveData
 import androidx.lifecycle.MutableLiveData
 import kotlinx.coroutines.* // ktlint-disable no-wildcard-imports
+import kotlinx.coroutines.channels.Channel
 import tech.ula.model.daos.AppsDao
 import tech.ula.model.entities.App
 import tech.ula.model.remote.GithubAppsFetcher
@@ -11,13 +12,15 @@ import tech.ula.utils.Logger
 import tech.ula.utils.SentryLogger
 import tech.ula.utils.UlaBreadcrumb
 import tech.ula.utils.preferences.AppsPreferences
+import java.util.Collections
 import java.util.Locale
 
 class AppsRepository(
     private val appsDao: AppsDao,
     private val remoteAppsSource: GithubAppsFetcher,
     private val appsPreferences: AppsPreferences,
-    private val logger: Logger = SentryLogger()
+    private val logger: Logger = SentryLogger(),
+    private val refreshConcurrency: Int = 8
 ) {
     private val className = "AppsRepository"
 
@@ -35,19 +38,13 @@ class AppsRepository(
         return refreshStatus
     }
 
+    // Apps are fetched by a fixed number of workers so that a large catalog does not open a connection per
+    // app. They are inserted together once all of them are fetched, so observers refresh once.
     suspend fun refreshData(scope: CoroutineScope) {
-        val distributionsList = mutableSetOf<String>()
+        val startTime = System.nanoTime()
         refreshStatus.postValue(RefreshStatus.ACTIVE)
-        val jobs = mutableListOf<Job>()
-        try {
-            remoteAppsSource.fetchAppsList().forEach { app ->
-                jobs.add(scope.launch {
-                    if (app.category.toLowerCase(Locale.ENGLISH) == "distribution") distributionsList.add(app.name)
-                    remoteAppsSource.fetchAppIcon(app)
-                    remoteAppsSource.fetchAppDescription(app)
-                    remoteAppsSource.fetchAppScript(app)
-                    appsDao.insertApp(app) // Insert the db element last to force observer refresh
-            }) }
+        val apps = try {
+            remoteAppsSource.fetchAppsList()
         } catch (err: Exception) {
             refreshStatus.postValue(RefreshStatus.FAILED)
             val message = err.message ?: "Not found"
@@ -56,9 +53,46 @@ class AppsRepository(
             logger.sendEvent("App Refresh Failed")
             return
         }
-        jobs.joinAll()
+
+        val appQueue = Channel<App>(Channel.UNLIMITED)
+        apps.forEach { appQueue.offer(it) }
+        appQueue.close()
+        val fetchedApps = Collections.synchronizedList(mutableListOf<App>())
+        val workers = List(refreshConcurrency.coerceAtMost(apps.size)) {
+            scope.launch {
+                for (app in appQueue) {
+                    if (fetchAppFiles(app)) fetchedApps.add(app)
+                }
+            }
+        }
+        workers.joinAll()
+
+        appsDao.insertApps(fetchedApps.toList()) // Insert the db elements last to force observer refresh
+        val distributionsList = apps.filter { it.category.toLowerCase(Locale.ENGLISH) == "distribution" }
+                .map { it.name }
+                .toSet()
         refreshStatus.postValue(RefreshStatus.FINISHED)
         appsPreferences.setDistributionsList(distributionsList)
+
+        val elapsedMillis = (System.nanoTime() - startTime) / 1_000_000
+        val details = "func: refreshData refreshed ${fetchedApps.size} of ${apps.size} apps in $elapsedMillis ms"
+        logger.addBreadcrumb(UlaBreadcrumb(className, BreadcrumbType.Measurement, details))
+    }
+
+    // Apps that fail to fetch are left out of the refresh rather than failing the others.
+    private suspend fun fetchAppFiles(app: App): Boolean {
+        return try {
+            remoteAppsSource.fetchAppIcon(app)
+            remoteAppsSource.fetchAppDescription(app)
+            remoteAppsSource.fetchAppScript(app)
+            true
+        } catch (err: CancellationException) {
+            throw err
+        } catch (err: Exception) {
+            val details = "func: fetchAppFiles app: ${app.name} err: ${err.message}"
+            logger.addBreadcrumb(UlaBreadcrumb(className, BreadcrumbType.RuntimeError, details))
+            false
+        }
     }
 }
 
@@ -18,7 +18,8 @@ data class DownloadMetadata(
     val assetType: String,
     val versionCode: String,
     val url: String,
-    val downloadTitle: String = "$assetType-$filename-$versionCode"
+    val downloadTitle: String = "$assetType-$filename-$versionCode",
+    val sha256: String? = null
 )
 
 class AssetRepository(
@@ -29,6 +30,8 @@ class AssetRepository(
     private val logger: Logger = SentryLogger()
 ) {
 
+    private val sha256Pattern = Regex("[0-9a-f]{64}")
+
     @Throws(IllegalStateException::class, UnknownHostException::class)
     suspend fun generateDownloadRequirements(
         filesystem: Filesystem,
@@ -52,6 +55,15 @@ class AssetRepository(
         return downloadRequirements
     }
 
+    // Called once no downloads are required, so that installed assets which match a newer release are not
+    // hashed again on every start. Nothing is recorded while the remote is unreachable.
+    suspend fun recordInstalledAssetsAreLatest(repo: String) {
+        try {
+            assetPreferences.setLatestDownloadVersion(repo, githubApiClient.getLatestReleaseVersion(repo))
+        } catch (err: UnknownHostException) {
+        }
+    }
+
     fun getDistributionAssetsForExistingFilesystem(filesystem: Filesystem): List<Asset> {
         val assets = assetPreferences.getCachedAssetList(filesystem.distributionType)
         return assets.filter { !it.name.contains("rootfs") }
@@ -88,10 +100,12 @@ class AssetRepository(
         val reader = BufferedReader(InputStreamReader(inputStream))
 
         val assetList = mutableListOf<Asset>()
-        reader.forEachLine {
-            val filename = it.substringBefore(' ')
+        reader.forEachLine { line ->
+            val fields = line.split(' ')
+            val filename = fields.first()
             if (filename == "assets.txt") return@forEachLine
-            assetList.add(Asset(filename, assetType))
+            val sha256 = fields.drop(1).find { sha256Pattern.matches(it) }
+            assetList.add(Asset(filename, assetType, sha256 = sha256))
         }
 
         reader.close()
@@ -126,16 +140,45 @@ class AssetRepository(
                 // to find updates.
                 return downloadRequirements
             }
+            getChangedAssetDownloadRequirements(assetList, repo)?.let { return it }
         }
 
         val filename = "assets.tar.gz"
         val versionCode = githubApiClient.getLatestReleaseVersion(repo)
         val url = githubApiClient.getAssetEndpoint(filename, repo)
-        val downloadMetadata = DownloadMetadata(filename, repo, versionCode, url)
+        val sha256 = githubApiClient.getAssetSha256(filename, repo)
+        val downloadMetadata = DownloadMetadata(filename, repo, versionCode, url, sha256 = sha256)
         downloadRequirements.add(downloadMetadata)
         return downloadRequirements
     }
 
+    // Returns null if an update can't be limited to the changed files, either because the manifest has no
+    // hashes or because a changed file is only published inside the assets tarball.
+    private suspend fun getChangedAssetDownloadRequirements(
+        assetList: List<Asset>,
+        repo: String
+    ): List<DownloadMetadata>? {
+        val assets = assetList.filter { !it.name.contains("rootfs.tar.gz") }
+        if (assets.any { it.sha256 == null }) return null
+
+        val changedAssets = withContext(Dispatchers.IO) {
+            assets.filter { asset ->
+                File("$applicationFilesDirPath/${asset.pathName}").sha256() != asset.sha256
+            }
+        }
+        // Only the release changed, so what is installed already is the latest version.
+        if (changedAssets.isEmpty()) return listOf()
+
+        val versionCode = githubApiClient.getLatestReleaseVersion(repo)
+        val downloadRequirements = mutableListOf<DownloadMetadata>()
+        for (asset in changedAssets) {
+            if (!githubApiClient.releaseHasAsset(asset.name, repo)) return null
+            val url = githubApiClient.getAssetEndpoint(asset.name, repo)
+            downloadRequirements.add(DownloadMetadata(asset.name, repo, versionCode, url, sha256 = asset.sha256))
+        }
+        return downloadRequirements
+    }
+
     private suspend fun getRootFsAssetDownloadRequirements(repo: String): List<DownloadMetadata> {
         val downloadRequirements = mutableListOf<DownloadMetadata>()
         val filename = "rootfs.tar.gz"
@@ -152,7 +195,8 @@ class AssetRepository(
         // If the rootfs is not downloaded, network failures will still propagate.
         val versionCode = githubApiClient.getLatestReleaseVersion(repo)
         val url = githubApiClient.getAssetEndpoint(filename, repo)
-        val downloadMetadata = DownloadMetadata(filename, repo, versionCode, url)
+        val sha256 = githubApiClient.getAssetSha256(filename, repo)
+        val downloadMetadata = DownloadMetadata(filename, repo, versionCode, url, sha256 = sha256)
         return listOf(downloadMetadata)
     }
-}
\ No newline at end of file
+}
@@ -56,17 +56,19 @@ class AppsStartupFsm(
             state.postValue(IncorrectAppTransition(event, state.value!!))
             return@launch
         }
-        return@launch when (event) {
-            is AppSelected -> fetchDatabaseEntries(event.app)
-            is CheckAppsFilesystemCredentials -> checkAppsFilesystemCredentials(event.appsFilesystem)
-            is SubmitAppsFilesystemCredentials -> {
-                setAppsFilesystemCredentials(event.filesystem, event.username, event.password, event.vncPassword)
+        logger.trace(event.javaClass.simpleName, "fsm") {
+            when (event) {
+                is AppSelected -> fetchDatabaseEntries(event.app)
+                is CheckAppsFilesystemCredentials -> checkAppsFilesystemCredentials(event.appsFilesystem)
+                is SubmitAppsFilesystemCredentials -> {
+                    setAppsFilesystemCredentials(event.filesystem, event.username, event.password, event.vncPassword)
+                }
+                is CheckAppSessionServiceType -> checkServiceType(event.appSession)
+                is SubmitAppSessionServiceType -> setServiceType(event.appSession, event.serviceType)
+                is CopyAppScriptToFilesystem -> copyAppScriptToFilesystem(event.app, event.filesystem)
+                is SyncDatabaseEntries -> updateAppSession(event.app, event.session, event.filesystem)
+                is ResetAppState -> state.postValue(WaitingForAppSelection)
             }
-            is CheckAppSessionServiceType -> checkServiceType(event.appSession)
-            is SubmitAppSessionServiceType -> setServiceType(event.appSession, event.serviceType)
-            is CopyAppScriptToFilesystem -> copyAppScriptToFilesystem(event.app, event.filesystem)
-            is SyncDatabaseEntries -> updateAppSession(event.app, event.session, event.filesystem)
-            is ResetAppState -> state.postValue(WaitingForAppSelection)
         }
     }
 
@@ -4,6 +4,8 @@ import androidx.lifecycle.LiveData
 import androidx.lifecycle.MutableLiveData
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.async
+import kotlinx.coroutines.coroutineScope
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
 import tech.ula.model.entities.Asset
@@ -21,7 +23,8 @@ class SessionStartupFsm(
     private val filesystemManager: FilesystemManager,
     private val assetDownloader: AssetDownloader,
     private val storageCalculator: StorageCalculator,
-    private val logger: Logger = SentryLogger()
+    private val logger: Logger = SentryLogger(),
+    private val clock: () -> Long = { System.nanoTime() / 1_000_000 }
 ) {
 
     private val className = "SessionFSM"
@@ -36,9 +39,19 @@ class SessionStartupFsm(
     private val filesystemsLiveData = filesystemDao.getAllFilesystems()
     private val filesystems = mutableListOf<Filesystem>()
 
+    // Extraction prints a line per file, which is too many to post. Progress is sampled instead, and the
+    // last lines are kept for the breadcrumb if extraction fails.
+    private val extractionLog = RingBufferLog(EXTRACTION_LOG_LINES)
     private val extractionLogger: (String) -> Unit = { line ->
-        state.postValue(ExtractingFilesystem(line))
+        extractionLog.add(line)
     }
+    private val extractionProgressListener: (Long, Long) -> Unit = { bytesExtracted, totalBytes ->
+        state.postValue(ExtractingFilesystem(bytesExtracted = bytesExtracted, totalBytes = totalBytes))
+    }
+
+    // Distributions whose downloads were last found to be up to date, and when, so starting sessions again
+    // soon after does not need the network.
+    private val upToDateCheckTimes = mutableMapOf<String, Long>()
 
     init {
         activeSessionsLiveData.observeForever {
@@ -73,6 +86,7 @@ class SessionStartupFsm(
         return when (event) {
             is SessionSelected -> currentState is WaitingForSessionSelection
             is RetrieveAssetLists -> currentState is SessionIsReadyForPreparation
+            is PlanSessionStartup -> currentState is SessionIsReadyForPreparation
             is GenerateDownloads -> currentState is AssetListsRetrievalSucceeded
             is DownloadAssets -> currentState is DownloadsRequired
             is AssetDownloadComplete -> {
@@ -80,6 +94,8 @@ class SessionStartupFsm(
                 // don't belong to us. Otherwise, we still don't want to post an illegal transition.
                 currentState is DownloadingAssets || !assetDownloader.downloadIsForUserland(event.downloadAssetId)
             }
+            // Polls may still arrive after the last download completes, and are ignored then.
+            is PollDownloadProgress -> true
             is SyncDownloadState -> {
 //                currentState is WaitingForSessionSelection || currentState is (DownloadingAssets)
                 true
@@ -100,19 +116,23 @@ class SessionStartupFsm(
             state.postValue(IncorrectSessionTransition(event, state.value!!))
             return@launch
         }
-        when (event) {
-            is SessionSelected -> { handleSessionSelected(event.session) }
-            is RetrieveAssetLists -> { handleRetrieveAssetLists(event.filesystem) }
-            is GenerateDownloads -> { handleGenerateDownloads(event.filesystem, event.assetList) }
-            is DownloadAssets -> { handleDownloadAssets(event.downloadRequirements) }
-            is AssetDownloadComplete -> { handleAssetsDownloadComplete(event.downloadAssetId) }
-            is SyncDownloadState -> { handleSyncDownloadState() }
-            is CopyDownloadsToLocalStorage -> { handleCopyDownloadsToLocalDirectories() }
-            is VerifyFilesystemAssets -> { handleVerifyFilesystemAssets(event.filesystem) }
-            is VerifyAvailableStorage -> { handleVerifyAvailableStorage() }
-            is VerifyAvailableStorageComplete -> { handleVerifyAvailableStorageComplete() }
-            is ExtractFilesystem -> { handleExtractFilesystem(event.filesystem) }
-            is ResetSessionState -> { state.postValue(WaitingForSessionSelection) }
+        logger.trace(event.javaClass.simpleName, "fsm") {
+            when (event) {
+                is SessionSelected -> { handleSessionSelected(event.session, coroutineScope) }
+                is RetrieveAssetLists -> { handleRetrieveAssetLists(event.filesystem) }
+                is PlanSessionStartup -> { handlePlanSessionStartup(event.filesystem) }
+                is GenerateDownloads -> { handleGenerateDownloads(event.filesystem, event.assetList) }
+                is DownloadAssets -> { handleDownloadAssets(event.downloadRequirements) }
+                is AssetDownloadComplete -> { handleAssetsDownloadComplete(event.downloadAssetId) }
+                is SyncDownloadState -> { handleSyncDownloadState() }
+                is PollDownloadProgress -> { handlePollDownloadProgress() }
+                is CopyDownloadsToLocalStorage -> { handleCopyDownloadsToLocalDirectories() }
+                is VerifyFilesystemAssets -> { handleVerifyFilesystemAssets(event.filesystem) }
+                is VerifyAvailableStorage -> { handleVerifyAvailableStorage(event.filesystem) }
+                is VerifyAvailableStorageComplete -> { handleVerifyAvailableStorageComplete() }
+                is ExtractFilesystem -> { handleExtractFilesystem(event.filesystem) }
+                is ResetSessionState -> { state.postValue(WaitingForSessionSelection) }
+            }
         }
     }
 
@@ -120,7 +140,7 @@ class SessionStartupFsm(
         return filesystems.find { filesystem -> filesystem.id == session.filesystemId }!!
     }
 
-    private fun handleSessionSelected(session: Session) {
+    private fun handleSessionSelected(session: Session, coroutineScope: CoroutineScope) {
         if (activeSessions.isNotEmpty()) {
             if (activeSessions.contains(session)) {
                 state.postValue(SessionIsRestartable(session))
@@ -132,9 +152,38 @@ class SessionStartupFsm(
         }
 
         val filesystem = findFilesystemForSession(session)
+        if (filesystemManager.hasValidReadinessSnapshot(filesystem) && assetsAreCurrent(filesystem)) {
+            state.postValue(SessionIsReadyToLaunch(session, filesystem))
+            coroutineScope.launch { checkForUpdatesAfterLaunch(filesystem) }
+            return
+        }
         state.postValue(SessionIsReadyForPreparation(session, filesystem))
     }
 
+    private fun assetsAreCurrent(filesystem: Filesystem): Boolean {
+        return filesystem.versionCodeUsed >= assetRepository.getLatestDistributionVersion(filesystem.distributionType)
+    }
+
+    // Sessions started from a snapshot skip looking for updates, so that happens once they are launching.
+    // Updates that are found are left for the next start to download, by dropping the snapshot.
+    private suspend fun checkForUpdatesAfterLaunch(filesystem: Filesystem) {
+        val distributionType = filesystem.distributionType
+        if (upToDateCheckIsRecent(distributionType)) return
+        try {
+            val assetList = assetRepository.getAssetList(distributionType)
+            if (assetList.isEmpty()) return
+            val downloadRequirements = assetRepository.generateDownloadRequirements(filesystem, assetList, false)
+            if (downloadRequirements.isEmpty()) {
+                assetRepository.recordInstalledAssetsAreLatest(distributionType)
+                upToDateCheckTimes[distributionType] = clock()
+            } else {
+                filesystemManager.deleteReadinessSnapshot(filesystem)
+            }
+        } catch (err: UnknownHostException) {
+            // The next start will look again.
+        }
+    }
+
     private suspend fun handleRetrieveAssetLists(filesystem: Filesystem) {
         state.postValue(RetrievingAssetLists)
 
@@ -148,6 +197,91 @@ class SessionStartupFsm(
         state.postValue(AssetListsRetrievalSucceeded(assetList))
     }
 
+    // Runs the checks that do not depend on each other at the same time, and skips the stages they show
+    // have nothing to do. The network is skipped entirely for extracted filesystems whose downloads were
+    // found to be up to date recently. Otherwise, planning ends in the state of the first stage that has
+    // work left, and startup carries on from there one step at a time.
+    private suspend fun handlePlanSessionStartup(filesystem: Filesystem) = coroutineScope {
+        state.postValue(RetrievingAssetLists)
+
+        val filesystemDirectoryName = "${filesystem.id}"
+        val distributionType = filesystem.distributionType
+        val isExtracted = filesystemManager.hasFilesystemBeenSuccessfullyExtracted(filesystemDirectoryName)
+        val networkCanBeSkipped = isExtracted && upToDateCheckIsRecent(distributionType)
+
+        val storageState = async(Dispatchers.IO) {
+            logger.trace("storage", "startup") { getStorageVerificationState(filesystem) }
+        }
+        // Checked against the cached asset list, which is only trusted if fetching it again gives the same.
+        val cachedAssets = assetRepository.getDistributionAssetsForExistingFilesystem(filesystem)
+        val filesystemAssetsAreCurrent = async(Dispatchers.IO) {
+            logger.trace("filesystem assets", "startup") {
+                val lastDownloadedAssetVersion = assetRepository.getLatestDistributionVersion(distributionType)
+                filesystemManager.areAllRequiredAssetsPresent(filesystemDirectoryName, cachedAssets) &&
+                        filesystem.versionCodeUsed >= lastDownloadedAssetVersion
+            }
+        }
+        var assetList = listOf<Asset>()
+        var remoteIsUnreachable = false
+        val downloadRequirements = async(Dispatchers.IO) {
+            if (networkCanBeSkipped) return@async listOf<DownloadMetadata>()
+            try {
+                assetList = logger.trace("asset lists", "startup") { assetRepository.getAssetList(distributionType) }
+                if (assetList.isEmpty()) return@async null
+                val filesystemNeedsExtraction = !isExtracted && !filesystem.isCreatedFromBackup
+                logger.trace("download requirements", "startup") {
+                    assetRepository.generateDownloadRequirements(filesystem, assetList, filesystemNeedsExtraction)
+                }
+            } catch (err: UnknownHostException) {
+                remoteIsUnreachable = true
+                null
+            }
+        }
+
+        val requirements = downloadRequirements.await()
+        when {
+            remoteIsUnreachable -> state.postValue(RemoteUnreachableForGeneration)
+            requirements == null -> state.postValue(AssetListsRetrievalFailed)
+            requirements.isNotEmpty() -> {
+                val largeDownloadRequired = requirements.any { it.filename == "rootfs.tar.gz" }
+                state.postValue(DownloadsRequired(requirements, largeDownloadRequired))
+            }
+            else -> {
+                // Only a check that reached the remote restarts the window, so skipping it never extends it.
+                if (!networkCanBeSkipped) {
+                    assetRepository.recordInstalledAssetsAreLatest(distributionType)
+                    upToDateCheckTimes[distributionType] = clock()
+                }
+                val assetListIsUnchanged = networkCanBeSkipped || assetList.filter { !it.name.contains("rootfs") } == cachedAssets
+                val assetsAreCurrent = assetListIsUnchanged && filesystemAssetsAreCurrent.await()
+                postPlannedLocalState(filesystem, assetsAreCurrent, storageState.await(), isExtracted)
+            }
+        }
+    }
+
+    private fun upToDateCheckIsRecent(distributionType: String): Boolean {
+        val checkTime = upToDateCheckTimes[distributionType] ?: return false
+        return clock() - checkTime < HttpClients.METADATA_TTL_SECONDS * 1000
+    }
+
+    private fun postPlannedLocalState(
+        filesystem: Filesystem,
+        filesystemAssetsAreCurrent: Boolean,
+        storageState: StorageVerificationState,
+        isExtracted: Boolean
+    ) {
+        if (!filesystemAssetsAreCurrent) {
+            state.postValue(NoDownloadsRequired)
+            return
+        }
+        if (storageState != StorageVerificationCompletedSuccessfully || !isExtracted) {
+            state.postValue(storageState)
+            return
+        }
+        filesystemManager.removeRootfsFilesFromFilesystem("${filesystem.id}")
+        postFilesystemIsReady(filesystem)
+    }
+
     private suspend fun handleGenerateDownloads(filesystem: Filesystem, assetList: List<Asset>) {
         state.postValue(GeneratingDownloadRequirements)
 
@@ -163,6 +297,7 @@ class SessionStartupFsm(
         }
 
         if (downloadRequirements.isEmpty()) {
+            assetRepository.recordInstalledAssetsAreLatest(filesystem.distributionType)
             state.postValue(NoDownloadsRequired)
             return
         }
@@ -191,7 +326,11 @@ class SessionStartupFsm(
             is CacheSyncAttemptedWhileCacheIsEmpty -> state.postValue(AttemptedCacheAccessWhileEmpty)
             is AllDownloadsCompletedSuccessfully -> state.postValue(DownloadsHaveSucceeded)
             is CompletedDownloadsUpdate -> {
-                state.postValue(DownloadingAssets(assetDownloadState.numCompleted, assetDownloadState.numTotal))
+                state.postValue(DownloadingAssets(
+                        assetDownloadState.numCompleted,
+                        assetDownloadState.numTotal,
+                        assetDownloadState.bytesDownloaded,
+                        assetDownloadState.totalBytes))
             }
             is AssetDownloadFailure -> state.postValue(DownloadsHaveFailed(assetDownloadState.reason))
         }
@@ -204,6 +343,11 @@ class SessionStartupFsm(
         }
     }
 
+    private fun handlePollDownloadProgress() {
+        if (state.value !is DownloadingAssets) return
+        handleAssetDownloadState(assetDownloader.getDownloadProgress())
+    }
+
     private suspend fun handleCopyDownloadsToLocalDirectories() {
         state.postValue(CopyingFilesToLocalDirectories)
         try {
@@ -247,13 +391,20 @@ class SessionStartupFsm(
         state.postValue(FilesystemAssetVerificationSucceeded)
     }
 
-    private fun handleVerifyAvailableStorage() {
+    private fun handleVerifyAvailableStorage(filesystem: Filesystem) {
         state.postValue(VerifyingSufficientStorage)
+        state.postValue(getStorageVerificationState(filesystem))
+    }
 
-        when (storageCalculator.getAvailableStorageInMB()) {
-            in 0..250 -> state.postValue(VerifyingSufficientStorageFailed)
-            in 251..1000 -> state.postValue(LowAvailableStorage)
-            else -> state.postValue(StorageVerificationCompletedSuccessfully)
+    // The margins are on top of what extraction will take, so a rootfs too large for the device is refused
+    // before extraction starts instead of failing partway through it.
+    private fun getStorageVerificationState(filesystem: Filesystem): StorageVerificationState {
+        val availableStorage = storageCalculator.getAvailableStorageInMB()
+        val requiredStorage = filesystemManager.getRequiredExtractionStorageInMB(filesystem)
+        return when {
+            availableStorage <= requiredStorage + MINIMUM_SPARE_STORAGE_MB -> VerifyingSufficientStorageFailed
+            availableStorage <= requiredStorage + LOW_SPARE_STORAGE_MB -> LowAvailableStorage
+            else -> StorageVerificationCompletedSuccessfully
         }
     }
 
@@ -266,24 +417,55 @@ class SessionStartupFsm(
 
         if (filesystemManager.hasFilesystemBeenSuccessfullyExtracted(filesystemDirectoryName)) {
             filesystemManager.removeRootfsFilesFromFilesystem(filesystemDirectoryName)
-            state.postValue(ExtractionHasCompletedSuccessfully)
+            postFilesystemIsReady(filesystem)
             return
         }
 
-        val result = filesystemManager.extractFilesystem(filesystem, extractionLogger)
+        if (filesystemManager.cloneFilesystem(filesystem)) {
+            filesystemManager.removeRootfsFilesFromFilesystem(filesystemDirectoryName)
+            postFilesystemIsReady(filesystem)
+            return
+        }
+
+        extractionLog.clear()
+        state.postValue(ExtractingFilesystem())
+        val result = if (filesystemManager.isIncrementalBackup(filesystemDirectoryName)) {
+            filesystemManager.restoreFilesystem(filesystem, extractionLogger, extractionProgressListener)
+        } else {
+            filesystemManager.extractFilesystem(filesystem, extractionLogger, extractionProgressListener)
+        }
         if (result is FailedExecution) {
+            logExtractionOutput()
             state.postValue(ExtractionFailed(result.reason))
             return
         }
 
         if (filesystemManager.hasFilesystemBeenSuccessfullyExtracted(filesystemDirectoryName)) {
             filesystemManager.removeRootfsFilesFromFilesystem(filesystemDirectoryName)
-            state.postValue(ExtractionHasCompletedSuccessfully)
+            filesystemManager.saveBaseFilesystem(filesystem)
+            postFilesystemIsReady(filesystem)
             return
         }
 
+        logExtractionOutput()
         state.postValue(ExtractionFailed(reason = "Unknown reason."))
     }
+
+    private fun postFilesystemIsReady(filesystem: Filesystem) {
+        filesystemManager.saveReadinessSnapshot(filesystem)
+        state.postValue(ExtractionHasCompletedSuccessfully)
+    }
+
+    private fun logExtractionOutput() {
+        val output = extractionLog.getLines().joinToString("\n")
+        logger.addBreadcrumb(UlaBreadcrumb(className, BreadcrumbType.RuntimeError, "Extraction output:\n$output"))
+    }
+
+    companion object {
+        private const val EXTRACTION_LOG_LINES = 50
+        private const val MINIMUM_SPARE_STORAGE_MB = 250
+        private const val LOW_SPARE_STORAGE_MB = 1000
+    }
 }
 
 sealed class SessionStartupState
@@ -293,6 +475,7 @@ object WaitingForSessionSelection : SessionStartupState()
 object SingleSessionSupported : SessionStartupState()
 data class SessionIsRestartable(val session: Session) : SessionStartupState()
 data class SessionIsReadyForPreparation(val session: Session, val filesystem: Filesystem) : SessionStartupState()
+data class SessionIsReadyToLaunch(val session: Session, val filesystem: Filesystem) : SessionStartupState()
 
 // Asset retrieval states
 sealed class AssetRetrievalState : SessionStartupState()
@@ -309,7 +492,12 @@ object RemoteUnreachableForGeneration : DownloadRequirementsGenerationState()
 
 // Downloading asset states
 sealed class DownloadingAssetsState : SessionStartupState()
-data class DownloadingAssets(val numCompleted: Int, val numTotal: Int) : DownloadingAssetsState()
+data class DownloadingAssets(
+    val numCompleted: Int,
+    val numTotal: Int,
+    val bytesDownloaded: Long = 0,
+    val totalBytes: Long = -1
+) : DownloadingAssetsState()
 object DownloadsHaveSucceeded : DownloadingAssetsState()
 data class DownloadsHaveFailed(val reason: DownloadFailureLocalizationData) : DownloadingAssetsState()
 object AttemptedCacheAccessWhileEmpty : DownloadingAssetsState()
@@ -326,7 +514,10 @@ object AssetsAreMissingFromSupportDirectories : AssetVerificationState()
 object FilesystemAssetCopyFailed : AssetVerificationState()
 
 sealed class ExtractionState : SessionStartupState()
-data class ExtractingFilesystem(val extractionTarget: String) : ExtractionState()
+data class ExtractingFilesystem(
+    val bytesExtracted: Long = 0,
+    val totalBytes: Long = -1
+) : ExtractionState()
 object ExtractionHasCompletedSuccessfully : ExtractionState()
 data class ExtractionFailed(val reason: String) : ExtractionState()
 
@@ -339,13 +530,15 @@ object StorageVerificationCompletedSuccessfully : StorageVerificationState()
 sealed class SessionStartupEvent
 data class SessionSelected(val session: Session) : SessionStartupEvent()
 data class RetrieveAssetLists(val filesystem: Filesystem) : SessionStartupEvent()
+data class PlanSessionStartup(val filesystem: Filesystem) : SessionStartupEvent()
 data class GenerateDownloads(val filesystem: Filesystem, val assetList: List<Asset>) : SessionStartupEvent()
 data class DownloadAssets(val downloadRequirements: List<DownloadMetadata>) : SessionStartupEvent()
 data class AssetDownloadComplete(val downloadAssetId: Long) : SessionStartupEvent()
 object SyncDownloadState : SessionStartupEvent()
+object PollDownloadProgress : SessionStartupEvent()
 object CopyDownloadsToLocalStorage : SessionStartupEvent()
 data class VerifyFilesystemAssets(val filesystem: Filesystem) : SessionStartupEvent()
-object VerifyAvailableStorage : SessionStartupEvent()
+data class VerifyAvailableStorage(val filesystem: Filesystem) : SessionStartupEvent()
 object VerifyAvailableStorageComplete : SessionStartupEvent()
 data class ExtractFilesystem(val filesystem: Filesystem) : SessionStartupEvent()
 object ResetSessionState : SessionStartupEvent()
@@ -54,7 +54,8 @@ class AppsListFragment : Fragment(), AppsListAdapter.AppsClickHandler {
     private val viewModel: AppsListViewModel by lazy {
         val ulaDatabase = UlaDatabase.getInstance(activityContext)
         val appsDao = ulaDatabase.appsDao()
-        val githubFetcher = GithubAppsFetcher("${activityContext.filesDir}")
+        val httpStream = HttpStream(HttpClients.getMetadataClient(activityContext.cacheDir))
+        val githubFetcher = GithubAppsFetcher("${activityContext.filesDir}", httpStream)
 
         val appsRepository = AppsRepository(appsDao, githubFetcher, appsPreferences)
         ViewModelProviders.of(this, AppsListViewModelFactory(appsRepository))
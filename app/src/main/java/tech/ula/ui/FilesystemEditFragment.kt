@@ -182,6 +182,7 @@ class FilesystemEditFragment : Fragment() {
             val filePickerIntent = Intent(Intent.ACTION_OPEN_DOCUMENT)
             filePickerIntent.addCategory(Intent.CATEGORY_OPENABLE)
             filePickerIntent.type = "application/*"
+            filePickerIntent.putExtra(Intent.EXTRA_ALLOW_MULTIPLE, true)
             if (!PermissionHandler.permissionsAreGranted(activityContext)) {
                 PermissionHandler.showPermissionsNecessaryDialog(activityContext)
                 return@setOnClickListener
@@ -218,8 +219,17 @@ class FilesystemEditFragment : Fragment() {
         if (requestCode == IMPORT_FILESYSTEM_REQUEST_CODE) {
             returnIntent?.data?.let { uri ->
                 filesystemEditViewModel.backupUri = uri
+                filesystemEditViewModel.incrementUris = listOf()
                 text_backup_filename.text = uri.lastPathSegment
             }
+            // Picking several documents selects a backup along with its increments.
+            returnIntent?.clipData?.let { clipData ->
+                val uris = (0 until clipData.itemCount).map { clipData.getItemAt(it).uri }
+                if (uris.isEmpty()) return@let
+                filesystemEditViewModel.backupUri = uris.first()
+                filesystemEditViewModel.incrementUris = uris.drop(1)
+                text_backup_filename.text = uris.joinToString { it.lastPathSegment ?: "" }
+            }
         }
     }
 
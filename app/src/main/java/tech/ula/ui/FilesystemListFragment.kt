@@ -27,8 +27,8 @@ private const val FILESYSTEM_EXPORT_REQUEST_CODE = 7
 class FilesystemListFragment : Fragment() {
 
     interface FilesystemListProgress {
-        fun updateFilesystemExportProgress(details: String)
-        fun updateFilesystemDeleteProgress()
+        fun updateFilesystemExportProgress(details: String, bytesExported: Long)
+        fun updateFilesystemDeleteProgress(entriesDeleted: Long)
         fun stopProgressFromFilesystemList()
     }
 
@@ -114,7 +114,8 @@ class FilesystemListFragment : Fragment() {
         when (item.itemId) {
             R.id.menu_item_filesystem_edit -> editFilesystem(filesystem)
             R.id.menu_item_filesystem_delete -> deleteFilesystem(filesystem)
-            R.id.menu_item_filesystem_export -> exportFilesystem(filesystem)
+            R.id.menu_item_filesystem_export -> exportFilesystem(filesystem, fullBackup = false)
+            R.id.menu_item_filesystem_export_full -> exportFilesystem(filesystem, fullBackup = true)
             else -> super.onContextItemSelected(item)
         }
         return true
@@ -124,8 +125,7 @@ class FilesystemListFragment : Fragment() {
         super.onActivityResult(requestCode, resultCode, data)
         if (requestCode == FILESYSTEM_EXPORT_REQUEST_CODE) {
             data?.data?.let { uri ->
-                val filesDir = activityContext.filesDir
-                filesystemListViewModel.startExport(filesDir, uri, activityContext.contentResolver)
+                filesystemListViewModel.startExport(uri, activityContext.contentResolver)
             }
         }
     }
@@ -145,14 +145,14 @@ class FilesystemListFragment : Fragment() {
         filesystemListViewModel.deleteFilesystemById(filesystem.id)
     }
 
-    private fun exportFilesystem(filesystem: Filesystem) {
+    private fun exportFilesystem(filesystem: Filesystem, fullBackup: Boolean) {
         if (!PermissionHandler.permissionsAreGranted(activityContext)) {
             PermissionHandler.showPermissionsNecessaryDialog(activityContext)
             return
         }
-        val suggestedFilesystemBackupName = filesystemListViewModel.getFilesystemBackupName(filesystem)
+        val suggestedFilesystemBackupName = filesystemListViewModel.getFilesystemBackupName(filesystem, fullBackup)
         val intent = createExportExternalIntent(suggestedFilesystemBackupName)
-        filesystemListViewModel.setFilesystemToBackup(filesystem)
+        filesystemListViewModel.setFilesystemToBackup(filesystem, fullBackup)
         startActivityForResult(intent, FILESYSTEM_EXPORT_REQUEST_CODE)
     }
 
@@ -167,7 +167,7 @@ class FilesystemListFragment : Fragment() {
     private fun handleExportStatus(viewState: FilesystemExportState) {
         return when (viewState) {
             is FilesystemExportState.Update -> {
-                activityContext.updateFilesystemExportProgress(viewState.details)
+                activityContext.updateFilesystemExportProgress(viewState.details, viewState.bytesExported)
             }
             is FilesystemExportState.Success -> {
                 activityContext.stopProgressFromFilesystemList()
@@ -189,7 +189,10 @@ class FilesystemListFragment : Fragment() {
     private fun handleDeleteStatus(viewState: FilesystemDeleteState) {
         return when (viewState) {
             is FilesystemDeleteState.InProgress -> {
-                activityContext.updateFilesystemDeleteProgress()
+                activityContext.updateFilesystemDeleteProgress(0)
+            }
+            is FilesystemDeleteState.Update -> {
+                activityContext.updateFilesystemDeleteProgress(viewState.entriesDeleted)
             }
             is FilesystemDeleteState.Success -> {
                 activityContext.stopProgressFromFilesystemList()
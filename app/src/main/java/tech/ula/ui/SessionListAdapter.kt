@@ -2,6 +2,7 @@ package tech.ula.ui
 
 import android.app.Activity
 import android.content.Context
+import android.text.format.Formatter
 import android.view.LayoutInflater
 import android.view.View
 import android.view.ViewGroup
@@ -12,6 +13,7 @@ import tech.ula.R
 import tech.ula.model.entities.Filesystem
 import tech.ula.model.entities.Session
 import tech.ula.utils.AppDetails
+import tech.ula.utils.SessionResourceUsage
 
 class SessionListAdapter(
     private var activity: Activity,
@@ -23,10 +25,17 @@ class SessionListAdapter(
         var textViewServiceType: TextView? = row.findViewById(R.id.text_list_item_service_type)
         var textViewSessionName: TextView? = row.findViewById(R.id.text_list_item_session_name)
         var textViewFilesystemName: TextView? = row.findViewById(R.id.text_list_item_filesystem_name)
+        var textViewResourceUsage: TextView? = row.findViewById(R.id.text_list_item_resource_usage)
         var imageViewFilesystemIcon: ImageView? = row.findViewById(R.id.image_list_item_filesystem_icon)
         var separatorText: TextView? = row.findViewById(R.id.list_item_separator_text)
     }
 
+    var resourceUsage: Map<Long, SessionResourceUsage> = mapOf()
+        set(value) {
+            field = value
+            notifyDataSetChanged()
+        }
+
     private val ITEM_VIEW_TYPE_SESSION = 0
     private val ITEM_VIEW_TYPE_SEPARATOR = 1
     private val ITEM_VIEW_TYPE_COUNT = 2
@@ -101,6 +110,17 @@ class SessionListAdapter(
                 viewHolder.textViewSessionName?.text = session.name
                 viewHolder.textViewFilesystemName?.text = session.filesystemName
                 viewHolder.imageViewFilesystemIcon?.setImageURI(appDetailer.findIconUri(filesystem.distributionType))
+
+                val usage = resourceUsage[session.id]
+                if (session.active && usage != null) {
+                    viewHolder.textViewResourceUsage?.text = activity.getString(R.string.session_resource_usage,
+                            usage.cpuPercent,
+                            Formatter.formatShortFileSize(activity, usage.rssBytes),
+                            Formatter.formatShortFileSize(activity, usage.readBytesPerSecond + usage.writeBytesPerSecond))
+                    viewHolder.textViewResourceUsage?.visibility = View.VISIBLE
+                } else {
+                    viewHolder.textViewResourceUsage?.visibility = View.GONE
+                }
             }
         }
 
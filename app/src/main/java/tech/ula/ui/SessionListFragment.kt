@@ -16,6 +16,7 @@ import tech.ula.ServerService
 import tech.ula.model.entities.Filesystem
 import tech.ula.model.entities.Session
 import tech.ula.model.repositories.UlaDatabase
+import tech.ula.utils.SessionResourceUsage
 import tech.ula.viewmodel.SessionListViewModel
 import tech.ula.viewmodel.SessionListViewModelFactory
 
@@ -34,6 +35,7 @@ class SessionListFragment : Fragment() {
     private lateinit var sessionList: List<Session>
     private lateinit var sessionAdapter: SessionListAdapter
     private lateinit var filesystemList: List<Filesystem>
+    private var resourceUsage: Map<Long, SessionResourceUsage> = mapOf()
 
     private val sessionListViewModel: SessionListViewModel by lazy {
         val ulaDatabase = UlaDatabase.getInstance(activityContext)
@@ -46,10 +48,18 @@ class SessionListFragment : Fragment() {
             filesystemList = pair.second
 
             sessionAdapter = SessionListAdapter(activityContext, sessionList, filesystemList)
+            sessionAdapter.resourceUsage = resourceUsage
             list_sessions.adapter = sessionAdapter
         }
     }
 
+    private val resourceUsageChangeObserver = Observer<Map<Long, SessionResourceUsage>> {
+        it?.let { usage ->
+            resourceUsage = usage
+            if (this::sessionAdapter.isInitialized) sessionAdapter.resourceUsage = usage
+        }
+    }
+
     override fun onCreate(savedInstanceState: Bundle?) {
         super.onCreate(savedInstanceState)
         setHasOptionsMenu(true)
@@ -74,6 +84,7 @@ class SessionListFragment : Fragment() {
         activityContext = activity!! as MainActivity
 
         sessionListViewModel.getSessionsAndFilesystems().observe(viewLifecycleOwner, sessionsAndFilesystemsChangeObserver)
+        sessionListViewModel.getSessionResourceUsage().observe(viewLifecycleOwner, resourceUsageChangeObserver)
 
         registerForContextMenu(list_sessions)
         list_sessions.onItemClickListener = AdapterView.OnItemClickListener {
@@ -5,17 +5,24 @@ import android.graphics.Color
 import android.graphics.drawable.ColorDrawable
 import android.graphics.drawable.Drawable
 import android.os.Bundle
+import android.widget.Toast
 import tech.ula.R
 import androidx.preference.PreferenceFragmentCompat
 import androidx.preference.Preference
 import tech.ula.utils.ProotDebugLogger
+import tech.ula.utils.TraceRecorder
 import tech.ula.utils.UlaFiles
 import tech.ula.utils.defaultSharedPreferences
+import java.io.File
+import java.io.IOException
 
 class SettingsFragment : PreferenceFragmentCompat() {
 
+    private val ulaFiles by lazy {
+        UlaFiles(activity!!, activity!!.applicationInfo.nativeLibraryDir)
+    }
+
     private val prootDebugLogger by lazy {
-        val ulaFiles = UlaFiles(activity!!, activity!!.applicationInfo.nativeLibraryDir)
         ProotDebugLogger(activity!!.defaultSharedPreferences, ulaFiles)
     }
 
@@ -28,6 +35,12 @@ class SettingsFragment : PreferenceFragmentCompat() {
             true
         }
 
+        val exportStartupTracePreference: Preference = findPreference("pref_export_startup_trace")!!
+        exportStartupTracePreference.setOnPreferenceClickListener {
+            exportStartupTrace()
+            true
+        }
+
         val clearAutoStartPreference: Preference = findPreference("pref_clear_auto_start")!!
         clearAutoStartPreference.setOnPreferenceClickListener {
             val prefs = activity!!.getSharedPreferences("apps", Context.MODE_PRIVATE)
@@ -39,6 +52,17 @@ class SettingsFragment : PreferenceFragmentCompat() {
         }
     }
 
+    private fun exportStartupTrace() {
+        val traceFile = File(ulaFiles.emulatedUserDir, "Startup_Trace.json")
+        val message = try {
+            traceFile.outputStream().use { TraceRecorder.default.export(it) }
+            R.string.startup_trace_export_success
+        } catch (err: IOException) {
+            R.string.startup_trace_export_failure
+        }
+        Toast.makeText(activity!!, message, Toast.LENGTH_LONG).show()
+    }
+
     override fun setDivider(divider: Drawable?) {
         super.setDivider(ColorDrawable(Color.TRANSPARENT))
     }
@@ -1,12 +1,9 @@
 package tech.ula.utils
 
 import android.app.DownloadManager
-import android.database.Cursor
 import android.net.Uri
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.withContext
-import org.rauschig.jarchivelib.Archiver
-import org.rauschig.jarchivelib.ArchiverFactory
 import tech.ula.R
 import tech.ula.model.repositories.DownloadMetadata
 import tech.ula.utils.preferences.AssetPreferences
@@ -17,13 +14,20 @@ sealed class AssetDownloadState
 object CacheSyncAttemptedWhileCacheIsEmpty : AssetDownloadState()
 object NonUserlandDownloadFound : AssetDownloadState()
 object AllDownloadsCompletedSuccessfully : AssetDownloadState()
-data class CompletedDownloadsUpdate(val numCompleted: Int, val numTotal: Int) : AssetDownloadState()
+// Total bytes are -1 until the size of every download is known.
+data class CompletedDownloadsUpdate(
+    val numCompleted: Int,
+    val numTotal: Int,
+    val bytesDownloaded: Long = 0,
+    val totalBytes: Long = -1
+) : AssetDownloadState()
 data class AssetDownloadFailure(val reason: DownloadFailureLocalizationData) : AssetDownloadState()
 
 class AssetDownloader(
     private val assetPreferences: AssetPreferences,
-    private val downloadManagerWrapper: DownloadManagerWrapper,
-    private val ulaFiles: UlaFiles
+    private val downloadEngine: DownloadEngine,
+    private val ulaFiles: UlaFiles,
+    private val assetStore: AssetStore = AssetStore(File(ulaFiles.filesDir, AssetStore.DIRECTORY_NAME))
 ) {
 
     private val downloadDirectory = File(ulaFiles.emulatedScopedDir, "downloads")
@@ -44,15 +48,15 @@ class AssetDownloader(
 
         enqueuedDownloadIds.addAll(assetPreferences.getEnqueuedDownloads())
 
+        val statuses = downloadEngine.getDownloadStatuses(enqueuedDownloadIds)
         for (id in enqueuedDownloadIds) {
             // Skip in-progress downloads
-            if (!downloadManagerWrapper.downloadHasFailed(id) && !downloadManagerWrapper.downloadHasSucceeded(id)) {
-                continue
-            }
-            val state = handleDownloadComplete(id)
+            val status = statuses[id] ?: continue
+            if (!status.hasFailed && !status.hasSucceeded) continue
+            val state = handleDownloadStatus(id, statuses)
             if (state !is CompletedDownloadsUpdate) return state
         }
-        return CompletedDownloadsUpdate(completedDownloadIds.size, enqueuedDownloadIds.size)
+        return createProgressUpdate(statuses)
     }
 
     fun downloadRequirements(downloadRequirements: List<DownloadMetadata>) {
@@ -63,8 +67,7 @@ class AssetDownloader(
 
         enqueuedDownloadIds.addAll(downloadRequirements.map { metadata ->
             val destination = File(downloadDirectory, metadata.downloadTitle)
-            val request = downloadManagerWrapper.generateDownloadRequest(metadata.url, destination)
-            downloadManagerWrapper.enqueue(request)
+            downloadEngine.enqueue(metadata, destination)
         })
         assetPreferences.setDownloadsAreInProgress(inProgress = true)
         assetPreferences.setEnqueuedDownloads(enqueuedDownloadIds)
@@ -73,15 +76,21 @@ class AssetDownloader(
     fun handleDownloadComplete(downloadId: Long): AssetDownloadState {
         if (!downloadIsForUserland(downloadId)) return NonUserlandDownloadFound
 
-        if (downloadManagerWrapper.downloadHasFailed(downloadId)) {
-            val reason = downloadManagerWrapper.getDownloadFailureReason(downloadId)
-            downloadManagerWrapper.cancelAllDownloads(enqueuedDownloadIds)
+        return handleDownloadStatus(downloadId, downloadEngine.getDownloadStatuses(enqueuedDownloadIds))
+    }
+
+    private fun handleDownloadStatus(downloadId: Long, statuses: Map<Long, DownloadStatus>): AssetDownloadState {
+        val status = statuses[downloadId]
+        if (status != null && status.hasFailed) {
+            val reason = status.failureReason
+                    ?: DownloadFailureLocalizationData(R.string.download_failure_reason_not_found)
+            downloadEngine.cancelAllDownloads(enqueuedDownloadIds)
             return AssetDownloadFailure(reason)
         }
 
         completedDownloadIds.add(downloadId)
         if (completedDownloadIds.size != enqueuedDownloadIds.size) {
-            return CompletedDownloadsUpdate(completedDownloadIds.size, enqueuedDownloadIds.size)
+            return createProgressUpdate(statuses)
         }
 
         if (!enqueuedDownloadIds.containsAll(completedDownloadIds)) {
@@ -95,6 +104,18 @@ class AssetDownloader(
         return AllDownloadsCompletedSuccessfully
     }
 
+    fun getDownloadProgress(): CompletedDownloadsUpdate {
+        return createProgressUpdate(downloadEngine.getDownloadStatuses(enqueuedDownloadIds))
+    }
+
+    private fun createProgressUpdate(statuses: Map<Long, DownloadStatus>): CompletedDownloadsUpdate {
+        val enqueuedStatuses = enqueuedDownloadIds.map { statuses[it] }
+        val bytesDownloaded = enqueuedStatuses.map { it?.bytesDownloaded ?: 0L }.sum()
+        val sizes = enqueuedStatuses.map { it?.totalBytes ?: -1L }
+        val totalBytes = if (sizes.any { it < 0 }) -1L else sizes.sum()
+        return CompletedDownloadsUpdate(completedDownloadIds.size, enqueuedDownloadIds.size, bytesDownloaded, totalBytes)
+    }
+
     fun downloadIsForUserland(id: Long): Boolean {
         return enqueuedDownloadIds.contains(id)
     }
@@ -109,18 +130,19 @@ class AssetDownloader(
     }
 
     @Throws(IOException::class)
-    suspend fun prepareDownloadsForUse(archiverFactory: ArchiveFactoryWrapper = ArchiveFactoryWrapper()) = withContext(Dispatchers.IO) {
-        val stagingDirectory = File("${ulaFiles.filesDir.path}/staging")
-        stagingDirectory.mkdirs()
+    suspend fun prepareDownloadsForUse(tarExtractor: TarExtractor = TarExtractor()) = withContext(Dispatchers.IO) {
         val downloadFiles = downloadDirectory.listFiles() ?: return@withContext
+        val updatedAssetFiles = mutableListOf<File>()
         downloadFiles.forEach {
-            if (it.name.contains("rootfs.tar.gz")) {
-                moveRootfsAssetInternal(it)
-                return@forEach
+            when {
+                it.name.contains("rootfs.tar.gz") -> moveRootfsAssetInternal(it)
+                it.name.contains("assets.tar.gz") -> extractAssets(it, tarExtractor)
+                else -> updatedAssetFiles.add(it)
             }
-            extractAssets(it, stagingDirectory, archiverFactory)
         }
-        stagingDirectory.deleteRecursively()
+        for ((repo, files) in updatedAssetFiles.groupBy { it.name.substringBefore("-") }) {
+            installUpdatedAssets(repo, files)
+        }
     }
 
     private suspend fun moveRootfsAssetInternal(rootFsFile: File) = withContext(Dispatchers.IO) {
@@ -138,30 +160,88 @@ class AssetDownloader(
             }
         }
 
-        rootFsFile.copyTo(target, overwrite = true)
-        rootFsFile.delete()
+        moveFile(rootFsFile, target)
         assetPreferences.setLatestDownloadFilesystemVersion(repo, version)
     }
 
-    private suspend fun extractAssets(tarFile: File, stagingDirectory: File, archiverFactory: ArchiveFactoryWrapper) = withContext(Dispatchers.IO) {
-        val (repo, filename, version) = tarFile.name.split("-", limit = 3)
-        val stagingTarget = File("${stagingDirectory.absolutePath}/$filename")
+    // Renames when both files are on the same filesystem. Otherwise the copy is written next to the target
+    // and renamed over it, so a partially copied file is never left in its place.
+    private fun moveFile(source: File, target: File) {
+        if (source.renameTo(target)) return
+
+        val partialTarget = File("${target.absolutePath}.partial")
+        source.copyTo(partialTarget, overwrite = true)
+        if (!partialTarget.renameTo(target)) {
+            partialTarget.delete()
+            throw IOException("Could not move ${source.name} to ${target.path}")
+        }
+        source.delete()
+    }
+
+    // Individually downloaded assets are named repo-filename-version, and filenames may contain dashes.
+    // Every file is verified and staged next to its target before any of them replace what is installed,
+    // and the version is only recorded once all of them have.
+    private fun installUpdatedAssets(repo: String, files: List<File>) {
         val destination = File("${ulaFiles.filesDir.path}/$repo")
+        destination.mkdirs()
+        val expectedHashes = assetPreferences.getCachedAssetList(repo).associate { it.name to it.sha256 }
 
-        tarFile.copyTo(stagingTarget, overwrite = true)
-        tarFile.delete()
+        val stagedFiles = files.map { file ->
+            val filename = file.name.removePrefix("$repo-").substringBeforeLast("-")
+            val expectedHash = expectedHashes[filename]
+            if (expectedHash != null && file.sha256() != expectedHash) {
+                file.delete()
+                throw IOException("Downloaded $filename did not match its checksum")
+            }
+            val stagedFile = File(destination, ".$filename.update")
+            moveFile(file, stagedFile)
+            filename to stagedFile
+        }
+        ulaFiles.makePermissionsUsable(destination.path, stagedFiles.map { it.second.name })
 
-        val archiver = archiverFactory.createArchiver(stagingTarget)
-        archiver.extract(stagingTarget, destination)
-        val extractedFiles = destination.listFiles() ?: return@withContext
-        for (file in extractedFiles) {
-            ulaFiles.makePermissionsUsable(destination.absolutePath, file.name)
+        for ((filename, stagedFile) in stagedFiles) {
+            if (!stagedFile.renameTo(File(destination, filename))) {
+                throw IOException("Could not replace $filename in ${destination.path}")
+            }
         }
+        assetStore.addAll(destination) { it.name.contains("rootfs") }
+        assetPreferences.setLatestDownloadVersion(repo, files.first().name.substringAfterLast("-"))
+    }
+
+    private suspend fun extractAssets(tarFile: File, tarExtractor: TarExtractor) = withContext(Dispatchers.IO) {
+        val (repo, _, version) = tarFile.name.split("-", limit = 3)
+        val destination = File("${ulaFiles.filesDir.path}/$repo")
+
+        tarExtractor.extract(tarFile, destination)
+        tarFile.delete()
+        assetStore.addAll(destination) { it.name.contains("rootfs") }
         assetPreferences.setLatestDownloadVersion(repo, version)
     }
 }
 
-class DownloadManagerWrapper(private val downloadManager: DownloadManager) {
+// Total bytes are -1 while the size of a download is unknown.
+data class DownloadStatus(
+    val hasSucceeded: Boolean,
+    val hasFailed: Boolean,
+    val bytesDownloaded: Long,
+    val totalBytes: Long,
+    val failureReason: DownloadFailureLocalizationData? = null
+)
+
+interface DownloadEngine {
+    fun enqueue(downloadMetadata: DownloadMetadata, destination: File): Long
+
+    // Ids that the engine does not know about are left out of the result.
+    fun getDownloadStatuses(ids: Set<Long>): Map<Long, DownloadStatus>
+
+    fun cancelAllDownloads(downloadIds: Set<Long>)
+}
+
+class DownloadManagerWrapper(private val downloadManager: DownloadManager) : DownloadEngine {
+    override fun enqueue(downloadMetadata: DownloadMetadata, destination: File): Long {
+        return enqueue(generateDownloadRequest(downloadMetadata.url, destination))
+    }
+
     fun generateDownloadRequest(url: String, destination: File): DownloadManager.Request {
         val uri = Uri.parse(url)
         val request = DownloadManager.Request(uri)
@@ -178,65 +258,50 @@ class DownloadManagerWrapper(private val downloadManager: DownloadManager) {
         return downloadManager.enqueue(request)
     }
 
-    private fun generateQuery(id: Long): DownloadManager.Query {
+    // Every id is queried at once, so polling costs one cursor regardless of how many downloads there are.
+    override fun getDownloadStatuses(ids: Set<Long>): Map<Long, DownloadStatus> {
+        if (ids.isEmpty()) return mapOf()
         val query = DownloadManager.Query()
-        query.setFilterById(id)
-        return query
-    }
-
-    private fun generateCursor(query: DownloadManager.Query): Cursor {
-        return downloadManager.query(query)
-    }
-
-    fun downloadHasSucceeded(id: Long): Boolean {
-        val query = generateQuery(id)
-        val cursor = generateCursor(query)
-        if (cursor.moveToFirst()) {
-            val status = cursor.getInt(cursor.getColumnIndex(DownloadManager.COLUMN_STATUS))
-            return status == DownloadManager.STATUS_SUCCESSFUL
+        query.setFilterById(*ids.toLongArray())
+        val statuses = mutableMapOf<Long, DownloadStatus>()
+        val cursor = downloadManager.query(query) ?: return statuses
+        cursor.use {
+            val idColumn = cursor.getColumnIndex(DownloadManager.COLUMN_ID)
+            val statusColumn = cursor.getColumnIndex(DownloadManager.COLUMN_STATUS)
+            val reasonColumn = cursor.getColumnIndex(DownloadManager.COLUMN_REASON)
+            val bytesColumn = cursor.getColumnIndex(DownloadManager.COLUMN_BYTES_DOWNLOADED_SO_FAR)
+            val totalColumn = cursor.getColumnIndex(DownloadManager.COLUMN_TOTAL_SIZE_BYTES)
+            while (cursor.moveToNext()) {
+                val status = cursor.getInt(statusColumn)
+                val hasFailed = status == DownloadManager.STATUS_FAILED
+                statuses[cursor.getLong(idColumn)] = DownloadStatus(
+                        hasSucceeded = status == DownloadManager.STATUS_SUCCESSFUL,
+                        hasFailed = hasFailed,
+                        bytesDownloaded = cursor.getLong(bytesColumn),
+                        totalBytes = cursor.getLong(totalColumn),
+                        failureReason = if (hasFailed) getFailureReason(cursor.getInt(reasonColumn)) else null)
+            }
         }
-        return false
+        return statuses
     }
 
-    fun downloadHasFailed(id: Long): Boolean {
-        val query = generateQuery(id)
-        val cursor = generateCursor(query)
-        if (cursor.moveToFirst()) {
-            val status = cursor.getInt(cursor.getColumnIndex(DownloadManager.COLUMN_STATUS))
-            return status == DownloadManager.STATUS_FAILED
-        }
-        return false
-    }
-
-    fun getDownloadFailureReason(id: Long): DownloadFailureLocalizationData {
-        val query = generateQuery(id)
-        val cursor = generateCursor(query)
-        if (cursor.moveToFirst()) {
-            val status = cursor.getInt(cursor.getColumnIndex(DownloadManager.COLUMN_REASON))
-            return DownloadFailureLocalizationData(resId = when (status) {
-                in 100..500 -> R.string.download_failure_http_error
-                1008 -> R.string.download_failure_cannot_resume
-                1007 -> R.string.download_failure_no_external_devices
-                1009 -> R.string.download_failure_destination_exists
-                1001 -> R.string.download_failure_unknown_file_error
-                1004 -> R.string.download_failure_http_processing
-                1006 -> R.string.download_failure_insufficient_external_storage
-                1005 -> R.string.download_failure_too_many_redirects
-                1002 -> R.string.download_failure_unhandled_http_response
-                1000 -> R.string.download_failure_unknown_error
-                else -> R.string.download_failure_missing_error
-            }, formatStrings = listOf("$status")) // Format strings only used for http_error
-        }
-        return DownloadFailureLocalizationData(R.string.download_failure_reason_not_found)
+    private fun getFailureReason(reason: Int): DownloadFailureLocalizationData {
+        return DownloadFailureLocalizationData(resId = when (reason) {
+            in 100..500 -> R.string.download_failure_http_error
+            1008 -> R.string.download_failure_cannot_resume
+            1007 -> R.string.download_failure_no_external_devices
+            1009 -> R.string.download_failure_destination_exists
+            1001 -> R.string.download_failure_unknown_file_error
+            1004 -> R.string.download_failure_http_processing
+            1006 -> R.string.download_failure_insufficient_external_storage
+            1005 -> R.string.download_failure_too_many_redirects
+            1002 -> R.string.download_failure_unhandled_http_response
+            1000 -> R.string.download_failure_unknown_error
+            else -> R.string.download_failure_missing_error
+        }, formatStrings = listOf("$reason")) // Format strings only used for http_error
     }
 
-    fun cancelAllDownloads(downloadIds: Set<Long>) {
+    override fun cancelAllDownloads(downloadIds: Set<Long>) {
         downloadManager.remove(*downloadIds.toLongArray())
     }
 }
-
-class ArchiveFactoryWrapper {
-    fun createArchiver(archiverType: File): Archiver {
-        return ArchiverFactory.createArchiver(archiverType)
-    }
-}
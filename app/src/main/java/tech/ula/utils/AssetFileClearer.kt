@@ -1,5 +1,7 @@
 package tech.ula.utils
 
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.withContext
 import java.io.File
 import java.io.FileNotFoundException
 import java.io.IOException
@@ -7,42 +9,56 @@ import java.io.IOException
 class AssetFileClearer(
     private val ulaFiles: UlaFiles,
     private val assetDirectoryNames: Set<String>,
-    private val busyboxExecutor: BusyboxExecutor,
-    private val logger: Logger = SentryLogger()
+    private val logger: Logger = SentryLogger(),
+    private val assetStore: AssetStore = AssetStore(File(ulaFiles.filesDir, AssetStore.DIRECTORY_NAME)),
+    private val fileDeleter: FileDeleter = FileDeleter()
 ) {
-    @Throws(FileNotFoundException::class, IllegalStateException::class)
-    suspend fun clearAllSupportAssets() {
+    @Throws(IOException::class)
+    suspend fun clearAllSupportAssets() = withContext(Dispatchers.IO) {
         if (!ulaFiles.filesDir.exists()) {
             val exception = FileNotFoundException()
             logger.addExceptionBreadcrumb(exception)
             throw exception
         }
-        if (!ulaFiles.busybox.exists()) {
-            val exception = IllegalStateException("Busybox missing")
-            logger.addExceptionBreadcrumb(exception)
-            throw exception
-        }
         clearFilesystemSupportAssets()
         clearTopLevelAssets(assetDirectoryNames)
+        clearBaseFilesystems()
+        assetStore.collectGarbage()
+        Unit
+    }
+
+    // Clones keep their shared files, which are hard links, so the next filesystem of a distribution is
+    // just extracted again.
+    @Throws(IOException::class)
+    private fun clearBaseFilesystems() {
+        val baseFilesystemsDirectory = File(ulaFiles.filesDir, FilesystemManager.BASE_FILESYSTEMS_DIRECTORY_NAME)
+        if (!baseFilesystemsDirectory.exists()) return
+        try {
+            fileDeleter.delete(baseFilesystemsDirectory)
+        } catch (err: IOException) {
+            logger.addExceptionBreadcrumb(err)
+            throw err
+        }
     }
 
     @Throws(IOException::class)
-    private suspend fun clearTopLevelAssets(assetDirectoryNames: Set<String>) {
+    private fun clearTopLevelAssets(assetDirectoryNames: Set<String>) {
         val files = ulaFiles.filesDir.listFiles() ?: return
         for (file in files) {
             if (!file.isDirectory) continue
             if (!assetDirectoryNames.contains(file.name)) continue
             if (file.name == "support") continue
-            if (busyboxExecutor.recursivelyDelete(file.absolutePath) !is SuccessfulExecution) {
-                val exception = IOException()
-                logger.addExceptionBreadcrumb(exception)
-                throw exception
+            try {
+                fileDeleter.delete(file)
+            } catch (err: IOException) {
+                logger.addExceptionBreadcrumb(err)
+                throw err
             }
         }
     }
 
     @Throws(IOException::class)
-    private suspend fun clearFilesystemSupportAssets() {
+    private fun clearFilesystemSupportAssets() {
         val files = ulaFiles.filesDir.listFiles() ?: return
         for (file in files) {
             if (!file.isDirectory || file.name.toIntOrNull() == null) continue
@@ -54,11 +70,11 @@ class AssetFileClearer(
             for (supportFile in supportFiles) {
                 // Exclude directories and hidden files.
                 if (supportFile.isDirectory || supportFile.name.first() == '.') continue
-                // Use deleteRecursively to match functionality above
-                if (busyboxExecutor.recursivelyDelete(supportFile.path) !is SuccessfulExecution) {
-                    val exception = IOException()
-                    logger.addExceptionBreadcrumb(exception)
-                    throw exception
+                try {
+                    fileDeleter.delete(supportFile)
+                } catch (err: IOException) {
+                    logger.addExceptionBreadcrumb(err)
+                    throw err
                 }
             }
         }
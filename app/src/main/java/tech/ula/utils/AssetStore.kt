@@ -0,0 +1,83 @@
+package tech.ula.utils
+
+import android.system.Os
+import java.io.File
+import java.io.IOException
+
+// Support assets are stored once as blobs named by their sha256. The shared asset directories and the
+// support directory of every filesystem hold hard links to them, so a blob's link count beyond the store's
+// own is its reference count.
+class AssetStore(
+    private val storeDirectory: File,
+    private val linker: (sourcePath: String, targetPath: String) -> Unit = ::createHardLink,
+    private val linkCounter: (path: String) -> Long = { path -> Os.stat(path).st_nlink }
+) {
+
+    // Replaces the file with a link to the blob holding its contents, adding the blob if it is new.
+    @Throws(IOException::class)
+    fun add(file: File): File {
+        storeDirectory.mkdirs()
+        val blob = File(storeDirectory, file.sha256())
+        if (!blob.exists()) {
+            linker(file.path, blob.path)
+            return blob
+        }
+
+        // Link under a temporary name first, so the file is never missing.
+        val link = File(file.parentFile, ".${file.name}.link")
+        link.delete()
+        linker(blob.path, link.path)
+        if (!link.renameTo(file)) {
+            link.delete()
+            throw IOException("Could not replace ${file.path} with a link to ${blob.name}")
+        }
+        return blob
+    }
+
+    // Adds the regular files directly inside the directory. Symlinks are skipped, since a hard link to one
+    // links the symlink itself. Files that can not be added stay as they are, since the store only saves space.
+    fun addAll(directory: File, exclude: (File) -> Boolean = { false }) {
+        val files = directory.listFiles() ?: return
+        for (file in files) {
+            if (!file.isFile || file.name.startsWith(".") || exclude(file) || file.isSymlink()) continue
+            try {
+                add(file)
+            } catch (err: IOException) {
+            }
+        }
+    }
+
+    // Falls back to copying where links are not supported, which only costs the space links would save.
+    @Throws(IOException::class)
+    fun linkInto(source: File, target: File) {
+        target.delete()
+        try {
+            linker(source.path, target.path)
+        } catch (err: IOException) {
+            source.copyTo(target, overwrite = true)
+        }
+    }
+
+    fun getReferenceCount(blob: File): Long {
+        return linkCounter(blob.path) - 1
+    }
+
+    // Deletes the blobs that nothing links to anymore, and returns how many there were.
+    fun collectGarbage(): Int {
+        val blobs = storeDirectory.listFiles() ?: return 0
+        var deleted = 0
+        for (blob in blobs) {
+            if (getReferenceCount(blob) > 0) continue
+            if (blob.delete()) deleted++
+        }
+        return deleted
+    }
+
+    private fun File.isSymlink(): Boolean {
+        return canonicalFile != File(parentFile!!.canonicalFile, name)
+    }
+
+    companion object {
+        const val DIRECTORY_NAME = ".assetStore"
+    }
+}
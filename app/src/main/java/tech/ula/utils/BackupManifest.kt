@@ -0,0 +1,121 @@
+package tech.ula.utils
+
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import java.util.UUID
+
+data class BackupManifestEntry(
+    val path: String,
+    val size: Long,
+    val modified: Long,
+    val inode: Long,
+    val sha256: String
+)
+
+// Records every path in a backup, so the next export can stat-compare the tree against it and only archive
+// what changed. Each backup has an id and increments name the backup they apply on top of, and count how
+// many increments the chain holds up to them.
+class BackupManifest(
+    val id: String = UUID.randomUUID().toString(),
+    val parentId: String = "",
+    val entries: Map<String, BackupManifestEntry> = mapOf(),
+    val incrementNumber: Int = 0
+) {
+
+    val isIncrement: Boolean
+        get() = parentId.isNotEmpty()
+
+    // Unchanged regular files are not archived again, so their hash is carried over from this manifest.
+    fun isUnchanged(path: String, size: Long, modified: Long, inode: Long): Boolean {
+        val entry = entries[path] ?: return false
+        return entry.size == size && entry.modified == modified && entry.inode == inode && entry.sha256.isNotEmpty()
+    }
+
+    fun getDeletedPaths(current: BackupManifest): List<String> {
+        return entries.keys.filter { !current.entries.containsKey(it) }.sorted()
+    }
+
+    // One entry per line, with the path last so it may contain tabs. Paths are escaped, so they may contain
+    // line breaks too.
+    @Throws(IOException::class)
+    fun write(outputStream: OutputStream) {
+        val writer = outputStream.bufferedWriter()
+        writer.write("$id\t$parentId\t$incrementNumber\n")
+        for (entry in entries.values.sortedBy { it.path }) {
+            writer.write("${entry.size}\t${entry.modified}\t${entry.inode}\t${entry.sha256}\t${escapePath(entry.path)}\n")
+        }
+        writer.flush()
+    }
+
+    fun toByteArray(): ByteArray {
+        val bytes = ByteArrayOutputStream()
+        write(bytes)
+        return bytes.toByteArray()
+    }
+
+    companion object {
+        // Backslashes and line breaks are escaped, so any path fits on a single line.
+        fun escapePath(path: String): String {
+            return path.replace("\\", "\\\\").replace("\n", "\\n").replace("\r", "\\r")
+        }
+
+        fun unescapePath(escapedPath: String): String {
+            val path = StringBuilder(escapedPath.length)
+            var index = 0
+            while (index < escapedPath.length) {
+                val char = escapedPath[index]
+                if (char == '\\' && index + 1 < escapedPath.length) {
+                    index++
+                    path.append(when (escapedPath[index]) {
+                        'n' -> '\n'
+                        'r' -> '\r'
+                        else -> escapedPath[index]
+                    })
+                } else {
+                    path.append(char)
+                }
+                index++
+            }
+            return path.toString()
+        }
+
+        // The stream is left open, since it is usually an entry of a tar stream.
+        @Throws(IOException::class)
+        fun read(inputStream: InputStream): BackupManifest {
+            val lines = inputStream.bufferedReader().lineSequence().toList()
+            val header = parseHeader(lines.firstOrNull())
+            val entries = mutableMapOf<String, BackupManifestEntry>()
+            for (line in lines.drop(1)) {
+                val fields = line.split("\t", limit = 5)
+                if (fields.size != 5) throw IOException("Manifest entry is malformed: $line")
+                val entry = try {
+                    BackupManifestEntry(unescapePath(fields[4]), fields[0].toLong(), fields[1].toLong(), fields[2].toLong(), fields[3])
+                } catch (err: NumberFormatException) {
+                    throw IOException("Manifest entry is malformed: $line")
+                }
+                entries[entry.path] = entry
+            }
+            return BackupManifest(header.id, header.parentId, entries, header.incrementNumber)
+        }
+
+        // Only reads the first line, so the entries are left out.
+        @Throws(IOException::class)
+        fun readHeader(inputStream: InputStream): BackupManifest {
+            return parseHeader(inputStream.bufferedReader().readLine())
+        }
+
+        // Manifests written before increments were counted only hold the two ids.
+        private fun parseHeader(line: String?): BackupManifest {
+            val header = line?.split("\t") ?: throw IOException("Manifest is empty")
+            if (header.size != 2 && header.size != 3) throw IOException("Manifest header is malformed")
+            val incrementNumber = try {
+                header.getOrNull(2)?.toInt() ?: 0
+            } catch (err: NumberFormatException) {
+                throw IOException("Manifest header is malformed")
+            }
+            return BackupManifest(header[0], header[1], incrementNumber = incrementNumber)
+        }
+    }
+}
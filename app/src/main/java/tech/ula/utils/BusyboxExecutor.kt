@@ -3,7 +3,6 @@ package tech.ula.utils
 import android.util.Log
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
-import kotlinx.coroutines.withContext
 import java.io.File
 import java.io.InputStream
 
@@ -11,12 +10,14 @@ sealed class ExecutionResult
 data class MissingExecutionAsset(val asset: String) : ExecutionResult()
 object SuccessfulExecution : ExecutionResult()
 data class FailedExecution(val reason: String) : ExecutionResult()
-data class OngoingExecution(val process: Process) : ExecutionResult()
+data class OngoingExecution(val process: ChildProcess) : ExecutionResult()
 
 class BusyboxExecutor(
     private val ulaFiles: UlaFiles,
     private val prootDebugLogger: ProotDebugLogger,
-    private val busyboxWrapper: BusyboxWrapper = BusyboxWrapper(ulaFiles)
+    private val busyboxWrapper: BusyboxWrapper = BusyboxWrapper(ulaFiles),
+    private val processSpawner: ProcessSpawner = ProcessSpawner(),
+    private val logger: Logger = SentryLogger()
 ) {
 
     private val discardOutput: (String) -> Any = { Log.d("busybox", it) }
@@ -45,13 +46,11 @@ class BusyboxExecutor(
         }
 
         val env = busyboxWrapper.getBusyboxEnv()
-        val processBuilder = ProcessBuilder(command)
-        processBuilder.directory(ulaFiles.filesDir)
-        processBuilder.environment().putAll(env)
-        processBuilder.redirectErrorStream(true)
 
         return try {
-            val process = processBuilder.start()
+            val process = logger.trace("spawn busybox", "process") {
+                processSpawner.spawn(command, ulaFiles.filesDir, env)
+            }
             collectOutput(process.inputStream, listener)
             getProcessResult(process)
         } catch (err: Exception) {
@@ -85,13 +84,10 @@ class BusyboxExecutor(
 
         env.putAll(busyboxWrapper.getProotEnv(filesystemDir, prootDebugLevel))
 
-        val processBuilder = ProcessBuilder(updatedCommand)
-        processBuilder.directory(ulaFiles.filesDir)
-        processBuilder.environment().putAll(env)
-        processBuilder.redirectErrorStream(true)
-
         return try {
-            val process = processBuilder.start()
+            val process = logger.trace("spawn proot", "process") {
+                processSpawner.spawn(updatedCommand, ulaFiles.filesDir, env)
+            }
             when {
                 prootDebugEnabled && commandShouldTerminate -> {
                     // Call the listener explicitly since all output will be captured by the log
@@ -118,11 +114,6 @@ class BusyboxExecutor(
         }
     }
 
-    suspend fun recursivelyDelete(absolutePath: String): ExecutionResult = withContext(Dispatchers.IO) {
-        val command = "rm -rf $absolutePath"
-        return@withContext executeCommand(command)
-    }
-
     private fun collectOutput(inputStream: InputStream, listener: (String) -> Any) {
         val buf = inputStream.bufferedReader(Charsets.UTF_8)
 
@@ -131,9 +122,10 @@ class BusyboxExecutor(
         buf.close()
     }
 
-    private fun getProcessResult(process: Process): ExecutionResult {
-        return if (process.waitFor() == 0) SuccessfulExecution
-        else FailedExecution("Command failed with: ${process.exitValue()}")
+    private fun getProcessResult(process: ChildProcess): ExecutionResult {
+        val exitStatus = process.waitFor()
+        return if (exitStatus == 0) SuccessfulExecution
+        else FailedExecution("Command failed with: $exitStatus")
     }
 }
 
@@ -0,0 +1,84 @@
+package tech.ula.utils
+
+import com.termux.terminal.Subprocess
+import java.io.File
+import java.io.InputStream
+
+// A started process with stdout and stderr merged into its input stream.
+interface ChildProcess {
+    val pid: Long
+    val inputStream: InputStream
+
+    // Null while the process is still running. Does not block.
+    fun exitStatus(): Int?
+
+    fun waitFor(): Int
+
+    fun isAlive(): Boolean {
+        return exitStatus() == null
+    }
+
+    fun destroy()
+}
+
+class NativeChildProcess(private val subprocess: Subprocess) : ChildProcess {
+    override val pid: Long = subprocess.pid.toLong()
+    override val inputStream: InputStream = subprocess.output
+
+    override fun exitStatus(): Int? {
+        val status = subprocess.exitStatus()
+        return if (status == Subprocess.STILL_RUNNING) null else status
+    }
+
+    override fun waitFor(): Int {
+        return subprocess.waitFor()
+    }
+
+    override fun destroy() {
+        subprocess.destroy()
+    }
+}
+
+// Used where the native library is unavailable, like in unit tests. java.lang.Process does not expose its pid on Android.
+class JavaChildProcess(private val process: Process) : ChildProcess {
+    override val pid: Long = -1
+    override val inputStream: InputStream = process.inputStream
+
+    override fun exitStatus(): Int? {
+        return try {
+            process.exitValue()
+        } catch (err: IllegalThreadStateException) {
+            null
+        }
+    }
+
+    override fun waitFor(): Int {
+        return process.waitFor()
+    }
+
+    override fun destroy() {
+        process.destroy()
+    }
+}
+
+class ProcessSpawner(private val nativeSpawnIsSupported: Boolean = Subprocess.isSupported()) {
+
+    // The native path execs without a PATH lookup, so only commands given as paths can use it.
+    fun spawn(command: List<String>, workingDirectory: File, env: Map<String, String>): ChildProcess {
+        if (nativeSpawnIsSupported && command.first().startsWith("/")) {
+            val environment = System.getenv() + env
+            val subprocess = Subprocess.start(
+                    command.first(),
+                    workingDirectory.absolutePath,
+                    command.toTypedArray(),
+                    environment.map { (name, value) -> "$name=$value" }.toTypedArray())
+            return NativeChildProcess(subprocess)
+        }
+
+        val processBuilder = ProcessBuilder(command)
+        processBuilder.directory(workingDirectory)
+        processBuilder.environment().putAll(env)
+        processBuilder.redirectErrorStream(true)
+        return JavaChildProcess(processBuilder.start())
+    }
+}
@@ -9,6 +9,8 @@ import androidx.annotation.IdRes
 import androidx.lifecycle.LiveData
 import androidx.lifecycle.MediatorLiveData
 import tech.ula.R
+import java.io.File
+import java.security.MessageDigest
 
 fun <A, B> zipLiveData(a: LiveData<A>, b: LiveData<B>): LiveData<Pair<A, B>> {
     return MediatorLiveData<Pair<A, B>>().apply {
@@ -49,4 +51,19 @@ inline val Context.defaultSharedPreferences: SharedPreferences
     get() = this.getSharedPreferences("${this.packageName}_preferences", Context.MODE_PRIVATE)
 
 inline fun <reified T : View> View.find(@IdRes id: Int): T = findViewById(id)
-inline fun <reified T : View> Dialog.find(@IdRes id: Int): T = findViewById(id)
\ No newline at end of file
+inline fun <reified T : View> Dialog.find(@IdRes id: Int): T = findViewById(id)
+
+fun ByteArray.toHexString(): String = joinToString(separator = "") { "%02x".format(it) }
+
+fun File.sha256(): String {
+    val digest = MessageDigest.getInstance("SHA-256")
+    val buffer = ByteArray(64 * 1024)
+    inputStream().use { stream ->
+        var read = stream.read(buffer)
+        while (read != -1) {
+            digest.update(buffer, 0, read)
+            read = stream.read(buffer)
+        }
+    }
+    return digest.digest().toHexString()
+}
@@ -0,0 +1,296 @@
+package tech.ula.utils
+
+import android.system.ErrnoException
+import android.system.Os
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream
+import org.apache.commons.compress.archivers.tar.TarConstants
+import java.io.File
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import java.security.MessageDigest
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.ForkJoinPool
+import java.util.zip.GZIPInputStream
+
+// Archives filesystems in-process into a tar.gz that extractFilesystem.sh restores like any other backup.
+// Walking the tree here rather than in PRoot is what allows the archive to be compressed on every core.
+class FilesystemArchiver(
+    private val symlinker: Symlinker = Symlinker(),
+    private val modeReader: (path: String) -> Int = { path -> Os.lstat(path).st_mode },
+    private val compressionExecutor: ExecutorService = ForkJoinPool.commonPool(),
+    private val inodeReader: (path: String) -> Long = { path -> Os.lstat(path).st_ino },
+    private val modeWriter: (path: String, mode: Int) -> Unit = { path, mode -> Os.chmod(path, mode) }
+) {
+
+    // Support directories are skipped, since restored filesystems get their assets copied in.
+    // Progress is reported in compressed bytes written, and the listener gets each archived path.
+    // Given the manifest of the previous backup, only files that changed since are archived, along with
+    // the paths deleted since. The returned manifest is the one to pass for the next increment.
+    @Throws(IOException::class)
+    fun archive(
+        rootfs: File,
+        outputStream: OutputStream,
+        listener: (String) -> Any = {},
+        onProgress: (bytesWritten: Long) -> Unit = {},
+        previousManifest: BackupManifest? = null
+    ): BackupManifest {
+        val files = rootfs.listFiles() ?: throw IOException("Could not list ${rootfs.path}")
+        val gzipStream = ParallelGzipOutputStream(ProgressOutputStream(outputStream, onProgress), compressionExecutor)
+        val tarStream = TarArchiveOutputStream(gzipStream)
+        tarStream.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX)
+        tarStream.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX)
+        val header = if (previousManifest == null) {
+            BackupManifest()
+        } else {
+            BackupManifest(parentId = previousManifest.id, incrementNumber = previousManifest.incrementNumber + 1)
+        }
+        val entries = mutableMapOf<String, BackupManifestEntry>()
+        val sharedFileModes = FilesystemCloner.readSharedFileModes(rootfs)
+        try {
+            // The header comes first, so chains of backups can be ordered without reading them through.
+            addMetadata(tarStream, BACKUP_HEADER_PATH, header.toByteArray())
+            for (file in files.sortedBy { it.name }) {
+                if (file.name == "support") continue
+                addFile(tarStream, file, file.name, rootfs, sharedFileModes, previousManifest, entries, listener)
+            }
+            val manifest = BackupManifest(header.id, header.parentId, entries, header.incrementNumber)
+            addMetadata(tarStream, BACKUP_MANIFEST_PATH, manifest.toByteArray())
+            if (previousManifest != null) {
+                val deletedPaths = previousManifest.getDeletedPaths(manifest)
+                addMetadata(tarStream, BACKUP_DELETIONS_PATH, deletedPaths.joinToString("") { "${BackupManifest.escapePath(it)}\n" }.toByteArray())
+            }
+            tarStream.finish()
+            gzipStream.finish()
+            return manifest
+        } catch (err: ErrnoException) {
+            throw IOException(err)
+        }
+    }
+
+    private fun addFile(
+        tarStream: TarArchiveOutputStream,
+        file: File,
+        path: String,
+        rootfs: File,
+        sharedFileModes: Map<String, Int>,
+        previousManifest: BackupManifest?,
+        entries: MutableMap<String, BackupManifestEntry>,
+        listener: (String) -> Any
+    ) {
+        val name = "./$path"
+        val symlinkTarget = symlinker.readSymlink(file.path)
+        // Files a clone shares are read-only, which is archived as the mode they had before unless it was
+        // changed since.
+        val mode = modeReader(file.path) and PERMISSION_BITS
+        val permissions = sharedFileModes[path]?.takeIf { it and WRITE_BITS.inv() == mode } ?: mode
+        val modified = file.lastModified()
+        val inode = inodeReader(file.path)
+        var size = 0L
+        var sha256 = ""
+        when {
+            symlinkTarget != null -> {
+                val entry = createEntry(name, TarConstants.LF_SYMLINK, SYMLINK_TYPE or permissions, modified)
+                entry.linkName = toGuestPath(symlinkTarget, rootfs)
+                tarStream.putArchiveEntry(entry)
+                tarStream.closeArchiveEntry()
+            }
+            file.isDirectory -> {
+                // Directories are always archived, so restored increments keep their modes.
+                tarStream.putArchiveEntry(createEntry("$name/", TarConstants.LF_DIR, DIRECTORY_TYPE or permissions, modified))
+                tarStream.closeArchiveEntry()
+                for (child in (file.listFiles() ?: arrayOf()).sortedBy { it.name }) {
+                    addFile(tarStream, child, "$path/${child.name}", rootfs, sharedFileModes, previousManifest, entries, listener)
+                }
+            }
+            file.isFile -> {
+                size = file.length()
+                if (previousManifest != null && previousManifest.isUnchanged(path, size, modified, inode)) {
+                    entries[path] = previousManifest.entries.getValue(path)
+                    return
+                }
+                val entry = createEntry(name, TarConstants.LF_NORMAL, FILE_TYPE or permissions, modified)
+                entry.size = size
+                tarStream.putArchiveEntry(entry)
+                sha256 = copyAndHash(file, tarStream)
+                tarStream.closeArchiveEntry()
+            }
+            // Sockets and fifos are recreated by whatever uses them.
+            else -> return
+        }
+        entries[path] = BackupManifestEntry(path, size, modified, inode, sha256)
+        listener(name)
+    }
+
+    // Hashing while copying saves reading changed files twice.
+    private fun copyAndHash(file: File, outputStream: OutputStream): String {
+        val digest = MessageDigest.getInstance("SHA-256")
+        val buffer = ByteArray(COPY_BUFFER_SIZE)
+        file.inputStream().use { inputStream ->
+            var count = inputStream.read(buffer)
+            while (count >= 0) {
+                digest.update(buffer, 0, count)
+                outputStream.write(buffer, 0, count)
+                count = inputStream.read(buffer)
+            }
+        }
+        return digest.digest().toHexString()
+    }
+
+    private fun addMetadata(tarStream: TarArchiveOutputStream, path: String, content: ByteArray) {
+        val entry = createEntry("./$path", TarConstants.LF_NORMAL, FILE_TYPE or METADATA_PERMISSIONS, System.currentTimeMillis())
+        entry.size = content.size.toLong()
+        tarStream.putArchiveEntry(entry)
+        tarStream.write(content)
+        tarStream.closeArchiveEntry()
+    }
+
+    // Files are owned by root inside PRoot, which is what archives made there record too.
+    private fun createEntry(name: String, type: Byte, mode: Int, modified: Long): TarArchiveEntry {
+        val entry = TarArchiveEntry(name, type)
+        entry.mode = mode
+        entry.setModTime(modified)
+        entry.userId = 0
+        entry.groupId = 0
+        entry.userName = "root"
+        entry.groupName = "root"
+        return entry
+    }
+
+    // PRoot stands in for hard links with symlinks to absolute host paths inside the filesystem, which
+    // only make sense in the archive as paths inside the guest.
+    private fun toGuestPath(symlinkTarget: String, rootfs: File): String {
+        for (rootfsPath in setOf(rootfs.absolutePath, rootfs.canonicalPath)) {
+            if (symlinkTarget.startsWith("$rootfsPath/")) return symlinkTarget.removePrefix(rootfsPath)
+        }
+        return symlinkTarget
+    }
+
+    // Returns the id and parent of a backup made here, or null for archives made any other way.
+    @Throws(IOException::class)
+    fun readHeader(inputStream: InputStream): BackupManifest? {
+        val tarStream = TarArchiveInputStream(GZIPInputStream(inputStream))
+        val entry = tarStream.nextTarEntry ?: return null
+        if (entry.name.removePrefix("./") != BACKUP_HEADER_PATH) return null
+        return BackupManifest.read(tarStream)
+    }
+
+    // Applies a backup on top of what is already in the filesystem, so a base followed by each of its
+    // increments in order restores the filesystem as of the last one. Returns the backup's manifest.
+    @Throws(IOException::class)
+    fun restore(rootfs: File, inputStream: InputStream, listener: (String) -> Any = {}): BackupManifest? {
+        val tarStream = TarArchiveInputStream(GZIPInputStream(inputStream, COPY_BUFFER_SIZE))
+        var manifest: BackupManifest? = null
+        val deletedPaths = mutableListOf<String>()
+        val directories = mutableListOf<Pair<File, TarArchiveEntry>>()
+        try {
+            var entry = tarStream.nextTarEntry
+            while (entry != null) {
+                val path = entry.name.removePrefix("./").trimEnd('/')
+                if (path.split("/").contains("..")) throw IOException("Invalid path in backup: ${entry.name}")
+                when {
+                    path == BACKUP_MANIFEST_PATH -> manifest = BackupManifest.read(tarStream)
+                    path == BACKUP_DELETIONS_PATH -> deletedPaths.addAll(tarStream.bufferedReader().lineSequence().map { BackupManifest.unescapePath(it) })
+                    path.isEmpty() || path == "support" || path.startsWith("support/") -> Unit
+                    else -> if (restoreEntry(tarStream, entry, File(rootfs, path), directories)) listener(entry.name)
+                }
+                entry = tarStream.nextTarEntry
+            }
+
+            for (path in deletedPaths) {
+                if (path.isEmpty() || path.split("/").contains("..")) continue
+                remove(File(rootfs, path))
+            }
+            // Directory modes are set last, since read-only ones would otherwise block their contents.
+            for ((directory, directoryEntry) in directories.asReversed()) {
+                modeWriter(directory.path, directoryEntry.mode and PERMISSION_BITS)
+                directory.setLastModified(directoryEntry.modTime.time)
+            }
+        } catch (err: ErrnoException) {
+            throw IOException(err)
+        }
+        return manifest
+    }
+
+    private fun restoreEntry(
+        tarStream: TarArchiveInputStream,
+        entry: TarArchiveEntry,
+        file: File,
+        directories: MutableList<Pair<File, TarArchiveEntry>>
+    ): Boolean {
+        when {
+            entry.isDirectory -> {
+                if (symlinker.readSymlink(file.path) != null || (file.exists() && !file.isDirectory)) remove(file)
+                if (!file.isDirectory && !file.mkdirs()) throw IOException("Could not create ${file.path}")
+                file.setWritable(true, true)
+                directories.add(file to entry)
+            }
+            entry.isSymbolicLink -> {
+                remove(file)
+                file.parentFile?.mkdirs()
+                symlinker.createSymlink(entry.linkName, file.path)
+            }
+            entry.isFile -> {
+                remove(file)
+                file.parentFile?.mkdirs()
+                file.outputStream().use { tarStream.copyTo(it, COPY_BUFFER_SIZE) }
+                file.setLastModified(entry.modTime.time)
+                modeWriter(file.path, entry.mode and PERMISSION_BITS)
+            }
+            // Archives made here only hold files, directories and symlinks.
+            else -> return false
+        }
+        return true
+    }
+
+    // Symlinks are removed without following them into whatever they point at.
+    private fun remove(file: File) {
+        val isSymlink = symlinker.readSymlink(file.path) != null
+        if (!isSymlink && !file.exists()) return
+        val isRemoved = if (isSymlink) file.delete() else file.deleteRecursively()
+        if (!isRemoved) throw IOException("Could not remove ${file.path}")
+    }
+
+    private class ProgressOutputStream(
+        private val outputStream: OutputStream,
+        private val onProgress: (Long) -> Unit
+    ) : OutputStream() {
+        private var bytesWritten = 0L
+
+        override fun write(b: Int) {
+            outputStream.write(b)
+            bytesWritten++
+            onProgress(bytesWritten)
+        }
+
+        override fun write(bytes: ByteArray, offset: Int, length: Int) {
+            outputStream.write(bytes, offset, length)
+            bytesWritten += length
+            onProgress(bytesWritten)
+        }
+
+        override fun flush() {
+            outputStream.flush()
+        }
+
+        override fun close() {
+            outputStream.close()
+        }
+    }
+
+    companion object {
+        // Backup metadata lands in the support directory if the archive is extracted by tar.
+        const val BACKUP_HEADER_PATH = "support/backup.header"
+        const val BACKUP_MANIFEST_PATH = "support/backup.manifest"
+        const val BACKUP_DELETIONS_PATH = "support/backup.deletions"
+        private const val PERMISSION_BITS = 4095 // 07777
+        private const val WRITE_BITS = 146 // 0222
+        private const val METADATA_PERMISSIONS = 420 // 0644
+        private const val FILE_TYPE = 32768 // 0100000
+        private const val DIRECTORY_TYPE = 16384 // 040000
+        private const val SYMLINK_TYPE = 40960 // 0120000
+        private const val COPY_BUFFER_SIZE = 64 * 1024
+    }
+}
@@ -0,0 +1,145 @@
+package tech.ula.utils
+
+import android.system.ErrnoException
+import android.system.Os
+import java.io.File
+import java.io.IOException
+
+// Clones extracted filesystems in-process. Bases are independent copies of a freshly extracted filesystem,
+// in which the files under the shared directories are made read-only. Clones hard link those files from the
+// base, so they cost little space and take seconds instead of an extraction. A linked file can then only be
+// replaced, as package managers do by writing a new file and renaming it over the old one, and writing to it
+// in place fails instead of changing the base and every other clone. Everything else is copied, since it is
+// edited in place. Linked files share their mode too, so a chmod in one clone applies to the base and every
+// other clone. The modes shared files had before they were made read-only are recorded, so backups of a clone
+// restore them as they were.
+class FilesystemCloner(
+    private val symlinker: Symlinker = Symlinker(),
+    private val linker: (sourcePath: String, targetPath: String) -> Unit = ::createHardLink,
+    private val modeCopier: (sourcePath: String, targetPath: String) -> Unit = { sourcePath, targetPath ->
+        Os.chmod(targetPath, Os.stat(sourcePath).st_mode and MODE_BITS)
+    },
+    // Returns the mode the file had before.
+    private val writeProtector: (path: String) -> Int = { path ->
+        val mode = Os.stat(path).st_mode and MODE_BITS
+        Os.chmod(path, mode and WRITE_BITS.inv())
+        mode
+    }
+) {
+
+    private enum class SharedFileHandling { Copy, CopyWriteProtected, Link }
+
+    // Support directories are skipped, since they hold the assets and status files of each filesystem.
+    @Throws(IOException::class)
+    fun createBase(source: File, target: File) {
+        val originalModes = mutableMapOf<String, Int>()
+        copyTree(source, target, SharedFileHandling.CopyWriteProtected, originalModes)
+        val modesFile = File(target, SHARED_FILE_MODES_PATH)
+        modesFile.parentFile?.mkdirs()
+        modesFile.writeText(originalModes.entries.joinToString("") { (path, mode) ->
+            "${Integer.toOctalString(mode)} ${BackupManifest.escapePath(path)}\n"
+        })
+    }
+
+    @Throws(IOException::class)
+    fun clone(base: File, target: File) {
+        copyTree(base, target, SharedFileHandling.Link, mutableMapOf())
+        val modesFile = File(base, SHARED_FILE_MODES_PATH)
+        if (modesFile.exists()) modesFile.copyTo(File(target, SHARED_FILE_MODES_PATH), overwrite = true)
+    }
+
+    private fun copyTree(source: File, target: File, sharedFileHandling: SharedFileHandling, originalModes: MutableMap<String, Int>) {
+        val sourceFiles = source.listFiles() ?: throw IOException("Could not list ${source.path}")
+        target.mkdirs()
+        try {
+            for (file in sourceFiles) {
+                if (file.name == "support") continue
+                cloneFile(file, File(target, file.name), source, target, sharedFileHandling, originalModes)
+            }
+        } catch (err: ErrnoException) {
+            throw IOException(err)
+        }
+    }
+
+    private fun cloneFile(
+        file: File,
+        target: File,
+        sourceRoot: File,
+        targetRoot: File,
+        sharedFileHandling: SharedFileHandling,
+        originalModes: MutableMap<String, Int>
+    ) {
+        val symlinkTarget = symlinker.readSymlink(file.path)
+        val handling = if (isShared(file, sourceRoot)) sharedFileHandling else SharedFileHandling.Copy
+        when {
+            symlinkTarget != null -> {
+                target.delete()
+                symlinker.createSymlink(rebase(symlinkTarget, sourceRoot, targetRoot), target.path)
+            }
+            file.isDirectory -> {
+                target.mkdirs()
+                for (child in file.listFiles() ?: arrayOf()) {
+                    cloneFile(child, File(target, child.name), sourceRoot, targetRoot, sharedFileHandling, originalModes)
+                }
+                modeCopier(file.path, target.path)
+            }
+            file.isFile -> {
+                target.delete()
+                if (handling == SharedFileHandling.Link && tryLink(file, target)) return
+                file.copyTo(target, overwrite = true)
+                modeCopier(file.path, target.path)
+                if (handling == SharedFileHandling.CopyWriteProtected) {
+                    originalModes[target.relativeTo(targetRoot).invariantSeparatorsPath] = writeProtector(target.path)
+                }
+            }
+        }
+    }
+
+    private fun isShared(file: File, sourceRoot: File): Boolean {
+        val relativePath = file.relativeTo(sourceRoot).invariantSeparatorsPath
+        if (UNSHARED_DIRECTORIES.any { relativePath == it || relativePath.startsWith("$it/") }) return false
+        return SHARED_DIRECTORIES.contains(relativePath.substringBefore("/"))
+    }
+
+    private fun tryLink(file: File, target: File): Boolean {
+        return try {
+            linker(file.path, target.path)
+            true
+        } catch (err: IOException) {
+            false
+        }
+    }
+
+    // PRoot stands in for hard links with symlinks to absolute paths inside the filesystem, which need to
+    // point into the clone instead.
+    private fun rebase(symlinkTarget: String, sourceRoot: File, targetRoot: File): String {
+        for (sourcePath in setOf(sourceRoot.absolutePath, sourceRoot.canonicalPath)) {
+            if (symlinkTarget.startsWith("$sourcePath/")) {
+                return targetRoot.absolutePath + symlinkTarget.removePrefix(sourcePath)
+            }
+        }
+        return symlinkTarget
+    }
+
+    companion object {
+        private const val MODE_BITS = 4095 // 07777
+        private const val WRITE_BITS = 146 // 0222
+        // Hidden, so clearing support files leaves it.
+        const val SHARED_FILE_MODES_PATH = "support/.shared_file_modes"
+        val SHARED_DIRECTORIES = setOf("bin", "lib", "lib32", "lib64", "libx32", "sbin", "usr")
+        // Users install and edit files here themselves, so these are never shared.
+        val UNSHARED_DIRECTORIES = setOf("usr/local")
+
+        // Returns the modes shared files of a clone had before they were made read-only, by their path
+        // inside it, or nothing if it is not a clone.
+        @Throws(IOException::class)
+        fun readSharedFileModes(rootfs: File): Map<String, Int> {
+            val modesFile = File(rootfs, SHARED_FILE_MODES_PATH)
+            if (!modesFile.exists()) return mapOf()
+            return modesFile.readLines().filter { it.isNotEmpty() }.associate { line ->
+                val mode = line.substringBefore(" ").toIntOrNull(8) ?: throw IOException("Invalid mode in ${modesFile.path}: $line")
+                BackupManifest.unescapePath(line.substringAfter(" ")) to mode
+            }
+        }
+    }
+}
@@ -1,19 +1,39 @@
 package tech.ula.utils
 
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.isActive
+import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
+import org.apache.commons.compress.utils.CountingInputStream
 import tech.ula.model.entities.Asset
 import tech.ula.model.entities.Filesystem
 import java.io.File
 import java.io.IOException
+import java.io.OutputStream
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.security.MessageDigest
+import java.util.zip.DataFormatException
+import java.util.zip.Inflater
 
 class FilesystemManager(
     private val ulaFiles: UlaFiles,
     private val busyboxExecutor: BusyboxExecutor,
-    private val logger: Logger = SentryLogger()
+    private val logger: Logger = SentryLogger(),
+    private val assetStore: AssetStore = AssetStore(File(ulaFiles.filesDir, AssetStore.DIRECTORY_NAME)),
+    private val filesystemCloner: FilesystemCloner = FilesystemCloner(),
+    private val filesystemArchiver: FilesystemArchiver = FilesystemArchiver(),
+    private val fileDeleter: FileDeleter = FileDeleter(),
+    private val procFsReader: ProcFsReader = ProcFsReader(),
+    private val filesystemCloningEnabled: Boolean = false
 ) {
 
     private val filesDirPath = ulaFiles.filesDir.path
+    private val baseFilesystemsDirectory = File(ulaFiles.filesDir, BASE_FILESYSTEMS_DIRECTORY_NAME)
+    private val backupManifestsDirectory = File(ulaFiles.filesDir, ".backups")
+    private val readinessSnapshotsDirectory = File(ulaFiles.filesDir, ".readiness")
     private val filesystemExtractionSuccess = ".success_filesystem_extraction"
     private val filesystemExtractionFailure = ".failure_filesystem_extraction"
 
@@ -21,21 +41,24 @@ class FilesystemManager(
         return "$filesDirPath/$targetDirectoryName/support"
     }
 
+    // Assets are hard linked rather than copied, so filesystems share one copy of them on disk.
     @Throws(Exception::class)
     fun copyAssetsToFilesystem(filesystem: Filesystem) {
-        val distributionType = filesystem.distributionType
-        val targetFilesystemName = "${filesystem.id}"
-        val sharedDirectory = File("$filesDirPath/$distributionType")
-        val targetDirectory = File("$filesDirPath/$targetFilesystemName/support")
-        if (!targetDirectory.exists()) targetDirectory.mkdirs()
-        val files = sharedDirectory.listFiles()
-        files?.let {
+        logger.trace("copy assets to ${filesystem.id}", "assets") {
+            val distributionType = filesystem.distributionType
+            val targetFilesystemName = "${filesystem.id}"
+            val sharedDirectory = File("$filesDirPath/$distributionType")
+            val targetDirectory = File("$filesDirPath/$targetFilesystemName/support")
+            if (!targetDirectory.exists()) targetDirectory.mkdirs()
+            val files = sharedDirectory.listFiles() ?: return
+            val copiedFilenames = mutableListOf<String>()
             for (file in files) {
                 if (file.name.contains("rootfs") && filesystem.isCreatedFromBackup) continue
                 val targetFile = File("${targetDirectory.absolutePath}/${file.name}")
-                file.copyTo(targetFile, overwrite = true)
-                ulaFiles.makePermissionsUsable(targetDirectory.absolutePath, file.name)
+                assetStore.linkInto(file, targetFile)
+                copiedFilenames.add(file.name)
             }
+            ulaFiles.makePermissionsUsable(targetDirectory.absolutePath, copiedFilenames)
         }
     }
 
@@ -46,9 +69,12 @@ class FilesystemManager(
         }
     }
 
+    // Progress is how much of the compressed rootfs the extracting process has read, which is sampled a few
+    // times a second from /proc rather than counted from its output, since it prints a line per file.
     suspend fun extractFilesystem(
         filesystem: Filesystem,
-        listener: (String) -> Any
+        listener: (String) -> Any,
+        onProgress: (bytesExtracted: Long, totalBytes: Long) -> Unit = { _, _ -> }
     ): ExecutionResult = withContext(Dispatchers.IO) {
         val filesystemDirName = "${filesystem.id}"
         val command = "/support/common/extractFilesystem.sh"
@@ -57,32 +83,246 @@ class FilesystemManager(
         env["INITIAL_PASSWORD"] = filesystem.defaultPassword
         env["INITIAL_VNC_PASSWORD"] = filesystem.defaultVncPassword
 
-        return@withContext busyboxExecutor.executeProotCommand(
-            command,
-            filesystemDirName,
-            commandShouldTerminate = true,
-            env = env,
-            listener = listener
-        )
+        val rootfsArchive = File("${getSupportDirectoryPath(filesystemDirName)}/rootfs.tar.gz")
+        val progressPoller = if (rootfsArchive.exists()) launch {
+            val totalBytes = rootfsArchive.length()
+            var lastBytesExtracted = -1L
+            while (isActive) {
+                val bytesExtracted = procFsReader.findOpenFileOffset(rootfsArchive)
+                if (bytesExtracted >= 0 && bytesExtracted != lastBytesExtracted) {
+                    onProgress(bytesExtracted, totalBytes)
+                    lastBytesExtracted = bytesExtracted
+                }
+                delay(EXTRACTION_PROGRESS_INTERVAL_MILLIS)
+            }
+        } else null
+
+        try {
+            return@withContext logger.trace("extract ${filesystem.id}", "extraction") {
+                busyboxExecutor.executeProotCommand(
+                    command,
+                    filesystemDirName,
+                    commandShouldTerminate = true,
+                    env = env,
+                    listener = listener
+                )
+            }
+        } finally {
+            progressPoller?.cancel()
+        }
     }
 
-    suspend fun compressFilesystem(
+    // Cloning is opt-in, since clones share the files of FilesystemCloner.SHARED_DIRECTORIES with their base
+    // and each other. Bases are copied right after extraction, so they hold nothing a session has done, and
+    // no session ever runs in one. There is one per distribution, and it is only cloned into filesystems that
+    // would have been extracted the same way. It is kept until no filesystem made with it is left.
+    suspend fun saveBaseFilesystem(filesystem: Filesystem) = withContext(Dispatchers.IO) {
+        if (!savesBaseFilesystem(filesystem)) return@withContext
+        val base = File(baseFilesystemsDirectory, filesystem.distributionType)
+        val partialBase = File(baseFilesystemsDirectory, "${filesystem.distributionType}.partial")
+        val baseKey = File(baseFilesystemsDirectory, "${filesystem.distributionType}.key")
+        val baseUsers = File(baseFilesystemsDirectory, "${filesystem.distributionType}.users")
+        try {
+            if (!delete(partialBase)) throw IOException("Could not delete ${partialBase.path}")
+            filesystemCloner.createBase(File("$filesDirPath/${filesystem.id}"), partialBase)
+            baseKey.delete()
+            if (!delete(base)) throw IOException("Could not delete ${base.path}")
+            if (!partialBase.renameTo(base)) throw IOException("Could not move ${partialBase.name} to ${base.path}")
+            baseKey.writeText(getBaseKey(filesystem))
+            baseUsers.writeText("${filesystem.id}\n")
+        } catch (err: IOException) {
+            logger.addExceptionBreadcrumb(err)
+            delete(partialBase)
+        }
+    }
+
+    // Returns false if there is no matching base, in which case the filesystem should be extracted.
+    suspend fun cloneFilesystem(filesystem: Filesystem): Boolean = withContext(Dispatchers.IO) {
+        if (!savesBaseFilesystem(filesystem)) return@withContext false
+        val base = File(baseFilesystemsDirectory, filesystem.distributionType)
+        val baseKey = File(baseFilesystemsDirectory, "${filesystem.distributionType}.key")
+        if (!base.isDirectory || !baseKey.exists() || baseKey.readText() != getBaseKey(filesystem)) {
+            return@withContext false
+        }
+
+        val filesystemDirectory = File("$filesDirPath/${filesystem.id}")
+        try {
+            filesystemCloner.clone(base, filesystemDirectory)
+            File(baseFilesystemsDirectory, "${filesystem.distributionType}.users").appendText("${filesystem.id}\n")
+            File(getSupportDirectoryPath("${filesystem.id}")).mkdirs()
+            File("${getSupportDirectoryPath("${filesystem.id}")}/$filesystemExtractionSuccess").createNewFile()
+            return@withContext true
+        } catch (err: IOException) {
+            logger.addExceptionBreadcrumb(err)
+            // Leave the support directory, so the filesystem can still be extracted.
+            for (file in filesystemDirectory.listFiles() ?: arrayOf()) {
+                if (file.name != "support") delete(file)
+            }
+            return@withContext false
+        }
+    }
+
+    private fun savesBaseFilesystem(filesystem: Filesystem): Boolean {
+        return filesystemCloningEnabled && !filesystem.isCreatedFromBackup
+    }
+
+    // Clones keep their shared files once the base is gone, since those are hard links.
+    private fun deleteUnusedBaseFilesystems() {
+        val bases = baseFilesystemsDirectory.listFiles()?.filter { it.isDirectory && it.extension != "partial" } ?: return
+        for (base in bases) {
+            val baseUsers = File(baseFilesystemsDirectory, "${base.name}.users")
+            val userIds = if (baseUsers.exists()) baseUsers.readLines().filter { it.isNotBlank() } else listOf()
+            if (userIds.any { File("$filesDirPath/$it").isDirectory }) continue
+            File(baseFilesystemsDirectory, "${base.name}.key").delete()
+            baseUsers.delete()
+            if (!delete(base)) logger.addExceptionBreadcrumb(IOException("Could not delete ${base.path}"))
+        }
+    }
+
+    // Extraction sets up the default account, so bases are keyed by everything extraction depends on.
+    private fun getBaseKey(filesystem: Filesystem): String {
+        val key = with(filesystem) {
+            listOf(distributionType, archType, versionCodeUsed, defaultUsername, defaultPassword, defaultVncPassword)
+                    .joinToString("\n")
+        }
+        return MessageDigest.getInstance("SHA-256").digest(key.toByteArray()).toHexString()
+    }
+
+    // Extracted files can be read-only, which the deleter handles and File.deleteRecursively does not.
+    private fun delete(file: File): Boolean {
+        if (!file.exists()) return true
+        return try {
+            fileDeleter.delete(file)
+            true
+        } catch (err: IOException) {
+            false
+        }
+    }
+
+    // The archive is written straight into the output, so it is never staged on disk. It is compressed on
+    // every core. Progress is reported in bytes written, since the compressed size is not known until the
+    // end. Once a filesystem has been exported, later exports are increments holding only what changed
+    // since the previous one. After MAX_INCREMENTS_PER_BACKUP of them, or when a full backup is asked for,
+    // the next export is a full backup again, so restoring never needs more than a short chain of archives.
+    @Throws(IOException::class)
+    suspend fun exportFilesystem(
         filesystem: Filesystem,
-        scopedExternalDestination: File,
-        listener: (String) -> Any
-    ) = withContext(Dispatchers.IO) {
+        outputStream: OutputStream,
+        fullBackup: Boolean,
+        listener: (String) -> Any,
+        onProgress: (bytesWritten: Long) -> Unit = {}
+    ): ExecutionResult = withContext(Dispatchers.IO) {
+        val filesystemDirectory = File("$filesDirPath/${filesystem.id}")
+        if (!filesystemDirectory.isDirectory) {
+            return@withContext FailedExecution("Filesystem ${filesystem.id} does not exist")
+        }
+        val manifestFile = getBackupManifestFile(filesystem)
+        val previousManifest = try {
+            if (!fullBackup && manifestFile.exists()) manifestFile.inputStream().use { BackupManifest.read(it) } else null
+        } catch (err: IOException) {
+            // Without a readable manifest the export is a full backup, which starts a new chain.
+            logger.addExceptionBreadcrumb(err)
+            null
+        }?.takeIf { it.incrementNumber < MAX_INCREMENTS_PER_BACKUP }
+        val manifest = filesystemArchiver.archive(filesystemDirectory, outputStream, listener, onProgress, previousManifest)
+
+        // The manifest is only replaced once complete, so a failed write leaves the previous one usable.
+        val partialManifestFile = File(backupManifestsDirectory, "${manifestFile.name}.partial")
+        backupManifestsDirectory.mkdirs()
+        partialManifestFile.outputStream().use { manifest.write(it) }
+        if (!partialManifestFile.renameTo(manifestFile)) {
+            partialManifestFile.delete()
+            throw IOException("Could not move ${partialManifestFile.name} to ${manifestFile.path}")
+        }
+        return@withContext SuccessfulExecution
+    }
+
+    // Only reads the manifest header, so it is cheap enough to call while naming the export.
+    fun nextExportIsIncrement(filesystem: Filesystem): Boolean {
+        val manifestFile = getBackupManifestFile(filesystem)
+        if (!manifestFile.exists()) return false
+        return try {
+            val header = manifestFile.inputStream().use { BackupManifest.readHeader(it) }
+            header.incrementNumber < MAX_INCREMENTS_PER_BACKUP
+        } catch (err: IOException) {
+            false
+        }
+    }
+
+    private fun getBackupManifestFile(filesystem: Filesystem): File {
+        return File(backupManifestsDirectory, "${filesystem.id}.manifest")
+    }
+
+    // Backups made here are restored in-process, since only that can apply increments and tell when one was
+    // imported without the backups it was made after. Archives made any other way have no header and are
+    // extracted as before.
+    fun isIncrementalBackup(targetDirectoryName: String): Boolean {
+        val backups = getBackupFiles(targetDirectoryName)
+        if (backups.size > 1) return true
+        val backup = backups.firstOrNull() ?: return false
+        return try {
+            backup.inputStream().use { filesystemArchiver.readHeader(it) } != null
+        } catch (err: IOException) {
+            false
+        }
+    }
+
+    private fun getBackupFiles(targetDirectoryName: String): List<File> {
+        val supportDirectory = File(getSupportDirectoryPath(targetDirectoryName))
+        return supportDirectory.listFiles()?.filter { it.name.startsWith("rootfs.tar.gz") } ?: listOf()
+    }
+
+    // Applies the base backup and then each increment on top of the one it was made after. Backups are
+    // ordered by their headers, since documents picked together come in no particular order. Progress is
+    // how much of the backups has been read, sampled the same way as during extraction.
+    suspend fun restoreFilesystem(
+        filesystem: Filesystem,
+        listener: (String) -> Any,
+        onProgress: (bytesExtracted: Long, totalBytes: Long) -> Unit
+    ): ExecutionResult = withContext(Dispatchers.IO) {
         val filesystemDirName = "${filesystem.id}"
-        val command = "/support/common/compressFilesystem.sh"
-        val env = HashMap<String, String>()
-        env["TAR_PATH"] = scopedExternalDestination.absolutePath
+        try {
+            val headers = getBackupFiles(filesystemDirName).associateWith { backup ->
+                backup.inputStream().use { filesystemArchiver.readHeader(it) }
+                        ?: return@withContext FailedExecution("${backup.name} is not an incremental backup")
+            }
+            val chain = mutableListOf<File>()
+            var parentId = ""
+            if (headers.values.none { it.parentId.isEmpty() }) {
+                return@withContext FailedExecution("Only increments were imported. Import them together with the full backup they were made after")
+            }
+            while (chain.size < headers.size) {
+                val next = headers.entries.filter { it.value.parentId == parentId }
+                if (next.size != 1) return@withContext FailedExecution("Backups do not form a single chain")
+                chain.add(next.first().key)
+                parentId = next.first().value.id
+            }
 
-        return@withContext busyboxExecutor.executeProotCommand(
-                command,
-                filesystemDirName,
-                commandShouldTerminate = true,
-                env = env,
-                listener = listener
-        )
+            val filesystemDirectory = File("$filesDirPath/$filesystemDirName")
+            val totalBytes = chain.map { it.length() }.sum()
+            var bytesBeforeBackup = 0L
+            for (backup in chain) {
+                CountingInputStream(backup.inputStream()).use { input ->
+                    val progressPoller = launch {
+                        while (isActive) {
+                            onProgress(bytesBeforeBackup + input.bytesRead, totalBytes)
+                            delay(EXTRACTION_PROGRESS_INTERVAL_MILLIS)
+                        }
+                    }
+                    try {
+                        filesystemArchiver.restore(filesystemDirectory, input, listener)
+                    } finally {
+                        progressPoller.cancel()
+                    }
+                }
+                bytesBeforeBackup += backup.length()
+            }
+            File("${getSupportDirectoryPath(filesystemDirName)}/$filesystemExtractionSuccess").createNewFile()
+            return@withContext SuccessfulExecution
+        } catch (err: IOException) {
+            logger.addExceptionBreadcrumb(err)
+            return@withContext FailedExecution("Restoring backups failed: ${err.message}")
+        }
     }
 
     fun isExtractionComplete(targetDirectoryName: String): Boolean {
@@ -97,6 +337,140 @@ class FilesystemManager(
         return File("$supportPath/$filesystemExtractionSuccess").exists()
     }
 
+    // The space extracting the rootfs will take, or 0 if there is nothing left to extract or it is unknown.
+    // It is estimated from the uncompressed size recorded at the end of the archive, so the archive is not
+    // read through. A base saved after extraction takes as much again.
+    fun getRequiredExtractionStorageInMB(filesystem: Filesystem): Long {
+        val filesystemDirName = "${filesystem.id}"
+        if (hasFilesystemBeenSuccessfullyExtracted(filesystemDirName)) return 0
+        val rootfsArchive = File("${getSupportDirectoryPath(filesystemDirName)}/rootfs.tar.gz")
+        if (!rootfsArchive.exists()) return 0
+        val uncompressedBytes = try {
+            readGzipUncompressedSize(rootfsArchive) ?: return 0
+        } catch (err: IOException) {
+            logger.addExceptionBreadcrumb(err)
+            return 0
+        }
+        val copies = if (savesBaseFilesystem(filesystem)) 2 else 1
+        val requiredBytes = (uncompressedBytes + uncompressedBytes * EXTRACTION_OVERHEAD_PERCENT / 100) * copies
+        return (requiredBytes + BYTES_IN_MB - 1) / BYTES_IN_MB
+    }
+
+    // Gzip only keeps the size of the last member, modulo 4 GiB. Backups record the size of the whole
+    // stream themselves. Other archives of several members can not be sized without reading them through,
+    // so their size is unknown. Tarred filesystems barely shrink at worst, so a single member recording a
+    // size well below the archive's own means the count wrapped.
+    @Throws(IOException::class)
+    private fun readGzipUncompressedSize(archive: File): Long? {
+        RandomAccessFile(archive, "r").use { file ->
+            val compressedBytes = file.length()
+            if (compressedBytes < GZIP_MINIMUM_BYTES || file.readUnsignedShort() != GZIP_MAGIC) {
+                throw IOException("${archive.path} is not a gzip archive")
+            }
+            ParallelGzipOutputStream.readRecordedSize(file)?.let { return it }
+            if (hasSeveralGzipMembers(file)) return null
+            val trailer = ByteArray(4)
+            file.seek(compressedBytes - trailer.size)
+            file.readFully(trailer)
+            var uncompressedBytes = ByteBuffer.wrap(trailer).order(ByteOrder.LITTLE_ENDIAN).int.toLong() and 0xffffffffL
+            while (uncompressedBytes < compressedBytes - compressedBytes / 100) {
+                uncompressedBytes += 1L shl 32
+            }
+            return uncompressedBytes
+        }
+    }
+
+    // Finding where the first member ends takes inflating it, so only so much of it is inflated. A first
+    // member longer than that is taken to be the only one, as gzip itself writes.
+    @Throws(IOException::class)
+    private fun hasSeveralGzipMembers(file: RandomAccessFile): Boolean {
+        file.seek(GZIP_FLAGS_OFFSET)
+        val flags = file.readUnsignedByte()
+        file.seek(GZIP_HEADER_BYTES)
+        if (flags and GZIP_FLAG_EXTRA != 0) {
+            val extraLength = file.readUnsignedByte() or (file.readUnsignedByte() shl 8)
+            file.seek(file.filePointer + extraLength)
+        }
+        if (flags and GZIP_FLAG_NAME != 0) while (file.readUnsignedByte() != 0) continue
+        if (flags and GZIP_FLAG_COMMENT != 0) while (file.readUnsignedByte() != 0) continue
+        if (flags and GZIP_FLAG_HEADER_CRC != 0) file.seek(file.filePointer + 2)
+
+        val inflater = Inflater(true)
+        try {
+            val input = ByteArray(GZIP_SCAN_BUFFER_SIZE)
+            val output = ByteArray(GZIP_SCAN_BUFFER_SIZE)
+            var inflatedBytes = 0L
+            while (!inflater.finished() && inflatedBytes < GZIP_MEMBER_SCAN_LIMIT) {
+                if (inflater.needsInput()) {
+                    val count = file.read(input)
+                    if (count < 0) throw IOException("Gzip archive is truncated")
+                    inflater.setInput(input, 0, count)
+                }
+                if (inflater.needsDictionary()) throw IOException("Gzip archive is malformed")
+                inflatedBytes += inflater.inflate(output)
+            }
+            if (!inflater.finished()) return false
+            val memberEnd = file.filePointer - inflater.remaining + GZIP_TRAILER_BYTES
+            return memberEnd < file.length()
+        } catch (err: DataFormatException) {
+            throw IOException(err)
+        } finally {
+            inflater.end()
+        }
+    }
+
+    // Snapshots are taken once a filesystem is ready for a session, and are kept outside its support
+    // directory so they do not change what they record.
+    fun saveReadinessSnapshot(filesystem: Filesystem) {
+        val filesystemDirName = "${filesystem.id}"
+        val snapshot = ReadinessSnapshot(
+                filesystem.versionCodeUsed,
+                getSupportDirectoryHash(filesystemDirName),
+                hasFilesystemBeenSuccessfullyExtracted(filesystemDirName),
+                System.currentTimeMillis())
+        try {
+            readinessSnapshotsDirectory.mkdirs()
+            getReadinessSnapshotFile(filesystem).outputStream().use { snapshot.write(it) }
+        } catch (err: IOException) {
+            logger.addExceptionBreadcrumb(err)
+            deleteReadinessSnapshot(filesystem)
+        }
+    }
+
+    // Only stats the support directory and its assets, so it is cheap enough to check before every start.
+    fun hasValidReadinessSnapshot(filesystem: Filesystem, currentTimeMillis: Long = System.currentTimeMillis()): Boolean {
+        val snapshotFile = getReadinessSnapshotFile(filesystem)
+        if (!snapshotFile.exists()) return false
+        val snapshot = try {
+            snapshotFile.inputStream().use { ReadinessSnapshot.read(it) }
+        } catch (err: IOException) {
+            return false
+        }
+        val filesystemDirName = "${filesystem.id}"
+        return snapshot.isExtracted &&
+                currentTimeMillis - snapshot.timestamp in 0 until READINESS_SNAPSHOT_MAX_AGE_MILLIS &&
+                snapshot.assetVersion == filesystem.versionCodeUsed &&
+                hasFilesystemBeenSuccessfullyExtracted(filesystemDirName) &&
+                snapshot.supportDirectoryHash == getSupportDirectoryHash(filesystemDirName)
+    }
+
+    fun deleteReadinessSnapshot(filesystem: Filesystem) {
+        getReadinessSnapshotFile(filesystem).delete()
+    }
+
+    private fun getReadinessSnapshotFile(filesystem: Filesystem): File {
+        return File(readinessSnapshotsDirectory, "${filesystem.id}")
+    }
+
+    // Assets are replaced rather than modified, so names, sizes and modification times are enough to tell
+    // whether they changed. Hidden files are left out, since they are markers and state rather than assets.
+    private fun getSupportDirectoryHash(targetDirectoryName: String): String {
+        val supportFiles = File(getSupportDirectoryPath(targetDirectoryName)).listFiles() ?: arrayOf()
+        val listing = supportFiles.filter { !it.name.startsWith(".") }.sortedBy { it.name }
+                .joinToString("") { "${it.name}\t${it.length()}\t${it.lastModified()}\n" }
+        return MessageDigest.getInstance("SHA-256").digest(listing.toByteArray()).toHexString()
+    }
+
     fun areAllRequiredAssetsPresent(
         targetDirectoryName: String,
         distributionAssetList: List<Asset>
@@ -111,18 +485,24 @@ class FilesystemManager(
         }
     }
 
+    // Progress is reported in files and directories deleted.
     @Throws(IOException::class)
-    suspend fun deleteFilesystem(filesystemId: Long) = withContext(Dispatchers.IO) {
+    suspend fun deleteFilesystem(
+        filesystemId: Long,
+        onProgress: (entriesDeleted: Long) -> Unit = {}
+    ) = withContext(Dispatchers.IO) {
         val filesystemDirectory = File("$filesDirPath/$filesystemId")
         if (!filesystemDirectory.exists() || !filesystemDirectory.isDirectory) return@withContext
-        // CWD for this script is the files dir, running without proot
-        val command = "support/deleteFilesystem.sh ${filesystemDirectory.path}"
-        val result = busyboxExecutor.executeScript(command)
-        if (result is FailedExecution) {
-            val err = IOException()
+        try {
+            fileDeleter.delete(filesystemDirectory, onProgress)
+        } catch (err: IOException) {
             logger.addExceptionBreadcrumb(err)
             throw err
         }
+        File(backupManifestsDirectory, "$filesystemId.manifest").delete()
+        File(readinessSnapshotsDirectory, "$filesystemId").delete()
+        deleteUnusedBaseFilesystems()
+        assetStore.collectGarbage()
     }
 
     @Throws(IOException::class)
@@ -142,4 +522,26 @@ class FilesystemManager(
             throw exception
         }
     }
+
+    companion object {
+        const val BASE_FILESYSTEMS_DIRECTORY_NAME = ".bases"
+        private const val EXTRACTION_PROGRESS_INTERVAL_MILLIS = 250L
+        // Files take up whole blocks on disk, which tar does not account for.
+        private const val EXTRACTION_OVERHEAD_PERCENT = 10
+        private const val BYTES_IN_MB = 1048576L
+        private const val GZIP_MAGIC = 0x1f8b
+        private const val GZIP_MINIMUM_BYTES = 18
+        private const val GZIP_HEADER_BYTES = 10L
+        private const val GZIP_TRAILER_BYTES = 8
+        private const val GZIP_FLAGS_OFFSET = 3L
+        private const val GZIP_FLAG_HEADER_CRC = 2
+        private const val GZIP_FLAG_EXTRA = 4
+        private const val GZIP_FLAG_NAME = 8
+        private const val GZIP_FLAG_COMMENT = 16
+        private const val GZIP_SCAN_BUFFER_SIZE = 64 * 1024
+        private const val GZIP_MEMBER_SCAN_LIMIT = 32L * 1024 * 1024
+        // Sessions are started the long way at least once a week, in case anything the snapshot misses changed.
+        private const val READINESS_SNAPSHOT_MAX_AGE_MILLIS = 7L * 24 * 60 * 60 * 1000
+        private const val MAX_INCREMENTS_PER_BACKUP = 7
+    }
 }
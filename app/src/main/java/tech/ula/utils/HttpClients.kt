@@ -0,0 +1,63 @@
+package tech.ula.utils
+
+import okhttp3.Cache
+import okhttp3.Interceptor
+import okhttp3.OkHttpClient
+import okhttp3.Response
+import java.io.File
+import java.util.concurrent.TimeUnit
+
+// Clients are shared across the process so that connections are reused. There is only one metadata cache,
+// since OkHttp caches can not share a directory.
+object HttpClients {
+    private const val METADATA_CACHE_BYTES = 10L * 1024 * 1024
+    const val METADATA_TTL_SECONDS = 15L * 60
+
+    // Reads time out rather than hanging on stalled connections. Transfers resume or are retried by callers.
+    val client: OkHttpClient by lazy {
+        OkHttpClient.Builder()
+                .connectTimeout(15, TimeUnit.SECONDS)
+                .readTimeout(30, TimeUnit.SECONDS)
+                .writeTimeout(30, TimeUnit.SECONDS)
+                .build()
+    }
+
+    private var metadataClient: OkHttpClient? = null
+
+    @Synchronized
+    fun getMetadataClient(cacheDirectory: File): OkHttpClient {
+        return metadataClient ?: client.withMetadataCache(Cache(File(cacheDirectory, "http"), METADATA_CACHE_BYTES))
+                .also { metadataClient = it }
+    }
+}
+
+// Metadata responses are used from disk for ttlSeconds without contacting the server. Afterwards they are
+// revalidated with If-None-Match or If-Modified-Since, and a 304 reuses the stored body. Large downloads
+// should not use this client, since they would be copied into the cache.
+fun OkHttpClient.withMetadataCache(cache: Cache, ttlSeconds: Long = HttpClients.METADATA_TTL_SECONDS): OkHttpClient {
+    return newBuilder()
+            .cache(cache)
+            .addNetworkInterceptor(CacheTtlInterceptor(ttlSeconds))
+            .build()
+}
+
+// Replaces the short lifetimes servers send (a minute for the GitHub api) with our own, since releases and
+// app metadata change rarely.
+class CacheTtlInterceptor(private val ttlSeconds: Long) : Interceptor {
+    override fun intercept(chain: Interceptor.Chain): Response {
+        val response = chain.proceed(chain.request())
+        if (chain.request().method() != "GET" || response.cacheControl().noStore()) return response
+        if (!response.isSuccessful && response.code() != 304) return response
+        return response.newBuilder()
+                .removeHeader("Pragma")
+                .header("Cache-Control", "public, max-age=$ttlSeconds")
+                .build()
+    }
+}
+
+// True if the body was served from the cache, whether or not the server was asked if it changed.
+fun Response.isUnchangedSinceCached(): Boolean {
+    if (cacheResponse() == null) return false
+    val networkResponse = networkResponse() ?: return true
+    return networkResponse.code() == 304
+}
@@ -0,0 +1,339 @@
+package tech.ula.utils
+
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.async
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.isActive
+import kotlinx.coroutines.launch
+import okhttp3.OkHttpClient
+import okhttp3.Request
+import tech.ula.R
+import tech.ula.model.repositories.DownloadMetadata
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.security.MessageDigest
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.coroutines.coroutineContext
+
+class HttpDownloadException(val reason: DownloadFailureLocalizationData, message: String) : IOException(message)
+
+// Downloads assets in-process. Large assets are split into ranges fetched in parallel, progress is kept in
+// partialDirectory so failed or cancelled downloads resume where they stopped, and a SHA-256 is computed
+// as the data arrives.
+class HttpDownloadEngine(
+    private val partialDirectory: File,
+    private val client: OkHttpClient = OkHttpClient(),
+    private val segmentCount: Int = 4,
+    private val minimumSegmentBytes: Long = 4L * 1024 * 1024,
+    private val coroutineScope: CoroutineScope = CoroutineScope(Dispatchers.IO),
+    private val logger: Logger = SentryLogger()
+) : DownloadEngine {
+
+    // Called from a background thread once a download has succeeded or failed.
+    var onDownloadComplete: (Long) -> Unit = {}
+
+    // Ids persisted by an earlier run are unknown to this one, so start past them.
+    private val nextId = AtomicLong(System.currentTimeMillis())
+    private val downloads = ConcurrentHashMap<Long, HttpDownload>()
+
+    private class Segment(val start: Long, val end: Long, done: Long = 0) {
+        val done = AtomicLong(done)
+        @Volatile var finished = false
+
+        // The end is exclusive, and -1 when the length of the asset is unknown.
+        val isComplete: Boolean
+            get() = finished || (end >= 0 && start + done.get() >= end)
+    }
+
+    private class HttpDownload(val url: String, val destination: File, val expectedSha256: String?) {
+        @Volatile var job: Job? = null
+        @Volatile var succeeded = false
+        @Volatile var failureReason: DownloadFailureLocalizationData? = null
+        @Volatile var segments: List<Segment> = listOf()
+        @Volatile var totalBytes = -1L
+        var sha256 = ""
+
+        val bytesDownloaded: Long
+            get() = segments.map { it.done.get() }.sum()
+    }
+
+    private class Probe(val length: Long, val acceptsRanges: Boolean, val etag: String?)
+
+    override fun enqueue(downloadMetadata: DownloadMetadata, destination: File): Long {
+        val id = nextId.getAndIncrement()
+        val download = HttpDownload(downloadMetadata.url, destination, downloadMetadata.sha256)
+        downloads[id] = download
+        download.job = coroutineScope.launch {
+            try {
+                logger.trace("download ${download.destination.name}", "download") { performDownload(download) }
+                download.succeeded = true
+            } catch (err: CancellationException) {
+                throw err
+            } catch (err: HttpDownloadException) {
+                fail(download, err.reason, err)
+            } catch (err: Exception) {
+                fail(download, DownloadFailureLocalizationData(R.string.download_failure_http_processing), err)
+            }
+            if (isActive) onDownloadComplete(id)
+        }
+        return id
+    }
+
+    // Downloads that were started by an earlier run of the app are reported as failed, so that they are
+    // requested again and resume from their partial files.
+    fun downloadHasSucceeded(id: Long): Boolean {
+        return downloads[id]?.succeeded ?: false
+    }
+
+    fun downloadHasFailed(id: Long): Boolean {
+        val download = downloads[id] ?: return true
+        return download.failureReason != null
+    }
+
+    fun getDownloadFailureReason(id: Long): DownloadFailureLocalizationData {
+        return downloads[id]?.failureReason
+                ?: DownloadFailureLocalizationData(R.string.download_failure_reason_not_found)
+    }
+
+    override fun getDownloadStatuses(ids: Set<Long>): Map<Long, DownloadStatus> {
+        return ids.filter { downloads.containsKey(it) }.associateWith { id ->
+            DownloadStatus(
+                    hasSucceeded = downloadHasSucceeded(id),
+                    hasFailed = downloadHasFailed(id),
+                    bytesDownloaded = getBytesDownloaded(id),
+                    totalBytes = getTotalBytes(id),
+                    failureReason = downloads[id]?.failureReason)
+        }
+    }
+
+    override fun cancelAllDownloads(downloadIds: Set<Long>) {
+        for (id in downloadIds) {
+            downloads.remove(id)?.job?.cancel()
+        }
+    }
+
+    fun getBytesDownloaded(id: Long): Long {
+        return downloads[id]?.bytesDownloaded ?: 0
+    }
+
+    fun getTotalBytes(id: Long): Long {
+        return downloads[id]?.totalBytes ?: -1
+    }
+
+    private fun fail(download: HttpDownload, reason: DownloadFailureLocalizationData, err: Exception) {
+        download.failureReason = reason
+        val details = "func: performDownload err: ${err.message}"
+        val breadcrumb = UlaBreadcrumb("HttpDownloadEngine", BreadcrumbType.RuntimeError, details)
+        logger.addBreadcrumb(breadcrumb)
+    }
+
+    private suspend fun performDownload(download: HttpDownload) {
+        partialDirectory.mkdirs()
+        val partialFile = File(partialDirectory, "${download.destination.name}.part")
+        val stateFile = File(partialDirectory, "${download.destination.name}.state")
+
+        val probe = probe(download.url)
+        val restoredSegments = restoreSegments(stateFile, probe)
+        if (restoredSegments == null) partialFile.delete()
+        download.segments = restoredSegments ?: planSegments(probe)
+        download.totalBytes = probe.length
+
+        RandomAccessFile(partialFile, "rw").use { file ->
+            if (probe.length >= 0) file.setLength(probe.length)
+            val channel = file.channel
+            val progress = Channel<Unit>(Channel.CONFLATED)
+            val sha256 = coroutineScope {
+                val digest = async(Dispatchers.IO) { hashAsItArrives(channel, download.segments, progress) }
+                // Segments keep going when another one fails, so that as much as possible can be resumed.
+                val failures = download.segments.map { segment ->
+                    async(Dispatchers.IO) {
+                        try {
+                            downloadSegment(download, segment, channel, probe, stateFile, progress)
+                            null
+                        } catch (err: IOException) {
+                            err
+                        }
+                    }
+                }.mapNotNull { it.await() }
+                if (failures.isNotEmpty()) {
+                    digest.cancel()
+                    throw failures.first()
+                }
+                digest.await()
+            }
+            download.sha256 = sha256
+        }
+
+        stateFile.delete()
+        val expectedSha256 = download.expectedSha256
+        if (expectedSha256 != null && !expectedSha256.equals(download.sha256, ignoreCase = true)) {
+            partialFile.delete()
+            throw HttpDownloadException(
+                    DownloadFailureLocalizationData(R.string.download_failure_checksum_mismatch),
+                    "Expected sha256 $expectedSha256 for ${download.url} but got ${download.sha256}")
+        }
+
+        download.destination.delete()
+        if (!partialFile.renameTo(download.destination)) {
+            partialFile.copyTo(download.destination, overwrite = true)
+            partialFile.delete()
+        }
+    }
+
+    private fun probe(url: String): Probe {
+        val request = Request.Builder().url(url).head().build()
+        client.newCall(request).execute().use { response ->
+            if (!response.isSuccessful) throw httpError(response.code())
+            val length = response.header("Content-Length")?.toLongOrNull() ?: -1
+            val acceptsRanges = response.header("Accept-Ranges") == "bytes"
+            return Probe(length, acceptsRanges && length > 0, response.header("ETag"))
+        }
+    }
+
+    private fun planSegments(probe: Probe): List<Segment> {
+        if (!probe.acceptsRanges) return listOf(Segment(0, probe.length))
+
+        val count = (probe.length / minimumSegmentBytes).coerceIn(1, segmentCount.toLong())
+        val segmentLength = probe.length / count
+        return (0 until count).map { index ->
+            val start = index * segmentLength
+            val end = if (index == count - 1) probe.length else start + segmentLength
+            Segment(start, end)
+        }
+    }
+
+    // Returns null if there is nothing to resume, or if the asset has changed since the state was saved.
+    private fun restoreSegments(stateFile: File, probe: Probe): List<Segment>? {
+        if (!probe.acceptsRanges || !stateFile.exists()) return null
+        val lines = try {
+            stateFile.readLines()
+        } catch (err: IOException) {
+            return null
+        }
+        if (lines.size < 3 || lines[0] != "${probe.length}" || lines[1] != probe.etag.orEmpty()) return null
+
+        return lines.drop(2).map { line ->
+            val (start, end, done) = line.split(" ").map { it.toLongOrNull() ?: return null }
+            Segment(start, end, done)
+        }
+    }
+
+    @Synchronized
+    private fun saveState(stateFile: File, probe: Probe, segments: List<Segment>) {
+        if (!probe.acceptsRanges) return
+        val state = StringBuilder()
+        state.append("${probe.length}\n${probe.etag.orEmpty()}\n")
+        for (segment in segments) {
+            state.append("${segment.start} ${segment.end} ${segment.done.get()}\n")
+        }
+        val temporaryFile = File("${stateFile.path}.tmp")
+        temporaryFile.writeText(state.toString())
+        temporaryFile.renameTo(stateFile)
+    }
+
+    private suspend fun downloadSegment(
+        download: HttpDownload,
+        segment: Segment,
+        channel: FileChannel,
+        probe: Probe,
+        stateFile: File,
+        progress: Channel<Unit>
+    ) {
+        if (segment.isComplete) return
+        val requestBuilder = Request.Builder().url(download.url)
+        if (probe.acceptsRanges) {
+            requestBuilder.header("Range", "bytes=${segment.start + segment.done.get()}-${segment.end - 1}")
+            // If the asset changed since the state was saved, the whole asset is returned instead of the range.
+            probe.etag?.let { requestBuilder.header("If-Range", it) }
+        } else {
+            segment.done.set(0)
+        }
+
+        client.newCall(requestBuilder.build()).execute().use { response ->
+            if (!response.isSuccessful) throw httpError(response.code())
+            if (probe.acceptsRanges && response.code() != HTTP_PARTIAL_CONTENT) {
+                stateFile.delete()
+                throw IOException("Range request for ${download.url} was not honored")
+            }
+
+            val body = response.body()!!.byteStream()
+            val buffer = ByteArray(BUFFER_SIZE)
+            var unsavedBytes = 0L
+            var read = body.read(buffer)
+            while (read != -1) {
+                if (!coroutineContext.isActive) return
+                val position = segment.start + segment.done.get()
+                val byteBuffer = ByteBuffer.wrap(buffer, 0, read)
+                while (byteBuffer.hasRemaining()) {
+                    channel.write(byteBuffer, position + byteBuffer.position())
+                }
+                segment.done.addAndGet(read.toLong())
+                progress.offer(Unit)
+
+                unsavedBytes += read
+                if (unsavedBytes >= STATE_SAVE_INTERVAL_BYTES) {
+                    saveState(stateFile, probe, download.segments)
+                    unsavedBytes = 0
+                }
+                read = body.read(buffer)
+            }
+        }
+
+        if (segment.end >= 0 && segment.start + segment.done.get() != segment.end) {
+            saveState(stateFile, probe, download.segments)
+            throw IOException("Connection closed before the end of ${download.url}")
+        }
+        segment.finished = true
+        saveState(stateFile, probe, download.segments)
+        progress.offer(Unit)
+    }
+
+    // Hashes the file in order, trailing the contiguous prefix that has already been written. The data
+    // is read back while it is still in the page cache, so this costs no more than hashing the stream.
+    private suspend fun hashAsItArrives(channel: FileChannel, segments: List<Segment>, progress: Channel<Unit>): String {
+        val digest = MessageDigest.getInstance("SHA-256")
+        val buffer = ByteBuffer.allocate(BUFFER_SIZE)
+        var hashed = 0L
+        while (true) {
+            val contiguousEnd = contiguousEnd(segments)
+            while (hashed < contiguousEnd) {
+                buffer.clear()
+                buffer.limit(minOf(BUFFER_SIZE.toLong(), contiguousEnd - hashed).toInt())
+                val read = channel.read(buffer, hashed)
+                if (read <= 0) break
+                digest.update(buffer.array(), 0, read)
+                hashed += read
+            }
+            if (segments.all { it.isComplete } && hashed >= contiguousEnd(segments)) break
+            progress.receive()
+        }
+        return digest.digest().toHexString()
+    }
+
+    private fun contiguousEnd(segments: List<Segment>): Long {
+        for (segment in segments) {
+            if (!segment.isComplete) return segment.start + segment.done.get()
+        }
+        val last = segments.last()
+        return last.start + last.done.get()
+    }
+
+    private fun httpError(code: Int): HttpDownloadException {
+        val reason = DownloadFailureLocalizationData(R.string.download_failure_http_error, listOf("$code"))
+        return HttpDownloadException(reason, "Unexpected code: $code")
+    }
+
+    companion object {
+        private const val BUFFER_SIZE = 64 * 1024
+        private const val HTTP_PARTIAL_CONTENT = 206
+        private const val STATE_SAVE_INTERVAL_BYTES = 1024L * 1024
+    }
+}
@@ -2,43 +2,81 @@ package tech.ula.utils
 
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.withContext
+import okhttp3.OkHttpClient
+import okhttp3.Request
+import okhttp3.Response
 import java.io.* // ktlint-disable no-wildcard-imports
-import java.net.HttpURLConnection
-import java.net.URL
 
-class HttpStream {
+// Bodies are streamed through a fixed size buffer, so memory use does not grow with the file.
+class HttpStream(private val client: OkHttpClient = HttpClients.client) {
     // TODO this function should be made private and usages be reworked to match other public functions
+    @Throws(IOException::class)
     fun fromUrl(url: String): InputStream {
-        val conn = URL(url).openConnection() as HttpURLConnection
-        conn.requestMethod = "GET"
-        return conn.inputStream
+        return execute(url).body()!!.byteStream()
     }
 
     @Throws(IOException::class)
     suspend fun toLines(url: String): List<String> = withContext(Dispatchers.IO) {
-        val inputStream = fromUrl(url)
-        val reader = BufferedReader(InputStreamReader(inputStream))
-        val lines = reader.readLines()
-        reader.close()
-        return@withContext lines
+        return@withContext execute(url).use { response ->
+            response.body()!!.charStream().buffered().readLines()
+        }
     }
 
+    // Progress is reported with a total of -1 if the server does not send the length.
     @Throws(IOException::class)
-    suspend fun toFile(url: String, file: File) = withContext(Dispatchers.IO) {
-        file.parentFile!!.mkdirs()
-        file.createNewFile()
-        val inputStream = fromUrl(url)
-        val outputStream = file.outputStream()
-        outputStream.write(inputStream.readBytes())
-        inputStream.close()
-        outputStream.close()
+    suspend fun toFile(
+        url: String,
+        file: File,
+        onProgress: (bytesRead: Long, totalBytes: Long) -> Unit = { _, _ -> }
+    ) = withContext(Dispatchers.IO) {
+        execute(url).use { response -> writeToFile(response, file, onProgress) }
     }
 
     @Throws(IOException::class)
     suspend fun toTextFile(url: String, file: File) = withContext(Dispatchers.IO) {
+        execute(url).use { response -> writeToFile(response, file) { _, _ -> } }
+    }
+
+    private fun execute(url: String): Response {
+        val request = Request.Builder()
+                .url(url)
+                .build()
+        val response = client.newCall(request).execute()
+        if (!response.isSuccessful) {
+            response.close()
+            throw IOException("Unexpected code ${response.code()} for $url")
+        }
+        return response
+    }
+
+    // Files are left alone if what was last written is still current upstream. Otherwise the body is written
+    // next to the file and renamed over it, so a failed transfer never leaves a truncated file behind.
+    private fun writeToFile(response: Response, file: File, onProgress: (Long, Long) -> Unit) {
+        if (file.exists() && response.isUnchangedSinceCached()) return
         file.parentFile!!.mkdirs()
-        file.createNewFile()
-        val contents = URL(url).readText()
-        file.writeText(contents)
+        val partialFile = File("${file.path}.partial")
+        val body = response.body()!!
+        val totalBytes = body.contentLength()
+        try {
+            partialFile.outputStream().use { outputStream ->
+                val inputStream = body.byteStream()
+                val buffer = ByteArray(BUFFER_SIZE)
+                var bytesRead = 0L
+                var read = inputStream.read(buffer)
+                while (read != -1) {
+                    outputStream.write(buffer, 0, read)
+                    bytesRead += read
+                    onProgress(bytesRead, totalBytes)
+                    read = inputStream.read(buffer)
+                }
+            }
+            if (!partialFile.renameTo(file)) throw IOException("Could not move ${partialFile.name} to ${file.path}")
+        } finally {
+            partialFile.delete()
+        }
+    }
+
+    companion object {
+        private const val BUFFER_SIZE = 64 * 1024
     }
 }
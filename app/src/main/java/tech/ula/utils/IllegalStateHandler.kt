@@ -45,8 +45,6 @@ object IllegalStateHandler {
                 LocalizationData(R.string.illegal_state_failed_to_clear_support_files)
             is InsufficientAvailableStorage ->
                 LocalizationData(R.string.illegal_state_insufficient_storage)
-            is BusyboxMissing ->
-                LocalizationData(R.string.illegal_state_busybox_missing)
         }
     }
 }
\ No newline at end of file
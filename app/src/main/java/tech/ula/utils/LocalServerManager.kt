@@ -1,37 +1,49 @@
 package tech.ula.utils
 
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.launch
 import tech.ula.model.entities.ServiceType
 import tech.ula.model.entities.Session
 import java.io.File
+import java.util.concurrent.ConcurrentHashMap
 
 class LocalServerManager(
     private val applicationFilesDirPath: String,
     private val busyboxExecutor: BusyboxExecutor,
-    private val logger: Logger = SentryLogger()
+    private val logger: Logger = SentryLogger(),
+    private val processTree: ProcessTree = ProcessTree()
 ) {
 
     private val vncDisplayNumber = 51
 
-    fun Process.pid(): Long {
-        return this.toString()
-                .substringAfter("pid=")
-                .substringBefore(",")
-                .substringBefore("]")
-                .trim().toLong()
+    // Keyed by session pid. Server pids are remembered once they are seen alive so pid files are only read until then.
+    private val sessionProcesses = ConcurrentHashMap<Long, ChildProcess>()
+    private val serverPids = ConcurrentHashMap<Long, Long>()
+
+    private fun trackSessionProcess(process: ChildProcess): Long {
+        sessionProcesses[process.pid] = process
+        return process.pid
     }
 
     fun startServer(session: Session): Long {
-        return when (session.serviceType) {
-            ServiceType.Ssh -> startSSHServer(session)
-            ServiceType.Vnc -> startVNCServer(session)
-            ServiceType.Xsdl -> setDisplayNumberAndStartTwm(session)
-            else -> 0
+        return logger.trace("launch ${session.serviceType} server", "launch") {
+            when (session.serviceType) {
+                ServiceType.Ssh -> startSSHServer(session)
+                ServiceType.Vnc -> startVNCServer(session)
+                ServiceType.Xsdl -> setDisplayNumberAndStartTwm(session)
+                else -> 0
+            }
         }
     }
 
     fun stopService(session: Session) {
-        val command = "support/killProcTree.sh ${session.pid} ${session.serverPid()}"
-        val result = busyboxExecutor.executeScript(command)
+        val result = processTree.killTree(listOf(session.pid, getServerPid(session)))
+        serverPids.remove(session.pid)
+        sessionProcesses.remove(session.pid)?.let { process ->
+            // Reap the killed process so that it does not linger as a zombie.
+            CoroutineScope(Dispatchers.IO).launch { process.waitFor() }
+        }
         if (result is FailedExecution) {
             val details = "func: stopService err: ${result.reason}"
             val breadcrumb = UlaBreadcrumb("LocalServerManager", BreadcrumbType.RuntimeError, details)
@@ -39,22 +51,27 @@ class LocalServerManager(
         }
     }
 
+    // The proot process of a session only exits once every process it traces has, the server included.
+    fun sessionHasExited(session: Session): Boolean {
+        val process = sessionProcesses[session.pid] ?: return false
+        return !process.isAlive()
+    }
+
     fun isServerRunning(session: Session): Boolean {
-        val command = "support/isServerInProcTree.sh ${session.serverPid()}"
         // The server itself is run by a third-party, so we can consider this to always be true.
         // The third-party app is responsible for handling errors starting their server.
         if (session.serviceType == ServiceType.Xsdl) return true
-        val result = busyboxExecutor.executeScript(command)
-        return when (result) {
-            is SuccessfulExecution -> true
-            is FailedExecution -> {
-                val details = "func: isServerRunning err: ${result.reason}"
-                val breadcrumb = UlaBreadcrumb("LocalServerManager", BreadcrumbType.RuntimeError, details)
-                logger.addBreadcrumb(breadcrumb)
-                false
-            }
-            else -> false
-        }
+        if (sessionHasExited(session)) return false
+        serverPids[session.pid]?.let { return processTree.isAlive(it) }
+
+        val serverPid = session.serverPid()
+        val isRunning = processTree.isAlive(serverPid)
+        if (isRunning) serverPids[session.pid] = serverPid
+        return isRunning
+    }
+
+    fun getServerPid(session: Session): Long {
+        return serverPids[session.pid] ?: session.serverPid()
     }
 
     private fun deletePidFile(session: Session) {
@@ -68,7 +85,7 @@ class LocalServerManager(
         val command = "/support/startSSHServer.sh"
         val result = busyboxExecutor.executeProotCommand(command, filesystemDirName, false)
         return when (result) {
-            is OngoingExecution -> result.process.pid()
+            is OngoingExecution -> trackSessionProcess(result.process)
             is FailedExecution -> {
                 val details = "func: startSshServer err: ${result.reason}"
                 val breadcrumb = UlaBreadcrumb("LocalServerManager", BreadcrumbType.RuntimeError, details)
@@ -94,7 +111,7 @@ class LocalServerManager(
                 commandShouldTerminate = false,
                 env = env)
         return when (result) {
-            is OngoingExecution -> result.process.pid()
+            is OngoingExecution -> trackSessionProcess(result.process)
             is FailedExecution -> {
                 val details = "func: startVncServer err: ${result.reason}"
                 val breadcrumb = UlaBreadcrumb("LocalServerManager", BreadcrumbType.RuntimeError, details)
@@ -119,7 +136,7 @@ class LocalServerManager(
                 commandShouldTerminate = false,
                 env = env)
         return when (result) {
-            is OngoingExecution -> result.process.pid()
+            is OngoingExecution -> trackSessionProcess(result.process)
             is FailedExecution -> {
                 val details = "func: setDisplayNumberAndStartTwm err: ${result.reason}"
                 val breadcrumb = UlaBreadcrumb("LocalServerManager", BreadcrumbType.RuntimeError, details)
@@ -37,6 +37,11 @@ sealed class BreadcrumbType {
             return "Runtime error"
         }
     }
+    object Measurement : BreadcrumbType() {
+        override fun toString(): String {
+            return "Measurement"
+        }
+    }
 }
 
 data class UlaBreadcrumb(
@@ -45,6 +50,15 @@ data class UlaBreadcrumb(
     val details: String
 )
 
+// Times are from System.nanoTime, so spans are only comparable within one run of the app.
+data class TraceSpan(
+    val name: String,
+    val category: String,
+    val startNanos: Long,
+    val endNanos: Long,
+    val threadId: Long
+)
+
 interface Logger {
     fun initialize(context: Context? = null)
 
@@ -55,6 +69,19 @@ interface Logger {
     fun sendIllegalStateLog(state: IllegalState)
 
     fun sendEvent(message: String)
+
+    fun recordSpan(span: TraceSpan)
+}
+
+// Records how long the block took as a span, including when it throws.
+inline fun <T> Logger.trace(name: String, category: String, block: () -> T): T {
+    val threadId = Thread.currentThread().id
+    val startNanos = System.nanoTime()
+    try {
+        return block()
+    } finally {
+        recordSpan(TraceSpan(name, category, startNanos, System.nanoTime(), threadId))
+    }
 }
 
 class SentryLogger : Logger {
@@ -102,4 +129,9 @@ class SentryLogger : Logger {
         Sentry.capture(event)
         Log.e("EVENT", message)
     }
+
+    // Spans stay on the device until exported, rather than being sent to Sentry.
+    override fun recordSpan(span: TraceSpan) {
+        TraceRecorder.default.record(span)
+    }
 }
\ No newline at end of file
@@ -0,0 +1,141 @@
+package tech.ula.utils
+
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.io.OutputStream
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.util.ArrayDeque
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.Future
+import java.util.zip.GZIPOutputStream
+
+// Compresses like pigz: the stream is cut into blocks that are compressed as independent gzip members on
+// a pool, and written in order. Concatenated members are a valid gzip stream, which gunzip and tar -z read
+// as one. A bounded number of blocks are in flight, so memory use does not grow with the stream. The last
+// member is an empty one recording the size of the whole stream, since each member's trailer only holds its own.
+class ParallelGzipOutputStream(
+    private val outputStream: OutputStream,
+    private val executor: ExecutorService = ForkJoinPool.commonPool(),
+    private val blockSize: Int = DEFAULT_BLOCK_SIZE,
+    private val maxPendingBlocks: Int = 2 * Runtime.getRuntime().availableProcessors()
+) : OutputStream() {
+
+    private var block = ByteArray(blockSize)
+    private var blockLength = 0
+    private val pendingBlocks = ArrayDeque<Future<ByteArray>>()
+    private var hasWrittenMember = false
+    private var isFinished = false
+    private var uncompressedBytes = 0L
+
+    @Throws(IOException::class)
+    override fun write(b: Int) {
+        write(byteArrayOf(b.toByte()), 0, 1)
+    }
+
+    @Throws(IOException::class)
+    override fun write(bytes: ByteArray, offset: Int, length: Int) {
+        if (isFinished) throw IOException("Stream is already finished")
+        var written = 0
+        while (written < length) {
+            val count = minOf(length - written, blockSize - blockLength)
+            System.arraycopy(bytes, offset + written, block, blockLength, count)
+            blockLength += count
+            written += count
+            uncompressedBytes += count
+            if (blockLength == blockSize) submitBlock()
+        }
+    }
+
+    // Only completed blocks are written, since compressing partial ones would cost ratio for every flush.
+    @Throws(IOException::class)
+    override fun flush() {
+        while (pendingBlocks.isNotEmpty()) writeNextMember()
+        outputStream.flush()
+    }
+
+    // Writes everything without closing the underlying stream.
+    @Throws(IOException::class)
+    fun finish() {
+        if (isFinished) return
+        // An empty stream still needs one member to be valid gzip.
+        if (blockLength > 0 || (!hasWrittenMember && pendingBlocks.isEmpty())) submitBlock()
+        while (pendingBlocks.isNotEmpty()) writeNextMember()
+        outputStream.write(createSizeMember(uncompressedBytes))
+        outputStream.flush()
+        isFinished = true
+    }
+
+    @Throws(IOException::class)
+    override fun close() {
+        try {
+            finish()
+        } finally {
+            outputStream.close()
+        }
+    }
+
+    private fun submitBlock() {
+        if (pendingBlocks.size >= maxPendingBlocks) writeNextMember()
+        val data = block
+        val length = blockLength
+        pendingBlocks.add(executor.submit<ByteArray> { compress(data, length) })
+        block = ByteArray(blockSize)
+        blockLength = 0
+    }
+
+    private fun writeNextMember() {
+        val member = try {
+            pendingBlocks.removeFirst().get()
+        } catch (err: ExecutionException) {
+            throw IOException(err.cause)
+        } catch (err: InterruptedException) {
+            throw IOException(err)
+        }
+        outputStream.write(member)
+        hasWrittenMember = true
+    }
+
+    private fun compress(data: ByteArray, length: Int): ByteArray {
+        val compressed = ByteArrayOutputStream(length / 2 + MEMBER_OVERHEAD)
+        GZIPOutputStream(compressed, COMPRESSION_BUFFER_SIZE).use { it.write(data, 0, length) }
+        return compressed.toByteArray()
+    }
+
+    companion object {
+        const val DEFAULT_BLOCK_SIZE = 1024 * 1024
+        private const val COMPRESSION_BUFFER_SIZE = 64 * 1024
+        private const val MEMBER_OVERHEAD = 64
+
+        // A gzip header with only an extra field, holding a "US" subfield with the size as 8 little endian
+        // bytes. Gzip readers skip the extra field, and the member inflates to nothing.
+        private val SIZE_MEMBER_HEADER = byteArrayOf(0x1f, 0x8b.toByte(), 8, 4, 0, 0, 0, 0, 0, 0xff.toByte(), 12, 0, 'U'.toByte(), 'S'.toByte(), 8, 0)
+        // An empty final deflate block, then the CRC and size of no data.
+        private val SIZE_MEMBER_TRAILER = byteArrayOf(3, 0, 0, 0, 0, 0, 0, 0, 0, 0)
+        private const val SIZE_MEMBER_LENGTH = 34
+
+        private fun createSizeMember(uncompressedBytes: Long): ByteArray {
+            return ByteBuffer.allocate(SIZE_MEMBER_LENGTH).order(ByteOrder.LITTLE_ENDIAN)
+                    .put(SIZE_MEMBER_HEADER)
+                    .putLong(uncompressedBytes)
+                    .put(SIZE_MEMBER_TRAILER)
+                    .array()
+        }
+
+        // The uncompressed size of a stream written here, or null if the file does not end in a size member.
+        @Throws(IOException::class)
+        fun readRecordedSize(file: RandomAccessFile): Long? {
+            if (file.length() < SIZE_MEMBER_LENGTH) return null
+            val member = ByteArray(SIZE_MEMBER_LENGTH)
+            file.seek(file.length() - SIZE_MEMBER_LENGTH)
+            file.readFully(member)
+            val header = member.copyOfRange(0, SIZE_MEMBER_HEADER.size)
+            val trailer = member.copyOfRange(SIZE_MEMBER_LENGTH - SIZE_MEMBER_TRAILER.size, SIZE_MEMBER_LENGTH)
+            if (!header.contentEquals(SIZE_MEMBER_HEADER) || !trailer.contentEquals(SIZE_MEMBER_TRAILER)) return null
+            return ByteBuffer.wrap(member).order(ByteOrder.LITTLE_ENDIAN).getLong(SIZE_MEMBER_HEADER.size)
+        }
+    }
+}
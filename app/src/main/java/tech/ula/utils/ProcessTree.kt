@@ -0,0 +1,122 @@
+package tech.ula.utils
+
+import android.system.ErrnoException
+import android.system.Os
+import android.system.OsConstants
+import java.util.ArrayDeque
+
+// A snapshot of the parent of every visible process.
+class ProcessTable(private val parentPids: Map<Long, Long>) {
+
+    private val children: Map<Long, List<Long>> by lazy {
+        val result = HashMap<Long, MutableList<Long>>()
+        for ((pid, parentPid) in parentPids) {
+            result.getOrPut(parentPid) { mutableListOf() }.add(pid)
+        }
+        result
+    }
+
+    fun contains(pid: Long): Boolean {
+        return parentPids.containsKey(pid)
+    }
+
+    fun childrenOf(pid: Long): List<Long> {
+        return children[pid] ?: listOf()
+    }
+
+    // Returns the roots that exist and all of their descendants, with every parent listed before its children.
+    fun descendantsOf(roots: Collection<Long>): List<Long> {
+        val visited = LinkedHashSet<Long>()
+        val pending = ArrayDeque<Long>(roots.filter { contains(it) })
+        while (pending.isNotEmpty()) {
+            val pid = pending.removeFirst()
+            if (!visited.add(pid)) continue
+            pending.addAll(childrenOf(pid))
+        }
+        return visited.toList()
+    }
+
+    companion object {
+        fun read(procFsReader: ProcFsReader): ProcessTable {
+            val sample = ProcessSample()
+            val parentPids = HashMap<Long, Long>()
+            for (pid in procFsReader.listPids()) {
+                if (procFsReader.readStat(pid, sample)) parentPids[pid] = sample.parentPid
+            }
+            return ProcessTable(parentPids)
+        }
+    }
+}
+
+class ProcessTree(
+    private val procFsReader: ProcFsReader = ProcFsReader(),
+    private val cacheMillis: Long = 0,
+    private val clock: () -> Long = { System.nanoTime() / 1_000_000 },
+    private val signaller: (Long, Int) -> Unit = { pid, signal -> Os.kill(pid.toInt(), signal) }
+) {
+
+    private val sample = ProcessSample()
+    private var cachedTable: ProcessTable? = null
+    private var cachedAt = 0L
+
+    // Tables younger than cacheMillis are reused, so repeated queries only walk /proc once.
+    @Synchronized
+    fun getTable(): ProcessTable {
+        val now = clock()
+        cachedTable?.let { if (now - cachedAt < cacheMillis) return it }
+        return ProcessTable.read(procFsReader).also {
+            cachedTable = it
+            cachedAt = now
+        }
+    }
+
+    @Synchronized
+    fun invalidate() {
+        cachedTable = null
+    }
+
+    // Zombies have exited and are only waiting to be reaped, so they do not count as alive.
+    @Synchronized
+    fun isAlive(pid: Long): Boolean {
+        if (pid <= 0) return false
+        return procFsReader.readStat(pid, sample) && sample.state != 'Z'
+    }
+
+    // Stops the trees under the roots until no new children appear, so nothing can fork its way out, then kills them.
+    @Synchronized
+    fun killTree(roots: Collection<Long>): ExecutionResult {
+        val stopped = LinkedHashSet<Long>()
+        val failures = mutableListOf<String>()
+        for (round in 0 until MAX_STOP_ROUNDS) {
+            val table = ProcessTable.read(procFsReader)
+            val newPids = table.descendantsOf(roots.filter { it > 0 }).filter { !stopped.contains(it) }
+            if (newPids.isEmpty()) break
+            for (pid in newPids) {
+                signal(pid, OsConstants.SIGSTOP)?.let { failures.add(it) }
+                stopped.add(pid)
+            }
+        }
+        for (pid in stopped) {
+            signal(pid, OsConstants.SIGKILL)?.let { failures.add(it) }
+        }
+        invalidate()
+
+        return if (failures.isEmpty()) SuccessfulExecution
+        else FailedExecution(failures.joinToString(separator = ", "))
+    }
+
+    // Returns a description of the failure, if any. Processes that exit before the signal arrives are not failures.
+    private fun signal(pid: Long, signal: Int): String? {
+        return try {
+            signaller(pid, signal)
+            null
+        } catch (err: ErrnoException) {
+            if (err.errno == OsConstants.ESRCH) null
+            else "kill($pid, $signal): ${err.message}"
+        }
+    }
+
+    companion object {
+        private const val MAX_STOP_ROUNDS = 8
+    }
+}
@@ -0,0 +1,33 @@
+package tech.ula.utils
+
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+
+// What a filesystem looked like the last time a session was started on it. While it still matches, the
+// session can be started again without checking for updates or verifying assets first.
+data class ReadinessSnapshot(
+    val assetVersion: String,
+    val supportDirectoryHash: String,
+    val isExtracted: Boolean,
+    val timestamp: Long
+) {
+
+    @Throws(IOException::class)
+    fun write(outputStream: OutputStream) {
+        val writer = outputStream.bufferedWriter()
+        writer.write("$timestamp\t$isExtracted\t$supportDirectoryHash\t$assetVersion\n")
+        writer.flush()
+    }
+
+    companion object {
+        @Throws(IOException::class)
+        fun read(inputStream: InputStream): ReadinessSnapshot {
+            val line = inputStream.bufferedReader().readLine() ?: throw IOException("Readiness snapshot is empty")
+            val fields = line.split("\t", limit = 4)
+            if (fields.size != 4) throw IOException("Readiness snapshot is malformed")
+            val timestamp = fields[0].toLongOrNull() ?: throw IOException("Readiness snapshot is malformed")
+            return ReadinessSnapshot(fields[3], fields[2], fields[1].toBoolean(), timestamp)
+        }
+    }
+}
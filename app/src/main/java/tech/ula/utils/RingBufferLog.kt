@@ -0,0 +1,29 @@
+package tech.ula.utils
+
+// Keeps only the most recent lines of output, so noisy commands can be logged without holding all of it
+// or updating anything per line.
+class RingBufferLog(private val capacity: Int) {
+    private val lines = arrayOfNulls<String>(capacity)
+    private var next = 0
+    private var size = 0
+
+    @Synchronized
+    fun add(line: String) {
+        lines[next] = line
+        next = (next + 1) % capacity
+        if (size < capacity) size++
+    }
+
+    // Oldest first.
+    @Synchronized
+    fun getLines(): List<String> {
+        return (0 until size).map { lines[(next - size + it + capacity) % capacity]!! }
+    }
+
+    @Synchronized
+    fun clear() {
+        lines.fill(null)
+        next = 0
+        size = 0
+    }
+}
@@ -0,0 +1,268 @@
+package tech.ula.utils
+
+import android.system.Os
+import android.system.OsConstants
+import androidx.lifecycle.LiveData
+import androidx.lifecycle.MutableLiveData
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.isActive
+import kotlinx.coroutines.launch
+import java.io.File
+import java.io.FileInputStream
+import java.io.IOException
+
+data class SessionResourceUsage(
+    val cpuPercent: Float,
+    val rssBytes: Long,
+    val readBytesPerSecond: Long,
+    val writeBytesPerSecond: Long
+)
+
+// Reused between reads so that sampling does not allocate per process.
+class ProcessSample {
+    var state = ' '
+    var parentPid = 0L
+    var cpuTicks = 0L
+    var rssPages = 0L
+    var readBytes = 0L
+    var writeBytes = 0L
+}
+
+class ProcFsReader(private val procDir: File = File("/proc")) {
+    private val buffer = ByteArray(4096)
+    private var length = 0
+
+    fun listPids(): List<Long> {
+        val names = procDir.list() ?: return listOf()
+        return names.mapNotNull { it.toLongOrNull() }
+    }
+
+    // Fills state, parentPid, and cpuTicks (utime + stime) from /proc/<pid>/stat.
+    fun readStat(pid: Long, sample: ProcessSample): Boolean {
+        if (!readFile(pid, "stat")) return false
+        // The command name may contain spaces and parentheses, so fields are counted from its closing parenthesis.
+        var position = length - 1
+        while (position >= 0 && buffer[position] != ')'.toByte()) position--
+        if (position < 0) return false
+        position += 2
+
+        // Fields after the name: state, ppid, pgrp, session, tty_nr, tpgid, flags, minflt, cminflt, majflt,
+        // cmajflt, utime, stime.
+        var field = 0
+        var utime = 0L
+        while (position < length && field <= 12) {
+            val start = position
+            while (position < length && buffer[position] != ' '.toByte()) position++
+            when (field) {
+                0 -> sample.state = buffer[start].toChar()
+                1 -> sample.parentPid = parseLong(start, position)
+                11 -> utime = parseLong(start, position)
+                12 -> sample.cpuTicks = utime + parseLong(start, position)
+            }
+            field++
+            position++
+        }
+        return field > 12
+    }
+
+    // Fills rssPages from /proc/<pid>/statm.
+    fun readStatm(pid: Long, sample: ProcessSample): Boolean {
+        if (!readFile(pid, "statm")) return false
+        var position = 0
+        while (position < length && buffer[position] != ' '.toByte()) position++
+        val start = ++position
+        while (position < length && buffer[position] != ' '.toByte()) position++
+        sample.rssPages = parseLong(start, position)
+        return true
+    }
+
+    // Fills readBytes and writeBytes from /proc/<pid>/io. Both stay 0 if the kernel does not expose I/O accounting.
+    fun readIo(pid: Long, sample: ProcessSample): Boolean {
+        sample.readBytes = 0
+        sample.writeBytes = 0
+        if (!readFile(pid, "io")) return false
+        sample.readBytes = findValue(READ_BYTES_KEY)
+        sample.writeBytes = findValue(WRITE_BYTES_KEY)
+        return true
+    }
+
+    // Returns how far the first visible process with the file open has read into it, or -1 if none has it open.
+    fun findOpenFileOffset(file: File): Long {
+        val target = file.canonicalPath
+        for (pid in listPids()) {
+            val descriptors = File(procDir, "$pid/fd").listFiles() ?: continue
+            for (descriptor in descriptors) {
+                val descriptorTarget = try {
+                    descriptor.canonicalPath
+                } catch (err: IOException) {
+                    continue
+                }
+                if (descriptorTarget != target || !readFile(pid, "fdinfo/${descriptor.name}")) continue
+                return findValue(POSITION_KEY)
+            }
+        }
+        return -1
+    }
+
+    private fun readFile(pid: Long, name: String): Boolean {
+        return try {
+            FileInputStream(File(procDir, "$pid/$name")).use { stream ->
+                length = 0
+                while (length < buffer.size) {
+                    val read = stream.read(buffer, length, buffer.size - length)
+                    if (read <= 0) break
+                    length += read
+                }
+            }
+            true
+        } catch (err: IOException) {
+            // The process exited or belongs to another user.
+            false
+        }
+    }
+
+    // Finds a line starting with the key, which includes its trailing ": ", and parses its value.
+    private fun findValue(key: ByteArray): Long {
+        var lineStart = 0
+        while (lineStart < length) {
+            var matches = lineStart + key.size <= length
+            var i = 0
+            while (matches && i < key.size) {
+                if (buffer[lineStart + i] != key[i]) matches = false
+                i++
+            }
+            var lineEnd = lineStart
+            while (lineEnd < length && buffer[lineEnd] != '\n'.toByte()) lineEnd++
+            if (matches) return parseLong(lineStart + key.size, lineEnd)
+            lineStart = lineEnd + 1
+        }
+        return 0
+    }
+
+    private fun parseLong(start: Int, end: Int): Long {
+        var value = 0L
+        for (i in start until end) {
+            val digit = buffer[i] - '0'.toByte()
+            if (digit < 0 || digit > 9) break
+            value = value * 10 + digit
+        }
+        return value
+    }
+
+    companion object {
+        private val READ_BYTES_KEY = "read_bytes: ".toByteArray()
+        private val WRITE_BYTES_KEY = "write_bytes: ".toByteArray()
+        private val POSITION_KEY = "pos:\t".toByteArray()
+    }
+}
+
+class SessionResourceMonitor(
+    private val procFsReader: ProcFsReader = ProcFsReader(),
+    private val processTree: ProcessTree = ProcessTree(procFsReader),
+    var sampleIntervalMillis: Long = 2000,
+    private val ticksPerSecond: Long = Os.sysconf(OsConstants._SC_CLK_TCK),
+    private val pageSize: Long = Os.sysconf(OsConstants._SC_PAGESIZE),
+    private val coroutineScope: CoroutineScope = CoroutineScope(Dispatchers.IO),
+    private val nanoClock: () -> Long = { System.nanoTime() }
+) {
+
+    private class TrackedSession(val rootPids: () -> List<Long>) {
+        var lastSampleNanos = -1L
+        var lastCpuTicks = 0L
+        var lastReadBytes = 0L
+        var lastWriteBytes = 0L
+    }
+
+    private val trackedSessions = mutableMapOf<Long, TrackedSession>()
+    private val usage = MutableLiveData<Map<Long, SessionResourceUsage>>()
+    private var samplingJob: Job? = null
+
+    private val sample = ProcessSample()
+
+    fun getUsage(): LiveData<Map<Long, SessionResourceUsage>> {
+        return usage
+    }
+
+    // Root pids are resolved on every sample since servers write their pid files after starting.
+    @Synchronized
+    fun track(sessionId: Long, rootPids: () -> List<Long>) {
+        trackedSessions[sessionId] = TrackedSession(rootPids)
+        if (samplingJob?.isActive != true) {
+            samplingJob = coroutineScope.launch {
+                while (isActive) {
+                    delay(sampleIntervalMillis)
+                    sampleAll()
+                }
+            }
+        }
+    }
+
+    @Synchronized
+    fun untrack(sessionId: Long) {
+        trackedSessions.remove(sessionId)
+        if (trackedSessions.isEmpty()) {
+            samplingJob?.cancel()
+            samplingJob = null
+        }
+        usage.postValue(usage.value.orEmpty() - sessionId)
+    }
+
+    // Exposed for testing purposes.
+    @Synchronized
+    internal fun sampleAll() {
+        val table = processTree.getTable()
+        val now = nanoClock()
+        val results = mutableMapOf<Long, SessionResourceUsage>()
+        for ((sessionId, session) in trackedSessions) {
+            val result = sampleSession(session, table, now) ?: continue
+            results[sessionId] = result
+        }
+        usage.postValue(results)
+    }
+
+    private fun sampleSession(session: TrackedSession, table: ProcessTable, now: Long): SessionResourceUsage? {
+        var cpuTicks = 0L
+        var rssPages = 0L
+        var readBytes = 0L
+        var writeBytes = 0L
+
+        for (pid in table.descendantsOf(session.rootPids())) {
+            if (!procFsReader.readStat(pid, sample)) continue
+            cpuTicks += sample.cpuTicks
+            if (procFsReader.readStatm(pid, sample)) rssPages += sample.rssPages
+            if (procFsReader.readIo(pid, sample)) {
+                readBytes += sample.readBytes
+                writeBytes += sample.writeBytes
+            }
+        }
+
+        val previousSampleNanos = session.lastSampleNanos
+        val elapsedSeconds = (now - previousSampleNanos) / 1_000_000_000.0
+        // Processes that exited since the last sample take their counters with them, so deltas never go negative.
+        val result = if (previousSampleNanos < 0 || elapsedSeconds <= 0) null else SessionResourceUsage(
+                cpuPercent = ((cpuTicks - session.lastCpuTicks).coerceAtLeast(0) * 100.0 / ticksPerSecond / elapsedSeconds).toFloat(),
+                rssBytes = rssPages * pageSize,
+                readBytesPerSecond = ((readBytes - session.lastReadBytes).coerceAtLeast(0) / elapsedSeconds).toLong(),
+                writeBytesPerSecond = ((writeBytes - session.lastWriteBytes).coerceAtLeast(0) / elapsedSeconds).toLong()
+        )
+
+        session.lastSampleNanos = now
+        session.lastCpuTicks = cpuTicks
+        session.lastReadBytes = readBytes
+        session.lastWriteBytes = writeBytes
+        return result
+    }
+
+    companion object {
+        @Volatile
+        private var INSTANCE: SessionResourceMonitor? = null
+
+        fun getInstance(): SessionResourceMonitor =
+                INSTANCE ?: synchronized(this) {
+                    INSTANCE ?: SessionResourceMonitor().also { INSTANCE = it }
+                }
+    }
+}
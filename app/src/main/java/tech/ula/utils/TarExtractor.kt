@@ -0,0 +1,103 @@
+package tech.ula.utils
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream
+import java.io.BufferedInputStream
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.InputStream
+import java.util.zip.GZIPInputStream
+
+// Extracts tar and tar.gz archives in a single streaming pass, so archives never need to be staged or
+// decompressed to disk first.
+class TarExtractor(
+    private val symlinker: Symlinker = Symlinker(),
+    private val permissionSetter: PermissionSetter = PermissionSetter()
+) {
+
+    private val buffer = ByteArray(BUFFER_SIZE)
+
+    // Extracted entries are readable, writable and executable by everyone, which is what the support
+    // scripts and binaries expect.
+    @Synchronized
+    @Throws(IOException::class)
+    fun extract(archive: File, destination: File) {
+        destination.mkdirs()
+        openArchive(archive).use { tarStream ->
+            var entry = tarStream.nextTarEntry
+            while (entry != null) {
+                extractEntry(tarStream, entry, resolveInside(destination, entry.name), destination)
+                entry = tarStream.nextTarEntry
+            }
+        }
+    }
+
+    // Names and hard link targets are both checked, so an archive cannot write or read outside of the destination.
+    @Throws(IOException::class)
+    private fun resolveInside(destination: File, name: String): File {
+        val destinationPath = destination.canonicalPath + File.separator
+        val target = File(destination, name)
+        if (!(target.canonicalPath + File.separator).startsWith(destinationPath)) {
+            throw IOException("Archive entry $name is outside of ${destination.path}")
+        }
+        return target
+    }
+
+    private fun openArchive(archive: File): TarArchiveInputStream {
+        val fileStream = BufferedInputStream(FileInputStream(archive), BUFFER_SIZE)
+        return try {
+            val decompressedStream: InputStream = if (isGzipped(fileStream)) GZIPInputStream(fileStream, BUFFER_SIZE) else fileStream
+            TarArchiveInputStream(decompressedStream)
+        } catch (err: IOException) {
+            fileStream.close()
+            throw err
+        }
+    }
+
+    // Archives are recognized by their header rather than their name, since downloads are named by version.
+    private fun isGzipped(stream: BufferedInputStream): Boolean {
+        stream.mark(2)
+        val first = stream.read()
+        val second = stream.read()
+        stream.reset()
+        return first == 0x1f && second == 0x8b
+    }
+
+    private fun extractEntry(tarStream: TarArchiveInputStream, entry: TarArchiveEntry, target: File, destination: File) {
+        when {
+            entry.isDirectory -> {
+                target.mkdirs()
+                permissionSetter.makeUsable(target)
+            }
+            entry.isSymbolicLink -> {
+                target.parentFile?.mkdirs()
+                target.delete()
+                symlinker.createSymlink(entry.linkName, target.path)
+            }
+            entry.isLink -> {
+                target.parentFile?.mkdirs()
+                resolveInside(destination, entry.linkName).copyTo(target, overwrite = true)
+                permissionSetter.makeUsable(target)
+            }
+            entry.isFile -> {
+                target.parentFile?.mkdirs()
+                // Replace rather than truncate, in case the old file is a symlink or is being executed.
+                target.delete()
+                FileOutputStream(target).use { output ->
+                    var read = tarStream.read(buffer)
+                    while (read != -1) {
+                        output.write(buffer, 0, read)
+                        read = tarStream.read(buffer)
+                    }
+                }
+                permissionSetter.makeUsable(target)
+            }
+        }
+    }
+
+    companion object {
+        private const val BUFFER_SIZE = 64 * 1024
+    }
+}
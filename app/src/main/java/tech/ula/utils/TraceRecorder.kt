@@ -0,0 +1,63 @@
+package tech.ula.utils
+
+import com.squareup.moshi.JsonWriter
+import okio.Okio
+import java.io.IOException
+import java.io.OutputStream
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicReferenceArray
+
+// Keeps the most recent spans in a fixed size ring. Recording claims a slot with a single atomic increment
+// and overwrites whatever was there, so it never blocks or allocates beyond the span on traced threads.
+class TraceRecorder(private val capacity: Int = DEFAULT_CAPACITY) {
+    private val spans = AtomicReferenceArray<TraceSpan>(capacity)
+    private val nextIndex = AtomicLong()
+
+    fun record(span: TraceSpan) {
+        val index = nextIndex.getAndIncrement()
+        spans.set((index % capacity).toInt(), span)
+    }
+
+    // In the order they started.
+    fun getSpans(): List<TraceSpan> {
+        return (0 until capacity).mapNotNull { spans.get(it) }.sortedBy { it.startNanos }
+    }
+
+    fun clear() {
+        for (index in 0 until capacity) spans.set(index, null)
+    }
+
+    // Writes the spans in the Chrome trace event format, which chrome://tracing and Perfetto open. Times
+    // are in microseconds from the first span.
+    @Throws(IOException::class)
+    fun export(outputStream: OutputStream) {
+        val spans = getSpans()
+        val originNanos = spans.firstOrNull()?.startNanos ?: 0
+        val writer = JsonWriter.of(Okio.buffer(Okio.sink(outputStream)))
+        writer.beginObject()
+        writer.name("traceEvents").beginArray()
+        for (span in spans) {
+            writer.beginObject()
+            writer.name("name").value(span.name)
+            writer.name("cat").value(span.category)
+            writer.name("ph").value("X")
+            writer.name("ts").value(TimeUnit.NANOSECONDS.toMicros(span.startNanos - originNanos))
+            writer.name("dur").value(TimeUnit.NANOSECONDS.toMicros(span.endNanos - span.startNanos))
+            writer.name("pid").value(0L)
+            writer.name("tid").value(span.threadId)
+            writer.endObject()
+        }
+        writer.endArray()
+        writer.name("displayTimeUnit").value("ms")
+        writer.endObject()
+        writer.flush()
+    }
+
+    companion object {
+        private const val DEFAULT_CAPACITY = 4096
+
+        // Shared by every logger, so spans from across the app end up in one trace.
+        val default by lazy { TraceRecorder() }
+    }
+}
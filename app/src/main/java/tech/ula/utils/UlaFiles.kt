@@ -2,14 +2,17 @@ package tech.ula.utils
 
 import android.content.Context
 import android.os.Build
+import android.system.ErrnoException
 import android.system.Os
 import java.io.File
+import java.io.IOException
 import java.lang.NullPointerException
 
 class UlaFiles(
     context: Context,
     libDirPath: String,
-    private val symlinker: Symlinker = Symlinker()
+    private val symlinker: Symlinker = Symlinker(),
+    private val permissionSetter: PermissionSetter = PermissionSetter()
 ) {
 
     val filesDir: File = context.filesDir
@@ -34,16 +37,14 @@ class UlaFiles(
     }
 
     fun makePermissionsUsable(containingDirectoryPath: String, filename: String) {
-        val commandToRun = arrayListOf("chmod", "0777", filename)
+        makePermissionsUsable(containingDirectoryPath, listOf(filename))
+    }
 
+    fun makePermissionsUsable(containingDirectoryPath: String, filenames: List<String>) {
         val containingDirectory = File(containingDirectoryPath)
         containingDirectory.mkdirs()
 
-        val pb = ProcessBuilder(commandToRun)
-        pb.directory(containingDirectory)
-
-        val process = pb.start()
-        process.waitFor()
+        permissionSetter.makeUsable(containingDirectory, filenames)
     }
 
     private fun resolveSdCardScopedStorage(context: Context): File? {
@@ -109,4 +110,40 @@ class Symlinker {
     fun createSymlink(targetPath: String, linkPath: String) {
         Os.symlink(targetPath, linkPath)
     }
-}
\ No newline at end of file
+
+    // Returns null if the path is not a symlink.
+    fun readSymlink(path: String): String? {
+        return try {
+            Os.readlink(path)
+        } catch (err: ErrnoException) {
+            null
+        }
+    }
+}
+
+// Errors are rethrown as IOExceptions, so callers can fall back to copying.
+@Throws(IOException::class)
+fun createHardLink(sourcePath: String, targetPath: String) {
+    try {
+        Os.link(sourcePath, targetPath)
+    } catch (err: ErrnoException) {
+        throw IOException(err)
+    }
+}
+
+// Changes modes in-process, instead of forking a chmod for every file.
+class PermissionSetter(private val chmod: (String, Int) -> Unit = { path, mode -> Os.chmod(path, mode) }) {
+    fun makeUsable(file: File) {
+        chmod(file.path, USABLE_MODE)
+    }
+
+    fun makeUsable(directory: File, filenames: List<String>) {
+        for (filename in filenames) {
+            chmod(File(directory, filename).path, USABLE_MODE)
+        }
+    }
+
+    companion object {
+        const val USABLE_MODE = 511 // 0777
+    }
+}
@@ -67,16 +67,19 @@ class AssetPreferences(context: Context) {
         }
     }
 
+    // Entries are the asset name, followed by its hash if the manifest had one.
     fun getCachedAssetList(assetType: String): List<Asset> {
         val entries = prefs.getStringSet(assetType, setOf()) ?: setOf()
         return entries.map { entry ->
-            Asset(entry, assetType)
+            val name = entry.substringBefore(' ')
+            val sha256 = if (entry.contains(' ')) entry.substringAfter(' ') else null
+            Asset(name, assetType, sha256 = sha256)
         }
     }
 
     fun setAssetList(assetType: String, assetList: List<Asset>) {
         val entries = assetList.map {
-            it.name
+            if (it.sha256 != null) "${it.name} ${it.sha256}" else it.name
         }.toSet()
         with(prefs.edit()) {
             putStringSet(assetType, entries)
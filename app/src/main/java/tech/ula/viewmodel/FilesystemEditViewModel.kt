@@ -11,6 +11,7 @@ import tech.ula.model.repositories.UlaDatabase
 import tech.ula.model.entities.Filesystem
 import java.io.File
 import java.io.FileOutputStream
+import java.io.IOException
 import java.lang.Exception
 import java.util.Locale
 import kotlin.coroutines.CoroutineContext
@@ -33,6 +34,8 @@ class FilesystemEditViewModel(private val ulaDatabase: UlaDatabase) : ViewModel(
     private val importStatusLiveData = MutableLiveData<FilesystemImportStatus>()
 
     var backupUri: Uri? = null
+    // Picked along with the backup when restoring increments. Restore works out the order itself.
+    var incrementUris: List<Uri> = listOf()
 
     fun getImportStatusLiveData(): LiveData<FilesystemImportStatus> {
         return importStatusLiveData
@@ -78,12 +81,24 @@ class FilesystemEditViewModel(private val ulaDatabase: UlaDatabase) : ViewModel(
                         input.copyTo(fileOut)
                     }
                 }
+
+                incrementUris.forEachIndexed { index, incrementUri ->
+                    val incrementDestination = File("${filesystemSupportDir.absolutePath}/rootfs.tar.gz.${index + 1}")
+                    val incrementStream = contentResolver.openInputStream(incrementUri)
+                            ?: throw IOException("Could not open input stream for $incrementUri")
+                    incrementStream.use { input ->
+                        FileOutputStream(incrementDestination).use { fileOut ->
+                            input.copyTo(fileOut)
+                        }
+                    }
+                }
             } catch (e: Exception) {
                 ulaDatabase.filesystemDao().deleteFilesystemById(id)
                 importStatusLiveData.postValue(ImportFailure(e.toString()))
             }
 
             backupUri = null
+            incrementUris = listOf()
             importStatusLiveData.postValue(ImportSuccess)
         }
     }
@@ -12,24 +12,26 @@ import tech.ula.model.daos.FilesystemDao
 import tech.ula.model.daos.SessionDao
 import tech.ula.model.entities.Filesystem
 import tech.ula.utils.FilesystemManager
-import java.io.File
 import java.lang.Exception
 import kotlin.coroutines.CoroutineContext
 import tech.ula.model.entities.Session
-import tech.ula.utils.ExecutionResult
 import tech.ula.utils.FailedExecution
 import java.io.IOException
+import java.text.SimpleDateFormat
+import java.util.Date
+import java.util.Locale
 
 sealed class FilesystemListViewState
 
 sealed class FilesystemExportState : FilesystemListViewState() {
-    data class Update(val details: String) : FilesystemExportState()
+    data class Update(val details: String, val bytesExported: Long = -1) : FilesystemExportState()
     object Success : FilesystemExportState()
     data class Failure(val reason: Int, val details: String = "") : FilesystemExportState()
 }
 
 sealed class FilesystemDeleteState : FilesystemListViewState() {
     object InProgress : FilesystemDeleteState()
+    data class Update(val entriesDeleted: Long) : FilesystemDeleteState()
     object Success : FilesystemDeleteState()
     object Failure : FilesystemDeleteState()
 }
@@ -50,15 +52,31 @@ class FilesystemListViewModel(
     }
 
     private val viewState = MutableLiveData<FilesystemListViewState>()
+    @Volatile private var exportDetails = ""
+    @Volatile private var bytesExported = -1L
     private val exportUpdateListener: (String) -> Unit = { details ->
-        viewState.postValue(FilesystemExportState.Update(details))
+        exportDetails = details
+        viewState.postValue(FilesystemExportState.Update(details, bytesExported))
+    }
+    // The listener is called for every buffer written, so updates are only posted once per MiB.
+    private val exportProgressListener: (Long) -> Unit = { bytesWritten ->
+        val shouldPost = bytesWritten / BYTES_PER_UPDATE != bytesExported / BYTES_PER_UPDATE
+        bytesExported = bytesWritten
+        if (shouldPost) viewState.postValue(FilesystemExportState.Update(exportDetails, bytesWritten))
+    }
+    // Each count is reported once, from whichever thread deleted the entry, so updates are posted every
+    // ENTRIES_PER_UPDATE entries.
+    private val deleteProgressListener: (Long) -> Unit = { entriesDeleted ->
+        if (entriesDeleted % ENTRIES_PER_UPDATE == 0L) viewState.postValue(FilesystemDeleteState.Update(entriesDeleted))
     }
 
     private val unselectedFilesystem = Filesystem(id = -1, name = "UNSELECTED")
     private var filesystemToBackup = unselectedFilesystem
+    private var exportFullBackup = false
 
-    fun setFilesystemToBackup(filesystem: Filesystem) {
+    fun setFilesystemToBackup(filesystem: Filesystem, fullBackup: Boolean = false) {
         filesystemToBackup = filesystem
+        exportFullBackup = fullBackup
     }
 
     fun getViewState(): LiveData<FilesystemListViewState> {
@@ -86,7 +104,7 @@ class FilesystemListViewModel(
             viewState.postValue(FilesystemDeleteState.InProgress)
 
             try {
-                filesystemManager.deleteFilesystem(id)
+                filesystemManager.deleteFilesystem(id, deleteProgressListener)
             } catch (err: IOException) {
                 viewState.postValue(FilesystemDeleteState.Failure)
                 return@withContext
@@ -96,12 +114,16 @@ class FilesystemListViewModel(
         }
     }
 
-    fun getFilesystemBackupName(filesystem: Filesystem): String {
+    // Increments only restore on top of the backups before them, so they are named apart and dated.
+    fun getFilesystemBackupName(filesystem: Filesystem, fullBackup: Boolean = false, date: Date = Date()): String {
+        if (!fullBackup && filesystemManager.nextExportIsIncrement(filesystem)) {
+            val timestamp = SimpleDateFormat("yyyyMMdd-HHmmss", Locale.ENGLISH).format(date)
+            return "${filesystem.name}-${filesystem.distributionType}-increment-$timestamp-rootfs.tar.gz"
+        }
         return "${filesystem.name}-${filesystem.distributionType}-rootfs.tar.gz"
     }
 
     fun startExport(
-        filesDir: File,
         publicExternalUri: Uri,
         contentResolver: ContentResolver,
         coroutineScope: CoroutineScope = this
@@ -116,29 +138,25 @@ class FilesystemListViewModel(
                 return@launch
             }
             else -> {
-                compressFilesystemAndExportToStorage(filesDir, publicExternalUri, contentResolver)
+                compressFilesystemAndExportToStorage(publicExternalUri, contentResolver)
             }
         }
     }
 
     private suspend fun compressFilesystemAndExportToStorage(
-        filesDir: File,
         publicExternalUri: Uri,
         contentResolver: ContentResolver
     ) {
         withContext(Dispatchers.IO) {
+            exportDetails = ""
+            bytesExported = -1
             viewState.postValue(FilesystemExportState.Update("Starting export"))
-            val tempBackupName = getFilesystemBackupName(filesystemToBackup)
-            val localBackup = File(filesDir, tempBackupName)
 
-            val result = filesystemManager.compressFilesystem(filesystemToBackup, localBackup, exportUpdateListener)
-            if (localBackupFailed(localBackup, result)) return@withContext
-
-            try {
-                localBackup.inputStream().use { inputStream ->
-                    contentResolver.openOutputStream(publicExternalUri, "w")?.use { outputStream ->
-                        inputStream.copyTo(outputStream)
-                    }
+            val result = try {
+                val outputStream = contentResolver.openOutputStream(publicExternalUri, "w")
+                        ?: throw IOException("Could not open $publicExternalUri")
+                outputStream.use {
+                    filesystemManager.exportFilesystem(filesystemToBackup, it, exportFullBackup, exportUpdateListener, exportProgressListener)
                 }
             } catch (err: Exception) {
                 filesystemToBackup = unselectedFilesystem
@@ -147,25 +165,19 @@ class FilesystemListViewModel(
             }
 
             filesystemToBackup = unselectedFilesystem
-            localBackup.delete()
-            viewState.postValue(FilesystemExportState.Success)
+            when {
+                result is FailedExecution ->
+                    viewState.postValue(FilesystemExportState.Failure(R.string.error_export_execution_failure, result.reason))
+                bytesExported <= 0 ->
+                    viewState.postValue(FilesystemExportState.Failure(R.string.error_export_local_failure))
+                else -> viewState.postValue(FilesystemExportState.Success)
+            }
         }
     }
 
-    private fun localBackupFailed(localBackup: File, result: ExecutionResult): Boolean {
-        if (result is FailedExecution) {
-            filesystemToBackup = unselectedFilesystem
-            viewState.postValue(FilesystemExportState.Failure(R.string.error_export_execution_failure, result.reason))
-            return true
-        }
-
-        if (!localBackup.exists() || localBackup.length() <= 0) {
-            filesystemToBackup = unselectedFilesystem
-            viewState.postValue(FilesystemExportState.Failure(R.string.error_export_local_failure))
-            return true
-        }
-
-        return false
+    companion object {
+        private const val BYTES_PER_UPDATE = 1024L * 1024
+        private const val ENTRIES_PER_UPDATE = 1000L
     }
 }
 
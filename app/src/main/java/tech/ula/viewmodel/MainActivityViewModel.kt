@@ -15,7 +15,7 @@ import tech.ula.model.entities.Session
 import tech.ula.model.repositories.DownloadMetadata
 import tech.ula.model.state.* // ktlint-disable no-wildcard-imports
 import tech.ula.utils.* // ktlint-disable no-wildcard-imports
-import java.io.FileNotFoundException
+import java.io.IOException
 import kotlin.coroutines.CoroutineContext
 
 class MainActivityViewModel(
@@ -99,6 +99,10 @@ class MainActivityViewModel(
         submitSessionStartupEvent(SyncDownloadState)
     }
 
+    fun pollDownloadProgress() {
+        submitSessionStartupEvent(PollDownloadProgress)
+    }
+
     fun waitForPermissions(appToContinue: App = unselectedApp, sessionToContinue: Session = unselectedSession) {
         resetStartupState()
         lastSelectedApp = appToContinue
@@ -180,10 +184,8 @@ class MainActivityViewModel(
         try {
             assetFileClearer.clearAllSupportAssets()
             state.postValue(ProgressBarOperationComplete)
-        } catch (err: FileNotFoundException) {
+        } catch (err: IOException) {
             postIllegalStateWithLog(FailedToClearSupportFiles)
-        } catch (err: IllegalStateException) {
-            postIllegalStateWithLog(BusyboxMissing)
         }
     }
 
@@ -260,7 +262,14 @@ class MainActivityViewModel(
                 lastSelectedFilesystem = newState.filesystem
                 state.postValue(StartingSetup)
                 doTransitionIfRequirementsAreSelected {
-                    submitSessionStartupEvent(RetrieveAssetLists(lastSelectedFilesystem))
+                    submitSessionStartupEvent(PlanSessionStartup(lastSelectedFilesystem))
+                }
+            }
+            is SessionIsReadyToLaunch -> {
+                lastSelectedSession = newState.session
+                lastSelectedFilesystem = newState.filesystem
+                doTransitionIfRequirementsAreSelected {
+                    state.postValue(SessionCanBeStarted(lastSelectedSession))
                 }
             }
             is AssetRetrievalState -> {
@@ -318,7 +327,9 @@ class MainActivityViewModel(
 
     private fun handleDownloadingAssetsState(newState: DownloadingAssetsState) {
         return when (newState) {
-            is DownloadingAssets -> state.postValue(DownloadProgress(newState.numCompleted, newState.numTotal))
+            is DownloadingAssets -> {
+                state.postValue(DownloadProgress(newState.numCompleted, newState.numTotal, newState.bytesDownloaded, newState.totalBytes))
+            }
             is DownloadsHaveSucceeded -> submitSessionStartupEvent(CopyDownloadsToLocalStorage)
             is DownloadsHaveFailed -> postIllegalStateWithLog(DownloadsDidNotCompleteSuccessfully(newState.reason))
             is AttemptedCacheAccessWhileEmpty -> {
@@ -346,7 +357,7 @@ class MainActivityViewModel(
         return when (newState) {
             is VerifyingFilesystemAssets -> state.postValue(VerifyingFilesystem)
             is FilesystemAssetVerificationSucceeded -> { doTransitionIfRequirementsAreSelected {
-                    submitSessionStartupEvent(VerifyAvailableStorage)
+                    submitSessionStartupEvent(VerifyAvailableStorage(lastSelectedFilesystem))
             } }
             is AssetsAreMissingFromSupportDirectories -> postIllegalStateWithLog(AssetsHaveNotBeenDownloaded)
             is FilesystemAssetCopyFailed -> postIllegalStateWithLog(FailedToCopyAssetsToFilesystem)
@@ -366,7 +377,9 @@ class MainActivityViewModel(
 
     private fun handleExtractionState(newState: ExtractionState) {
         return when (newState) {
-            is ExtractingFilesystem -> state.postValue(FilesystemExtractionStep(newState.extractionTarget))
+            is ExtractingFilesystem -> {
+                state.postValue(FilesystemExtractionStep(newState.bytesExtracted, newState.totalBytes))
+            }
             is ExtractionHasCompletedSuccessfully -> { doTransitionIfRequirementsAreSelected {
                 state.postValue(SessionCanBeStarted(lastSelectedSession))
             } }
@@ -444,7 +457,6 @@ object FailedToCopyAssetsToFilesystem : IllegalState()
 data class FailedToExtractFilesystem(val reason: String) : IllegalState()
 object FailedToClearSupportFiles : IllegalState()
 object InsufficientAvailableStorage : IllegalState()
-object BusyboxMissing : IllegalState()
 
 sealed class UserInputRequiredState : State()
 object FilesystemCredentialsRequired : UserInputRequiredState()
@@ -457,11 +469,19 @@ sealed class ProgressBarUpdateState : State()
 object StartingSetup : ProgressBarUpdateState()
 object FetchingAssetLists : ProgressBarUpdateState()
 object CheckingForAssetsUpdates : ProgressBarUpdateState()
-data class DownloadProgress(val numComplete: Int, val numTotal: Int) : ProgressBarUpdateState()
+data class DownloadProgress(
+    val numComplete: Int,
+    val numTotal: Int,
+    val bytesDownloaded: Long = 0,
+    val totalBytes: Long = -1
+) : ProgressBarUpdateState()
 object CopyingDownloads : ProgressBarUpdateState()
 object VerifyingFilesystem : ProgressBarUpdateState()
 object VerifyingAvailableStorage : ProgressBarUpdateState()
-data class FilesystemExtractionStep(val extractionTarget: String) : ProgressBarUpdateState()
+data class FilesystemExtractionStep(
+    val bytesExtracted: Long = 0,
+    val totalBytes: Long = -1
+) : ProgressBarUpdateState()
 object ClearingSupportFiles : ProgressBarUpdateState()
 object ProgressBarOperationComplete : ProgressBarUpdateState()
 
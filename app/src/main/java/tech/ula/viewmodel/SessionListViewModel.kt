@@ -11,7 +11,8 @@ import tech.ula.model.entities.Session
 import tech.ula.utils.* // ktlint-disable no-wildcard-imports
 
 class SessionListViewModel(
-    private val ulaDatabase: UlaDatabase
+    private val ulaDatabase: UlaDatabase,
+    private val sessionResourceMonitor: SessionResourceMonitor = SessionResourceMonitor.getInstance()
 ) : ViewModel() {
 
     private val sessions: LiveData<List<Session>> by lazy {
@@ -26,6 +27,10 @@ class SessionListViewModel(
         return zipLiveData(sessions, filesystems)
     }
 
+    fun getSessionResourceUsage(): LiveData<Map<Long, SessionResourceUsage>> {
+        return sessionResourceMonitor.getUsage()
+    }
+
     fun deleteSessionById(id: Long) {
         GlobalScope.launch { ulaDatabase.sessionDao().deleteSessionById(id) }
     }
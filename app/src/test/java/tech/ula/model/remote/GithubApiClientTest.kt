@@ -5,18 +5,25 @@ import com.nhaarman.mockitokotlin2.verify
 import com.nhaarman.mockitokotlin2.whenever
 import com.squareup.moshi.Moshi
 import kotlinx.coroutines.runBlocking
+import okhttp3.Cache
+import okhttp3.OkHttpClient
 import okhttp3.mockwebserver.MockResponse
 import okhttp3.mockwebserver.MockWebServer
 import org.junit.After
 import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
 import org.junit.Before
 import org.junit.Rule
 import org.junit.Test
+import org.junit.rules.TemporaryFolder
 import org.junit.runner.RunWith
 import org.mockito.Mock
 import org.mockito.junit.MockitoJUnitRunner
 import tech.ula.utils.Logger
 import tech.ula.utils.UlaFiles
+import tech.ula.utils.withMetadataCache
 import java.io.IOException
 
 @RunWith(MockitoJUnitRunner::class)
@@ -24,6 +31,8 @@ class GithubApiClientTest {
 
     @get:Rule val server = MockWebServer()
 
+    @get:Rule val tempFolder = TemporaryFolder()
+
     @Mock lateinit var mockUlaFiles: UlaFiles
 
     @Mock lateinit var mockUrlProvider: UrlProvider
@@ -50,13 +59,15 @@ class GithubApiClientTest {
     private val testAssetUrl = "assetUrl"
     private val testAssetName = "$testArch-$testAssetType"
     private val testAssetDownloadUrl = "assetDownloadUrl"
+    private val testAssetSha256 = "0123456789abcdef"
 
     private val testAssetsJson = """
     [
         {
             "url": "$testAssetUrl",
             "name": "$testAssetName",
-            "browser_download_url": "$testAssetDownloadUrl"
+            "browser_download_url": "$testAssetDownloadUrl",
+            "digest": "sha256:$testAssetSha256"
         },
         {
             "url": "$testAssetsTxtUrl",
@@ -247,4 +258,64 @@ class GithubApiClientTest {
         assertEquals(testAssetDownloadUrl, assetEndpointResult)
         verify(mockUrlProvider, times(1)).getBaseUrl()
     }
-}
\ No newline at end of file
+
+    @Test
+    fun `getAssetSha256 parses asset digests`() {
+        val response = MockResponse()
+        response.setBody(json)
+        server.enqueue(response)
+        stubBaseUrl()
+
+        val result = runBlocking { githubApiClient.getAssetSha256(testAssetType, testRepo) }
+
+        assertEquals(testAssetSha256, result)
+    }
+
+    @Test
+    fun `getAssetSha256 returns null for assets without digests`() {
+        val response = MockResponse()
+        response.setBody(json)
+        server.enqueue(response)
+        stubBaseUrl()
+
+        val result = runBlocking { githubApiClient.getAssetSha256("assets.txt", testRepo) }
+
+        assertNull(result)
+    }
+
+    @Test
+    fun `releaseHasAsset checks the assets published with the release`() {
+        val response = MockResponse()
+        response.setBody(json)
+        server.enqueue(response)
+        stubBaseUrl()
+
+        val published = runBlocking { githubApiClient.releaseHasAsset(testAssetType, testRepo) }
+        val unpublished = runBlocking { githubApiClient.releaseHasAsset("unpublished", testRepo) }
+
+        assertTrue(published)
+        assertFalse(unpublished)
+    }
+
+    @Test
+    fun `Revalidates cached releases on cold starts instead of downloading them again`() {
+        server.enqueue(MockResponse().setBody(json).setHeader("ETag", "\"release\""))
+        server.enqueue(MockResponse().setResponseCode(304).setHeader("ETag", "\"release\""))
+        stubBaseUrl()
+        val cache = Cache(tempFolder.newFolder("http"), 1024 * 1024)
+        val client = OkHttpClient().withMetadataCache(cache, ttlSeconds = 0)
+
+        val firstResult = runBlocking {
+            GithubApiClient(mockUlaFiles, mockUrlProvider, mockLogger, client).getLatestReleaseVersion(testRepo)
+        }
+        val secondResult = runBlocking {
+            GithubApiClient(mockUlaFiles, mockUrlProvider, mockLogger, client).getLatestReleaseVersion(testRepo)
+        }
+
+        assertEquals(testTag, firstResult)
+        assertEquals(testTag, secondResult)
+        server.takeRequest()
+        assertEquals("\"release\"", server.takeRequest().getHeader("If-None-Match"))
+        cache.close()
+    }
+}
@@ -3,10 +3,15 @@ package tech.ula.model.repositories
 import androidx.arch.core.executor.testing.InstantTaskExecutorRule
 import androidx.lifecycle.MutableLiveData
 import androidx.lifecycle.Observer
+import com.nhaarman.mockitokotlin2.any
+import com.nhaarman.mockitokotlin2.argThat
 import com.nhaarman.mockitokotlin2.verify
 import com.nhaarman.mockitokotlin2.verifyBlocking
 import com.nhaarman.mockitokotlin2.whenever
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.runBlocking
+import org.junit.Assert.assertEquals
 import org.junit.Before
 import org.junit.Rule
 import org.junit.Test
@@ -19,6 +24,7 @@ import tech.ula.model.remote.GithubAppsFetcher
 import tech.ula.utils.Logger
 import tech.ula.utils.preferences.AppsPreferences
 import java.io.IOException
+import java.util.concurrent.atomic.AtomicInteger
 
 @RunWith(MockitoJUnitRunner::class)
 class AppsRepositoryTest {
@@ -95,7 +101,7 @@ class AppsRepositoryTest {
         verifyBlocking(mockGithubAppsFetcher) { fetchAppIcon(inactiveApp) }
         verifyBlocking(mockGithubAppsFetcher) { fetchAppDescription(inactiveApp) }
         verifyBlocking(mockGithubAppsFetcher) { fetchAppScript(inactiveApp) }
-        verify(mockAppsDao).insertApp(inactiveApp)
+        verify(mockAppsDao).insertApps(listOf(inactiveApp))
         verify(mockAppsPreferences).setDistributionsList(setOf(inactiveAppName))
         verify(mockRefreshStatusObserver).onChanged(RefreshStatus.ACTIVE)
         verify(mockRefreshStatusObserver).onChanged(RefreshStatus.FINISHED)
@@ -115,4 +121,52 @@ class AppsRepositoryTest {
         verify(mockRefreshStatusObserver).onChanged(RefreshStatus.ACTIVE)
         verify(mockRefreshStatusObserver).onChanged(RefreshStatus.FAILED)
     }
-}
\ No newline at end of file
+
+    @Test
+    fun `Refreshes apps with a bounded number of concurrent fetches`() {
+        val apps = List(20) { App(name = "app$it") }
+        val inFlight = AtomicInteger()
+        val maxInFlight = AtomicInteger()
+        runBlocking {
+            whenever(mockGithubAppsFetcher.fetchAppsList()).thenReturn(apps)
+            whenever(mockGithubAppsFetcher.fetchAppIcon(any())).thenAnswer {
+                maxInFlight.accumulateAndGet(inFlight.incrementAndGet()) { max, current -> maxOf(max, current) }
+                Thread.sleep(20)
+                inFlight.decrementAndGet()
+                Unit
+            }
+        }
+        val boundedAppsRepository = AppsRepository(
+                mockAppsDao,
+                mockGithubAppsFetcher,
+                mockAppsPreferences,
+                mockLogger,
+                refreshConcurrency = 3
+        )
+
+        runBlocking {
+            boundedAppsRepository.refreshData(CoroutineScope(Dispatchers.IO))
+        }
+
+        assertEquals(3, maxInFlight.get())
+        verify(mockAppsDao).insertApps(argThat { toSet() == apps.toSet() })
+    }
+
+    @Test
+    fun `Apps that fail to fetch are left out of the refresh`() {
+        val failingApp = App(name = "failing")
+        runBlocking {
+            whenever(mockGithubAppsFetcher.fetchAppsList()).thenReturn(listOf(inactiveApp, failingApp))
+            whenever(mockGithubAppsFetcher.fetchAppScript(failingApp)).thenAnswer { throw IOException() }
+        }
+        appsRepository.getRefreshStatus().observeForever(mockRefreshStatusObserver)
+
+        runBlocking {
+            appsRepository.refreshData(this)
+        }
+
+        verify(mockAppsDao).insertApps(listOf(inactiveApp))
+        verify(mockAppsPreferences).setDistributionsList(setOf(inactiveAppName))
+        verify(mockRefreshStatusObserver).onChanged(RefreshStatus.FINISHED)
+    }
+}
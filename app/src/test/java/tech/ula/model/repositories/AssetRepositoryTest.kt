@@ -15,6 +15,7 @@ import tech.ula.model.entities.Filesystem
 import tech.ula.model.remote.GithubApiClient
 import tech.ula.utils.Logger
 import tech.ula.utils.HttpStream
+import tech.ula.utils.sha256
 import tech.ula.utils.preferences.AssetPreferences
 import java.io.File
 import java.io.IOException
@@ -470,4 +471,114 @@ class AssetRepositoryTest {
         assertEquals(distAssetList, result)
         verify(mockAssetPreferences).getCachedAssetList(distRepo)
     }
-}
\ No newline at end of file
+
+    @Test
+    fun `getAssetList parses hashes from the manifest`() {
+        val distRepo = filesystem.distributionType
+        val hash = "a".repeat(64)
+
+        val distUrl = "distUrl"
+        runBlocking {
+            whenever(mockGithubApiClient.getAssetsListDownloadUrl(distRepo))
+                    .thenReturn(distUrl)
+        }
+        whenever(mockHttpStream.fromUrl(distUrl))
+                .thenReturn("assets.txt garbage\n${asset.name} 1590000000 $hash\n".byteInputStream())
+
+        val result = runBlocking {
+            assetRepository.getAssetList(distRepo)
+        }
+
+        assertEquals(listOf(Asset(asset.name, distRepo, sha256 = hash)), result)
+    }
+
+    private fun createAssetsWithHashes(changedContent: String): List<Asset> {
+        val repoDirectory = File("$applicationFilesDirPath/$repo")
+        repoDirectory.mkdirs()
+        val unchangedFile = File(repoDirectory, "unchanged")
+        unchangedFile.writeText("unchanged")
+        val changedFile = File(repoDirectory, "changed-file.sh")
+        changedFile.writeText("old")
+
+        val remoteChangedFile = File(tempFolder.root, "remote")
+        remoteChangedFile.writeText(changedContent)
+        return listOf(
+                Asset("unchanged", repo, sha256 = unchangedFile.sha256()),
+                Asset("changed-file.sh", repo, sha256 = remoteChangedFile.sha256()))
+    }
+
+    @Test
+    fun `generateDownloadRequirements only includes changed assets if the manifest has hashes`() {
+        val assetList = createAssetsWithHashes(changedContent = "new")
+        stubAssetsVersion(repo, lowVersion, highVersion)
+
+        val url = "url"
+        runBlocking {
+            whenever(mockGithubApiClient.releaseHasAsset("changed-file.sh", repo))
+                    .thenReturn(true)
+            whenever(mockGithubApiClient.getAssetEndpoint("changed-file.sh", repo))
+                    .thenReturn(url)
+        }
+
+        val result = runBlocking {
+            assetRepository.generateDownloadRequirements(filesystem, assetList, false)
+        }
+
+        val expectedDownloadMetadata = DownloadMetadata("changed-file.sh", repo, highVersion, url, sha256 = assetList[1].sha256)
+        assertEquals(listOf(expectedDownloadMetadata), result)
+    }
+
+    @Test
+    fun `generateDownloadRequirements includes the assets tarball if a changed asset is not published individually`() {
+        val assetList = createAssetsWithHashes(changedContent = "new")
+        stubAssetsVersion(repo, lowVersion, highVersion)
+
+        val url = "url"
+        stubApiVersionAndUrl(repo, highVersion, url)
+        runBlocking {
+            whenever(mockGithubApiClient.releaseHasAsset("changed-file.sh", repo))
+                    .thenReturn(false)
+        }
+
+        val result = runBlocking {
+            assetRepository.generateDownloadRequirements(filesystem, assetList, false)
+        }
+
+        assertEquals(listOf(DownloadMetadata(assetsTarName, repo, highVersion, url)), result)
+    }
+
+    @Test
+    fun `generateDownloadRequirements requires no downloads and records nothing if no assets changed`() {
+        val assetList = createAssetsWithHashes(changedContent = "old")
+        stubAssetsVersion(repo, lowVersion, highVersion)
+
+        val result = runBlocking {
+            assetRepository.generateDownloadRequirements(filesystem, assetList, false)
+        }
+
+        assertTrue(result.isEmpty())
+        verify(mockAssetPreferences, never()).setLatestDownloadVersion(any(), any())
+    }
+
+    @Test
+    fun `recordInstalledAssetsAreLatest records the latest release version`() {
+        runBlocking {
+            whenever(mockGithubApiClient.getLatestReleaseVersion(repo)).thenReturn(highVersion)
+
+            assetRepository.recordInstalledAssetsAreLatest(repo)
+        }
+
+        verify(mockAssetPreferences).setLatestDownloadVersion(repo, highVersion)
+    }
+
+    @Test
+    fun `recordInstalledAssetsAreLatest records nothing if the remote is unreachable`() {
+        runBlocking {
+            whenever(mockGithubApiClient.getLatestReleaseVersion(repo)).thenAnswer { throw UnknownHostException() }
+
+            assetRepository.recordInstalledAssetsAreLatest(repo)
+        }
+
+        verify(mockAssetPreferences, never()).setLatestDownloadVersion(any(), any())
+    }
+}
@@ -23,6 +23,7 @@ import tech.ula.model.repositories.DownloadMetadata
 import tech.ula.model.repositories.UlaDatabase
 import tech.ula.utils.* // ktlint-disable no-wildcard-imports
 import java.io.IOException
+import java.net.UnknownHostException
 import kotlin.Exception
 
 @RunWith(MockitoJUnitRunner::class)
@@ -54,6 +55,8 @@ class SessionStartupFsmTest {
 
     private lateinit var sessionFsm: SessionStartupFsm
 
+    private var currentTimeMillis = 0L
+
     // Test setup variables
     private val activeSession = Session(id = -1, name = "active", filesystemId = -1, active = true)
     private val inactiveSession = Session(id = -1, name = "inactive", filesystemId = -1, active = false)
@@ -74,9 +77,11 @@ class SessionStartupFsmTest {
     private val possibleEvents = listOf(
             SessionSelected(inactiveSession),
             RetrieveAssetLists(filesystem),
+            PlanSessionStartup(filesystem),
             GenerateDownloads(filesystem, assetList),
             DownloadAssets(downloadMetadata),
             AssetDownloadComplete(0),
+            PollDownloadProgress,
             CopyDownloadsToLocalStorage,
             ExtractFilesystem(filesystem),
             VerifyFilesystemAssets(filesystem)
@@ -87,6 +92,7 @@ class SessionStartupFsmTest {
             SingleSessionSupported,
             SessionIsRestartable(inactiveSession),
             SessionIsReadyForPreparation(inactiveSession, filesystem),
+            SessionIsReadyToLaunch(inactiveSession, filesystem),
             RetrievingAssetLists,
             AssetListsRetrievalSucceeded(assetList),
             AssetListsRetrievalFailed,
@@ -103,7 +109,7 @@ class SessionStartupFsmTest {
             FilesystemAssetVerificationSucceeded,
             AssetsAreMissingFromSupportDirectories,
             FilesystemAssetCopyFailed,
-            ExtractingFilesystem("test"),
+            ExtractingFilesystem(),
             ExtractionHasCompletedSuccessfully,
             ExtractionFailed("reason")
     )
@@ -124,13 +130,15 @@ class SessionStartupFsmTest {
                 mockFilesystemManager,
                 mockAssetDownloader,
                 mockStorageCalculator,
-                mockLogger
+                mockLogger,
+                { currentTimeMillis }
         )
     }
 
     @After
     fun teardown() {
         filesystem.versionCodeUsed = ""
+        currentTimeMillis = 0L
         activeSessionLiveData = MutableLiveData()
     }
 
@@ -153,10 +161,12 @@ class SessionStartupFsmTest {
                 when {
                     event is SessionSelected && state is WaitingForSessionSelection -> assertTrue(result)
                     event is RetrieveAssetLists && state is SessionIsReadyForPreparation -> assertTrue(result)
+                    event is PlanSessionStartup && state is SessionIsReadyForPreparation -> assertTrue(result)
                     event is GenerateDownloads && state is AssetListsRetrievalSucceeded -> assertTrue(result)
                     event is DownloadAssets && state is DownloadsRequired -> assertTrue(result)
                     event is AssetDownloadComplete && (state is DownloadingAssets || state is WaitingForSessionSelection) -> assertTrue(result)
                     event is SyncDownloadState -> assertTrue(result)
+                    event is PollDownloadProgress -> assertTrue(result)
                     event is CopyDownloadsToLocalStorage && state is DownloadsHaveSucceeded -> assertTrue(result)
                     event is VerifyFilesystemAssets && (state is NoDownloadsRequired || state is LocalDirectoryCopySucceeded) -> assertTrue(result)
 
@@ -254,6 +264,47 @@ class SessionStartupFsmTest {
         verify(mockStateObserver).onChanged(SessionIsReadyForPreparation(inactiveSession, filesystem))
     }
 
+    @Test
+    fun `State is SessionIsReadyToLaunch if the readiness snapshot is valid, and updates are checked for afterwards`() {
+        sessionFsm.setState(WaitingForSessionSelection)
+        sessionFsm.getState().observeForever(mockStateObserver)
+        activeSessionLiveData.postValue(listOf())
+        filesystem.versionCodeUsed = highVersionCode
+        whenever(mockFilesystemManager.hasValidReadinessSnapshot(eq(filesystem), any()))
+                .thenReturn(true)
+        whenever(mockAssetRepository.getLatestDistributionVersion(filesystem.distributionType))
+                .thenReturn(highVersionCode)
+        runBlocking {
+            whenever(mockAssetRepository.getAssetList(filesystem.distributionType))
+                    .thenReturn(assetList)
+            whenever(mockAssetRepository.generateDownloadRequirements(filesystem, assetList, false))
+                    .thenReturn(downloadMetadata)
+        }
+
+        runBlocking { sessionFsm.submitEvent(SessionSelected(inactiveSession), this) }
+
+        verify(mockStateObserver).onChanged(SessionIsReadyToLaunch(inactiveSession, filesystem))
+        verify(mockStateObserver, never()).onChanged(SessionIsReadyForPreparation(inactiveSession, filesystem))
+        verify(mockFilesystemManager).deleteReadinessSnapshot(filesystem)
+    }
+
+    @Test
+    fun `Readiness snapshots are not used if newer assets have been downloaded`() {
+        sessionFsm.setState(WaitingForSessionSelection)
+        sessionFsm.getState().observeForever(mockStateObserver)
+        activeSessionLiveData.postValue(listOf())
+        filesystem.versionCodeUsed = lowVersionCode
+        whenever(mockFilesystemManager.hasValidReadinessSnapshot(eq(filesystem), any()))
+                .thenReturn(true)
+        whenever(mockAssetRepository.getLatestDistributionVersion(filesystem.distributionType))
+                .thenReturn(highVersionCode)
+
+        runBlocking { sessionFsm.submitEvent(SessionSelected(inactiveSession), this) }
+
+        verify(mockStateObserver).onChanged(SessionIsReadyForPreparation(inactiveSession, filesystem))
+        verifyBlocking(mockAssetRepository, never()) { getAssetList(any()) }
+    }
+
     @Test
     fun `State is RetrievingAssetLists and then AssetListsRetrieved`() {
         sessionFsm.setState(SessionIsReadyForPreparation(inactiveSession, filesystem))
@@ -283,6 +334,148 @@ class SessionStartupFsmTest {
         verify(mockStateObserver).onChanged(AssetListsRetrievalFailed)
     }
 
+    private fun stubStartupChecks(
+        isExtracted: Boolean = true,
+        assetsArePresent: Boolean = true,
+        availableStorage: Long = 2000,
+        downloadRequirements: List<DownloadMetadata> = listOf()
+    ) {
+        filesystem.versionCodeUsed = highVersionCode
+        whenever(mockFilesystemManager.hasFilesystemBeenSuccessfullyExtracted("${filesystem.id}"))
+                .thenReturn(isExtracted)
+        whenever(mockAssetRepository.getDistributionAssetsForExistingFilesystem(filesystem))
+                .thenReturn(assetList)
+        whenever(mockAssetRepository.getLatestDistributionVersion(filesystem.distributionType))
+                .thenReturn(highVersionCode)
+        whenever(mockFilesystemManager.areAllRequiredAssetsPresent("${filesystem.id}", assetList))
+                .thenReturn(assetsArePresent)
+        whenever(mockStorageCalculator.getAvailableStorageInMB())
+                .thenReturn(availableStorage)
+        runBlocking {
+            whenever(mockAssetRepository.getAssetList(filesystem.distributionType))
+                    .thenReturn(assetList)
+            whenever(mockAssetRepository.generateDownloadRequirements(filesystem, assetList, !isExtracted))
+                    .thenReturn(downloadRequirements)
+        }
+    }
+
+    private fun planStartup() {
+        sessionFsm.setState(SessionIsReadyForPreparation(inactiveSession, filesystem))
+        runBlocking { sessionFsm.submitEvent(PlanSessionStartup(filesystem), this) }
+    }
+
+    @Test
+    fun `Planning skips every stage for filesystems that are already set up`() {
+        sessionFsm.getState().observeForever(mockStateObserver)
+        stubStartupChecks()
+
+        planStartup()
+
+        verify(mockStateObserver).onChanged(RetrievingAssetLists)
+        verify(mockStateObserver).onChanged(ExtractionHasCompletedSuccessfully)
+        verify(mockStateObserver, never()).onChanged(NoDownloadsRequired)
+        verify(mockFilesystemManager).removeRootfsFilesFromFilesystem("${filesystem.id}")
+        verify(mockLogger).recordSpan(argThat { name == "storage" && category == "startup" })
+        verify(mockLogger).recordSpan(argThat { name == "PlanSessionStartup" && category == "fsm" })
+    }
+
+    @Test
+    fun `Planning skips the network while downloads were recently found to be up to date`() {
+        stubStartupChecks()
+
+        planStartup()
+        currentTimeMillis += 60 * 1000
+        planStartup()
+
+        verifyBlocking(mockAssetRepository, times(1)) { getAssetList(filesystem.distributionType) }
+
+        currentTimeMillis += HttpClients.METADATA_TTL_SECONDS * 1000
+        planStartup()
+
+        verifyBlocking(mockAssetRepository, times(2)) { getAssetList(filesystem.distributionType) }
+    }
+
+    @Test
+    fun `Planning without the network does not extend how long the network is skipped`() {
+        stubStartupChecks()
+
+        planStartup()
+        currentTimeMillis += HttpClients.METADATA_TTL_SECONDS * 1000 / 2
+        planStartup()
+        currentTimeMillis += HttpClients.METADATA_TTL_SECONDS * 1000 / 2
+        planStartup()
+
+        verifyBlocking(mockAssetRepository, times(2)) { getAssetList(filesystem.distributionType) }
+    }
+
+    @Test
+    fun `Planning posts DownloadsRequired if anything needs downloading`() {
+        sessionFsm.getState().observeForever(mockStateObserver)
+        val rootfsDownload = DownloadMetadata("rootfs.tar.gz", assetType, highVersionCode, url)
+        stubStartupChecks(isExtracted = false, downloadRequirements = listOf(rootfsDownload))
+
+        planStartup()
+
+        verify(mockStateObserver).onChanged(DownloadsRequired(listOf(rootfsDownload), true))
+    }
+
+    @Test
+    fun `Planning leaves copying assets to asset verification`() {
+        sessionFsm.getState().observeForever(mockStateObserver)
+        stubStartupChecks(assetsArePresent = false)
+
+        planStartup()
+
+        verify(mockStateObserver).onChanged(NoDownloadsRequired)
+        verify(mockFilesystemManager, never()).removeRootfsFilesFromFilesystem(any())
+    }
+
+    @Test
+    fun `Planning leaves filesystems that are not extracted to extraction`() {
+        sessionFsm.getState().observeForever(mockStateObserver)
+        stubStartupChecks(isExtracted = false)
+
+        planStartup()
+
+        verify(mockStateObserver).onChanged(StorageVerificationCompletedSuccessfully)
+    }
+
+    @Test
+    fun `Planning posts LowAvailableStorage when storage is low`() {
+        sessionFsm.getState().observeForever(mockStateObserver)
+        stubStartupChecks(availableStorage = 500)
+
+        planStartup()
+
+        verify(mockStateObserver).onChanged(LowAvailableStorage)
+    }
+
+    @Test
+    fun `Planning refuses extraction when the rootfs will not fit`() {
+        sessionFsm.getState().observeForever(mockStateObserver)
+        stubStartupChecks(isExtracted = false)
+        whenever(mockFilesystemManager.getRequiredExtractionStorageInMB(filesystem)).thenReturn(1900)
+
+        planStartup()
+
+        verify(mockStateObserver).onChanged(VerifyingSufficientStorageFailed)
+        verify(mockStateObserver, never()).onChanged(StorageVerificationCompletedSuccessfully)
+    }
+
+    @Test
+    fun `Planning posts RemoteUnreachableForGeneration if the remote is unreachable`() {
+        sessionFsm.getState().observeForever(mockStateObserver)
+        stubStartupChecks()
+        runBlocking {
+            whenever(mockAssetRepository.generateDownloadRequirements(filesystem, assetList, false))
+                    .thenAnswer { throw UnknownHostException() }
+        }
+
+        planStartup()
+
+        verify(mockStateObserver).onChanged(RemoteUnreachableForGeneration)
+    }
+
     @Test
     fun `handleGenerateDownloads finds that filesystemNeedsExtraction is false if the filesystem is extracted`() {
         sessionFsm.setState(AssetListsRetrievalSucceeded(assetList))
@@ -302,6 +495,7 @@ class SessionStartupFsmTest {
         verify(mockStateObserver).onChanged(GeneratingDownloadRequirements)
         verify(mockStateObserver).onChanged(NoDownloadsRequired)
         verifyBlocking(mockAssetRepository) { generateDownloadRequirements(filesystem, assetList, filesystemNeedsExtraction) }
+        verifyBlocking(mockAssetRepository) { recordInstalledAssetsAreLatest(filesystem.distributionType) }
     }
 
     @Test
@@ -401,6 +595,35 @@ class SessionStartupFsmTest {
         verify(mockStateObserver).onChanged(DownloadingAssets(2, 3))
     }
 
+    @Test
+    fun `Posts byte progress when polled during downloads`() {
+        sessionFsm.setState(DownloadingAssets(0, 2))
+        sessionFsm.getState().observeForever(mockStateObserver)
+
+        whenever(mockAssetDownloader.getDownloadProgress())
+                .thenReturn(CompletedDownloadsUpdate(0, 2, 100, 1000))
+
+        runBlocking {
+            sessionFsm.submitEvent(PollDownloadProgress, this)
+        }
+
+        verify(mockStateObserver).onChanged(DownloadingAssets(0, 2, 100, 1000))
+    }
+
+    @Test
+    fun `Ignores download progress polls after downloads have finished`() {
+        sessionFsm.setState(DownloadsHaveSucceeded)
+        sessionFsm.getState().observeForever(mockStateObserver)
+
+        runBlocking {
+            sessionFsm.submitEvent(PollDownloadProgress, this)
+        }
+
+        verify(mockAssetDownloader, never()).getDownloadProgress()
+        verify(mockStateObserver, times(1)).onChanged(DownloadsHaveSucceeded)
+        verifyNoMoreInteractions(mockStateObserver)
+    }
+
     @Test
     fun `State is DownloadsHaveFailed if any downloads fail`() {
         sessionFsm.setState(DownloadingAssets(0, 0))
@@ -673,7 +896,7 @@ class SessionStartupFsmTest {
         sessionFsm.getState().observeForever(mockStateObserver)
 
         whenever(mockStorageCalculator.getAvailableStorageInMB()).thenReturn(300)
-        runBlocking { sessionFsm.submitEvent(VerifyAvailableStorage, this) }
+        runBlocking { sessionFsm.submitEvent(VerifyAvailableStorage(filesystem), this) }
 
         verify(mockStateObserver).onChanged(VerifyingSufficientStorage)
         verify(mockStateObserver).onChanged(LowAvailableStorage)
@@ -685,7 +908,7 @@ class SessionStartupFsmTest {
         sessionFsm.getState().observeForever(mockStateObserver)
 
         whenever(mockStorageCalculator.getAvailableStorageInMB()).thenReturn(150)
-        runBlocking { sessionFsm.submitEvent(VerifyAvailableStorage, this) }
+        runBlocking { sessionFsm.submitEvent(VerifyAvailableStorage(filesystem), this) }
 
         verify(mockStateObserver).onChanged(VerifyingSufficientStorage)
         verify(mockStateObserver).onChanged(VerifyingSufficientStorageFailed)
@@ -697,13 +920,39 @@ class SessionStartupFsmTest {
         sessionFsm.getState().observeForever(mockStateObserver)
 
         whenever(mockStorageCalculator.getAvailableStorageInMB()).thenReturn(1001)
-        runBlocking { sessionFsm.submitEvent(VerifyAvailableStorage, this) }
+        runBlocking { sessionFsm.submitEvent(VerifyAvailableStorage(filesystem), this) }
 
         verify(mockStateObserver).onChanged(VerifyingSufficientStorage)
         verify(mockStateObserver, never()).onChanged(VerifyingSufficientStorageFailed)
         verify(mockStateObserver, never()).onChanged(LowAvailableStorage)
     }
 
+    @Test
+    fun `State is VerifyingSufficientStorageFailed if extraction needs more storage than is available`() {
+        sessionFsm.setState(FilesystemAssetVerificationSucceeded)
+        sessionFsm.getState().observeForever(mockStateObserver)
+
+        whenever(mockStorageCalculator.getAvailableStorageInMB()).thenReturn(2000)
+        whenever(mockFilesystemManager.getRequiredExtractionStorageInMB(filesystem)).thenReturn(1900)
+        runBlocking { sessionFsm.submitEvent(VerifyAvailableStorage(filesystem), this) }
+
+        verify(mockStateObserver).onChanged(VerifyingSufficientStorage)
+        verify(mockStateObserver).onChanged(VerifyingSufficientStorageFailed)
+    }
+
+    @Test
+    fun `State is LowAvailableStorage if little storage would be left after extraction`() {
+        sessionFsm.setState(FilesystemAssetVerificationSucceeded)
+        sessionFsm.getState().observeForever(mockStateObserver)
+
+        whenever(mockStorageCalculator.getAvailableStorageInMB()).thenReturn(2000)
+        whenever(mockFilesystemManager.getRequiredExtractionStorageInMB(filesystem)).thenReturn(1500)
+        runBlocking { sessionFsm.submitEvent(VerifyAvailableStorage(filesystem), this) }
+
+        verify(mockStateObserver).onChanged(VerifyingSufficientStorage)
+        verify(mockStateObserver).onChanged(LowAvailableStorage)
+    }
+
     @Test
     fun `Exits early if filesystem is already extracted`() {
         sessionFsm.setState(StorageVerificationCompletedSuccessfully)
@@ -725,7 +974,7 @@ class SessionStartupFsmTest {
         sessionFsm.getState().observeForever(mockStateObserver)
 
         runBlocking {
-            whenever(mockFilesystemManager.extractFilesystem(eq(filesystem), anyOrNull()))
+            whenever(mockFilesystemManager.extractFilesystem(eq(filesystem), anyOrNull(), anyOrNull()))
                     .thenReturn(SuccessfulExecution)
         }
         whenever(mockFilesystemManager.hasFilesystemBeenSuccessfullyExtracted("${filesystem.id}"))
@@ -737,6 +986,80 @@ class SessionStartupFsmTest {
         // TODO is there some way to verify extraction steps?
         verify(mockStateObserver).onChanged(ExtractionHasCompletedSuccessfully)
         verify(mockFilesystemManager).removeRootfsFilesFromFilesystem("${filesystem.id}")
+        verifyBlocking(mockFilesystemManager) { saveBaseFilesystem(filesystem) }
+        verify(mockFilesystemManager).saveReadinessSnapshot(filesystem)
+    }
+
+    @Test
+    fun `Posts extraction progress in bytes and keeps output lines out of the state`() {
+        sessionFsm.setState(StorageVerificationCompletedSuccessfully)
+        sessionFsm.getState().observeForever(mockStateObserver)
+
+        val reason = "reason"
+        runBlocking {
+            whenever(mockFilesystemManager.extractFilesystem(eq(filesystem), anyOrNull(), anyOrNull()))
+                    .thenAnswer {
+                        @Suppress("UNCHECKED_CAST")
+                        val listener = it.arguments[1] as (String) -> Unit
+                        @Suppress("UNCHECKED_CAST")
+                        val onProgress = it.arguments[2] as (Long, Long) -> Unit
+                        listener("./usr/bin/test")
+                        onProgress(10, 100)
+                        FailedExecution(reason)
+                    }
+        }
+
+        runBlocking { sessionFsm.submitEvent(ExtractFilesystem(filesystem), this) }
+
+        verify(mockStateObserver).onChanged(ExtractingFilesystem())
+        verify(mockStateObserver).onChanged(ExtractingFilesystem(bytesExtracted = 10, totalBytes = 100))
+        verify(mockStateObserver).onChanged(ExtractionFailed(reason))
+        verify(mockLogger).addBreadcrumb(UlaBreadcrumb("SessionFSM", BreadcrumbType.RuntimeError, "Extraction output:\n./usr/bin/test"))
+    }
+
+    @Test
+    fun `Clones filesystems instead of extracting them when possible`() {
+        sessionFsm.setState(StorageVerificationCompletedSuccessfully)
+        sessionFsm.getState().observeForever(mockStateObserver)
+
+        runBlocking {
+            whenever(mockFilesystemManager.cloneFilesystem(filesystem))
+                    .thenReturn(true)
+        }
+
+        runBlocking { sessionFsm.submitEvent(ExtractFilesystem(filesystem), this) }
+
+        verify(mockStateObserver).onChanged(ExtractionHasCompletedSuccessfully)
+        verify(mockFilesystemManager).removeRootfsFilesFromFilesystem("${filesystem.id}")
+        verifyBlocking(mockFilesystemManager, never()) { extractFilesystem(any(), any(), any()) }
+    }
+
+    @Test
+    fun `Restores backups made by the app in-process instead of extracting them`() {
+        sessionFsm.setState(StorageVerificationCompletedSuccessfully)
+        sessionFsm.getState().observeForever(mockStateObserver)
+
+        whenever(mockFilesystemManager.isIncrementalBackup("${filesystem.id}"))
+                .thenReturn(true)
+        runBlocking {
+            whenever(mockFilesystemManager.restoreFilesystem(eq(filesystem), anyOrNull(), anyOrNull()))
+                    .thenAnswer {
+                        @Suppress("UNCHECKED_CAST")
+                        val onProgress = it.arguments[2] as (Long, Long) -> Unit
+                        onProgress(10, 100)
+                        SuccessfulExecution
+                    }
+        }
+        whenever(mockFilesystemManager.hasFilesystemBeenSuccessfullyExtracted("${filesystem.id}"))
+                .thenReturn(false)
+                .thenReturn(true)
+
+        runBlocking { sessionFsm.submitEvent(ExtractFilesystem(filesystem), this) }
+
+        verify(mockStateObserver).onChanged(ExtractingFilesystem(bytesExtracted = 10, totalBytes = 100))
+        verify(mockStateObserver).onChanged(ExtractionHasCompletedSuccessfully)
+        verify(mockFilesystemManager).removeRootfsFilesFromFilesystem("${filesystem.id}")
+        verifyBlocking(mockFilesystemManager, never()) { extractFilesystem(any(), any(), any()) }
     }
 
     @Test
@@ -746,7 +1069,7 @@ class SessionStartupFsmTest {
 
         val reason = "reason"
         runBlocking {
-            whenever(mockFilesystemManager.extractFilesystem(eq(filesystem), anyOrNull()))
+            whenever(mockFilesystemManager.extractFilesystem(eq(filesystem), anyOrNull(), anyOrNull()))
                     .thenReturn(FailedExecution(reason))
         }
 
@@ -761,7 +1084,7 @@ class SessionStartupFsmTest {
         sessionFsm.getState().observeForever(mockStateObserver)
 
         runBlocking {
-            whenever(mockFilesystemManager.extractFilesystem(eq(filesystem), anyOrNull()))
+            whenever(mockFilesystemManager.extractFilesystem(eq(filesystem), anyOrNull(), anyOrNull()))
                     .thenReturn(SuccessfulExecution)
         }
         whenever(mockFilesystemManager.hasFilesystemBeenSuccessfullyExtracted("${filesystem.id}"))
@@ -1,6 +1,5 @@
 package tech.ula.utils
 
-import android.app.DownloadManager
 import com.nhaarman.mockitokotlin2.verify
 import com.nhaarman.mockitokotlin2.whenever
 import kotlinx.coroutines.runBlocking
@@ -13,10 +12,15 @@ import org.junit.runner.RunWith
 import org.mockito.Mock
 import org.mockito.Mockito.* // ktlint-disable no-wildcard-imports
 import org.mockito.junit.MockitoJUnitRunner
-import org.rauschig.jarchivelib.Archiver
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream
+import tech.ula.model.entities.Asset
 import tech.ula.model.repositories.DownloadMetadata
 import tech.ula.utils.preferences.AssetPreferences
 import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.util.zip.GZIPOutputStream
 
 @RunWith(MockitoJUnitRunner::class)
 class AssetDownloaderTest {
@@ -33,14 +37,6 @@ class AssetDownloaderTest {
 
     private lateinit var mockFilesDir: File
 
-    @Mock lateinit var requestReturn1: DownloadManager.Request
-
-    @Mock lateinit var requestReturn2: DownloadManager.Request
-
-    @Mock lateinit var mockArchiveFactoryWrapper: ArchiveFactoryWrapper
-
-    @Mock lateinit var mockArchiver: Archiver
-
     private lateinit var downloadDirectory: File
 
     private val rootfsName = "rootfs.tar.gz"
@@ -58,6 +54,8 @@ class AssetDownloaderTest {
     private lateinit var destination1: File
     private lateinit var destination2: File
 
+    private lateinit var assetStore: AssetStore
+
     private lateinit var assetDownloader: AssetDownloader
 
     @Before
@@ -73,18 +71,26 @@ class AssetDownloaderTest {
         destination1 = File(downloadDirectory, downloadMetadata1.downloadTitle)
         destination2 = File(downloadDirectory, downloadMetadata2.downloadTitle)
 
-        whenever(downloadManagerWrapper.generateDownloadRequest(downloadMetadata1.url, destination1))
-                .thenReturn(requestReturn1)
-        whenever(downloadManagerWrapper.generateDownloadRequest(downloadMetadata2.url, destination2))
-                .thenReturn(requestReturn2)
+        assetStore = createJvmAssetStore(File(mockFilesDir, AssetStore.DIRECTORY_NAME))
+        assetDownloader = AssetDownloader(assetPreferences, downloadManagerWrapper, mockUlaFiles, assetStore)
+    }
 
-        assetDownloader = AssetDownloader(assetPreferences, downloadManagerWrapper, mockUlaFiles)
+    private fun inProgress(bytesDownloaded: Long = 0, totalBytes: Long = -1): DownloadStatus {
+        return DownloadStatus(hasSucceeded = false, hasFailed = false, bytesDownloaded = bytesDownloaded, totalBytes = totalBytes)
+    }
+
+    private fun succeeded(totalBytes: Long = 0): DownloadStatus {
+        return DownloadStatus(hasSucceeded = true, hasFailed = false, bytesDownloaded = totalBytes, totalBytes = totalBytes)
+    }
+
+    private fun failed(reason: DownloadFailureLocalizationData): DownloadStatus {
+        return DownloadStatus(hasSucceeded = false, hasFailed = true, bytesDownloaded = 0, totalBytes = -1, failureReason = reason)
     }
 
     private fun setupDownloadState() {
-        whenever(downloadManagerWrapper.enqueue(requestReturn1))
+        whenever(downloadManagerWrapper.enqueue(downloadMetadata1, destination1))
                 .thenReturn(0)
-        whenever(downloadManagerWrapper.enqueue(requestReturn2))
+        whenever(downloadManagerWrapper.enqueue(downloadMetadata2, destination2))
                 .thenReturn(1)
 
         assetDownloader.downloadRequirements(downloadList)
@@ -124,10 +130,8 @@ class AssetDownloaderTest {
         whenever(assetPreferences.getEnqueuedDownloads())
                 .thenReturn(setOf(downloadId))
 
-        whenever(downloadManagerWrapper.downloadHasFailed(downloadId))
-                .thenReturn(true)
-        whenever(downloadManagerWrapper.getDownloadFailureReason(downloadId))
-                .thenReturn(failureReason)
+        whenever(downloadManagerWrapper.getDownloadStatuses(setOf(downloadId)))
+                .thenReturn(mapOf(downloadId to failed(failureReason)))
 
         val result = assetDownloader.syncStateWithCache()
         assertTrue(result is AssetDownloadFailure)
@@ -143,10 +147,8 @@ class AssetDownloaderTest {
                 .thenReturn(true)
         whenever(assetPreferences.getEnqueuedDownloads())
                 .thenReturn(setOf(downloadId))
-        whenever(downloadManagerWrapper.downloadHasFailed(downloadId))
-                .thenReturn(false)
-        whenever(downloadManagerWrapper.downloadHasSucceeded(downloadId))
-                .thenReturn(true)
+        whenever(downloadManagerWrapper.getDownloadStatuses(setOf(downloadId)))
+                .thenReturn(mapOf(downloadId to succeeded()))
 
         val result = assetDownloader.syncStateWithCache()
 
@@ -162,14 +164,8 @@ class AssetDownloaderTest {
                 .thenReturn(true)
         whenever(assetPreferences.getEnqueuedDownloads())
                 .thenReturn(downloadIds)
-        whenever(downloadManagerWrapper.downloadHasFailed(0))
-                .thenReturn(false)
-        whenever(downloadManagerWrapper.downloadHasSucceeded(0))
-                .thenReturn(true)
-        whenever(downloadManagerWrapper.downloadHasFailed(1))
-                .thenReturn(false)
-        whenever(downloadManagerWrapper.downloadHasSucceeded(1))
-                .thenReturn(false)
+        whenever(downloadManagerWrapper.getDownloadStatuses(downloadIds))
+                .thenReturn(mapOf(0L to succeeded(totalBytes = 100), 1L to inProgress(50, 200)))
 
         val result = assetDownloader.syncStateWithCache()
 
@@ -177,21 +173,33 @@ class AssetDownloaderTest {
         val cast = result as CompletedDownloadsUpdate
         assertEquals(1, cast.numCompleted)
         assertEquals(2, cast.numTotal)
+        assertEquals(150L, cast.bytesDownloaded)
+        assertEquals(300L, cast.totalBytes)
+        verify(downloadManagerWrapper, times(1)).getDownloadStatuses(downloadIds)
+    }
+
+    @Test
+    fun `Reports unknown total bytes until every download size is known`() {
+        setupDownloadState()
+        whenever(downloadManagerWrapper.getDownloadStatuses(setOf(0, 1)))
+                .thenReturn(mapOf(0L to inProgress(50, 100), 1L to inProgress()))
+
+        val result = assetDownloader.getDownloadProgress()
+
+        assertEquals(CompletedDownloadsUpdate(0, 2, 50, -1), result)
     }
 
     @Test
     fun `Sets up download process`() {
-        whenever(downloadManagerWrapper.enqueue(requestReturn1))
+        whenever(downloadManagerWrapper.enqueue(downloadMetadata1, destination1))
                 .thenReturn(0)
-        whenever(downloadManagerWrapper.enqueue(requestReturn2))
+        whenever(downloadManagerWrapper.enqueue(downloadMetadata2, destination2))
                 .thenReturn(1)
 
         assetDownloader.downloadRequirements(downloadList)
 
-        verify(downloadManagerWrapper).generateDownloadRequest(url1, destination1)
-        verify(downloadManagerWrapper).generateDownloadRequest(url2, destination2)
-        verify(downloadManagerWrapper).enqueue(requestReturn1)
-        verify(downloadManagerWrapper).enqueue(requestReturn2)
+        verify(downloadManagerWrapper).enqueue(downloadMetadata1, destination1)
+        verify(downloadManagerWrapper).enqueue(downloadMetadata2, destination2)
         verify(assetPreferences).clearEnqueuedDownloadsCache()
         verify(assetPreferences).setDownloadsAreInProgress(true)
         verify(assetPreferences).setEnqueuedDownloads(setOf(0, 1))
@@ -210,10 +218,8 @@ class AssetDownloaderTest {
     fun `Returns AssetDownloadFailure if any downloads fail`() {
         setupDownloadState()
         val localizationData = DownloadFailureLocalizationData(0)
-        whenever(downloadManagerWrapper.downloadHasFailed(0))
-                .thenReturn(true)
-        whenever(downloadManagerWrapper.getDownloadFailureReason(0))
-                .thenReturn(localizationData)
+        whenever(downloadManagerWrapper.getDownloadStatuses(setOf(0, 1)))
+                .thenReturn(mapOf(0L to failed(localizationData), 1L to inProgress()))
 
         val result = assetDownloader.handleDownloadComplete(0)
 
@@ -225,10 +231,9 @@ class AssetDownloaderTest {
     @Test
     fun `Completes downloads and then resets cache when all complete`() {
         setupDownloadState()
-        whenever(downloadManagerWrapper.downloadHasFailed(0))
-                .thenReturn(false)
-        whenever(downloadManagerWrapper.downloadHasFailed(1))
-                .thenReturn(false)
+        whenever(downloadManagerWrapper.getDownloadStatuses(setOf(0, 1)))
+                .thenReturn(mapOf(0L to succeeded(), 1L to inProgress()))
+                .thenReturn(mapOf(0L to succeeded(), 1L to succeeded()))
 
         val result1 = assetDownloader.handleDownloadComplete(0)
         val result2 = assetDownloader.handleDownloadComplete(1)
@@ -258,16 +263,6 @@ class AssetDownloaderTest {
         assertFalse(asset2DownloadsFile.exists())
     }
 
-    @Test
-    fun `prepareDownloadsForUse deletes staging directory after use`() {
-        val stagingDirectory = File("${mockFilesDir.absolutePath}/staging")
-        stagingDirectory.mkdirs()
-
-        runBlocking { assetDownloader.prepareDownloadsForUse() }
-
-        assertFalse(stagingDirectory.exists())
-    }
-
     @Test
     fun `prepareDownloadsForUse moves rootfs files internal`() {
         val downloadedRootfs = File("${downloadDirectory.absolutePath}/${downloadMetadata1.downloadTitle}")
@@ -279,7 +274,7 @@ class AssetDownloaderTest {
         assertFalse(destinationDirectory.exists())
         assertFalse(destinationFile.exists())
 
-        runBlocking { assetDownloader.prepareDownloadsForUse(mockArchiveFactoryWrapper) }
+        runBlocking { assetDownloader.prepareDownloadsForUse() }
 
         assertFalse(downloadedRootfs.exists())
 
@@ -302,7 +297,7 @@ class AssetDownloaderTest {
         rootfsPartFile1.createNewFile()
         rootFsPartFile2.createNewFile()
 
-        runBlocking { assetDownloader.prepareDownloadsForUse(mockArchiveFactoryWrapper) }
+        runBlocking { assetDownloader.prepareDownloadsForUse() }
 
         assertFalse(downloadedRootfs.exists())
 
@@ -326,7 +321,7 @@ class AssetDownloaderTest {
         destinationFile.createNewFile()
         destinationFile.writeText("original")
 
-        runBlocking { assetDownloader.prepareDownloadsForUse(mockArchiveFactoryWrapper) }
+        runBlocking { assetDownloader.prepareDownloadsForUse() }
 
         assertFalse(downloadedRootfs.exists())
 
@@ -341,26 +336,71 @@ class AssetDownloaderTest {
     @Test
     fun `prepareDownloadsForUse extracts assets tar files`() {
         val downloadedAssets = File("${downloadDirectory.absolutePath}/${downloadMetadata2.downloadTitle}")
-        downloadedAssets.createNewFile()
+        TarArchiveOutputStream(GZIPOutputStream(FileOutputStream(downloadedAssets))).use { tarStream ->
+            val content = "test".toByteArray()
+            val entry = TarArchiveEntry("test")
+            entry.size = content.size.toLong()
+            tarStream.putArchiveEntry(entry)
+            tarStream.write(content)
+            tarStream.closeArchiveEntry()
+        }
         assertTrue(downloadedAssets.exists())
 
-        val stagingDirectory = File("${mockFilesDir.absolutePath}/staging")
-        val stagingTarget = File("${stagingDirectory.absolutePath}/$assetsName")
         val destination = File("${mockFilesDir.absolutePath}/$type2")
 
-        whenever(mockArchiveFactoryWrapper.createArchiver(stagingTarget))
-                .thenReturn(mockArchiver)
-        whenever(mockArchiver.extract(stagingTarget, destination))
-                .then {
-                    destination.mkdirs()
-                    File("${destination.absolutePath}/test").createNewFile()
-                }
-
-        runBlocking { assetDownloader.prepareDownloadsForUse(mockArchiveFactoryWrapper) }
+        val tarExtractor = TarExtractor(permissionSetter = PermissionSetter { _, _ -> })
+        runBlocking { assetDownloader.prepareDownloadsForUse(tarExtractor) }
 
         assertFalse(downloadedAssets.exists())
-        verify(mockArchiver).extract(stagingTarget, destination)
-        assertFalse(stagingDirectory.exists())
+        assertEquals("test", File("${destination.absolutePath}/test").readText())
+        assertTrue(File(mockFilesDir, "${AssetStore.DIRECTORY_NAME}/${File(destination, "test").sha256()}").exists())
+        assertFalse(File("${mockFilesDir.absolutePath}/staging").exists())
         verify(assetPreferences).setLatestDownloadVersion(type2, version)
     }
-}
\ No newline at end of file
+
+    @Test
+    fun `prepareDownloadsForUse replaces individually updated assets`() {
+        val downloadedAsset = File(downloadDirectory, DownloadMetadata("start-session.sh", type2, version, url2).downloadTitle)
+        downloadedAsset.writeText("new")
+        val cachedAssets = listOf(Asset("start-session.sh", type2, sha256 = downloadedAsset.sha256()))
+        whenever(assetPreferences.getCachedAssetList(type2))
+                .thenReturn(cachedAssets)
+
+        val destination = File("${mockFilesDir.absolutePath}/$type2")
+        destination.mkdirs()
+        val installedAsset = File(destination, "start-session.sh")
+        installedAsset.writeText("old")
+
+        runBlocking { assetDownloader.prepareDownloadsForUse() }
+
+        assertFalse(downloadedAsset.exists())
+        assertEquals("new", installedAsset.readText())
+        assertFalse(File(destination, ".start-session.sh.update").exists())
+        verify(mockUlaFiles).makePermissionsUsable(destination.path, listOf(".start-session.sh.update"))
+        verify(assetPreferences).setLatestDownloadVersion(type2, version)
+    }
+
+    @Test
+    fun `prepareDownloadsForUse does not install updated assets that fail verification`() {
+        val downloadedAsset = File(downloadDirectory, DownloadMetadata("start-session.sh", type2, version, url2).downloadTitle)
+        downloadedAsset.writeText("corrupted")
+        val cachedAssets = listOf(Asset("start-session.sh", type2, sha256 = "0".repeat(64)))
+        whenever(assetPreferences.getCachedAssetList(type2))
+                .thenReturn(cachedAssets)
+
+        val destination = File("${mockFilesDir.absolutePath}/$type2")
+        destination.mkdirs()
+        val installedAsset = File(destination, "start-session.sh")
+        installedAsset.writeText("old")
+
+        try {
+            runBlocking { assetDownloader.prepareDownloadsForUse() }
+            fail("Expected verification to fail")
+        } catch (err: IOException) {
+        }
+
+        assertFalse(downloadedAsset.exists())
+        assertEquals("old", installedAsset.readText())
+        verify(assetPreferences, never()).setLatestDownloadVersion(type2, version)
+    }
+}
@@ -1,10 +1,13 @@
 package tech.ula.utils
 
 import com.nhaarman.mockitokotlin2.any
+import com.nhaarman.mockitokotlin2.eq
 import com.nhaarman.mockitokotlin2.never
 import com.nhaarman.mockitokotlin2.verify
 import com.nhaarman.mockitokotlin2.whenever
 import kotlinx.coroutines.runBlocking
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
 import org.junit.Before
 import org.junit.Rule
 import org.junit.Test
@@ -14,6 +17,7 @@ import org.mockito.Mock
 import org.mockito.junit.MockitoJUnitRunner
 import java.io.File
 import java.io.FileNotFoundException
+import java.io.IOException
 
 @RunWith(MockitoJUnitRunner::class)
 class AssetFileClearerTest {
@@ -23,7 +27,7 @@ class AssetFileClearerTest {
 
     @Mock lateinit var mockUlaFiles: UlaFiles
 
-    @Mock lateinit var busyboxExecutor: BusyboxExecutor
+    @Mock lateinit var mockFileDeleter: FileDeleter
 
     @Mock lateinit var mockLogger: Logger
 
@@ -48,13 +52,16 @@ class AssetFileClearerTest {
     private val assetName = "asset"
     private val hiddenFileName = ".hidden_file"
 
+    private lateinit var assetStore: AssetStore
+
     private lateinit var assetFileClearer: AssetFileClearer
 
     @Before
     fun setup() {
         createTestFiles()
 
-        assetFileClearer = AssetFileClearer(mockUlaFiles, assetDirectoryNames, busyboxExecutor, mockLogger)
+        assetStore = createJvmAssetStore(File(filesDir, AssetStore.DIRECTORY_NAME))
+        assetFileClearer = AssetFileClearer(mockUlaFiles, assetDirectoryNames, mockLogger, assetStore, mockFileDeleter)
     }
 
     private fun createTestFiles() {
@@ -78,7 +85,6 @@ class AssetFileClearerTest {
         nestedFilesystemAssetFile.createNewFile()
 
         whenever(mockUlaFiles.filesDir).thenReturn(filesDir)
-        whenever(mockUlaFiles.busybox).thenReturn(topLevelSupportAssetFile)
     }
 
     @Test(expected = FileNotFoundException::class)
@@ -92,22 +98,58 @@ class AssetFileClearerTest {
 
     @Test
     fun `Clears all assets and leaves filesystem structure intact`() = runBlocking {
-        whenever(busyboxExecutor.recursivelyDelete(any())).thenReturn(SuccessfulExecution)
         assetFileClearer.clearAllSupportAssets()
 
-        verify(busyboxExecutor, never()).recursivelyDelete(filesDir.absolutePath)
-        verify(busyboxExecutor, never()).recursivelyDelete(randomTopLevelFile.absolutePath)
-        verify(busyboxExecutor, never()).recursivelyDelete(randomTopLevelDir.absolutePath)
+        verify(mockFileDeleter, never()).delete(eq(filesDir), any())
+        verify(mockFileDeleter, never()).delete(eq(randomTopLevelFile), any())
+        verify(mockFileDeleter, never()).delete(eq(randomTopLevelDir), any())
 
-        verify(busyboxExecutor).recursivelyDelete(debianDir.absolutePath)
-        verify(busyboxExecutor, never()).recursivelyDelete(supportDir.absolutePath)
-        verify(busyboxExecutor, never()).recursivelyDelete(topLevelDebianAssetFile.absolutePath)
-        verify(busyboxExecutor, never()).recursivelyDelete(topLevelSupportAssetFile.absolutePath)
+        verify(mockFileDeleter).delete(eq(debianDir), any())
+        verify(mockFileDeleter, never()).delete(eq(supportDir), any())
+        verify(mockFileDeleter, never()).delete(eq(topLevelDebianAssetFile), any())
+        verify(mockFileDeleter, never()).delete(eq(topLevelSupportAssetFile), any())
 
-        verify(busyboxExecutor, never()).recursivelyDelete(filesystemDir.absolutePath)
-        verify(busyboxExecutor, never()).recursivelyDelete(filesystemSupportDir.absolutePath)
-        verify(busyboxExecutor, never()).recursivelyDelete(hiddenFilesystemSupportFile.absolutePath)
-        verify(busyboxExecutor).recursivelyDelete(nestedFilesystemAssetFile.absolutePath)
+        verify(mockFileDeleter, never()).delete(eq(filesystemDir), any())
+        verify(mockFileDeleter, never()).delete(eq(filesystemSupportDir), any())
+        verify(mockFileDeleter, never()).delete(eq(hiddenFilesystemSupportFile), any())
+        verify(mockFileDeleter).delete(eq(nestedFilesystemAssetFile), any())
         Unit
     }
-}
\ No newline at end of file
+
+    @Test
+    fun `Clears saved base filesystems`() = runBlocking {
+        val baseFilesystemsDir = tempFolder.newFolder(filesDirName, FilesystemManager.BASE_FILESYSTEMS_DIRECTORY_NAME)
+
+        assetFileClearer.clearAllSupportAssets()
+
+        verify(mockFileDeleter).delete(eq(baseFilesystemsDir), any())
+        Unit
+    }
+
+    @Test
+    fun `Removes stored assets once they are cleared`() = runBlocking {
+        whenever(mockFileDeleter.delete(any(), any())).thenAnswer {
+            it.getArgument<File>(0).deleteRecursively()
+            Unit
+        }
+        val blob = assetStore.add(topLevelDebianAssetFile)
+        assetStore.linkInto(topLevelDebianAssetFile, nestedFilesystemAssetFile)
+        assertTrue(blob.exists())
+
+        assetFileClearer.clearAllSupportAssets()
+
+        assertFalse(blob.exists())
+    }
+
+    @Test(expected = IOException::class)
+    fun `Logs and throws if assets can not be deleted`() {
+        val err = IOException()
+        whenever(mockFileDeleter.delete(any(), any())).thenAnswer { throw err }
+
+        try {
+            runBlocking { assetFileClearer.clearAllSupportAssets() }
+        } finally {
+            verify(mockLogger).addExceptionBreadcrumb(err)
+        }
+    }
+}
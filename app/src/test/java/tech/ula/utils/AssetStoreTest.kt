@@ -0,0 +1,114 @@
+package tech.ula.utils
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+import java.io.IOException
+import java.nio.file.Files
+
+// Os is not available on the jvm, so tests link through java.nio instead.
+fun createJvmAssetStore(storeDirectory: File): AssetStore {
+    return AssetStore(
+            storeDirectory,
+            linker = { sourcePath, targetPath -> Files.createLink(File(targetPath).toPath(), File(sourcePath).toPath()) },
+            linkCounter = { path -> (Files.getAttribute(File(path).toPath(), "unix:nlink") as Int).toLong() })
+}
+
+class AssetStoreTest {
+
+    @get:Rule val tempFolder = TemporaryFolder()
+
+    private lateinit var storeDirectory: File
+
+    private lateinit var assetStore: AssetStore
+
+    @Before
+    fun setup() {
+        storeDirectory = File(tempFolder.root, AssetStore.DIRECTORY_NAME)
+        assetStore = createJvmAssetStore(storeDirectory)
+    }
+
+    private fun File.isSameFileAs(other: File): Boolean {
+        return Files.isSameFile(this.toPath(), other.toPath())
+    }
+
+    @Test
+    fun `Identical assets share one blob`() {
+        val debianAsset = File(tempFolder.newFolder("debian"), "busybox")
+        val ubuntuAsset = File(tempFolder.newFolder("ubuntu"), "busybox")
+        debianAsset.writeText("binary")
+        ubuntuAsset.writeText("binary")
+
+        val debianBlob = assetStore.add(debianAsset)
+        val ubuntuBlob = assetStore.add(ubuntuAsset)
+
+        assertEquals(debianBlob, ubuntuBlob)
+        assertEquals(debianAsset.sha256(), debianBlob.name)
+        assertTrue(debianAsset.isSameFileAs(ubuntuAsset))
+        assertEquals("binary", ubuntuAsset.readText())
+        assertEquals(2, assetStore.getReferenceCount(debianBlob))
+        assertEquals(1, storeDirectory.listFiles()!!.size)
+    }
+
+    @Test
+    fun `addAll skips excluded and hidden files, directories and symlinks`() {
+        val directory = tempFolder.newFolder("debian")
+        File(directory, "asset").writeText("asset")
+        File(directory, "rootfs.tar.gz").writeText("rootfs")
+        File(directory, ".success").writeText("")
+        File(directory, "common").mkdirs()
+        Files.createSymbolicLink(File(directory, "sh").toPath(), File(directory, "asset").toPath())
+
+        assetStore.addAll(directory) { it.name.contains("rootfs") }
+
+        assertEquals(listOf(File(directory, "asset").sha256()), storeDirectory.list()!!.toList())
+    }
+
+    @Test
+    fun `Links assets into filesystems`() {
+        val asset = File(tempFolder.newFolder("debian"), "asset")
+        asset.writeText("asset")
+        val blob = assetStore.add(asset)
+        val target = File(tempFolder.newFolder("1", "support"), "asset")
+        target.writeText("old")
+
+        assetStore.linkInto(asset, target)
+
+        assertTrue(target.isSameFileAs(blob))
+        assertEquals(2, assetStore.getReferenceCount(blob))
+    }
+
+    @Test
+    fun `Copies assets if they can not be linked`() {
+        val failingStore = AssetStore(storeDirectory, linker = { _, _ -> throw IOException() }, linkCounter = { 1 })
+        val asset = File(tempFolder.newFolder("debian"), "asset")
+        asset.writeText("asset")
+        val target = File(tempFolder.newFolder("1", "support"), "asset")
+
+        failingStore.linkInto(asset, target)
+
+        assertEquals("asset", target.readText())
+    }
+
+    @Test
+    fun `Collects blobs that are no longer referenced`() {
+        val asset = File(tempFolder.newFolder("debian"), "asset")
+        asset.writeText("asset")
+        val blob = assetStore.add(asset)
+        val target = File(tempFolder.newFolder("1", "support"), "asset")
+        assetStore.linkInto(asset, target)
+
+        asset.delete()
+        assertEquals(0, assetStore.collectGarbage())
+        assertTrue(blob.exists())
+
+        target.delete()
+        assertEquals(1, assetStore.collectGarbage())
+        assertFalse(blob.exists())
+    }
+}
@@ -13,7 +13,6 @@ import org.junit.runner.RunWith
 import org.mockito.Mock
 import org.mockito.junit.MockitoJUnitRunner
 import java.io.File
-import java.nio.file.Files
 
 @RunWith(MockitoJUnitRunner::class)
 class BusyboxExecutorTest {
@@ -24,8 +23,6 @@ class BusyboxExecutorTest {
 
     private lateinit var mockFilesDir: File
 
-    private lateinit var mockExternalStorage: File
-
     private lateinit var mockFilesystemDir: File
 
     @Mock lateinit var mockProotDebugLogger: ProotDebugLogger
@@ -53,7 +50,6 @@ class BusyboxExecutorTest {
 
         mockFilesDir = tempFolder.newFolder("files")
         whenever(mockUlaFiles.filesDir).thenReturn(mockFilesDir)
-        mockExternalStorage = tempFolder.newFolder("external")
 
         mockFilesystemDir = File("${mockFilesDir.absolutePath}/$testFilesystemDirName")
         mockFilesDir.mkdirs()
@@ -278,86 +274,4 @@ class BusyboxExecutorTest {
 
         assertTrue(result is FailedExecution)
     }
-
-    @Test
-    fun `Recursively deletes files`() = runBlocking {
-        val testDirName = "testDir"
-        val testDir = File("${mockFilesDir.absolutePath}/$testDirName")
-        val testFileName = "testFile"
-        val testFile = File("${testDir.absolutePath}/$testFileName")
-
-        testDir.mkdirs()
-        assertTrue(testDir.exists() && testDir.isDirectory)
-        testFile.createNewFile()
-        assertTrue(testFile.exists())
-
-        val command = "rm -rf ${testDir.absolutePath}"
-        stubBusyboxIsPresent(true)
-        stubBusyboxCommand(command)
-        stubBusyboxEnv()
-
-        val result = busyboxExecutor.recursivelyDelete(testDir.absolutePath)
-
-        assertTrue(result is SuccessfulExecution)
-        assertTrue(mockFilesDir.exists())
-        assertFalse(testDir.exists())
-        assertFalse(testFile.exists())
-    }
-
-    @Test
-    fun `Calling recursivelyDelete on a single file also works`() = runBlocking {
-        val testFileName = "testFile"
-        val testFile = File("${mockFilesDir.absolutePath}/$testFileName")
-
-        testFile.createNewFile()
-        assertTrue(testFile.exists())
-
-        val command = "rm -rf ${testFile.absolutePath}"
-        stubBusyboxIsPresent(true)
-        stubBusyboxCommand(command)
-        stubBusyboxEnv()
-
-        val result = busyboxExecutor.recursivelyDelete(testFile.absolutePath)
-
-        assertTrue(result is SuccessfulExecution)
-        assertTrue(mockFilesDir.exists())
-        assertFalse(testFile.exists())
-    }
-
-    @Test
-    fun `recursivelyDelete does not follow symbolic links`() = runBlocking {
-        val originalTestDirName = "testDir"
-        val originalTestDir = File("${mockExternalStorage.absolutePath}/$originalTestDirName")
-        val originalTestFileName = "testFile"
-        val originalTestFile = File("${originalTestDir.absolutePath}/$originalTestFileName")
-
-        originalTestDir.mkdirs()
-        assertTrue(originalTestDir.exists() && originalTestDir.isDirectory)
-        originalTestFile.createNewFile()
-        assertTrue(originalTestFile.exists())
-
-        val symbolicDirLinkFile = File("$mockFilesDir/testSymDir")
-        val symbolicDirLinkPath = symbolicDirLinkFile.toPath()
-        assertFalse(symbolicDirLinkFile.exists())
-
-        Files.createSymbolicLink(symbolicDirLinkPath, originalTestDir.toPath())
-        assertTrue(symbolicDirLinkFile.exists())
-        assertTrue(Files.isSymbolicLink(symbolicDirLinkPath))
-
-        val linkedFile = File("${symbolicDirLinkFile.absolutePath}/$originalTestFileName")
-        assertTrue(linkedFile.exists())
-
-        val command = "rm -rf ${symbolicDirLinkFile.absolutePath}"
-        stubBusyboxIsPresent(true)
-        stubBusyboxCommand(command)
-        stubBusyboxEnv()
-
-        val result = busyboxExecutor.recursivelyDelete(symbolicDirLinkFile.absolutePath)
-
-        assertTrue(result is SuccessfulExecution)
-        assertFalse(symbolicDirLinkFile.exists())
-        assertFalse(linkedFile.exists())
-        assertTrue(originalTestDir.exists())
-        assertTrue(originalTestFile.exists())
-    }
-}
\ No newline at end of file
+}
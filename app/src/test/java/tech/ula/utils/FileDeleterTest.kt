@@ -0,0 +1,117 @@
+package tech.ula.utils
+
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+import java.io.IOException
+import java.nio.file.Files
+import java.nio.file.LinkOption
+import java.nio.file.attribute.PosixFilePermission
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.atomic.AtomicLong
+
+class FileDeleterTest {
+
+    @get:Rule val tempFolder = TemporaryFolder()
+
+    private lateinit var pool: ForkJoinPool
+
+    private lateinit var fileDeleter: FileDeleter
+
+    private val modeReader: (String) -> Int = { path ->
+        Files.getAttribute(File(path).toPath(), "unix:mode", LinkOption.NOFOLLOW_LINKS) as Int
+    }
+
+    private val modeWriter: (String, Int) -> Unit = { path, mode ->
+        val permissions = PosixFilePermission.values().filterIndexed { index, _ -> (mode and (256 shr index)) != 0 }
+        Files.setPosixFilePermissions(File(path).toPath(), permissions.toSet())
+    }
+
+    @Before
+    fun setup() {
+        pool = ForkJoinPool(4)
+        fileDeleter = FileDeleter(modeReader, modeWriter, pool)
+    }
+
+    @After
+    fun teardown() {
+        // Read-only directories left by failed deletes would keep the temporary folder around.
+        tempFolder.root.walkTopDown().forEach { it.setWritable(true) }
+        pool.shutdownNow()
+    }
+
+    private fun createTree(root: File): Int {
+        var entries = 1
+        for (directory in 0 until 8) {
+            for (file in 0 until 8) {
+                val target = File(root, "usr/$directory/$file")
+                target.parentFile!!.mkdirs()
+                target.writeText("$directory/$file")
+                entries++
+            }
+            entries++
+        }
+        return entries + 1
+    }
+
+    @Test
+    fun `Deletes trees and reports each entry deleted`() {
+        val root = tempFolder.newFolder("1")
+        val entries = createTree(root)
+        val entriesDeleted = AtomicLong()
+
+        fileDeleter.delete(root) { entriesDeleted.incrementAndGet() }
+
+        assertFalse(root.exists())
+        assertEquals(entries.toLong(), entriesDeleted.get())
+    }
+
+    @Test
+    fun `Resets directories that were made read-only`() {
+        val root = tempFolder.newFolder("1")
+        val file = File(root, "etc/ssl/private/key")
+        file.parentFile!!.mkdirs()
+        file.writeText("key")
+        file.setWritable(false)
+        modeWriter(file.parent, 320) // 0500
+        modeWriter(File(root, "etc").path, 0) // 0000
+
+        fileDeleter.delete(root)
+
+        assertFalse(root.exists())
+    }
+
+    @Test
+    fun `Does not follow symlinks`() {
+        val root = tempFolder.newFolder("1")
+        val outside = tempFolder.newFolder("outside")
+        File(outside, "file").writeText("outside")
+        Files.createSymbolicLink(File(root, "link").toPath(), outside.toPath())
+
+        fileDeleter.delete(root)
+
+        assertFalse(root.exists())
+        assertTrue(File(outside, "file").exists())
+    }
+
+    @Test
+    fun `Files that do not exist are already deleted`() {
+        fileDeleter.delete(File(tempFolder.root, "missing"))
+    }
+
+    @Test(expected = IOException::class)
+    fun `Throws if anything can not be deleted`() {
+        val failingDeleter = FileDeleter(modeReader, { _, _ -> throw IOException() }, pool)
+        val root = tempFolder.newFolder("1")
+        File(root, "file").writeText("file")
+        modeWriter(root.path, 320) // 0500
+
+        failingDeleter.delete(root)
+    }
+}
@@ -0,0 +1,336 @@
+package tech.ula.utils
+
+import com.nhaarman.mockitokotlin2.any
+import com.nhaarman.mockitokotlin2.verify
+import com.nhaarman.mockitokotlin2.whenever
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Ignore
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+import org.mockito.Mock
+import org.mockito.junit.MockitoJUnitRunner
+import java.io.ByteArrayOutputStream
+import java.io.File
+import java.io.IOException
+import java.nio.file.Files
+import java.nio.file.LinkOption
+import java.nio.file.attribute.PosixFilePermissions
+import java.util.Random
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.zip.GZIPInputStream
+import java.util.zip.GZIPOutputStream
+
+@RunWith(MockitoJUnitRunner::class)
+class FilesystemArchiverTest {
+
+    @get:Rule val tempFolder = TemporaryFolder()
+
+    @Mock lateinit var mockSymlinker: Symlinker
+
+    private lateinit var rootfs: File
+
+    private lateinit var executor: ExecutorService
+
+    private lateinit var filesystemArchiver: FilesystemArchiver
+
+    private val modeReader: (String) -> Int = { path ->
+        Files.getAttribute(File(path).toPath(), "unix:mode", LinkOption.NOFOLLOW_LINKS) as Int
+    }
+
+    private val inodeReader: (String) -> Long = { path ->
+        Files.getAttribute(File(path).toPath(), "unix:ino", LinkOption.NOFOLLOW_LINKS) as Long
+    }
+
+    private val writtenModes = mutableMapOf<String, Int>()
+
+    @Before
+    fun setup() {
+        rootfs = tempFolder.newFolder("1")
+        executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors())
+        filesystemArchiver = createArchiver(executor)
+    }
+
+    private fun createArchiver(executor: ExecutorService): FilesystemArchiver {
+        return FilesystemArchiver(mockSymlinker, modeReader, executor, inodeReader, { path, mode -> writtenModes[path] = mode })
+    }
+
+    @After
+    fun teardown() {
+        executor.shutdownNow()
+    }
+
+    private fun stubSymlinkReads() {
+        whenever(mockSymlinker.readSymlink(any())).thenAnswer {
+            val path = File(it.getArgument<String>(0)).toPath()
+            if (Files.isSymbolicLink(path)) Files.readSymbolicLink(path).toString() else null
+        }
+    }
+
+    private fun readArchive(bytes: ByteArray): Map<String, Pair<TarArchiveEntry, String>> {
+        val entries = mutableMapOf<String, Pair<TarArchiveEntry, String>>()
+        TarArchiveInputStream(GZIPInputStream(bytes.inputStream())).use { tarStream ->
+            var entry = tarStream.nextTarEntry
+            while (entry != null) {
+                entries[entry.name] = entry to tarStream.readBytes().toString(Charsets.UTF_8)
+                entry = tarStream.nextTarEntry
+            }
+        }
+        return entries
+    }
+
+    @Test
+    fun `Archives files, directories and modes, skipping the support directory`() {
+        stubSymlinkReads()
+        val script = File(rootfs, "usr/bin/script")
+        script.parentFile!!.mkdirs()
+        script.writeText("#!/bin/sh")
+        script.setExecutable(true)
+        File(rootfs, "support").mkdirs()
+        File(rootfs, "support/busybox").writeText("busybox")
+        val outputStream = ByteArrayOutputStream()
+        val archivedNames = mutableListOf<String>()
+
+        filesystemArchiver.archive(rootfs, outputStream, listener = { archivedNames.add(it) })
+
+        val entries = readArchive(outputStream.toByteArray())
+        val expectedNames = setOf("./usr/", "./usr/bin/", "./usr/bin/script", "./support/backup.header", "./support/backup.manifest")
+        assertEquals(expectedNames, entries.keys)
+        val (scriptEntry, scriptContent) = entries.getValue("./usr/bin/script")
+        assertEquals("#!/bin/sh", scriptContent)
+        assertEquals(modeReader(script.path), scriptEntry.mode)
+        assertEquals(0, scriptEntry.longUserId)
+        assertTrue(entries.getValue("./usr/bin/").first.isDirectory)
+        assertEquals(listOf("./usr", "./usr/bin", "./usr/bin/script"), archivedNames.sorted())
+    }
+
+    @Test
+    fun `Archives the modes shared files of a clone had before they were write protected`() {
+        stubSymlinkReads()
+        val binary = File(rootfs, "usr/bin/bash")
+        val changedBinary = File(rootfs, "usr/bin/sh")
+        binary.parentFile!!.mkdirs()
+        binary.writeText("bash")
+        changedBinary.writeText("sh")
+        Files.setPosixFilePermissions(binary.toPath(), PosixFilePermissions.fromString("r-xr-xr-x"))
+        Files.setPosixFilePermissions(changedBinary.toPath(), PosixFilePermissions.fromString("rwxr-xr-x"))
+        File(rootfs, FilesystemCloner.SHARED_FILE_MODES_PATH).apply { parentFile!!.mkdirs() }
+                .writeText("755 usr/bin/bash\n555 usr/bin/sh\n")
+        val outputStream = ByteArrayOutputStream()
+
+        filesystemArchiver.archive(rootfs, outputStream)
+
+        val entries = readArchive(outputStream.toByteArray())
+        assertEquals(493, entries.getValue("./usr/bin/bash").first.mode and 4095) // 0755
+        assertEquals(493, entries.getValue("./usr/bin/sh").first.mode and 4095)
+    }
+
+    @Test
+    fun `Archives symlinks into the filesystem as paths inside the guest`() {
+        stubSymlinkReads()
+        File(rootfs, "usr/bin").mkdirs()
+        Files.createSymbolicLink(File(rootfs, "bin").toPath(), File("usr/bin").toPath())
+        Files.createSymbolicLink(File(rootfs, "usr/bin/perl").toPath(), File(rootfs, "usr/bin/.l2s.perl0001").toPath())
+        val outputStream = ByteArrayOutputStream()
+
+        filesystemArchiver.archive(rootfs, outputStream)
+
+        val entries = readArchive(outputStream.toByteArray())
+        assertEquals("usr/bin", entries.getValue("./bin").first.linkName)
+        assertEquals("/usr/bin/.l2s.perl0001", entries.getValue("./usr/bin/perl").first.linkName)
+        assertTrue(entries.getValue("./usr/bin/perl").first.isSymbolicLink)
+    }
+
+    @Test
+    fun `Reports progress in compressed bytes written`() {
+        stubSymlinkReads()
+        File(rootfs, "file").writeText("content".repeat(1000))
+        val outputStream = ByteArrayOutputStream()
+        var bytesWritten = 0L
+
+        filesystemArchiver.archive(rootfs, outputStream, onProgress = { bytesWritten = it })
+
+        assertEquals(outputStream.size().toLong(), bytesWritten)
+    }
+
+    @Test(expected = IOException::class)
+    fun `Throws if the filesystem can not be read`() {
+        filesystemArchiver.archive(File(tempFolder.root, "missing"), ByteArrayOutputStream())
+    }
+
+    @Test
+    fun `Records every archived path in the manifest`() {
+        stubSymlinkReads()
+        val script = File(rootfs, "usr/bin/script")
+        script.parentFile!!.mkdirs()
+        script.writeText("#!/bin/sh")
+        val outputStream = ByteArrayOutputStream()
+
+        val manifest = filesystemArchiver.archive(rootfs, outputStream)
+
+        assertEquals(setOf("usr", "usr/bin", "usr/bin/script"), manifest.entries.keys)
+        val scriptEntry = manifest.entries.getValue("usr/bin/script")
+        assertEquals(script.sha256(), scriptEntry.sha256)
+        assertEquals(script.length(), scriptEntry.size)
+        assertEquals(inodeReader(script.path), scriptEntry.inode)
+        assertFalse(manifest.isIncrement)
+        val archivedManifest = BackupManifest.read(readArchive(outputStream.toByteArray())
+                .getValue("./support/backup.manifest").second.byteInputStream())
+        assertEquals(manifest.id, archivedManifest.id)
+        assertEquals(manifest.entries, archivedManifest.entries)
+        val header = filesystemArchiver.readHeader(outputStream.toByteArray().inputStream())!!
+        assertEquals(manifest.id, header.id)
+    }
+
+    @Test
+    fun `Increments only hold what changed and the paths deleted since the previous backup`() {
+        stubSymlinkReads()
+        File(rootfs, "etc").mkdirs()
+        File(rootfs, "etc/unchanged").writeText("unchanged")
+        File(rootfs, "etc/changed").writeText("before")
+        File(rootfs, "etc/deleted").writeText("deleted")
+        val base = filesystemArchiver.archive(rootfs, ByteArrayOutputStream())
+        File(rootfs, "etc/changed").writeText("after, and longer")
+        File(rootfs, "etc/deleted").delete()
+        File(rootfs, "etc/added").writeText("added")
+        val outputStream = ByteArrayOutputStream()
+
+        val increment = filesystemArchiver.archive(rootfs, outputStream, previousManifest = base)
+
+        val entries = readArchive(outputStream.toByteArray())
+        val expectedNames = setOf("./etc/", "./etc/changed", "./etc/added",
+                "./support/backup.header", "./support/backup.manifest", "./support/backup.deletions")
+        assertEquals(expectedNames, entries.keys)
+        assertEquals("etc/deleted\n", entries.getValue("./support/backup.deletions").second)
+        assertEquals(base.id, increment.parentId)
+        assertEquals(1, increment.incrementNumber)
+        assertEquals(base.entries.getValue("etc/unchanged"), increment.entries.getValue("etc/unchanged"))
+        assertEquals(File(rootfs, "etc/changed").sha256(), increment.entries.getValue("etc/changed").sha256)
+        assertFalse(increment.entries.containsKey("etc/deleted"))
+    }
+
+    @Test
+    fun `Restoring a base and its increments recreates the latest tree`() {
+        stubSymlinkReads()
+        File(rootfs, "etc").mkdirs()
+        File(rootfs, "etc/unchanged").writeText("unchanged")
+        File(rootfs, "etc/changed").writeText("before")
+        File(rootfs, "etc/deleted").mkdirs()
+        File(rootfs, "etc/deleted/file").writeText("deleted")
+        Files.createSymbolicLink(File(rootfs, "link").toPath(), File("etc/unchanged").toPath())
+        val base = ByteArrayOutputStream()
+        val baseManifest = filesystemArchiver.archive(rootfs, base)
+        File(rootfs, "etc/changed").writeText("after, and longer")
+        File(rootfs, "etc/deleted").deleteRecursively()
+        File(rootfs, "etc/added").writeText("added")
+        val increment = ByteArrayOutputStream()
+        filesystemArchiver.archive(rootfs, increment, previousManifest = baseManifest)
+        val restored = tempFolder.newFolder("2")
+
+        filesystemArchiver.restore(restored, base.toByteArray().inputStream())
+        val manifest = filesystemArchiver.restore(restored, increment.toByteArray().inputStream())
+
+        assertEquals("unchanged", File(restored, "etc/unchanged").readText())
+        assertEquals("after, and longer", File(restored, "etc/changed").readText())
+        assertEquals("added", File(restored, "etc/added").readText())
+        assertFalse(File(restored, "etc/deleted").exists())
+        assertFalse(File(restored, "support").exists())
+        assertEquals(baseManifest.id, manifest!!.parentId)
+        assertEquals(modeReader(File(rootfs, "etc/added").path) and 4095, writtenModes[File(restored, "etc/added").path])
+        verify(mockSymlinker).createSymlink("etc/unchanged", File(restored, "link").path)
+    }
+
+    @Test
+    fun `Records and deletes paths containing line breaks and backslashes`() {
+        stubSymlinkReads()
+        val name = "odd\nname\\with\rbreaks"
+        File(rootfs, "etc").mkdirs()
+        File(rootfs, "etc/$name").writeText("odd")
+        val base = ByteArrayOutputStream()
+        val baseManifest = filesystemArchiver.archive(rootfs, base)
+        File(rootfs, "etc/$name").delete()
+        val increment = ByteArrayOutputStream()
+        filesystemArchiver.archive(rootfs, increment, previousManifest = baseManifest)
+        val restored = tempFolder.newFolder("2")
+
+        val archivedManifest = BackupManifest.read(readArchive(base.toByteArray())
+                .getValue("./support/backup.manifest").second.byteInputStream())
+        filesystemArchiver.restore(restored, base.toByteArray().inputStream())
+        assertTrue(File(restored, "etc/$name").exists())
+        filesystemArchiver.restore(restored, increment.toByteArray().inputStream())
+
+        assertEquals(baseManifest.entries, archivedManifest.entries)
+        assertTrue(archivedManifest.entries.containsKey("etc/$name"))
+        assertFalse(File(restored, "etc/$name").exists())
+    }
+
+    @Test(expected = IOException::class)
+    fun `Refuses to restore paths outside the filesystem`() {
+        val outputStream = ByteArrayOutputStream()
+        TarArchiveOutputStream(GZIPOutputStream(outputStream)).use { tarStream ->
+            val entry = TarArchiveEntry("./../escaped")
+            entry.size = 1
+            tarStream.putArchiveEntry(entry)
+            tarStream.write(1)
+            tarStream.closeArchiveEntry()
+        }
+
+        filesystemArchiver.restore(rootfs, outputStream.toByteArray().inputStream())
+    }
+
+    @Ignore("Benchmark, run manually")
+    @Test
+    fun `Benchmark backup and restore throughput on a synthetic tree`() {
+        stubSymlinkReads()
+        val random = Random(0)
+        var treeBytes = 0L
+        for (directory in 0 until 64) {
+            for (file in 0 until 32) {
+                // Half random and half repetitive, which compresses roughly like binaries and text.
+                val content = ByteArray(64 * 1024)
+                random.nextBytes(content)
+                for (i in content.size / 2 until content.size) content[i] = (i % 64).toByte()
+                val target = File(rootfs, "usr/lib/$directory/$file")
+                target.parentFile!!.mkdirs()
+                target.writeBytes(content)
+                treeBytes += content.size
+            }
+        }
+        val megabytes = treeBytes / (1024.0 * 1024.0)
+
+        val serialExecutor = Executors.newSingleThreadExecutor()
+        val serial = ByteArrayOutputStream()
+        val serialMillis = measure { createArchiver(serialExecutor).archive(rootfs, serial) }
+        serialExecutor.shutdownNow()
+
+        val parallel = ByteArrayOutputStream()
+        val parallelMillis = measure { filesystemArchiver.archive(rootfs, parallel) }
+
+        val restoreMillis = measure { readArchive(parallel.toByteArray()) }
+
+        println("Tree: %.1f MiB, archive: %.1f MiB".format(megabytes, parallel.size() / (1024.0 * 1024.0)))
+        println("Backup, 1 thread: %.1f MiB/s".format(megabytes * 1000 / serialMillis))
+        println("Backup, ${Runtime.getRuntime().availableProcessors()} threads: %.1f MiB/s".format(megabytes * 1000 / parallelMillis))
+        println("Restore: %.1f MiB/s".format(megabytes * 1000 / restoreMillis))
+
+        // Compare against a single stream gzip, which is how backups used to be compressed.
+        val tar = GZIPInputStream(serial.toByteArray().inputStream()).use { it.readBytes() }
+        val singleStreamMillis = measure { GZIPOutputStream(ByteArrayOutputStream()).use { it.write(tar) } }
+        println("Single stream gzip: %.1f MiB/s".format(megabytes * 1000 / singleStreamMillis))
+    }
+
+    private fun measure(block: () -> Unit): Long {
+        val start = System.nanoTime()
+        block()
+        return maxOf((System.nanoTime() - start) / 1_000_000, 1)
+    }
+}
@@ -0,0 +1,220 @@
+package tech.ula.utils
+
+import com.nhaarman.mockitokotlin2.any
+import com.nhaarman.mockitokotlin2.verify
+import com.nhaarman.mockitokotlin2.whenever
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Assume.assumeFalse
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+import org.mockito.Mock
+import org.mockito.junit.MockitoJUnitRunner
+import java.io.File
+import java.io.IOException
+import java.nio.file.Files
+import java.nio.file.attribute.PosixFilePermissions
+
+@RunWith(MockitoJUnitRunner::class)
+class FilesystemClonerTest {
+
+    @get:Rule val tempFolder = TemporaryFolder()
+
+    @Mock lateinit var mockSymlinker: Symlinker
+
+    private val copiedModes = mutableListOf<String>()
+
+    private val writeProtectedPaths = mutableListOf<String>()
+
+    private val originalMode = 493 // 0755
+
+    private lateinit var source: File
+    private lateinit var target: File
+
+    private lateinit var filesystemCloner: FilesystemCloner
+
+    @Before
+    fun setup() {
+        source = tempFolder.newFolder("1")
+        target = File(tempFolder.root, "2")
+        filesystemCloner = FilesystemCloner(
+                mockSymlinker,
+                linker = { sourcePath, targetPath -> Files.createLink(File(targetPath).toPath(), File(sourcePath).toPath()) },
+                modeCopier = { _, targetPath -> copiedModes.add(targetPath) },
+                writeProtector = { path ->
+                    writeProtectedPaths.add(path)
+                    originalMode
+                })
+        copiedModes.clear()
+        writeProtectedPaths.clear()
+    }
+
+    private fun stubSymlinkReads() {
+        whenever(mockSymlinker.readSymlink(any())).thenAnswer {
+            val path = File(it.getArgument<String>(0)).toPath()
+            if (Files.isSymbolicLink(path)) Files.readSymbolicLink(path).toString() else null
+        }
+    }
+
+    private fun File.isSameFileAs(other: File): Boolean {
+        return Files.isSameFile(this.toPath(), other.toPath())
+    }
+
+    @Test
+    fun `Links shared directories and copies the rest`() {
+        stubSymlinkReads()
+        val binary = File(source, "usr/bin/bash")
+        val config = File(source, "etc/bash.bashrc")
+        binary.parentFile!!.mkdirs()
+        config.parentFile!!.mkdirs()
+        binary.writeText("bash")
+        config.writeText("config")
+
+        filesystemCloner.clone(source, target)
+
+        val clonedBinary = File(target, "usr/bin/bash")
+        val clonedConfig = File(target, "etc/bash.bashrc")
+        assertTrue(clonedBinary.isSameFileAs(binary))
+        assertEquals("config", clonedConfig.readText())
+        assertFalse(clonedConfig.isSameFileAs(config))
+        assertTrue(copiedModes.contains(clonedConfig.path))
+        assertTrue(copiedModes.contains(File(target, "usr/bin").path))
+    }
+
+    @Test
+    fun `Bases are independent copies with write protected shared files`() {
+        stubSymlinkReads()
+        val binary = File(source, "usr/bin/bash")
+        val config = File(source, "etc/bash.bashrc")
+        binary.parentFile!!.mkdirs()
+        config.parentFile!!.mkdirs()
+        binary.writeText("bash")
+        config.writeText("config")
+
+        filesystemCloner.createBase(source, target)
+
+        val baseBinary = File(target, "usr/bin/bash")
+        val baseConfig = File(target, "etc/bash.bashrc")
+        assertEquals("bash", baseBinary.readText())
+        assertFalse(baseBinary.isSameFileAs(binary))
+        assertFalse(baseConfig.isSameFileAs(config))
+        assertEquals(listOf(baseBinary.path), writeProtectedPaths)
+    }
+
+    @Test
+    fun `Records the modes shared files had before they were write protected, and clones keep the record`() {
+        stubSymlinkReads()
+        val binary = File(source, "usr/bin/bash")
+        binary.parentFile!!.mkdirs()
+        binary.writeText("bash")
+        File(source, "etc").mkdirs()
+        File(source, "etc/bash.bashrc").writeText("config")
+        val base = File(tempFolder.root, "base")
+
+        filesystemCloner.createBase(source, base)
+        filesystemCloner.clone(base, target)
+
+        assertEquals(mapOf("usr/bin/bash" to originalMode), FilesystemCloner.readSharedFileModes(base))
+        assertEquals(mapOf("usr/bin/bash" to originalMode), FilesystemCloner.readSharedFileModes(target))
+        assertEquals(mapOf<String, Int>(), FilesystemCloner.readSharedFileModes(source))
+    }
+
+    @Test
+    fun `Copies usr local instead of linking it`() {
+        stubSymlinkReads()
+        val script = File(source, "usr/local/bin/script")
+        script.parentFile!!.mkdirs()
+        script.writeText("script")
+
+        filesystemCloner.clone(source, target)
+
+        val clonedScript = File(target, "usr/local/bin/script")
+        assertEquals("script", clonedScript.readText())
+        assertFalse(clonedScript.isSameFileAs(script))
+    }
+
+    @Test
+    fun `Writing to a shared file in one clone changes neither the base nor other clones`() {
+        assumeFalse("Root ignores file modes", System.getProperty("user.name") == "root")
+        stubSymlinkReads()
+        val protectingCloner = FilesystemCloner(
+                mockSymlinker,
+                linker = { sourcePath, targetPath -> Files.createLink(File(targetPath).toPath(), File(sourcePath).toPath()) },
+                modeCopier = { _, _ -> },
+                writeProtector = { path ->
+                    Files.setPosixFilePermissions(File(path).toPath(), PosixFilePermissions.fromString("r--r--r--"))
+                    originalMode
+                })
+        val binary = File(source, "usr/bin/bash")
+        binary.parentFile!!.mkdirs()
+        binary.writeText("bash")
+        val base = File(tempFolder.root, "base")
+        val otherTarget = File(tempFolder.root, "3")
+
+        protectingCloner.createBase(source, base)
+        protectingCloner.clone(base, target)
+        protectingCloner.clone(base, otherTarget)
+        binary.appendText(" from the extracted filesystem")
+        try {
+            File(target, "usr/bin/bash").appendText(" from a clone")
+        } catch (err: IOException) {
+        }
+
+        assertEquals("bash", File(base, "usr/bin/bash").readText())
+        assertEquals("bash", File(target, "usr/bin/bash").readText())
+        assertEquals("bash", File(otherTarget, "usr/bin/bash").readText())
+    }
+
+    @Test
+    fun `Skips the support directory`() {
+        File(source, "support").mkdirs()
+        File(source, "support/.success_filesystem_extraction").createNewFile()
+
+        filesystemCloner.clone(source, target)
+
+        assertTrue(target.isDirectory)
+        assertFalse(File(target, "support").exists())
+    }
+
+    @Test
+    fun `Recreates symlinks, pointing absolute links inside the source into the clone`() {
+        stubSymlinkReads()
+        File(source, "usr/lib").mkdirs()
+        File(source, "usr/bin").mkdirs()
+        Files.createSymbolicLink(File(source, "lib").toPath(), File("usr/lib").toPath())
+        Files.createSymbolicLink(File(source, "usr/bin/perl").toPath(), File(source, "usr/bin/.l2s.perl0001").toPath())
+
+        filesystemCloner.clone(source, target)
+
+        verify(mockSymlinker).createSymlink("usr/lib", File(target, "lib").path)
+        verify(mockSymlinker).createSymlink("${target.absolutePath}/usr/bin/.l2s.perl0001", File(target, "usr/bin/perl").path)
+    }
+
+    @Test
+    fun `Copies shared files that can not be linked`() {
+        stubSymlinkReads()
+        val failingCloner = FilesystemCloner(
+                mockSymlinker,
+                linker = { _, _ -> throw IOException() },
+                modeCopier = { _, targetPath -> copiedModes.add(targetPath) })
+        val binary = File(source, "usr/bin/bash")
+        binary.parentFile!!.mkdirs()
+        binary.writeText("bash")
+
+        failingCloner.clone(source, target)
+
+        val clonedBinary = File(target, "usr/bin/bash")
+        assertEquals("bash", clonedBinary.readText())
+        assertFalse(clonedBinary.isSameFileAs(binary))
+        assertTrue(copiedModes.contains(clonedBinary.path))
+    }
+
+    @Test(expected = IOException::class)
+    fun `Throws if the source can not be read`() {
+        filesystemCloner.clone(File(tempFolder.root, "missing"), target)
+    }
+}
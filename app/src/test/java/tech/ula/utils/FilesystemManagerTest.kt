@@ -12,8 +12,13 @@ import org.mockito.Mock
 import org.mockito.junit.MockitoJUnitRunner
 import tech.ula.model.entities.Asset
 import tech.ula.model.entities.Filesystem
+import java.io.ByteArrayOutputStream
 import java.io.File
 import java.io.IOException
+import java.io.InputStream
+import java.nio.file.Files
+import java.util.Random
+import java.util.zip.GZIPOutputStream
 
 @RunWith(MockitoJUnitRunner::class)
 class FilesystemManagerTest {
@@ -28,8 +33,18 @@ class FilesystemManagerTest {
 
     @Mock lateinit var mockLogger: Logger
 
+    @Mock lateinit var mockFilesystemCloner: FilesystemCloner
+
+    @Mock lateinit var mockFilesystemArchiver: FilesystemArchiver
+
+    @Mock lateinit var mockFileDeleter: FileDeleter
+
+    @Mock lateinit var mockProcFsReader: ProcFsReader
+
     private val statelessListener: (line: String) -> Unit = { }
 
+    private lateinit var assetStore: AssetStore
+
     private lateinit var filesystemManager: FilesystemManager
 
     private val filesystemExtractionSuccess = ".success_filesystem_extraction"
@@ -39,7 +54,12 @@ class FilesystemManagerTest {
     fun setup() {
         applicationFilesDirPath = tempFolder.root.path
         whenever(mockUlaFiles.filesDir).thenReturn(tempFolder.root)
-        filesystemManager = FilesystemManager(mockUlaFiles, mockBusyboxExecutor, mockLogger)
+        assetStore = createJvmAssetStore(File(tempFolder.root, AssetStore.DIRECTORY_NAME))
+        filesystemManager = FilesystemManager(mockUlaFiles, mockBusyboxExecutor, mockLogger, assetStore, mockFilesystemCloner, mockFilesystemArchiver, mockFileDeleter, mockProcFsReader)
+    }
+
+    private fun createCloningFilesystemManager(): FilesystemManager {
+        return FilesystemManager(mockUlaFiles, mockBusyboxExecutor, mockLogger, assetStore, mockFilesystemCloner, mockFilesystemArchiver, mockFileDeleter, mockProcFsReader, filesystemCloningEnabled = true)
     }
 
     @Test
@@ -110,64 +130,290 @@ class FilesystemManagerTest {
     }
 
     @Test
-    fun `compressFilesystem uses correct command and environment`() {
-        val command = "/support/common/compressFilesystem.sh"
+    fun `extractFilesystem reports how much of the rootfs has been read`() {
+        val filesystem = Filesystem(0, "apps")
+        val supportDirectory = File(tempFolder.root, "${filesystem.id}/support")
+        supportDirectory.mkdirs()
+        val rootfsArchive = File(supportDirectory, "rootfs.tar.gz")
+        rootfsArchive.writeBytes(ByteArray(100))
+
+        whenever(mockProcFsReader.findOpenFileOffset(rootfsArchive))
+                .thenReturn(40)
+        whenever(mockBusyboxExecutor.executeProotCommand(any(), any(), any(), any(), any(), anyOrNull()))
+                .thenAnswer {
+                    // Long enough for the poller to sample the offset.
+                    Thread.sleep(1000)
+                    SuccessfulExecution
+                }
+        val progress = mutableListOf<Pair<Long, Long>>()
+
+        val result = runBlocking {
+            filesystemManager.extractFilesystem(filesystem, statelessListener) { bytesExtracted, totalBytes ->
+                synchronized(progress) { progress.add(bytesExtracted to totalBytes) }
+            }
+        }
+
+        assertEquals(SuccessfulExecution, result)
+        // Unchanged offsets are only reported once.
+        assertEquals(listOf(40L to 100L), progress)
+    }
+
+    @Test
+    fun `cloneFilesystem returns false if there is no base to clone`() {
+        val filesystem = Filesystem(id = 1, distributionType = "debian")
+
+        val result = runBlocking { createCloningFilesystemManager().cloneFilesystem(filesystem) }
+
+        assertFalse(result)
+        verify(mockFilesystemCloner, never()).clone(any(), any())
+    }
+
+    @Test
+    fun `Clones the saved base into filesystems that would be extracted the same way`() {
+        val extractedFilesystem = Filesystem(id = 1, distributionType = "debian", defaultUsername = "user")
+        val newFilesystem = Filesystem(id = 2, distributionType = "debian", defaultUsername = "user")
+        val base = File(tempFolder.root, ".bases/debian")
+        whenever(mockFilesystemCloner.createBase(eq(File("${tempFolder.root.path}/1")), any())).thenAnswer {
+            it.getArgument<File>(1).mkdirs()
+        }
+
+        val filesystemManager = createCloningFilesystemManager()
+        val result = runBlocking {
+            filesystemManager.saveBaseFilesystem(extractedFilesystem)
+            filesystemManager.cloneFilesystem(newFilesystem)
+        }
+
+        assertTrue(result)
+        assertTrue(base.isDirectory)
+        verify(mockFilesystemCloner).clone(base, File("${tempFolder.root.path}/2"))
+        assertTrue(filesystemManager.hasFilesystemBeenSuccessfullyExtracted("2"))
+    }
+
+    @Test
+    fun `Does not clone the base into filesystems with different credentials`() {
+        val extractedFilesystem = Filesystem(id = 1, distributionType = "debian", defaultUsername = "user")
+        val newFilesystem = Filesystem(id = 2, distributionType = "debian", defaultUsername = "other")
+        whenever(mockFilesystemCloner.createBase(any(), any())).thenAnswer {
+            it.getArgument<File>(1).mkdirs()
+        }
+
+        val filesystemManager = createCloningFilesystemManager()
+        val result = runBlocking {
+            filesystemManager.saveBaseFilesystem(extractedFilesystem)
+            filesystemManager.cloneFilesystem(newFilesystem)
+        }
+
+        assertFalse(result)
+        verify(mockFilesystemCloner, never()).clone(any(), any())
+    }
+
+    @Test
+    fun `Neither saves nor clones bases unless cloning is enabled`() {
+        val extractedFilesystem = Filesystem(id = 1, distributionType = "debian")
+        val newFilesystem = Filesystem(id = 2, distributionType = "debian")
+
+        val result = runBlocking {
+            filesystemManager.saveBaseFilesystem(extractedFilesystem)
+            filesystemManager.cloneFilesystem(newFilesystem)
+        }
+
+        assertFalse(result)
+        verify(mockFilesystemCloner, never()).createBase(any(), any())
+        verify(mockFilesystemCloner, never()).clone(any(), any())
+    }
+
+    @Test
+    fun `Removes partially cloned files and returns false if cloning fails`() {
+        val extractedFilesystem = Filesystem(id = 1, distributionType = "debian")
+        val newFilesystem = Filesystem(id = 2, distributionType = "debian")
+        val partialFile = File("${tempFolder.root.path}/2/usr")
+        whenever(mockFilesystemCloner.createBase(any(), any()))
+                .thenAnswer { it.getArgument<File>(1).mkdirs() }
+        whenever(mockFilesystemCloner.clone(any(), any()))
+                .thenAnswer {
+                    partialFile.mkdirs()
+                    throw IOException()
+                }
+        File("${tempFolder.root.path}/2/support").mkdirs()
+
+        val filesystemManager = createCloningFilesystemManager()
+        val result = runBlocking {
+            filesystemManager.saveBaseFilesystem(extractedFilesystem)
+            filesystemManager.cloneFilesystem(newFilesystem)
+        }
+
+        assertFalse(result)
+        verify(mockFileDeleter).delete(eq(partialFile), any())
+        verify(mockFileDeleter, never()).delete(eq(File("${tempFolder.root.path}/2/support")), any())
+    }
+
+    @Test
+    fun `exportFilesystem archives the filesystem directory into the output and keeps its manifest`() {
         val filesystem = Filesystem(id = 0, name = "backup", distributionType = "distType")
-        val externalStorageDirectory = tempFolder.root
+        val filesystemDirectory = tempFolder.newFolder("${filesystem.id}")
+        val outputStream = ByteArrayOutputStream()
+        val onProgress: (Long) -> Unit = { }
+        val manifest = BackupManifest(id = "first")
+        whenever(mockFilesystemArchiver.archive(filesystemDirectory, outputStream, statelessListener, onProgress, null))
+                .thenReturn(manifest)
 
-        val destinationName = "rootfs.tar.gz"
-        val destinationPath = "${externalStorageDirectory.absolutePath}/$destinationName"
-        val expectedEnv = hashMapOf("TAR_PATH" to destinationPath)
+        val result = runBlocking {
+            filesystemManager.exportFilesystem(filesystem, outputStream, false, statelessListener, onProgress)
+        }
 
-        whenever(mockBusyboxExecutor.executeProotCommand(
-                eq(command),
-                eq("${filesystem.id}"),
-                eq(true),
-                eq(expectedEnv),
-                eq(statelessListener),
-                anyOrNull()
-        ))
-                .thenReturn(SuccessfulExecution)
+        assertEquals(SuccessfulExecution, result)
+        assertTrue(filesystemManager.nextExportIsIncrement(filesystem))
+        val savedManifest = File(tempFolder.root, ".backups/0.manifest").inputStream().use { BackupManifest.read(it) }
+        assertEquals("first", savedManifest.id)
+    }
+
+    @Test
+    fun `exportFilesystem archives increments against the previous manifest`() {
+        val filesystem = Filesystem(id = 0, name = "backup", distributionType = "distType")
+        val filesystemDirectory = tempFolder.newFolder("${filesystem.id}")
+        val outputStream = ByteArrayOutputStream()
+        File(tempFolder.root, ".backups").mkdirs()
+        File(tempFolder.root, ".backups/0.manifest").outputStream().use { BackupManifest(id = "first").write(it) }
+        whenever(mockFilesystemArchiver.archive(eq(filesystemDirectory), eq(outputStream), any(), any(), argThat { id == "first" }))
+                .thenReturn(BackupManifest(id = "second", parentId = "first"))
 
         val result = runBlocking {
-            filesystemManager.compressFilesystem(filesystem, File(destinationPath), statelessListener)
+            filesystemManager.exportFilesystem(filesystem, outputStream, false, statelessListener)
         }
-        verify(mockBusyboxExecutor).executeProotCommand(
-                eq(command),
-                eq("${filesystem.id}"),
-                eq(true),
-                eq(expectedEnv),
-                eq(statelessListener),
-                anyOrNull()
-        )
-        assertTrue(result is SuccessfulExecution)
+
+        assertEquals(SuccessfulExecution, result)
+        val savedManifest = File(tempFolder.root, ".backups/0.manifest").inputStream().use { BackupManifest.read(it) }
+        assertEquals("second", savedManifest.id)
+        assertEquals("first", savedManifest.parentId)
     }
 
     @Test
-    fun `compressFilesystem logs failures`() {
-        val command = "/support/common/compressFilesystem.sh"
+    fun `exportFilesystem starts a new full backup once the previous one has enough increments`() {
         val filesystem = Filesystem(id = 0, name = "backup", distributionType = "distType")
-        val externalStorageDirectory = tempFolder.root
+        val filesystemDirectory = tempFolder.newFolder("${filesystem.id}")
+        val outputStream = ByteArrayOutputStream()
+        File(tempFolder.root, ".backups").mkdirs()
+        File(tempFolder.root, ".backups/0.manifest").outputStream().use {
+            BackupManifest(id = "eighth", parentId = "seventh", incrementNumber = 7).write(it)
+        }
+        whenever(mockFilesystemArchiver.archive(eq(filesystemDirectory), eq(outputStream), any(), any(), isNull()))
+                .thenReturn(BackupManifest(id = "full"))
 
-        val destinationName = "rootfs.tar.gz"
-        val destinationPath = "${externalStorageDirectory.absolutePath}/$destinationName"
-        val expectedEnv = hashMapOf("TAR_PATH" to destinationPath)
+        assertFalse(filesystemManager.nextExportIsIncrement(filesystem))
+        val result = runBlocking {
+            filesystemManager.exportFilesystem(filesystem, outputStream, false, statelessListener)
+        }
 
-        val failureReason = "reason"
-        whenever(mockBusyboxExecutor.executeProotCommand(
-                eq(command),
-                eq("${filesystem.id}"),
-                eq(true),
-                eq(expectedEnv),
-                eq(statelessListener),
-                anyOrNull()
-        ))
-                .thenReturn(FailedExecution(failureReason))
+        assertEquals(SuccessfulExecution, result)
+        assertTrue(filesystemManager.nextExportIsIncrement(filesystem))
+    }
+
+    @Test
+    fun `exportFilesystem makes a full backup when asked to even if an increment could follow`() {
+        val filesystem = Filesystem(id = 0, name = "backup", distributionType = "distType")
+        val filesystemDirectory = tempFolder.newFolder("${filesystem.id}")
+        val outputStream = ByteArrayOutputStream()
+        File(tempFolder.root, ".backups").mkdirs()
+        File(tempFolder.root, ".backups/0.manifest").outputStream().use { BackupManifest(id = "first").write(it) }
+        whenever(mockFilesystemArchiver.archive(eq(filesystemDirectory), eq(outputStream), any(), any(), isNull()))
+                .thenReturn(BackupManifest(id = "full"))
 
         val result = runBlocking {
-            filesystemManager.compressFilesystem(filesystem, File(destinationPath), statelessListener)
+            filesystemManager.exportFilesystem(filesystem, outputStream, true, statelessListener)
         }
-        assertEquals(FailedExecution(failureReason), result)
+
+        assertEquals(SuccessfulExecution, result)
+        val savedManifest = File(tempFolder.root, ".backups/0.manifest").inputStream().use { BackupManifest.read(it) }
+        assertEquals("full", savedManifest.id)
+    }
+
+    @Test
+    fun `exportFilesystem fails if the filesystem does not exist`() {
+        val filesystem = Filesystem(id = 0, name = "backup", distributionType = "distType")
+
+        val result = runBlocking {
+            filesystemManager.exportFilesystem(filesystem, ByteArrayOutputStream(), false, statelessListener)
+        }
+
+        assertTrue(result is FailedExecution)
+        assertFalse(filesystemManager.nextExportIsIncrement(filesystem))
+        verify(mockFilesystemArchiver, never()).archive(any(), any(), any(), any(), anyOrNull())
+    }
+
+    private fun createBackups(vararg backups: Pair<String, BackupManifest>): File {
+        val supportDirectory = tempFolder.newFolder("0", "support")
+        for ((name, header) in backups) {
+            File(supportDirectory, name).writeText(header.id)
+        }
+        whenever(mockFilesystemArchiver.readHeader(any())).thenAnswer { invocation ->
+            val id = invocation.getArgument<InputStream>(0).bufferedReader().readText()
+            backups.map { it.second }.first { it.id == id }
+        }
+        return supportDirectory
+    }
+
+    @Test
+    fun `restoreFilesystem applies the base and then each increment in order`() {
+        val filesystem = Filesystem(id = 0, name = "backup", distributionType = "distType", isCreatedFromBackup = true)
+        val supportDirectory = createBackups(
+                "rootfs.tar.gz.1" to BackupManifest(id = "third", parentId = "second"),
+                "rootfs.tar.gz" to BackupManifest(id = "first"),
+                "rootfs.tar.gz.2" to BackupManifest(id = "second", parentId = "first"))
+        val restored = mutableListOf<String>()
+        whenever(mockFilesystemArchiver.restore(eq(File(tempFolder.root, "0")), any(), eq(statelessListener)))
+                .thenAnswer { invocation ->
+                    restored.add(invocation.getArgument<InputStream>(1).bufferedReader().readText())
+                    null
+                }
+
+        assertTrue(filesystemManager.isIncrementalBackup("0"))
+        val result = runBlocking {
+            filesystemManager.restoreFilesystem(filesystem, statelessListener) { _, _ -> }
+        }
+
+        assertEquals(SuccessfulExecution, result)
+        assertEquals(listOf("first", "second", "third"), restored)
+        assertTrue(File(supportDirectory, filesystemExtractionSuccess).exists())
+    }
+
+    @Test
+    fun `restoreFilesystem fails if an increment is missing from the chain`() {
+        val filesystem = Filesystem(id = 0, name = "backup", distributionType = "distType", isCreatedFromBackup = true)
+        val supportDirectory = createBackups(
+                "rootfs.tar.gz" to BackupManifest(id = "first"),
+                "rootfs.tar.gz.1" to BackupManifest(id = "third", parentId = "second"))
+
+        val result = runBlocking {
+            filesystemManager.restoreFilesystem(filesystem, statelessListener) { _, _ -> }
+        }
+
+        assertTrue(result is FailedExecution)
+        assertFalse(File(supportDirectory, filesystemExtractionSuccess).exists())
+        verify(mockFilesystemArchiver, never()).restore(any(), any(), any())
+    }
+
+    @Test
+    fun `restoreFilesystem fails clearly if a single increment is imported`() {
+        val filesystem = Filesystem(id = 0, name = "backup", distributionType = "distType", isCreatedFromBackup = true)
+        val supportDirectory = createBackups(
+                "rootfs.tar.gz" to BackupManifest(id = "second", parentId = "first"))
+
+        assertTrue(filesystemManager.isIncrementalBackup("0"))
+        val result = runBlocking {
+            filesystemManager.restoreFilesystem(filesystem, statelessListener) { _, _ -> }
+        }
+
+        assertTrue((result as FailedExecution).reason.startsWith("Only increments were imported"))
+        assertFalse(File(supportDirectory, filesystemExtractionSuccess).exists())
+        verify(mockFilesystemArchiver, never()).restore(any(), any(), any())
+    }
+
+    @Test
+    fun `A single backup made elsewhere is not restored in-process`() {
+        val supportDirectory = tempFolder.newFolder("0", "support")
+        File(supportDirectory, "rootfs.tar.gz").createNewFile()
+
+        assertFalse(filesystemManager.isIncrementalBackup("0"))
     }
 
     @Test
@@ -191,9 +437,23 @@ class FilesystemManagerTest {
         filesystemManager.copyAssetsToFilesystem(filesystem)
 
         assertTrue(targetDirectory.exists())
-        targetFiles.forEach { file ->
-            verify(mockUlaFiles).makePermissionsUsable(targetDirectory.path, file.name)
-        }
+        targetFiles.forEach { assertTrue(it.exists()) }
+        verify(mockUlaFiles).makePermissionsUsable(eq(targetDirectory.path), argThat<List<String>> { toSet() == filenames.toSet() })
+    }
+
+    @Test
+    fun `copyAssetsToFilesystem links assets instead of copying them`() {
+        val filesystem = Filesystem(id = 0, distributionType = "dist")
+        val sharedDirectory = tempFolder.newFolder(filesystem.distributionType)
+        val sharedFile = File(sharedDirectory, "asset")
+        sharedFile.writeText("asset")
+        val blob = assetStore.add(sharedFile)
+
+        filesystemManager.copyAssetsToFilesystem(filesystem)
+
+        val targetFile = File("${tempFolder.root.path}/${filesystem.id}/support/asset")
+        assertTrue(Files.isSameFile(sharedFile.toPath(), targetFile.toPath()))
+        assertEquals(2, assetStore.getReferenceCount(blob))
     }
 
     @Test
@@ -217,10 +477,8 @@ class FilesystemManagerTest {
         filesystemManager.copyAssetsToFilesystem(filesystem)
 
         assertTrue(targetDirectory.exists())
-        targetFiles.forEach {
-            if (it.name.contains("rootfs.tar.gz")) return@forEach
-            verify(mockUlaFiles).makePermissionsUsable(targetDirectory.path, it.name)
-        }
+        val expectedFilenames = filenames.filter { !it.contains("rootfs.tar.gz") }.toSet()
+        verify(mockUlaFiles).makePermissionsUsable(eq(targetDirectory.path), argThat<List<String>> { toSet() == expectedFilenames })
     }
 
     @Test
@@ -302,6 +560,90 @@ class FilesystemManagerTest {
         fsFiles.forEach { assertFalse(it.exists()) }
     }
 
+    @Test
+    fun `Estimates the storage extraction needs from the gzip trailer`() {
+        val filesystem = Filesystem(id = 0)
+        val supportDirectory = File("${tempFolder.root.path}/${filesystem.id}/support")
+        supportDirectory.mkdirs()
+        GZIPOutputStream(File(supportDirectory, "rootfs.tar.gz").outputStream()).use { it.write(ByteArray(10 * 1048576)) }
+
+        assertEquals(11, filesystemManager.getRequiredExtractionStorageInMB(filesystem))
+    }
+
+    @Test
+    fun `Counts the base saved after extraction when cloning is enabled`() {
+        val filesystem = Filesystem(id = 0)
+        val supportDirectory = File("${tempFolder.root.path}/${filesystem.id}/support")
+        supportDirectory.mkdirs()
+        GZIPOutputStream(File(supportDirectory, "rootfs.tar.gz").outputStream()).use { it.write(ByteArray(10 * 1048576)) }
+
+        assertEquals(22, createCloningFilesystemManager().getRequiredExtractionStorageInMB(filesystem))
+    }
+
+    @Test
+    fun `Accounts for gzip trailer sizes that wrapped past 4 GiB`() {
+        val filesystem = Filesystem(id = 0)
+        val supportDirectory = File("${tempFolder.root.path}/${filesystem.id}/support")
+        supportDirectory.mkdirs()
+        val data = ByteArray(4096)
+        Random(0).nextBytes(data)
+        val archive = ByteArrayOutputStream()
+        GZIPOutputStream(archive).use { it.write(data) }
+        // Incompressible data recording a size of 4 GiB and 1 byte.
+        val wrappedArchive = archive.toByteArray()
+        wrappedArchive.fill(0, wrappedArchive.size - 4, wrappedArchive.size)
+        wrappedArchive[wrappedArchive.size - 4] = 1
+        File(supportDirectory, "rootfs.tar.gz").writeBytes(wrappedArchive)
+
+        assertEquals(4506, filesystemManager.getRequiredExtractionStorageInMB(filesystem))
+    }
+
+    @Test
+    fun `Estimates the storage extraction of a backup needs from the size it records`() {
+        val filesystem = Filesystem(id = 0)
+        val supportDirectory = File("${tempFolder.root.path}/${filesystem.id}/support")
+        supportDirectory.mkdirs()
+        ParallelGzipOutputStream(File(supportDirectory, "rootfs.tar.gz").outputStream()).use { it.write(ByteArray(10 * 1048576)) }
+
+        assertEquals(11, filesystemManager.getRequiredExtractionStorageInMB(filesystem))
+    }
+
+    @Test
+    fun `Does not estimate the storage other archives of several gzip members need`() {
+        val filesystem = Filesystem(id = 0)
+        val supportDirectory = File("${tempFolder.root.path}/${filesystem.id}/support")
+        supportDirectory.mkdirs()
+        File(supportDirectory, "rootfs.tar.gz").outputStream().use { archive ->
+            GZIPOutputStream(archive).apply { write(ByteArray(10 * 1048576)) }.finish()
+            GZIPOutputStream(archive).apply { write(ByteArray(1048576)) }.finish()
+        }
+
+        assertEquals(0, filesystemManager.getRequiredExtractionStorageInMB(filesystem))
+        verify(mockLogger, never()).addExceptionBreadcrumb(any())
+    }
+
+    @Test
+    fun `Extraction needs no storage once the filesystem has been extracted`() {
+        val filesystem = Filesystem(id = 0)
+        val supportDirectory = File("${tempFolder.root.path}/${filesystem.id}/support")
+        supportDirectory.mkdirs()
+        GZIPOutputStream(File(supportDirectory, "rootfs.tar.gz").outputStream()).use { it.write(ByteArray(1048576)) }
+        File(supportDirectory, filesystemExtractionSuccess).createNewFile()
+
+        assertEquals(0, filesystemManager.getRequiredExtractionStorageInMB(filesystem))
+    }
+
+    @Test
+    fun `Logs archives that are not gzipped and assumes they need no storage`() {
+        val filesystem = Filesystem(id = 0)
+        val supportDirectory = File("${tempFolder.root.path}/${filesystem.id}/support")
+        supportDirectory.mkdirs()
+        File(supportDirectory, "rootfs.tar.gz").writeText("not a gzip archive")
+
+        assertEquals(0, filesystemManager.getRequiredExtractionStorageInMB(filesystem))
+        verify(mockLogger).addExceptionBreadcrumb(any())
+    }
+
     @Test
     fun `Exits early if deleteFilesystem called on a path that does not exist`() {
         val testFile = File("${tempFolder.root.path}/100")
@@ -311,7 +653,7 @@ class FilesystemManagerTest {
             filesystemManager.deleteFilesystem(100)
         }
 
-        verify(mockBusyboxExecutor, never()).executeScript(any(), anyOrNull())
+        verify(mockFileDeleter, never()).delete(any(), any())
     }
 
     @Test
@@ -324,24 +666,72 @@ class FilesystemManagerTest {
             filesystemManager.deleteFilesystem(100)
         }
 
-        verify(mockBusyboxExecutor, never()).executeScript(any(), anyOrNull())
+        verify(mockFileDeleter, never()).delete(any(), any())
     }
 
     @Test
-    fun `Calling deleteFilesystem uses correct script`() {
+    fun `deleteFilesystem deletes the filesystem directory in-process`() {
         val testDir = File("${tempFolder.root.path}/100")
         testDir.mkdirs()
         assertTrue(testDir.exists() && testDir.isDirectory)
+        val onProgress: (Long) -> Unit = { }
 
-        val command = "support/deleteFilesystem.sh ${testDir.path}"
-        whenever(mockBusyboxExecutor.executeScript(command))
-                .thenReturn(SuccessfulExecution)
+        runBlocking {
+            filesystemManager.deleteFilesystem(100, onProgress)
+        }
+
+        verify(mockFileDeleter).delete(testDir, onProgress)
+        verify(mockBusyboxExecutor, never()).executeScript(any(), anyOrNull())
+    }
+
+    @Test
+    fun `deleteFilesystem removes assets and the backup manifest that are no longer used`() {
+        val testDir = File("${tempFolder.root.path}/100")
+        testDir.mkdirs()
+        val asset = File(testDir, "asset")
+        asset.writeText("asset")
+        val blob = assetStore.add(asset)
+        val manifest = File(tempFolder.root, ".backups/100.manifest")
+        manifest.parentFile!!.mkdirs()
+        manifest.writeText("manifest")
+        whenever(mockFileDeleter.delete(eq(testDir), any()))
+                .thenAnswer {
+                    testDir.deleteRecursively()
+                    Unit
+                }
 
         runBlocking {
             filesystemManager.deleteFilesystem(100)
         }
 
-        verify(mockBusyboxExecutor).executeScript("support/deleteFilesystem.sh ${testDir.path}")
+        assertFalse(blob.exists())
+        assertFalse(manifest.exists())
+    }
+
+    @Test
+    fun `deleteFilesystem removes a base once no filesystem made with it is left`() {
+        val extractedFilesystem = Filesystem(id = 1, distributionType = "debian")
+        val clonedFilesystem = Filesystem(id = 2, distributionType = "debian")
+        val base = File(tempFolder.root, ".bases/debian")
+        whenever(mockFilesystemCloner.createBase(any(), any())).thenAnswer { it.getArgument<File>(1).mkdirs() }
+        whenever(mockFilesystemCloner.clone(any(), any())).thenAnswer { it.getArgument<File>(1).mkdirs() }
+        whenever(mockFileDeleter.delete(any(), any())).thenAnswer {
+            it.getArgument<File>(0).deleteRecursively()
+            Unit
+        }
+        val filesystemManager = createCloningFilesystemManager()
+        File("${tempFolder.root.path}/1").mkdirs()
+
+        runBlocking {
+            filesystemManager.saveBaseFilesystem(extractedFilesystem)
+            filesystemManager.cloneFilesystem(clonedFilesystem)
+            filesystemManager.deleteFilesystem(1)
+        }
+        assertTrue(base.isDirectory)
+
+        runBlocking { filesystemManager.deleteFilesystem(2) }
+        assertFalse(base.exists())
+        assertFalse(File(tempFolder.root, ".bases/debian.key").exists())
     }
 
     @Test(expected = IOException::class)
@@ -349,16 +739,17 @@ class FilesystemManagerTest {
         val testDir = File("${tempFolder.root.path}/100")
         testDir.mkdirs()
         assertTrue(testDir.exists() && testDir.isDirectory)
-        val command = "support/deleteFilesystem.sh ${testDir.path}"
-
-        whenever(mockBusyboxExecutor.executeScript(command))
-                .thenReturn(FailedExecution(""))
-
-        runBlocking {
-            filesystemManager.deleteFilesystem(100)
+        val err = IOException("Could not delete")
+        whenever(mockFileDeleter.delete(eq(testDir), any()))
+                .thenAnswer { throw err }
+
+        try {
+            runBlocking {
+                filesystemManager.deleteFilesystem(100)
+            }
+        } finally {
+            verify(mockLogger).addExceptionBreadcrumb(err)
         }
-        verifyBlocking(mockBusyboxExecutor) { recursivelyDelete(testDir.absolutePath) }
-        verify(mockLogger).addExceptionBreadcrumb(IOException())
     }
 
     @Test
@@ -0,0 +1,111 @@
+package tech.ula.utils
+
+import okhttp3.Cache
+import okhttp3.OkHttpClient
+import okhttp3.Request
+import okhttp3.mockwebserver.MockResponse
+import okhttp3.mockwebserver.MockWebServer
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+
+class HttpClientsTest {
+
+    @get:Rule val tempFolder = TemporaryFolder()
+
+    @get:Rule val server = MockWebServer()
+
+    private lateinit var cache: Cache
+
+    @Before
+    fun setup() {
+        cache = Cache(tempFolder.newFolder("http"), 1024 * 1024)
+    }
+
+    @After
+    fun teardown() {
+        cache.close()
+        server.shutdown()
+    }
+
+    private fun get(client: OkHttpClient): Pair<String, Boolean> {
+        val request = Request.Builder()
+                .url(server.url("/apps.txt"))
+                .build()
+        return client.newCall(request).execute().use { response ->
+            response.body()!!.string() to response.isUnchangedSinceCached()
+        }
+    }
+
+    @Test
+    fun `Serves metadata from the cache within its ttl`() {
+        server.enqueue(MockResponse().setBody("apps").setHeader("Cache-Control", "max-age=0"))
+        val client = OkHttpClient().withMetadataCache(cache, ttlSeconds = 60)
+
+        val first = get(client)
+        val second = get(client)
+
+        assertEquals("apps" to false, first)
+        assertEquals("apps" to true, second)
+        assertEquals(1, server.requestCount)
+    }
+
+    @Test
+    fun `Revalidates expired metadata with its etag`() {
+        server.enqueue(MockResponse().setBody("apps").setHeader("ETag", "\"v1\""))
+        server.enqueue(MockResponse().setResponseCode(304).setHeader("ETag", "\"v1\""))
+        val client = OkHttpClient().withMetadataCache(cache, ttlSeconds = 0)
+
+        get(client)
+        val result = get(client)
+
+        assertEquals("apps" to true, result)
+        assertNull(server.takeRequest().getHeader("If-None-Match"))
+        assertEquals("\"v1\"", server.takeRequest().getHeader("If-None-Match"))
+    }
+
+    @Test
+    fun `Revalidates expired metadata with its modification date`() {
+        val lastModified = "Sun, 01 Mar 2020 00:00:00 GMT"
+        server.enqueue(MockResponse().setBody("apps").setHeader("Last-Modified", lastModified))
+        server.enqueue(MockResponse().setBody("new apps"))
+        val client = OkHttpClient().withMetadataCache(cache, ttlSeconds = 0)
+
+        get(client)
+        val result = get(client)
+
+        assertEquals("new apps" to false, result)
+        server.takeRequest()
+        assertEquals(lastModified, server.takeRequest().getHeader("If-Modified-Since"))
+    }
+
+    @Test
+    fun `Does not cache responses that forbid it`() {
+        server.enqueue(MockResponse().setBody("apps").setHeader("Cache-Control", "no-store"))
+        server.enqueue(MockResponse().setBody("apps").setHeader("Cache-Control", "no-store"))
+        val client = OkHttpClient().withMetadataCache(cache, ttlSeconds = 60)
+
+        get(client)
+        val result = get(client)
+
+        assertFalse(result.second)
+        assertEquals(2, server.requestCount)
+    }
+
+    @Test
+    fun `Shares one metadata client`() {
+        val cacheDirectory = tempFolder.newFolder("cache")
+
+        val first = HttpClients.getMetadataClient(cacheDirectory)
+        val second = HttpClients.getMetadataClient(cacheDirectory)
+
+        assertTrue(first === second)
+        assertTrue(first.connectionPool() === HttpClients.client.connectionPool())
+    }
+}
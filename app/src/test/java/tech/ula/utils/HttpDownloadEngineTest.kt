@@ -0,0 +1,184 @@
+package tech.ula.utils
+
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import okhttp3.mockwebserver.Dispatcher
+import okhttp3.mockwebserver.MockResponse
+import okhttp3.mockwebserver.MockWebServer
+import okhttp3.mockwebserver.RecordedRequest
+import okio.Buffer
+import org.junit.After
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import tech.ula.R
+import tech.ula.model.repositories.DownloadMetadata
+import java.io.File
+import java.security.MessageDigest
+import java.util.Collections
+import java.util.Random
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+class HttpDownloadEngineTest {
+
+    @get:Rule val tempFolder = TemporaryFolder()
+
+    @get:Rule val server = MockWebServer()
+
+    private lateinit var partialDirectory: File
+    private lateinit var destination: File
+
+    private val content = ByteArray(10_000).also { Random(0).nextBytes(it) }
+    private val contentSha256 = MessageDigest.getInstance("SHA-256").digest(content)
+            .joinToString(separator = "") { "%02x".format(it) }
+
+    private val ranges: MutableList<String> = Collections.synchronizedList(mutableListOf())
+
+    @Before
+    fun setup() {
+        partialDirectory = tempFolder.newFolder("partial")
+        destination = File(tempFolder.newFolder("downloads"), "support-assets.tar.gz-v1")
+        ranges.clear()
+    }
+
+    @After
+    fun teardown() {
+        server.shutdown()
+    }
+
+    // Serves the content, honoring range requests. Requests for ranges starting at failAt are answered with errors.
+    private fun serveContent(acceptRanges: Boolean = true, failAt: Long = -1) {
+        server.setDispatcher(object : Dispatcher() {
+            override fun dispatch(request: RecordedRequest): MockResponse {
+                if (request.method == "HEAD") {
+                    val response = MockResponse().setHeader("Content-Length", content.size).setHeader("ETag", "\"v1\"")
+                    if (acceptRanges) response.setHeader("Accept-Ranges", "bytes")
+                    return response
+                }
+                val range = request.getHeader("Range") ?: return MockResponse().setBody(Buffer().write(content))
+                ranges.add(range)
+                val (start, end) = range.removePrefix("bytes=").split("-").map { it.toInt() }
+                if (start.toLong() == failAt) return MockResponse().setResponseCode(500)
+                return MockResponse()
+                        .setResponseCode(206)
+                        .setHeader("Content-Range", "bytes $start-$end/${content.size}")
+                        .setBody(Buffer().write(content.copyOfRange(start, end + 1)))
+            }
+        })
+    }
+
+    private fun createEngine(): HttpDownloadEngine {
+        return HttpDownloadEngine(
+                partialDirectory,
+                segmentCount = 4,
+                minimumSegmentBytes = 1000,
+                coroutineScope = CoroutineScope(Dispatchers.IO))
+    }
+
+    private fun download(engine: HttpDownloadEngine, sha256: String? = contentSha256): Long {
+        val latch = CountDownLatch(1)
+        engine.onDownloadComplete = { latch.countDown() }
+        val metadata = DownloadMetadata("assets.tar.gz", "support", "v1", server.url("/asset").toString(), sha256 = sha256)
+        val id = engine.enqueue(metadata, destination)
+        assertTrue(latch.await(10, TimeUnit.SECONDS))
+        return id
+    }
+
+    @Test
+    fun `Downloads large assets in parallel ranges`() {
+        serveContent()
+        val engine = createEngine()
+
+        val id = download(engine)
+
+        assertTrue(engine.downloadHasSucceeded(id))
+        assertFalse(engine.downloadHasFailed(id))
+        assertArrayEquals(content, destination.readBytes())
+        assertEquals(setOf("bytes=0-2499", "bytes=2500-4999", "bytes=5000-7499", "bytes=7500-9999"), ranges.toSet())
+        assertEquals(content.size.toLong(), engine.getBytesDownloaded(id))
+        assertEquals(content.size.toLong(), engine.getTotalBytes(id))
+        val expectedStatus = DownloadStatus(true, false, content.size.toLong(), content.size.toLong())
+        assertEquals(mapOf(id to expectedStatus), engine.getDownloadStatuses(setOf(id)))
+        assertTrue(partialDirectory.listFiles()!!.isEmpty())
+    }
+
+    @Test
+    fun `Leaves unknown ids out of download statuses`() {
+        serveContent()
+        val engine = createEngine()
+
+        val id = download(engine)
+
+        assertEquals(setOf(id), engine.getDownloadStatuses(setOf(id, id + 1)).keys)
+    }
+
+    @Test
+    fun `Downloads assets in one request when ranges are not supported`() {
+        serveContent(acceptRanges = false)
+        val engine = createEngine()
+
+        val id = download(engine)
+
+        assertTrue(engine.downloadHasSucceeded(id))
+        assertArrayEquals(content, destination.readBytes())
+        assertTrue(ranges.isEmpty())
+    }
+
+    @Test
+    fun `Resumes failed downloads from their partial files`() {
+        serveContent(failAt = 5000)
+        val failedId = download(createEngine())
+        assertFalse(destination.exists())
+
+        serveContent()
+        ranges.clear()
+        val engine = createEngine()
+        val id = download(engine)
+
+        assertTrue(engine.downloadHasSucceeded(id))
+        assertArrayEquals(content, destination.readBytes())
+        assertEquals(listOf("bytes=5000-7499"), ranges)
+        assertTrue(failedId != id)
+    }
+
+    @Test
+    fun `Fails downloads that do not match their checksum`() {
+        serveContent()
+        val engine = createEngine()
+
+        val id = download(engine, sha256 = "0".repeat(64))
+
+        assertTrue(engine.downloadHasFailed(id))
+        assertEquals(R.string.download_failure_checksum_mismatch, engine.getDownloadFailureReason(id).resId)
+        assertFalse(destination.exists())
+        assertFalse(File(partialDirectory, "${destination.name}.part").exists())
+    }
+
+    @Test
+    fun `Reports http errors`() {
+        server.enqueue(MockResponse().setResponseCode(404))
+        val engine = createEngine()
+
+        val id = download(engine)
+
+        assertTrue(engine.downloadHasFailed(id))
+        val reason = engine.getDownloadFailureReason(id)
+        assertEquals(R.string.download_failure_http_error, reason.resId)
+        assertEquals(listOf("404"), reason.formatStrings)
+    }
+
+    @Test
+    fun `Downloads from an earlier run are reported as failed`() {
+        val engine = createEngine()
+
+        assertTrue(engine.downloadHasFailed(1))
+        assertFalse(engine.downloadHasSucceeded(1))
+        assertEquals(R.string.download_failure_reason_not_found, engine.getDownloadFailureReason(1).resId)
+    }
+}
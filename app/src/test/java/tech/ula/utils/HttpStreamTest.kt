@@ -1,10 +1,18 @@
 package tech.ula.utils
 
 import kotlinx.coroutines.runBlocking
+import okhttp3.Cache
+import okhttp3.OkHttpClient
+import okhttp3.mockwebserver.MockResponse
+import okhttp3.mockwebserver.MockWebServer
+import okhttp3.mockwebserver.SocketPolicy
+import okio.Buffer
 import org.junit.Assert.* // ktlint-disable no-wildcard-imports
 import org.junit.Rule
 import org.junit.Test
 import org.junit.rules.TemporaryFolder
+import java.io.File
+import java.io.IOException
 
 // Note: These tests are pretty brittle as they are meant to be proper integration tests.
 // Any change to our remote sources will break them.
@@ -56,4 +64,79 @@ class HttpStreamTest {
         assertTrue(file.exists())
         assertEquals(expectedText, file.readText().trim())
     }
-}
\ No newline at end of file
+
+    @Test
+    fun `toFile leaves files alone if they have not changed upstream`() {
+        val server = MockWebServer()
+        server.enqueue(MockResponse().setBody("icon").setHeader("ETag", "\"v1\""))
+        server.enqueue(MockResponse().setResponseCode(304).setHeader("ETag", "\"v1\""))
+        val cache = Cache(tempFolder.newFolder("http"), 1024 * 1024)
+        val cachingHttpStream = HttpStream(OkHttpClient().withMetadataCache(cache, ttlSeconds = 0))
+        val url = server.url("/icon.png").toString()
+        val file = tempFolder.newFile("icon.png")
+
+        runBlocking { cachingHttpStream.toFile(url, file) }
+        val lastModified = file.lastModified() - 10_000
+        file.setLastModified(lastModified)
+        runBlocking { cachingHttpStream.toFile(url, file) }
+
+        assertEquals("icon", file.readText())
+        assertEquals(lastModified, file.lastModified())
+        assertEquals(2, server.requestCount)
+        cache.close()
+        server.shutdown()
+    }
+
+    @Test(expected = IOException::class)
+    fun `toLines throws on http errors`() {
+        val server = MockWebServer()
+        server.enqueue(MockResponse().setResponseCode(404))
+
+        try {
+            runBlocking { httpStream.toLines(server.url("/apps.txt").toString()) }
+        } finally {
+            server.shutdown()
+        }
+    }
+
+    @Test
+    fun `toFile streams bodies and reports progress`() {
+        val server = MockWebServer()
+        val content = ByteArray(200_000) { it.toByte() }
+        server.enqueue(MockResponse().setBody(Buffer().write(content)))
+        val file = File(tempFolder.root, "apps/app/app.png")
+        val progress = mutableListOf<Pair<Long, Long>>()
+
+        runBlocking {
+            httpStream.toFile(server.url("/app.png").toString(), file) { bytesRead, totalBytes ->
+                progress.add(bytesRead to totalBytes)
+            }
+        }
+
+        assertArrayEquals(content, file.readBytes())
+        assertEquals(content.size.toLong() to content.size.toLong(), progress.last())
+        assertTrue(progress.zipWithNext().all { (previous, next) -> previous.first < next.first })
+        assertFalse(File("${file.path}.partial").exists())
+        server.shutdown()
+    }
+
+    @Test
+    fun `toFile keeps the previous file if a transfer fails`() {
+        val server = MockWebServer()
+        server.enqueue(MockResponse()
+                .setBody(Buffer().write(ByteArray(200_000)))
+                .setSocketPolicy(SocketPolicy.DISCONNECT_DURING_RESPONSE_BODY))
+        val file = tempFolder.newFile("app.sh")
+        file.writeText("previous")
+
+        try {
+            runBlocking { httpStream.toFile(server.url("/app.sh").toString(), file) }
+            fail("Expected the transfer to fail")
+        } catch (err: IOException) {
+        }
+
+        assertEquals("previous", file.readText())
+        assertFalse(File("${file.path}.partial").exists())
+        server.shutdown()
+    }
+}
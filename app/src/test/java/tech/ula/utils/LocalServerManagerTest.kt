@@ -22,7 +22,9 @@ class LocalServerManagerTest {
 
     @Mock lateinit var mockLogger: Logger
 
-    @Mock lateinit var mockProcess: Process
+    @Mock lateinit var mockProcess: ChildProcess
+
+    @Mock lateinit var mockProcessTree: ProcessTree
 
     private lateinit var sshPidFile: File
     private lateinit var vncPidFile: File
@@ -54,9 +56,7 @@ class LocalServerManagerTest {
 
     @Before
     fun setup() {
-        whenever(mockProcess.toString()).thenReturn("pid=$fakePid],")
-
-        localServerManager = LocalServerManager(tempFolder.root.path, mockBusyboxExecutor, mockLogger)
+        localServerManager = LocalServerManager(tempFolder.root.path, mockBusyboxExecutor, mockLogger, mockProcessTree)
     }
 
     @Test
@@ -72,6 +72,7 @@ class LocalServerManagerTest {
                 anyOrNull(),
                 anyOrNull()))
                 .thenReturn(OngoingExecution(mockProcess))
+        whenever(mockProcess.pid).thenReturn(fakePid)
 
         createSshPidFile()
         assertTrue(sshPidFile.exists())
@@ -122,6 +123,7 @@ class LocalServerManagerTest {
                 anyOrNull()
         ))
                 .thenReturn(OngoingExecution(mockProcess))
+        whenever(mockProcess.pid).thenReturn(fakePid)
 
         createVNCPidFile(session)
         assertTrue(vncPidFile.exists())
@@ -177,6 +179,7 @@ class LocalServerManagerTest {
                 anyOrNull()
         ))
                 .thenReturn(OngoingExecution(mockProcess))
+        whenever(mockProcess.pid).thenReturn(fakePid)
 
         createXSDLPidFile()
         assertTrue(xsdlPidFile.exists())
@@ -218,20 +221,23 @@ class LocalServerManagerTest {
     }
 
     @Test
-    fun `Calling stop service uses the appropriate command`() {
-        val session = Session(0, filesystemId = filesystemId, serviceType = ServiceType.Ssh)
+    fun `Stopping a service kills the trees of both the session and its server`() {
+        val session = Session(0, filesystemId = filesystemId, serviceType = ServiceType.Ssh, pid = fakePid)
+        createSshPidFile()
+        sshPidFile.writeText("200\n")
+        whenever(mockProcessTree.killTree(listOf(fakePid, 200L))).thenReturn(SuccessfulExecution)
+
         localServerManager.stopService(session)
-        val command = "support/killProcTree.sh ${session.pid} -1"
-        verify(mockBusyboxExecutor).executeScript(eq(command), anyOrNull())
+
+        verify(mockProcessTree).killTree(listOf(fakePid, 200L))
+        verify(mockBusyboxExecutor, never()).executeScript(anyOrNull(), anyOrNull())
+        verify(mockLogger, never()).addBreadcrumb(any())
     }
 
     @Test
     fun `If stop service fails, an error is logged`() {
         val session = Session(0, filesystemId = filesystemId, serviceType = ServiceType.Ssh)
-        val command = "support/killProcTree.sh ${session.pid} -1"
-
-        val reason = "reason"
-        whenever(mockBusyboxExecutor.executeScript(eq(command), anyOrNull()))
+        whenever(mockProcessTree.killTree(listOf(session.pid, -1L)))
                 .thenReturn(FailedExecution("reason"))
 
         localServerManager.stopService(session)
@@ -246,36 +252,71 @@ class LocalServerManagerTest {
         val result = localServerManager.isServerRunning(session)
 
         assertTrue(result)
-        verify(mockBusyboxExecutor, never()).executeScript(anyOrNull(), anyOrNull())
+        verify(mockProcessTree, never()).isAlive(any())
         verify(mockLogger, never()).addBreadcrumb(any())
     }
 
     @Test
-    fun `Calls appropriate command to check if server is running, and returns the result`() {
+    fun `Checks whether the pid in the server's pid file is alive, and returns the result`() {
         val session = Session(0, filesystemId = filesystemId, serviceType = ServiceType.Ssh)
-        val command = "support/isServerInProcTree.sh -1"
-        whenever(mockBusyboxExecutor.executeScript(eq(command), anyOrNull()))
-                .thenReturn(SuccessfulExecution)
-                .thenReturn(FailedExecution(""))
+        createSshPidFile()
+        sshPidFile.writeText("200\n")
+        whenever(mockProcessTree.isAlive(200))
+                .thenReturn(true)
+                .thenReturn(false)
 
         val result1 = localServerManager.isServerRunning(session)
         val result2 = localServerManager.isServerRunning(session)
 
         assertTrue(result1)
         assertFalse(result2)
+        verify(mockBusyboxExecutor, never()).executeScript(anyOrNull(), anyOrNull())
     }
 
     @Test
-    fun `Logs an error and return false if isServerRunning causes an exception`() {
+    fun `Server is not running if its pid file does not exist yet`() {
         val session = Session(0, filesystemId = filesystemId, serviceType = ServiceType.Ssh)
-        val command = "support/isServerInProcTree.sh -1"
-        val reason = "reason"
-        whenever(mockBusyboxExecutor.executeScript(eq(command), anyOrNull()))
-                .thenReturn(FailedExecution(reason))
+        whenever(mockProcessTree.isAlive(-1)).thenReturn(false)
 
         val result = localServerManager.isServerRunning(session)
 
         assertFalse(result)
-        verify(mockLogger).addBreadcrumb(any())
+        verify(mockProcessTree).isAlive(-1)
+    }
+
+    @Test
+    fun `Server is not running once the session process has exited, without reading the pid file`() {
+        val session = Session(0, filesystemId = filesystemId, serviceType = ServiceType.Ssh)
+        whenever(mockBusyboxExecutor.executeProotCommand(anyOrNull(), anyOrNull(), anyOrNull(), anyOrNull(), anyOrNull(), anyOrNull()))
+                .thenReturn(OngoingExecution(mockProcess))
+        whenever(mockProcess.pid).thenReturn(fakePid)
+        whenever(mockProcess.isAlive()).thenReturn(false)
+        session.pid = localServerManager.startServer(session)
+
+        createSshPidFile()
+        sshPidFile.writeText("200\n")
+
+        assertTrue(localServerManager.sessionHasExited(session))
+        assertFalse(localServerManager.isServerRunning(session))
+        verify(mockProcessTree, never()).isAlive(any())
+    }
+
+    @Test
+    fun `Server pid is remembered once the server is seen running`() {
+        val session = Session(0, filesystemId = filesystemId, serviceType = ServiceType.Ssh)
+        whenever(mockBusyboxExecutor.executeProotCommand(anyOrNull(), anyOrNull(), anyOrNull(), anyOrNull(), anyOrNull(), anyOrNull()))
+                .thenReturn(OngoingExecution(mockProcess))
+        whenever(mockProcess.pid).thenReturn(fakePid)
+        whenever(mockProcess.isAlive()).thenReturn(true)
+        session.pid = localServerManager.startServer(session)
+
+        createSshPidFile()
+        sshPidFile.writeText("200\n")
+        whenever(mockProcessTree.isAlive(200)).thenReturn(true)
+        assertTrue(localServerManager.isServerRunning(session))
+
+        sshPidFile.delete()
+        assertTrue(localServerManager.isServerRunning(session))
+        assertEquals(200L, localServerManager.getServerPid(session))
     }
 }
@@ -0,0 +1,125 @@
+package tech.ula.utils
+
+import org.junit.After
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.fail
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.io.OutputStream
+import java.io.RandomAccessFile
+import java.util.Random
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.zip.GZIPInputStream
+import java.util.zip.GZIPOutputStream
+
+class ParallelGzipOutputStreamTest {
+
+    @get:Rule val tempFolder = TemporaryFolder()
+
+    private lateinit var executor: ExecutorService
+
+    @Before
+    fun setup() {
+        executor = Executors.newFixedThreadPool(4)
+    }
+
+    @After
+    fun teardown() {
+        executor.shutdownNow()
+    }
+
+    private fun decompress(bytes: ByteArray): ByteArray {
+        return GZIPInputStream(bytes.inputStream()).use { it.readBytes() }
+    }
+
+    private fun countMembers(bytes: ByteArray): Int {
+        return (0 until bytes.size - 2).count {
+            bytes[it] == 0x1f.toByte() && bytes[it + 1] == 0x8b.toByte() && bytes[it + 2] == 8.toByte()
+        }
+    }
+
+    @Test
+    fun `Writes blocks as gzip members in order`() {
+        val data = ByteArray(10 * 1024 + 17) { (it % 251).toByte() }
+        val outputStream = ByteArrayOutputStream()
+
+        ParallelGzipOutputStream(outputStream, executor, blockSize = 1024, maxPendingBlocks = 3).use { gzipStream ->
+            gzipStream.write(data, 0, 5000)
+            gzipStream.write(data[5000].toInt())
+            gzipStream.write(data, 5001, data.size - 5001)
+        }
+
+        val compressed = outputStream.toByteArray()
+        assertArrayEquals(data, decompress(compressed))
+        // Eleven blocks and the size member.
+        assertEquals(12, countMembers(compressed))
+    }
+
+    @Test
+    fun `Empty streams are still valid gzip`() {
+        val outputStream = ByteArrayOutputStream()
+
+        ParallelGzipOutputStream(outputStream, executor).close()
+
+        assertEquals(0, decompress(outputStream.toByteArray()).size)
+    }
+
+    @Test
+    fun `finish writes everything without closing the underlying stream`() {
+        val data = ByteArray(4096) { it.toByte() }
+        var isClosed = false
+        val outputStream = object : ByteArrayOutputStream() {
+            override fun close() {
+                isClosed = true
+            }
+        }
+
+        val gzipStream = ParallelGzipOutputStream(outputStream, executor, blockSize = 1024)
+        gzipStream.write(data)
+        gzipStream.finish()
+
+        assertArrayEquals(data, decompress(outputStream.toByteArray()))
+        assertEquals(false, isClosed)
+    }
+
+    @Test
+    fun `Records the size of the whole stream in its last member`() {
+        val data = ByteArray(10 * 1024 + 17) { (it % 251).toByte() }
+        val compressed = tempFolder.newFile()
+        val plainCompressed = tempFolder.newFile()
+
+        ParallelGzipOutputStream(compressed.outputStream(), executor, blockSize = 1024).use { it.write(data) }
+        GZIPOutputStream(plainCompressed.outputStream()).use { it.write(data) }
+
+        assertEquals(data.size.toLong(), RandomAccessFile(compressed, "r").use { ParallelGzipOutputStream.readRecordedSize(it) })
+        assertNull(RandomAccessFile(plainCompressed, "r").use { ParallelGzipOutputStream.readRecordedSize(it) })
+    }
+
+    @Test
+    fun `Write failures are thrown`() {
+        val failingStream = object : OutputStream() {
+            override fun write(b: Int) {
+                throw IOException()
+            }
+
+            override fun write(b: ByteArray, off: Int, len: Int) {
+                throw IOException()
+            }
+        }
+        val data = ByteArray(1024 * 1024)
+        Random(0).nextBytes(data)
+
+        try {
+            ParallelGzipOutputStream(failingStream, executor, blockSize = 1024).use { it.write(data) }
+            fail("Expected the write to fail")
+        } catch (err: IOException) {
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package tech.ula.utils
+
+import android.system.ErrnoException
+import android.system.OsConstants
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotSame
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+
+class ProcessTreeTest {
+
+    @get:Rule val tempFolder = TemporaryFolder()
+
+    private lateinit var procDir: File
+    private lateinit var procFsReader: ProcFsReader
+
+    private val signals = mutableListOf<Pair<Long, Int>>()
+
+    private var now = 0L
+
+    @Before
+    fun setup() {
+        procDir = tempFolder.newFolder("proc")
+        procFsReader = ProcFsReader(procDir)
+        signals.clear()
+        now = 0L
+    }
+
+    private fun writeProcess(pid: Long, parentPid: Long, state: Char = 'S') {
+        val dir = File(procDir, "$pid")
+        dir.mkdirs()
+        File(dir, "stat").writeText("$pid (proc $pid) $state $parentPid $pid $pid 0 -1 4194560 100 0 0 0 1 1 0 0 20 0 1 0 100 1000000 10\n")
+    }
+
+    private fun createProcessTree(signaller: (Long, Int) -> Unit = { pid, signal -> signals.add(pid to signal) }): ProcessTree {
+        return ProcessTree(procFsReader, cacheMillis = 100, clock = { now }, signaller = signaller)
+    }
+
+    @Test
+    fun `Table lists roots and descendants with parents before children`() {
+        writeProcess(10, 1)
+        writeProcess(11, 10)
+        writeProcess(12, 11)
+        writeProcess(13, 10)
+        writeProcess(20, 1)
+        writeProcess(30, 1)
+
+        val table = ProcessTable.read(procFsReader)
+        val result = table.descendantsOf(listOf(10L, 20L, 99L))
+
+        assertEquals(setOf(10L, 11L, 12L, 13L, 20L), result.toSet())
+        assertTrue(result.indexOf(10L) < result.indexOf(11L))
+        assertTrue(result.indexOf(11L) < result.indexOf(12L))
+        assertFalse(table.contains(99))
+    }
+
+    @Test
+    fun `Processes are alive until they exit or become zombies`() {
+        writeProcess(10, 1)
+        writeProcess(11, 10, state = 'Z')
+        val processTree = createProcessTree()
+
+        assertTrue(processTree.isAlive(10))
+        assertFalse(processTree.isAlive(11))
+        assertFalse(processTree.isAlive(12))
+        assertFalse(processTree.isAlive(-1))
+    }
+
+    @Test
+    fun `Tables are cached for the configured time`() {
+        writeProcess(10, 1)
+        val processTree = createProcessTree()
+
+        val first = processTree.getTable()
+        now = 50
+        assertSame(first, processTree.getTable())
+
+        now = 150
+        assertNotSame(first, processTree.getTable())
+    }
+
+    @Test
+    fun `Killing a tree stops every process before killing any of them`() {
+        writeProcess(10, 1)
+        writeProcess(11, 10)
+        writeProcess(20, 1)
+        writeProcess(30, 1)
+        val processTree = createProcessTree()
+
+        val result = processTree.killTree(listOf(10L, 20L, -1L))
+
+        assertEquals(SuccessfulExecution, result)
+        val stopped = signals.filter { it.second == OsConstants.SIGSTOP }.map { it.first }
+        val killed = signals.filter { it.second == OsConstants.SIGKILL }.map { it.first }
+        assertEquals(setOf(10L, 11L, 20L), stopped.toSet())
+        assertEquals(setOf(10L, 11L, 20L), killed.toSet())
+        assertEquals(OsConstants.SIGSTOP, signals.take(3).map { it.second }.distinct().single())
+    }
+
+    @Test
+    fun `Children forked while stopping the tree are also killed`() {
+        writeProcess(10, 1)
+        val processTree = createProcessTree { pid, signal ->
+            signals.add(pid to signal)
+            if (pid == 10L && signal == OsConstants.SIGSTOP) writeProcess(11, 10)
+        }
+
+        processTree.killTree(listOf(10L))
+
+        assertTrue(signals.contains(11L to OsConstants.SIGKILL))
+    }
+
+    @Test
+    fun `Processes that exit before being signalled are not failures`() {
+        writeProcess(10, 1)
+        val processTree = createProcessTree { _, _ -> throw ErrnoException("kill", OsConstants.ESRCH) }
+
+        assertEquals(SuccessfulExecution, processTree.killTree(listOf(10L)))
+    }
+
+    @Test
+    fun `Other signal errors are reported`() {
+        writeProcess(10, 1)
+        val processTree = createProcessTree { _, _ -> throw ErrnoException("kill", OsConstants.EPERM) }
+
+        val result = processTree.killTree(listOf(10L))
+
+        assertTrue(result is FailedExecution)
+    }
+}
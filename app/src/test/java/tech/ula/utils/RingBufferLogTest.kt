@@ -0,0 +1,37 @@
+package tech.ula.utils
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+class RingBufferLogTest {
+
+    @Test
+    fun `Keeps lines in order until full`() {
+        val log = RingBufferLog(3)
+
+        log.add("one")
+        log.add("two")
+
+        assertEquals(listOf("one", "two"), log.getLines())
+    }
+
+    @Test
+    fun `Drops the oldest lines once full`() {
+        val log = RingBufferLog(3)
+
+        for (line in listOf("one", "two", "three", "four", "five")) log.add(line)
+
+        assertEquals(listOf("three", "four", "five"), log.getLines())
+    }
+
+    @Test
+    fun `Clearing empties the log`() {
+        val log = RingBufferLog(3)
+        log.add("one")
+
+        log.clear()
+        log.add("two")
+
+        assertEquals(listOf("two"), log.getLines())
+    }
+}
@@ -0,0 +1,172 @@
+package tech.ula.utils
+
+import androidx.arch.core.executor.testing.InstantTaskExecutorRule
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+import java.nio.file.Files
+
+class SessionResourceMonitorTest {
+
+    @get:Rule val instantTaskExecutorRule = InstantTaskExecutorRule()
+
+    @get:Rule val tempFolder = TemporaryFolder()
+
+    private lateinit var procDir: File
+    private lateinit var procFsReader: ProcFsReader
+
+    private var now = 0L
+
+    private val ticksPerSecond = 100L
+    private val pageSize = 4096L
+
+    @Before
+    fun setup() {
+        procDir = tempFolder.newFolder("proc")
+        procFsReader = ProcFsReader(procDir)
+        now = 0L
+    }
+
+    // Sampling is driven manually by the tests, so the background loop never gets past its first delay.
+    private fun createMonitor(): SessionResourceMonitor {
+        return SessionResourceMonitor(
+                procFsReader,
+                sampleIntervalMillis = Long.MAX_VALUE,
+                ticksPerSecond = ticksPerSecond,
+                pageSize = pageSize,
+                nanoClock = { now })
+    }
+
+    private fun writeProcess(pid: Long, parentPid: Long, name: String, utime: Long, stime: Long, rssPages: Long, readBytes: Long, writeBytes: Long) {
+        val dir = File(procDir, "$pid")
+        dir.mkdirs()
+        File(dir, "stat").writeText("$pid ($name) S $parentPid $pid $pid 0 -1 4194560 100 0 0 0 $utime $stime 0 0 20 0 1 0 100 1000000 $rssPages\n")
+        File(dir, "statm").writeText("1000 $rssPages 50 10 0 200 0\n")
+        File(dir, "io").writeText("rchar: 1\nwchar: 2\nsyscr: 3\nsyscw: 4\nread_bytes: $readBytes\nwrite_bytes: $writeBytes\ncancelled_write_bytes: 0\n")
+    }
+
+    @Test
+    fun `Parses stat fields after the command name`() {
+        writeProcess(10, 1, "weird ) name (", 7, 5, 0, 0, 0)
+
+        val sample = ProcessSample()
+        assertTrue(procFsReader.readStat(10, sample))
+
+        assertEquals(1, sample.parentPid)
+        assertEquals(12, sample.cpuTicks)
+    }
+
+    @Test
+    fun `Parses resident pages and io bytes`() {
+        writeProcess(10, 1, "proot", 0, 0, 321, 4096, 8192)
+
+        val sample = ProcessSample()
+        assertTrue(procFsReader.readStatm(10, sample))
+        assertTrue(procFsReader.readIo(10, sample))
+
+        assertEquals(321, sample.rssPages)
+        assertEquals(4096, sample.readBytes)
+        assertEquals(8192, sample.writeBytes)
+    }
+
+    @Test
+    fun `Reads fail for processes that do not exist`() {
+        val sample = ProcessSample()
+
+        assertFalse(procFsReader.readStat(10, sample))
+        assertFalse(procFsReader.readIo(10, sample))
+        assertEquals(0, sample.readBytes)
+    }
+
+    @Test
+    fun `Lists only numeric entries as pids`() {
+        writeProcess(10, 1, "proot", 0, 0, 0, 0, 0)
+        File(procDir, "self").mkdirs()
+        File(procDir, "meminfo").writeText("")
+
+        assertEquals(listOf(10L), procFsReader.listPids())
+    }
+
+    @Test
+    fun `Finds how far a process has read into an open file`() {
+        val archive = tempFolder.newFile("rootfs.tar.gz")
+        writeProcess(10, 1, "sh", 0, 0, 0, 0, 0)
+        writeProcess(11, 10, "tar", 0, 0, 0, 0, 0)
+        File(procDir, "11/fd").mkdirs()
+        File(procDir, "11/fdinfo").mkdirs()
+        Files.createSymbolicLink(File(procDir, "11/fd/0").toPath(), tempFolder.newFile("stdin").toPath())
+        Files.createSymbolicLink(File(procDir, "11/fd/3").toPath(), archive.toPath())
+        File(procDir, "11/fdinfo/3").writeText("pos:\t65536\nflags:\t0100000\nmnt_id:\t21\n")
+
+        assertEquals(65536, procFsReader.findOpenFileOffset(archive))
+        assertEquals(-1, procFsReader.findOpenFileOffset(tempFolder.newFile("other")))
+    }
+
+    @Test
+    fun `Computes cpu percent, rss, and io rates from deltas between samples`() {
+        writeProcess(10, 1, "proot", 10, 10, 100, 0, 0)
+        writeProcess(11, 10, "sh", 10, 0, 100, 0, 0)
+        writeProcess(20, 1, "dropbear", 0, 0, 100, 0, 0)
+        writeProcess(30, 1, "other", 500, 0, 1000, 0, 0)
+
+        val monitor = createMonitor()
+        monitor.track(1) { listOf(10L, 20L) }
+        monitor.sampleAll()
+        assertNull(monitor.getUsage().value!![1])
+
+        writeProcess(10, 1, "proot", 30, 10, 100, 1000, 0)
+        writeProcess(11, 10, "sh", 40, 0, 100, 0, 4000)
+        writeProcess(20, 1, "dropbear", 20, 0, 100, 1000, 0)
+        writeProcess(30, 1, "other", 900, 0, 1000, 9000, 9000)
+        now = 2_000_000_000L
+        monitor.sampleAll()
+
+        val usage = monitor.getUsage().value!![1]!!
+        // 70 ticks over 2 seconds at 100 ticks per second.
+        assertEquals(35f, usage.cpuPercent, 0.01f)
+        assertEquals(300 * pageSize, usage.rssBytes)
+        assertEquals(1000L, usage.readBytesPerSecond)
+        assertEquals(2000L, usage.writeBytesPerSecond)
+    }
+
+    @Test
+    fun `Untracked sessions are removed from the published usage`() {
+        writeProcess(10, 1, "proot", 0, 0, 100, 0, 0)
+
+        val monitor = createMonitor()
+        monitor.track(1) { listOf(10L) }
+        monitor.sampleAll()
+        now = 1_000_000_000L
+        monitor.sampleAll()
+        assertTrue(monitor.getUsage().value!!.containsKey(1))
+
+        monitor.untrack(1)
+        assertTrue(monitor.getUsage().value!!.isEmpty())
+    }
+
+    @Test
+    fun `Exited processes do not produce negative rates`() {
+        writeProcess(10, 1, "proot", 10, 0, 100, 0, 0)
+        writeProcess(11, 10, "sh", 100, 0, 100, 5000, 5000)
+
+        val monitor = createMonitor()
+        monitor.track(1) { listOf(10L) }
+        monitor.sampleAll()
+
+        File(procDir, "11").deleteRecursively()
+        now = 1_000_000_000L
+        monitor.sampleAll()
+
+        val usage = monitor.getUsage().value!![1]!!
+        assertEquals(0f, usage.cpuPercent, 0.01f)
+        assertEquals(100 * pageSize, usage.rssBytes)
+        assertEquals(0L, usage.readBytesPerSecond)
+        assertEquals(0L, usage.writeBytesPerSecond)
+    }
+}
@@ -0,0 +1,140 @@
+package tech.ula.utils
+
+import com.nhaarman.mockitokotlin2.verify
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream
+import org.apache.commons.compress.archivers.tar.TarConstants
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.fail
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+import org.mockito.Mock
+import org.mockito.junit.MockitoJUnitRunner
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.OutputStream
+import java.util.zip.GZIPOutputStream
+
+@RunWith(MockitoJUnitRunner::class)
+class TarExtractorTest {
+
+    @get:Rule val tempFolder = TemporaryFolder()
+
+    private lateinit var destination: File
+
+    @Mock lateinit var mockSymlinker: Symlinker
+
+    private val usableModes = mutableMapOf<String, Int>()
+
+    private lateinit var tarExtractor: TarExtractor
+
+    @Before
+    fun setup() {
+        destination = File(tempFolder.root, "support")
+        usableModes.clear()
+        val permissionSetter = PermissionSetter { path, mode -> usableModes[path] = mode }
+        tarExtractor = TarExtractor(mockSymlinker, permissionSetter)
+    }
+
+    private fun writeArchive(archive: File, gzipped: Boolean, entries: List<TarArchiveEntry>, contents: Map<String, String> = mapOf()) {
+        val fileStream: OutputStream = FileOutputStream(archive)
+        val outputStream = if (gzipped) GZIPOutputStream(fileStream) else fileStream
+        TarArchiveOutputStream(outputStream).use { tarStream ->
+            for (entry in entries) {
+                val content = contents[entry.name]?.toByteArray()
+                if (content != null) entry.size = content.size.toLong()
+                tarStream.putArchiveEntry(entry)
+                if (content != null) tarStream.write(content)
+                tarStream.closeArchiveEntry()
+            }
+        }
+    }
+
+    @Test
+    fun `Extracts gzipped archives with nested directories`() {
+        val archive = tempFolder.newFile("support-assets.tar.gz-v1")
+        val entries = listOf(TarArchiveEntry("common/"), TarArchiveEntry("common/script.sh"), TarArchiveEntry("busybox"))
+        writeArchive(archive, gzipped = true, entries = entries, contents = mapOf("common/script.sh" to "echo hi", "busybox" to "binary"))
+
+        tarExtractor.extract(archive, destination)
+
+        assertEquals("echo hi", File(destination, "common/script.sh").readText())
+        assertEquals("binary", File(destination, "busybox").readText())
+        assertEquals(PermissionSetter.USABLE_MODE, usableModes[File(destination, "busybox").path])
+        assertEquals(PermissionSetter.USABLE_MODE, usableModes[File(destination, "common/script.sh").path])
+        assertEquals(PermissionSetter.USABLE_MODE, usableModes[File(destination, "common").path])
+    }
+
+    @Test
+    fun `Extracts uncompressed archives`() {
+        val archive = tempFolder.newFile("support-assets.tar-v1")
+        writeArchive(archive, gzipped = false, entries = listOf(TarArchiveEntry("file")), contents = mapOf("file" to "content"))
+
+        tarExtractor.extract(archive, destination)
+
+        assertEquals("content", File(destination, "file").readText())
+    }
+
+    @Test
+    fun `Overwrites files from earlier versions`() {
+        destination.mkdirs()
+        File(destination, "file").writeText("a much longer old version")
+        val archive = tempFolder.newFile("archive")
+        writeArchive(archive, gzipped = true, entries = listOf(TarArchiveEntry("file")), contents = mapOf("file" to "new"))
+
+        tarExtractor.extract(archive, destination)
+
+        assertEquals("new", File(destination, "file").readText())
+    }
+
+    @Test
+    fun `Creates symlinks and copies hard links`() {
+        val archive = tempFolder.newFile("archive")
+        val symlink = TarArchiveEntry("sh", TarConstants.LF_SYMLINK)
+        symlink.linkName = "busybox"
+        val hardLink = TarArchiveEntry("ash", TarConstants.LF_LINK)
+        hardLink.linkName = "busybox"
+        writeArchive(archive, gzipped = true, entries = listOf(TarArchiveEntry("busybox"), symlink, hardLink), contents = mapOf("busybox" to "binary"))
+
+        tarExtractor.extract(archive, destination)
+
+        verify(mockSymlinker).createSymlink("busybox", File(destination, "sh").path)
+        assertEquals("binary", File(destination, "ash").readText())
+    }
+
+    @Test
+    fun `Rejects entries outside of the destination`() {
+        val archive = tempFolder.newFile("archive")
+        writeArchive(archive, gzipped = true, entries = listOf(TarArchiveEntry("../escaped")), contents = mapOf("../escaped" to "content"))
+
+        try {
+            tarExtractor.extract(archive, destination)
+            fail("Expected extraction to fail")
+        } catch (err: IOException) {
+        }
+
+        assertFalse(File(tempFolder.root, "escaped").exists())
+    }
+
+    @Test
+    fun `Rejects hard links to files outside of the destination`() {
+        File(tempFolder.root, "secret").writeText("secret")
+        val archive = tempFolder.newFile("archive")
+        val hardLink = TarArchiveEntry("stolen", TarConstants.LF_LINK)
+        hardLink.linkName = "../secret"
+        writeArchive(archive, gzipped = true, entries = listOf(hardLink))
+
+        try {
+            tarExtractor.extract(archive, destination)
+            fail("Expected extraction to fail")
+        } catch (err: IOException) {
+        }
+
+        assertFalse(File(destination, "stolen").exists())
+    }
+}
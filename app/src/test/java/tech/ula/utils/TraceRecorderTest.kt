@@ -0,0 +1,95 @@
+package tech.ula.utils
+
+import com.nhaarman.mockitokotlin2.argThat
+import com.nhaarman.mockitokotlin2.mock
+import com.nhaarman.mockitokotlin2.verify
+import com.squareup.moshi.Moshi
+import com.squareup.moshi.Types
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import kotlin.concurrent.thread
+
+class TraceRecorderTest {
+
+    private fun span(name: String, startNanos: Long, endNanos: Long = startNanos + 1_000) =
+            TraceSpan(name, "test", startNanos, endNanos, 1)
+
+    private fun exportEvents(recorder: TraceRecorder): List<Map<String, Any>> {
+        val output = ByteArrayOutputStream()
+        recorder.export(output)
+        val type = Types.newParameterizedType(Map::class.java, String::class.java, Any::class.java)
+        val trace = Moshi.Builder().build().adapter<Map<String, Any>>(type).fromJson(output.toString("UTF-8"))!!
+        @Suppress("UNCHECKED_CAST")
+        return trace["traceEvents"] as List<Map<String, Any>>
+    }
+
+    @Test
+    fun `Returns spans in the order they started`() {
+        val recorder = TraceRecorder(4)
+
+        recorder.record(span("second", 2_000))
+        recorder.record(span("first", 1_000))
+
+        assertEquals(listOf("first", "second"), recorder.getSpans().map { it.name })
+    }
+
+    @Test
+    fun `Drops the oldest spans once full`() {
+        val recorder = TraceRecorder(3)
+
+        for (start in 1L..5L) recorder.record(span("$start", start))
+
+        assertEquals(listOf("3", "4", "5"), recorder.getSpans().map { it.name })
+    }
+
+    @Test
+    fun `Keeps every span recorded concurrently up to its capacity`() {
+        val recorder = TraceRecorder(400)
+
+        val threads = (0 until 4).map { threadIndex ->
+            thread { for (start in 0L until 100L) recorder.record(span("$threadIndex", threadIndex * 100 + start)) }
+        }
+        threads.forEach { it.join() }
+
+        assertEquals(400, recorder.getSpans().size)
+    }
+
+    @Test
+    fun `Exports complete events in microseconds from the first span`() {
+        val recorder = TraceRecorder(4)
+        recorder.record(span("download", 5_000_000, 7_500_000))
+        recorder.record(span("extract", 8_000_000, 9_000_000))
+
+        val events = exportEvents(recorder)
+
+        assertEquals(listOf("download", "extract"), events.map { it["name"] })
+        assertEquals(listOf("X", "X"), events.map { it["ph"] })
+        assertEquals(listOf(0.0, 3_000.0), events.map { it["ts"] })
+        assertEquals(listOf(2_500.0, 1_000.0), events.map { it["dur"] })
+    }
+
+    @Test
+    fun `Clearing empties the recorder`() {
+        val recorder = TraceRecorder(4)
+        recorder.record(span("download", 1_000))
+
+        recorder.clear()
+
+        assertTrue(exportEvents(recorder).isEmpty())
+    }
+
+    @Test
+    fun `Records a span when the traced block throws`() {
+        val logger = mock<Logger>()
+
+        try {
+            logger.trace("extract", "extraction") { throw IOException() }
+        } catch (err: IOException) {
+        }
+
+        verify(logger).recordSpan(argThat { name == "extract" && endNanos >= startNanos })
+    }
+}
@@ -5,11 +5,14 @@ import com.nhaarman.mockitokotlin2.mock
 import com.nhaarman.mockitokotlin2.whenever
 import org.junit.Assert.* // ktlint-disable no-wildcard-imports
 import org.junit.Before
+import org.junit.Ignore
 import org.junit.Rule
 import org.junit.Test
 import org.junit.rules.TemporaryFolder
 import java.io.File
 import java.nio.file.Files
+import java.nio.file.Paths
+import java.nio.file.attribute.PosixFilePermission
 
 class UlaFilesTest {
 
@@ -18,6 +21,12 @@ class UlaFilesTest {
     private val mockContext: Context = mock()
     private val mockSymlinker: Symlinker = mock()
 
+    // android.system.Os is not available in unit tests, so modes are applied through java.nio instead.
+    private val permissionSetter = PermissionSetter { path, mode ->
+        val permissions = PosixFilePermission.values().filterIndexed { index, _ -> mode and (256 shr index) != 0 }
+        Files.setPosixFilePermissions(Paths.get(path), permissions.toSet())
+    }
+
     private lateinit var testFilesDir: File
     private lateinit var testScopedDir: File
     private lateinit var testLibDir: File
@@ -25,6 +34,9 @@ class UlaFilesTest {
 
     private lateinit var ulaFiles: UlaFiles
 
+    // Roughly the number of files installed from the support and distribution asset releases together.
+    private val assetCount = 40
+
     @Before
     fun setup() {
         testFilesDir = tempFolder.newFolder("files")
@@ -43,7 +55,7 @@ class UlaFilesTest {
         val testFile = tempFolder.newFile(testFileName)
         testFile.createNewFile()
 
-        ulaFiles = UlaFiles(mockContext, testLibDir.path, mockSymlinker)
+        ulaFiles = UlaFiles(mockContext, testLibDir.path, mockSymlinker, permissionSetter)
         ulaFiles.makePermissionsUsable(tempFolder.root.path, testFileName)
 
         var output = ""
@@ -54,6 +66,44 @@ class UlaFilesTest {
         assertTrue(permissions == "-rwxrwxrwx")
     }
 
+    @Test
+    fun `makePermissionsUsable sets permissions open for every file in a batch`() {
+        val directory = tempFolder.newFolder("support")
+        val filenames = (1..assetCount).map { "asset$it" }
+        filenames.forEach { File(directory, it).writeText("") }
+
+        ulaFiles = UlaFiles(mockContext, testLibDir.path, mockSymlinker, permissionSetter)
+        ulaFiles.makePermissionsUsable(directory.path, filenames)
+
+        filenames.forEach {
+            val permissions = Files.getPosixFilePermissions(File(directory, it).toPath())
+            assertEquals(PosixFilePermission.values().toSet(), permissions)
+        }
+    }
+
+    @Ignore("Benchmark, run manually")
+    @Test
+    fun `Batched permission changes are faster than a chmod process per file`() {
+        val directory = tempFolder.newFolder("support")
+        val filenames = (1..assetCount).map { "asset$it" }
+        filenames.forEach { File(directory, it).writeText("") }
+
+        val processStart = System.nanoTime()
+        for (filename in filenames) {
+            val process = ProcessBuilder("chmod", "0777", filename).directory(directory).start()
+            process.waitFor()
+        }
+        val processTime = System.nanoTime() - processStart
+
+        ulaFiles = UlaFiles(mockContext, testLibDir.path, mockSymlinker, permissionSetter)
+        val batchStart = System.nanoTime()
+        ulaFiles.makePermissionsUsable(directory.path, filenames)
+        val batchTime = System.nanoTime() - batchStart
+
+        println("chmod processes: ${processTime / 1000}us, batch: ${batchTime / 1000}us for $assetCount files")
+        assertTrue(batchTime < processTime)
+    }
+
     @Test
     fun `sdCardUserDir is created if an sd card exists and public fields are created`() {
         val sdcardDir = File(tempFolder.root, "sdcard")
@@ -42,6 +42,8 @@ class FilesystemEditViewModelTest {
 
     @Mock lateinit var mockBackupUri: Uri
 
+    @Mock lateinit var mockIncrementUri: Uri
+
     private lateinit var filesystemEditViewModel: FilesystemEditViewModel
 
     @Before
@@ -147,6 +149,37 @@ class FilesystemEditViewModelTest {
         assertEquals(null, filesystemEditViewModel.backupUri)
     }
 
+    @Test
+    fun `insertFilesystemFromBackup copies increments next to the backup`() {
+        val filesystem = Filesystem(id = 0, name = "test")
+        whenever(mockFilesystemDao.insertFilesystem(filesystem)).thenReturn(1)
+
+        val filesDir = tempFolder.root
+        val backupSourceFile = tempFolder.newFile("backupFile")
+        backupSourceFile.writeText("backup")
+        val incrementSourceFile = tempFolder.newFile("incrementFile")
+        incrementSourceFile.writeText("increment")
+
+        val filesystemSupportDir = tempFolder.newFolder("1", "support")
+
+        whenever(mockContentResolver.openInputStream(mockBackupUri))
+                .thenReturn(backupSourceFile.inputStream())
+        whenever(mockContentResolver.openInputStream(mockIncrementUri))
+                .thenReturn(incrementSourceFile.inputStream())
+
+        filesystemEditViewModel.backupUri = mockBackupUri
+        filesystemEditViewModel.incrementUris = listOf(mockIncrementUri)
+        filesystemEditViewModel.getImportStatusLiveData().observeForever(mockObserver)
+        runBlocking {
+            filesystemEditViewModel.insertFilesystemFromBackup(mockContentResolver, filesystem, filesDir, this)
+        }
+
+        assertEquals("backup", File(filesystemSupportDir, "rootfs.tar.gz").readText())
+        assertEquals("increment", File(filesystemSupportDir, "rootfs.tar.gz.1").readText())
+        verify(mockObserver).onChanged(ImportSuccess)
+        assertEquals(listOf<Uri>(), filesystemEditViewModel.incrementUris)
+    }
+
     @Test
     fun `insertFilesystemFromBackup sets isAppsFilesystem if filesystem name is 'apps'`() {
         val filesystem = Filesystem(id = 0, name = "apps")
@@ -26,6 +26,9 @@ import tech.ula.utils.SuccessfulExecution
 import java.io.File
 import java.io.FileNotFoundException
 import java.io.IOException
+import java.io.OutputStream
+import java.text.SimpleDateFormat
+import java.util.Locale
 
 @RunWith(MockitoJUnitRunner::class)
 class FilesystemListViewModelTest {
@@ -94,18 +97,37 @@ class FilesystemListViewModelTest {
         filesystemListViewModel.getViewState().observeForever(mockViewStateObserver)
         runBlocking { filesystemListViewModel.deleteFilesystemById(id, this) }
 
-        verifyBlocking(mockFilesystemManager) { deleteFilesystem(id) }
+        verifyBlocking(mockFilesystemManager) { deleteFilesystem(eq(id), any()) }
         verify(mockFilesystemDao).deleteFilesystemById(id)
         verify(mockViewStateObserver).onChanged(FilesystemDeleteState.InProgress)
         verify(mockViewStateObserver).onChanged(FilesystemDeleteState.Success)
     }
 
+    @Test
+    fun `deleteFilesystemById posts the number of entries deleted every thousand entries`() {
+        val id = 0L
+        runBlocking {
+            whenever(mockFilesystemManager.deleteFilesystem(eq(id), any())).thenAnswer {
+                val onProgress = it.getArgument<(Long) -> Unit>(1)
+                for (entriesDeleted in 1L..2500L) onProgress(entriesDeleted)
+            }
+        }
+
+        filesystemListViewModel.getViewState().observeForever(mockViewStateObserver)
+        runBlocking { filesystemListViewModel.deleteFilesystemById(id, this) }
+
+        verify(mockViewStateObserver).onChanged(FilesystemDeleteState.Update(1000))
+        verify(mockViewStateObserver).onChanged(FilesystemDeleteState.Update(2000))
+        verify(mockViewStateObserver, never()).onChanged(FilesystemDeleteState.Update(2500))
+        verify(mockViewStateObserver).onChanged(FilesystemDeleteState.Success)
+    }
+
     @Test
     fun `deleteFilesystemById does not delete entity and posts FilesystemDeleteState Failure if execution fails`() {
         val id = 0L
 
         runBlocking {
-            whenever(mockFilesystemManager.deleteFilesystem(id)).thenThrow(IOException())
+            whenever(mockFilesystemManager.deleteFilesystem(eq(id), any())).thenThrow(IOException())
         }
 
         filesystemListViewModel.getViewState().observeForever(mockViewStateObserver)
@@ -115,6 +137,33 @@ class FilesystemListViewModelTest {
         verify(mockViewStateObserver).onChanged(FilesystemDeleteState.Failure)
     }
 
+    @Test
+    fun `getFilesystemBackupName names full backups after the filesystem`() {
+        val filesystem = Filesystem(id = 0, name = filesystemName, distributionType = filesystemType)
+        whenever(mockFilesystemManager.nextExportIsIncrement(filesystem)).thenReturn(false)
+
+        assertEquals(expectedBackupName, filesystemListViewModel.getFilesystemBackupName(filesystem))
+    }
+
+    @Test
+    fun `getFilesystemBackupName dates increments`() {
+        val filesystem = Filesystem(id = 0, name = filesystemName, distributionType = filesystemType)
+        whenever(mockFilesystemManager.nextExportIsIncrement(filesystem)).thenReturn(true)
+        val date = SimpleDateFormat("yyyyMMdd-HHmmss", Locale.ENGLISH).parse("20200102-030405")!!
+
+        val backupName = filesystemListViewModel.getFilesystemBackupName(filesystem, date = date)
+
+        assertEquals("$filesystemName-$filesystemType-increment-20200102-030405-$rootfsString", backupName)
+    }
+
+    @Test
+    fun `getFilesystemBackupName names full backups that were asked for after the filesystem`() {
+        val filesystem = Filesystem(id = 0, name = filesystemName, distributionType = filesystemType)
+
+        assertEquals(expectedBackupName, filesystemListViewModel.getFilesystemBackupName(filesystem, fullBackup = true))
+        verify(mockFilesystemManager, never()).nextExportIsIncrement(filesystem)
+    }
+
     @Test
     fun `startExport posts FilesystemExportState Failure if attempting to export when there is an active session`() {
         val activeSession = Session(id = -1, name = "active", filesystemId = -1, active = true)
@@ -122,11 +171,9 @@ class FilesystemListViewModelTest {
 
         activeSessionsLiveData.postValue(activeSessions)
 
-        val filesDir = tempFolder.newFolder("files")
-
         filesystemListViewModel.getViewState().observeForever(mockViewStateObserver)
         runBlocking {
-            filesystemListViewModel.startExport(filesDir, mockUri, mockContentResolver, this)
+            filesystemListViewModel.startExport(mockUri, mockContentResolver, this)
         }
 
         verify(mockViewStateObserver).onChanged(FilesystemExportState.Failure(R.string.deactivate_sessions, ""))
@@ -134,142 +181,128 @@ class FilesystemListViewModelTest {
 
     @Test
     fun `startExport posts FilesystemExportState Failure if filesystemToBackup has not been set`() {
-        val filesDir = tempFolder.newFolder("files")
-
         filesystemListViewModel.getAllActiveSessions().observeForever(mockActiveSessionObserver)
         filesystemListViewModel.getViewState().observeForever(mockViewStateObserver)
         runBlocking {
-            filesystemListViewModel.startExport(filesDir, mockUri, mockContentResolver, this)
+            filesystemListViewModel.startExport(mockUri, mockContentResolver, this)
         }
 
         verify(mockViewStateObserver).onChanged(FilesystemExportState.Failure(R.string.error_export_filesystem_not_found))
     }
 
     @Test
-    fun `startExport posts FilesystemExportState Failure if FilesystemManager#compressFilesystem fails`() {
-        val filesDir = tempFolder.newFolder("files")
-
+    fun `startExport posts FilesystemExportState Failure if FilesystemManager#exportFilesystem fails`() {
         filesystemListViewModel.getAllActiveSessions().observeForever(mockActiveSessionObserver)
         filesystemListViewModel.getViewState().observeForever(mockViewStateObserver)
 
-        val localBackupFile = File(filesDir, expectedBackupName)
         val filesystem = Filesystem(id = 0, name = filesystemName, distributionType = filesystemType)
         filesystemListViewModel.setFilesystemToBackup(filesystem)
+        val externalCopy = File(tempFolder.newFolder("external"), "copy")
+        whenever(mockContentResolver.openOutputStream(mockUri, "w"))
+                .thenReturn(externalCopy.outputStream())
 
         val failureReason = "reason"
         runBlocking {
-            whenever(mockFilesystemManager.compressFilesystem(eq(filesystem), eq(localBackupFile), anyOrNull()))
+            whenever(mockFilesystemManager.exportFilesystem(eq(filesystem), any(), eq(false), any(), any()))
                     .thenReturn(FailedExecution(failureReason))
         }
 
         runBlocking {
-            filesystemListViewModel.startExport(filesDir, mockUri, mockContentResolver, this)
+            filesystemListViewModel.startExport(mockUri, mockContentResolver, this)
         }
 
         verify(mockViewStateObserver).onChanged(FilesystemExportState.Failure(R.string.error_export_execution_failure, failureReason))
     }
 
     @Test
-    fun `startExport posts FilesystemExportState Failure if an intermediate local backup is not created`() {
-        val filesDir = tempFolder.newFolder("files")
-
+    fun `startExport posts FilesystemExportState Failure if no data is exported`() {
         filesystemListViewModel.getAllActiveSessions().observeForever(mockActiveSessionObserver)
         filesystemListViewModel.getViewState().observeForever(mockViewStateObserver)
 
-        val localBackupFile = File(filesDir, expectedBackupName)
         val filesystem = Filesystem(id = 0, name = filesystemName, distributionType = filesystemType)
         filesystemListViewModel.setFilesystemToBackup(filesystem)
+        val externalCopy = File(tempFolder.newFolder("external"), "copy")
+        whenever(mockContentResolver.openOutputStream(mockUri, "w"))
+                .thenReturn(externalCopy.outputStream())
         runBlocking {
-            whenever(mockFilesystemManager.compressFilesystem(eq(filesystem), eq(localBackupFile), anyOrNull()))
+            whenever(mockFilesystemManager.exportFilesystem(eq(filesystem), any(), eq(false), any(), any()))
                     .thenReturn(SuccessfulExecution)
         }
 
         runBlocking {
-            filesystemListViewModel.startExport(filesDir, mockUri, mockContentResolver, this)
+            filesystemListViewModel.startExport(mockUri, mockContentResolver, this)
         }
 
         verify(mockViewStateObserver).onChanged(FilesystemExportState.Failure(R.string.error_export_local_failure))
     }
 
     @Test
-    fun `startExport posts FilesystemExportState Failure if an intermediate local backup has has no data`() {
-        val filesDir = tempFolder.newFolder("files")
-
+    fun `startExport posts FilesystemExportState Failure if the external Uri can not be opened`() {
         filesystemListViewModel.getAllActiveSessions().observeForever(mockActiveSessionObserver)
         filesystemListViewModel.getViewState().observeForever(mockViewStateObserver)
 
-        val localBackupFile = File(filesDir, expectedBackupName)
-        localBackupFile.createNewFile()
         val filesystem = Filesystem(id = 0, name = filesystemName, distributionType = filesystemType)
         filesystemListViewModel.setFilesystemToBackup(filesystem)
-        runBlocking {
-            whenever(mockFilesystemManager.compressFilesystem(eq(filesystem), eq(localBackupFile), anyOrNull()))
-                    .thenReturn(SuccessfulExecution)
-        }
+
+        whenever(mockContentResolver.openOutputStream(mockUri, "w"))
+                .thenThrow(FileNotFoundException())
 
         runBlocking {
-            filesystemListViewModel.startExport(filesDir, mockUri, mockContentResolver, this)
+            filesystemListViewModel.startExport(mockUri, mockContentResolver, this)
         }
 
-        verify(mockViewStateObserver).onChanged(FilesystemExportState.Failure(R.string.error_export_local_failure))
+        verify(mockViewStateObserver).onChanged(FilesystemExportState.Failure(R.string.error_export_copy_public_external_failure))
     }
 
     @Test
-    fun `startExport posts FilesystemExportState Failure if copying to external Uri fails`() {
-        val filesDir = tempFolder.newFolder("files")
-
+    fun `startExport posts FilesystemExportState Failure if writing to the external Uri fails`() {
         filesystemListViewModel.getAllActiveSessions().observeForever(mockActiveSessionObserver)
         filesystemListViewModel.getViewState().observeForever(mockViewStateObserver)
 
-        val localBackupFile = File(filesDir, expectedBackupName)
-        localBackupFile.writeText("test")
         val filesystem = Filesystem(id = 0, name = filesystemName, distributionType = filesystemType)
         filesystemListViewModel.setFilesystemToBackup(filesystem)
+        val externalCopy = File(tempFolder.newFolder("external"), "copy")
+        whenever(mockContentResolver.openOutputStream(mockUri, "w"))
+                .thenReturn(externalCopy.outputStream())
         runBlocking {
-            whenever(mockFilesystemManager.compressFilesystem(eq(filesystem), eq(localBackupFile), anyOrNull()))
-                    .thenReturn(SuccessfulExecution)
+            whenever(mockFilesystemManager.exportFilesystem(eq(filesystem), any(), eq(false), any(), any()))
+                    .thenAnswer { throw IOException() }
         }
 
-        whenever(mockContentResolver.openOutputStream(mockUri, "w"))
-                .thenThrow(FileNotFoundException())
-
         runBlocking {
-            filesystemListViewModel.startExport(filesDir, mockUri, mockContentResolver, this)
+            filesystemListViewModel.startExport(mockUri, mockContentResolver, this)
         }
 
         verify(mockViewStateObserver).onChanged(FilesystemExportState.Failure(R.string.error_export_copy_public_external_failure))
     }
 
     @Test
-    fun `startExport posts FilesystemExportState Success if execution succeed, and deletes local intermediate`() {
-        val filesDir = tempFolder.newFolder("files")
-
+    fun `startExport streams the filesystem to the external Uri and posts byte progress`() {
         filesystemListViewModel.getAllActiveSessions().observeForever(mockActiveSessionObserver)
         filesystemListViewModel.getViewState().observeForever(mockViewStateObserver)
 
         val expectedText = "test"
-        val localBackupFile = File(filesDir, expectedBackupName)
-        localBackupFile.writeText(expectedText)
-
-        val externalDir = tempFolder.newFolder("external")
-        val externalCopy = File(externalDir, "copy")
+        val externalCopy = File(tempFolder.newFolder("external"), "copy")
 
         val filesystem = Filesystem(id = 0, name = filesystemName, distributionType = filesystemType)
         filesystemListViewModel.setFilesystemToBackup(filesystem)
-        runBlocking {
-            whenever(mockFilesystemManager.compressFilesystem(eq(filesystem), eq(localBackupFile), anyOrNull()))
-                    .thenReturn(SuccessfulExecution)
-        }
-
         whenever(mockContentResolver.openOutputStream(mockUri, "w"))
                 .thenReturn(externalCopy.outputStream())
+        runBlocking {
+            whenever(mockFilesystemManager.exportFilesystem(eq(filesystem), any(), eq(false), any(), any()))
+                    .thenAnswer {
+                        it.getArgument<OutputStream>(1).write(expectedText.toByteArray())
+                        it.getArgument<(Long) -> Unit>(4)(expectedText.length.toLong())
+                        SuccessfulExecution
+                    }
+        }
 
         runBlocking {
-            filesystemListViewModel.startExport(filesDir, mockUri, mockContentResolver, this)
+            filesystemListViewModel.startExport(mockUri, mockContentResolver, this)
         }
 
-        assertFalse(localBackupFile.exists())
+        verify(mockViewStateObserver).onChanged(FilesystemExportState.Update("", expectedText.length.toLong()))
         verify(mockViewStateObserver).onChanged(FilesystemExportState.Success)
-        assertEquals(expectedText, externalCopy.readText().trim())
+        assertEquals(expectedText, externalCopy.readText())
     }
-}
\ No newline at end of file
+}
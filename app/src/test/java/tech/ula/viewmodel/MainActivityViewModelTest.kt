@@ -17,7 +17,6 @@ import tech.ula.model.repositories.DownloadMetadata
 import tech.ula.model.state.* // ktlint-disable no-wildcard-imports
 import tech.ula.utils.* // ktlint-disable no-wildcard-imports
 import java.io.FileNotFoundException
-import java.lang.IllegalStateException
 
 @RunWith(MockitoJUnitRunner::class)
 class MainActivityViewModelTest {
@@ -92,6 +91,13 @@ class MainActivityViewModelTest {
         verify(mockSessionStartupFsm).submitEvent(SyncDownloadState, mainActivityViewModel)
     }
 
+    @Test
+    fun `Polling download progress submits PollDownloadProgress session event`() {
+        mainActivityViewModel.pollDownloadProgress()
+
+        verify(mockSessionStartupFsm).submitEvent(PollDownloadProgress, mainActivityViewModel)
+    }
+
     @Test
     fun `Restarts app setup after permissions are granted if an app was selected first`() {
         mainActivityViewModel.waitForPermissions(appToContinue = selectedApp)
@@ -308,21 +314,6 @@ class MainActivityViewModelTest {
         verify(mockLogger).sendIllegalStateLog(FailedToClearSupportFiles)
     }
 
-    @Test
-    fun `Posts BusyboxMissing if busybox is missing during clearing`() = runBlocking {
-        whenever(mockSessionStartupFsm.sessionsAreActive())
-                .thenReturn(false)
-        whenever(mockAssetFileClearer.clearAllSupportAssets())
-                .thenThrow(IllegalStateException())
-
-        mainActivityViewModel.handleClearSupportFiles(mockAssetFileClearer)
-
-        verify(mockAssetFileClearer).clearAllSupportAssets()
-        verify(mockStateObserver).onChanged(ClearingSupportFiles)
-        verify(mockStateObserver).onChanged(BusyboxMissing)
-        verify(mockLogger).sendIllegalStateLog(BusyboxMissing)
-    }
-
     // Private function tests.
 
     @Test
@@ -511,7 +502,7 @@ class MainActivityViewModelTest {
     }
 
     @Test
-    fun `Updates selected session and filesystem, posts StartingSetup, and submits RetrieveAssetLists when session is ready for prep is observed`() {
+    fun `Updates selected session and filesystem, posts StartingSetup, and submits PlanSessionStartup when session is ready for prep is observed`() {
         sessionStartupStateLiveData.postValue(SessionIsReadyForPreparation(selectedSession, selectedFilesystem))
 
         assertEquals(selectedSession, mainActivityViewModel.lastSelectedSession)
@@ -519,10 +510,20 @@ class MainActivityViewModelTest {
 
         verify(mockStateObserver).onChanged(StartingSetup)
         runBlocking {
-            verify(mockSessionStartupFsm).submitEvent(RetrieveAssetLists(selectedFilesystem), mainActivityViewModel)
+            verify(mockSessionStartupFsm).submitEvent(PlanSessionStartup(selectedFilesystem), mainActivityViewModel)
         }
     }
 
+    @Test
+    fun `Updates selected session and filesystem and posts SessionCanBeStarted when session is ready to launch`() {
+        sessionStartupStateLiveData.postValue(SessionIsReadyToLaunch(selectedSession, selectedFilesystem))
+
+        assertEquals(selectedSession, mainActivityViewModel.lastSelectedSession)
+        assertEquals(selectedFilesystem, mainActivityViewModel.lastSelectedFilesystem)
+
+        verify(mockStateObserver).onChanged(SessionCanBeStarted(selectedSession))
+    }
+
     @Test
     fun `Posts FetchingAssetLists when equivalent state is observed`() {
         makeSessionSelections()
@@ -614,8 +615,10 @@ class MainActivityViewModelTest {
         makeSessionSelections()
 
         sessionStartupStateLiveData.postValue(DownloadingAssets(0, 0))
+        sessionStartupStateLiveData.postValue(DownloadingAssets(1, 2, 100, 1000))
 
         verify(mockStateObserver).onChanged(DownloadProgress(0, 0))
+        verify(mockStateObserver).onChanged(DownloadProgress(1, 2, 100, 1000))
     }
 
     @Test
@@ -711,7 +714,7 @@ class MainActivityViewModelTest {
         sessionStartupStateLiveData.postValue(FilesystemAssetVerificationSucceeded)
 
         runBlocking {
-            verify(mockSessionStartupFsm).submitEvent(VerifyAvailableStorage, mainActivityViewModel)
+            verify(mockSessionStartupFsm).submitEvent(VerifyAvailableStorage(selectedFilesystem), mainActivityViewModel)
         }
     }
 
@@ -749,10 +752,9 @@ class MainActivityViewModelTest {
     fun `Posts FilesystemExtraction when observing filesystem extraction`() {
         makeSessionSelections()
 
-        val target = "bullseye"
-        sessionStartupStateLiveData.postValue(ExtractingFilesystem(target))
+        sessionStartupStateLiveData.postValue(ExtractingFilesystem(bytesExtracted = 10, totalBytes = 100))
 
-        verify(mockStateObserver).onChanged(FilesystemExtractionStep(target))
+        verify(mockStateObserver).onChanged(FilesystemExtractionStep(bytesExtracted = 10, totalBytes = 100))
     }
 
     @Test
@@ -0,0 +1,114 @@
+package com.termux.terminal;
+
+import android.os.Process;
+import android.util.Log;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * Runs many output-heavy sessions at once, either all shown or all in the background, and logs the CPU time and heap
+ * this process spends on them under {@link EmulatorDebug#LOG_TAG}.
+ */
+public class BackgroundSessionsTest extends TestCase {
+
+    private static final int SESSION_COUNT = 20;
+    private static final int LINES_PER_SESSION = 5000;
+
+    private static final String SHELL = "/system/bin/sh";
+    private static final String SCRIPT =
+        "i=0; while [ $i -lt " + LINES_PER_SESSION + " ]; do echo \"session output line $i\"; i=$((i+1)); done";
+
+    private static final class Result {
+        long cpuMillis;
+        long heapBytes;
+        int textChangedCallbacks;
+    }
+
+    private static final class CountingCallback implements TerminalSession.SessionChangedCallback {
+        final CountDownLatch mFinished = new CountDownLatch(SESSION_COUNT);
+        final AtomicInteger mTextChanged = new AtomicInteger();
+
+        @Override
+        public void onTextChanged(TerminalSession changedSession) {
+            mTextChanged.incrementAndGet();
+        }
+
+        @Override
+        public void onTitleChanged(TerminalSession changedSession) {
+        }
+
+        @Override
+        public void onSessionFinished(TerminalSession finishedSession) {
+            mFinished.countDown();
+        }
+
+        @Override
+        public void onClipboardText(TerminalSession session, String text) {
+        }
+
+        @Override
+        public void onBell(TerminalSession session) {
+        }
+
+        @Override
+        public void onColorsChanged(TerminalSession session) {
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        runtime.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static Result runSessions(final boolean background) throws InterruptedException {
+        final CountingCallback callback = new CountingCallback();
+        final List<TerminalSession> sessions = new ArrayList<>();
+        long heapBefore = usedHeap();
+        long cpuBefore = Process.getElapsedCpuTime();
+
+        // Sessions own a Handler, so they are created and driven on the main thread as in the app.
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(() -> {
+            for (int i = 0; i < SESSION_COUNT; i++) {
+                TerminalSession session = new TerminalSession(SHELL, "/", new String[]{"sh", "-c", SCRIPT}, new String[0], callback);
+                session.setBackground(background);
+                session.updateSize(80, 24);
+                sessions.add(session);
+            }
+        });
+
+        assertTrue("Sessions did not finish in time", callback.mFinished.await(5, TimeUnit.MINUTES));
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync();
+
+        Result result = new Result();
+        result.cpuMillis = Process.getElapsedCpuTime() - cpuBefore;
+        result.heapBytes = usedHeap() - heapBefore;
+        result.textChangedCallbacks = callback.mTextChanged.get();
+        for (TerminalSession session : sessions) assertEquals(0, session.getExitStatus());
+        return result;
+    }
+
+    private static void report(String label, Result result) {
+        Log.i(EmulatorDebug.LOG_TAG, String.format("%d %s sessions: cpu=%dms heap=%dKB textChanged=%d",
+            SESSION_COUNT, label, result.cpuMillis, result.heapBytes / 1024, result.textChangedCallbacks));
+    }
+
+    public void testBackgroundSessionsSkipScreenUpdates() throws InterruptedException {
+        Result shown = runSessions(false);
+        Result background = runSessions(true);
+        report("shown", shown);
+        report("background", background);
+
+        assertTrue(shown.textChangedCallbacks > 0);
+        assertEquals(0, background.textChangedCallbacks);
+    }
+
+}
@@ -0,0 +1,69 @@
+package com.termux.terminal;
+
+import android.util.Log;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Compares the latency of {@link JNI#createSubprocess(String, String, String[], String[], int[], int, int)} with and
+ * without the vfork() fast path. Needs a device since the native library is only built for Android; results are logged
+ * under {@link EmulatorDebug#LOG_TAG}.
+ */
+public class SpawnLatencyBenchmark extends TestCase {
+
+    private static final int WARMUP_SPAWNS = 20;
+    private static final int MEASURED_SPAWNS = 200;
+
+    private static final String COMMAND = "/system/bin/true";
+
+    @Override
+    protected void tearDown() {
+        JNI.setFastSpawnEnabled(true);
+    }
+
+    /** Spawn and reap the command, returning the nanoseconds spent in createSubprocess(). */
+    private static long timeSpawn() {
+        int[] processId = new int[1];
+        long start = System.nanoTime();
+        int ptm = JNI.createSubprocess(COMMAND, "/", new String[]{"true"}, new String[]{"PATH=/system/bin"}, processId, 24, 80);
+        long elapsed = System.nanoTime() - start;
+        assertEquals(0, JNI.waitFor(processId[0]));
+        JNI.close(ptm);
+        return elapsed;
+    }
+
+    private static long[] measure(boolean fastSpawn) {
+        JNI.setFastSpawnEnabled(fastSpawn);
+        for (int i = 0; i < WARMUP_SPAWNS; i++) timeSpawn();
+        long[] samples = new long[MEASURED_SPAWNS];
+        for (int i = 0; i < MEASURED_SPAWNS; i++) samples[i] = timeSpawn();
+        Arrays.sort(samples);
+        return samples;
+    }
+
+    private static void report(String label, long[] sortedSamples) {
+        long median = sortedSamples[sortedSamples.length / 2];
+        long p90 = sortedSamples[sortedSamples.length * 9 / 10];
+        Log.i(EmulatorDebug.LOG_TAG, String.format("spawn %s: median=%dus p90=%dus", label, median / 1000, p90 / 1000));
+    }
+
+    public void testSpawnLatency() {
+        // Allocate a few tens of MB so that the page tables fork() copies resemble a running app.
+        byte[][] ballast = new byte[64][];
+        for (int i = 0; i < ballast.length; i++) {
+            ballast[i] = new byte[512 * 1024];
+            Arrays.fill(ballast[i], (byte) i);
+        }
+
+        long[] forkSamples = measure(false);
+        long[] fastSamples = measure(true);
+        Log.i(EmulatorDebug.LOG_TAG, "spawn benchmark with " + (ballast.length / 2) + "MB of ballast");
+        report("fork", forkSamples);
+        report("fast", fastSamples);
+
+        assertTrue(fastSamples[fastSamples.length / 2] <= forkSamples[forkSamples.length / 2] * 2);
+    }
+
+}
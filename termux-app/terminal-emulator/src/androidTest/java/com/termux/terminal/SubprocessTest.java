@@ -0,0 +1,61 @@
+package com.termux.terminal;
+
+import android.system.OsConstants;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/** Needs a device since the native library is only built for Android. */
+public class SubprocessTest extends TestCase {
+
+    private static final String SHELL = "/system/bin/sh";
+
+    private static List<String> readLines(Subprocess process) throws IOException {
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getOutput(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) lines.add(line);
+        }
+        return lines;
+    }
+
+    public void testOutputAndExitStatus() throws IOException {
+        Subprocess process = Subprocess.start(SHELL, "/", new String[]{"sh", "-c", "echo $FOO; echo err >&2; pwd; read x; exit 3"},
+            new String[]{"FOO=bar"});
+
+        assertTrue(process.getPid() > 0);
+        assertEquals(Arrays.asList("bar", "err", "/"), readLines(process));
+        assertEquals(3, process.waitFor());
+        assertEquals(3, process.exitStatus());
+        assertEquals(-1, process.getPidFd());
+    }
+
+    public void testExitStatusDoesNotBlock() throws IOException {
+        Subprocess process = Subprocess.start(SHELL, "/", new String[]{"sh", "-c", "sleep 100"}, new String[0]);
+
+        assertEquals(Subprocess.STILL_RUNNING, process.exitStatus());
+        assertTrue(new File("/proc/" + process.getPid()).exists());
+
+        assertTrue(process.sendSignal(OsConstants.SIGKILL));
+        assertEquals(-OsConstants.SIGKILL, process.waitFor());
+        assertFalse(process.sendSignal(OsConstants.SIGKILL));
+    }
+
+    public void testCommandsNeedAPath() {
+        try {
+            Subprocess.start("sh", "/", new String[]{"sh"}, new String[0]);
+            fail();
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+
+}
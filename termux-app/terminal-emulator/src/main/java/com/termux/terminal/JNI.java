@@ -5,6 +5,11 @@ package com.termux.terminal;
  */
 final class JNI {
 
+    /** Returned by {@link #tryWaitFor(int)} while the process is still running. */
+    static final int STILL_RUNNING = Integer.MIN_VALUE;
+    /** Returned by {@link #tryWaitFor(int)} if the process is not a child of ours, e.g. because it was already reaped. */
+    static final int WAIT_FAILED = Integer.MIN_VALUE + 1;
+
     static {
         System.loadLibrary("termux");
     }
@@ -25,6 +30,26 @@ final class JNI {
      */
     public static native int createSubprocess(String cmd, String cwd, String[] args, String[] envVars, int[] processId, int rows, int columns);
 
+    /**
+     * Create a subprocess whose stdout and stderr go to a pipe and whose stdin is /dev/null. Uses the same vfork() fast
+     * path as {@link #createSubprocess(String, String, String[], String[], int[], int, int)}, so the command needs to be
+     * a path and is not looked up in PATH.
+     * <p/>
+     * Callers are responsible for closing the returned file descriptor and, if it is not -1, the pidfd.
+     *
+     * @param processInfo A two-element array to which the process ID and a pidfd for the process will be written. The
+     *                    pidfd is -1 if the kernel or the seccomp policy of the app does not allow pidfd_open(2).
+     * @return the read end of the pipe that the process writes its output to.
+     */
+    public static native int spawn(String cmd, String cwd, String[] args, String[] envVars, int[] processInfo);
+
+    /**
+     * Choose how {@link #createSubprocess(String, String, String[], String[], int[], int, int)} starts the child. The
+     * fast path uses vfork() and close_range() where available and is on by default; disabling it forces the
+     * fork() path that walks /proc/self/fd.
+     */
+    public static native void setFastSpawnEnabled(boolean enabled);
+
     /** Set the window size for a given pty, which allows connected programs to learn how large their screen is. */
     public static native void setPtyWindowSize(int fd, int rows, int cols);
 
@@ -35,6 +60,27 @@ final class JNI {
      */
     public static native int waitFor(int processId);
 
+    /**
+     * Reap the process if it has finished, without blocking.
+     *
+     * @return {@link #STILL_RUNNING}, {@link #WAIT_FAILED}, or the status as returned by {@link #waitFor(int)}.
+     */
+    public static native int tryWaitFor(int processId);
+
+    /**
+     * Block until the process has finished, but leave it to be reaped by {@link #tryWaitFor(int)}.
+     *
+     * @return 0, or the negated errno if waiting failed.
+     */
+    public static native int waitForExitWithoutReaping(int processId);
+
+    /**
+     * Send a signal through the pidfd if there is one, which cannot hit a different process that reused the pid.
+     *
+     * @return 0, or the negated errno if the signal could not be sent.
+     */
+    public static native int sendSignal(int processId, int pidFd, int signal);
+
     /** Close a file descriptor through the close(2) system call. */
     public static native void close(int fileDescriptor);
 
@@ -0,0 +1,112 @@
+package com.termux.terminal;
+
+import android.os.ParcelFileDescriptor;
+import android.system.OsConstants;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A child process with its output on a pipe. Unlike {@link Process} it exposes the real process ID and a pidfd where
+ * available, and can be polled for its exit without blocking a thread per process.
+ */
+public final class Subprocess {
+
+    /** Returned by {@link #exitStatus()} while the process is still running. */
+    public static final int STILL_RUNNING = JNI.STILL_RUNNING;
+
+    private final int mPid;
+    private int mPidFd;
+    private final InputStream mOutput;
+
+    private boolean mExited;
+    private int mExitStatus;
+
+    private Subprocess(int pid, int pidFd, InputStream output) {
+        mPid = pid;
+        mPidFd = pidFd;
+        mOutput = output;
+    }
+
+    /** Whether the native library could be loaded, which is not the case in JVM unit tests. */
+    public static boolean isSupported() {
+        try {
+            Class.forName(JNI.class.getName());
+            return true;
+        } catch (Throwable t) {
+            return false;
+        }
+    }
+
+    /**
+     * Start a process with stdout and stderr merged into {@link #getOutput()} and stdin from /dev/null.
+     *
+     * @param cmd The path of the command to execute, which is not looked up in PATH
+     * @param env The complete environment of the process, as "VAR=value" strings
+     */
+    public static Subprocess start(String cmd, String cwd, String[] args, String[] env) throws IOException {
+        int[] processInfo = new int[2];
+        int output;
+        try {
+            output = JNI.spawn(cmd, cwd, args, env, processInfo);
+        } catch (RuntimeException e) {
+            throw new IOException("Cannot run " + cmd + ": " + e.getMessage(), e);
+        }
+        return new Subprocess(processInfo[0], processInfo[1],
+            new ParcelFileDescriptor.AutoCloseInputStream(ParcelFileDescriptor.adoptFd(output)));
+    }
+
+    public int getPid() {
+        return mPid;
+    }
+
+    /** The pidfd of the process, or -1 if there is none or the process has been reaped. */
+    public synchronized int getPidFd() {
+        return mPidFd;
+    }
+
+    public InputStream getOutput() {
+        return mOutput;
+    }
+
+    /**
+     * Check whether the process has finished, without blocking.
+     *
+     * @return {@link #STILL_RUNNING}, or the exit status of the process if >= 0 and the signal that stopped it negated
+     * otherwise. If the process was reaped outside of this class its status is unknown and -1 is returned.
+     */
+    public synchronized int exitStatus() {
+        if (!mExited) {
+            int status = JNI.tryWaitFor(mPid);
+            if (status == STILL_RUNNING) return STILL_RUNNING;
+            mExited = true;
+            mExitStatus = (status == JNI.WAIT_FAILED) ? -1 : status;
+            if (mPidFd >= 0) {
+                JNI.close(mPidFd);
+                mPidFd = -1;
+            }
+        }
+        return mExitStatus;
+    }
+
+    /** Block until the process has finished, returning its status as {@link #exitStatus()} does. */
+    public int waitFor() {
+        while (true) {
+            int status = exitStatus();
+            if (status != STILL_RUNNING) return status;
+            // Does not reap, so that concurrent calls to exitStatus() stay the only place that does.
+            JNI.waitForExitWithoutReaping(mPid);
+        }
+    }
+
+    /** @return false if the process has already been reaped or the signal could not be sent. */
+    public synchronized boolean sendSignal(int signal) {
+        if (mExited) return false;
+        return JNI.sendSignal(mPid, mPidFd, signal) == 0;
+    }
+
+    public void destroy() {
+        sendSignal(OsConstants.SIGKILL);
+    }
+
+}
@@ -348,6 +348,19 @@ public final class TerminalEmulator {
         resizeScreen();
     }
 
+    /**
+     * Change how many rows of transcript the main buffer keeps, dropping the oldest rows when shrinking. Ignored while
+     * the alternate buffer is active, since the cursor then does not belong to the main buffer.
+     */
+    public void setTranscriptRows(int transcriptRows) {
+        transcriptRows = Math.max(transcriptRows, mRows);
+        if (mScreen != mMainBuffer || transcriptRows == mMainBuffer.mTotalRows) return;
+        final int[] cursor = {mCursorCol, mCursorRow};
+        mMainBuffer.resize(mColumns, mRows, transcriptRows, cursor, getStyle(), false);
+        mCursorCol = cursor[0];
+        mCursorRow = cursor[1];
+    }
+
     private void resizeScreen() {
         final int[] cursor = {mCursorCol, mCursorRow};
         int newTotalRows = (mScreen == mAltBuffer) ? mRows : mMainBuffer.mTotalRows;
@@ -27,6 +27,9 @@ import java.util.UUID;
  * The child process may be exited forcefully by using the {@link #finishIfRunning()} method.
  * <p>
  * NOTE: The terminal session may outlive the EmulatorView, so be careful with callbacks!
+ * <p>
+ * A session which no view shows should be put in the background with {@link #setBackground(boolean)}, where it keeps a
+ * smaller transcript and defers parsing of its output until it is shown again.
  */
 public final class TerminalSession extends TerminalOutput {
 
@@ -68,6 +71,13 @@ public final class TerminalSession extends TerminalOutput {
     private static final int MSG_NEW_INPUT = 1;
     private static final int MSG_PROCESS_EXITED = 4;
 
+    /** The number of transcript rows kept while the session is shown. */
+    private static final int TRANSCRIPT_ROWS = 2000;
+    /** The number of transcript rows kept while the session is in the background. */
+    private static final int BACKGROUND_TRANSCRIPT_ROWS = 200;
+    /** How much output a background session buffers before handing it to the emulator in one batch. */
+    private static final int BACKGROUND_OUTPUT_BUFFER_SIZE = 64 * 1024;
+
     public final String mHandle = UUID.randomUUID().toString();
 
     TerminalEmulator mEmulator;
@@ -103,6 +113,13 @@ public final class TerminalSession extends TerminalOutput {
     /** Set by the application for user identification of session, not by terminal. */
     public String mSessionName;
 
+    /** If no view shows this session, see {@link #setBackground(boolean)}. Only accessed on the main thread. */
+    private boolean mBackground;
+
+    /** Output received in the background which the emulator has not parsed yet. Only accessed on the main thread. */
+    private byte[] mBackgroundOutput;
+    private int mBackgroundOutputLength;
+
     @SuppressLint("HandlerLeak")
     final Handler mMainThreadHandler = new Handler() {
         final byte[] mReceiveBuffer = new byte[4 * 1024];
@@ -112,11 +129,16 @@ public final class TerminalSession extends TerminalOutput {
             if (msg.what == MSG_NEW_INPUT && isRunning()) {
                 int bytesRead = mProcessToTerminalIOQueue.read(mReceiveBuffer, false);
                 if (bytesRead > 0) {
-                    mEmulator.append(mReceiveBuffer, bytesRead);
-                    notifyScreenUpdate();
+                    if (mBackground) {
+                        bufferBackgroundOutput(mReceiveBuffer, bytesRead);
+                    } else {
+                        mEmulator.append(mReceiveBuffer, bytesRead);
+                        notifyScreenUpdate();
+                    }
                 }
             } else if (msg.what == MSG_PROCESS_EXITED) {
                 int exitCode = (Integer) msg.obj;
+                flushBackgroundOutput();
                 cleanupResources(exitCode);
                 mChangeCallback.onSessionFinished(TerminalSession.this);
 
@@ -132,7 +154,7 @@ public final class TerminalSession extends TerminalOutput {
 
                 byte[] bytesToWrite = exitDescription.getBytes(StandardCharsets.UTF_8);
                 mEmulator.append(bytesToWrite, bytesToWrite.length);
-                notifyScreenUpdate();
+                if (!mBackground) notifyScreenUpdate();
             }
         }
     };
@@ -173,7 +195,7 @@ public final class TerminalSession extends TerminalOutput {
      * @param rows    The number of rows in the terminal window.
      */
     public void initializeEmulator(int columns, int rows) {
-        mEmulator = new TerminalEmulator(this, columns, rows, /* transcript= */2000);
+        mEmulator = new TerminalEmulator(this, columns, rows, mBackground ? BACKGROUND_TRANSCRIPT_ROWS : TRANSCRIPT_ROWS);
 
         int[] processId = new int[1];
 
@@ -226,6 +248,46 @@ public final class TerminalSession extends TerminalOutput {
         }.start();
     }
 
+    /**
+     * Move the session to the background when no view shows it any longer, or back when a view attaches to it.
+     * <p>
+     * In the background the transcript shrinks to {@link #BACKGROUND_TRANSCRIPT_ROWS}, output is buffered raw and only
+     * parsed in batches of {@link #BACKGROUND_OUTPUT_BUFFER_SIZE} bytes, and {@link #notifyScreenUpdate()} is skipped.
+     * Coming back parses whatever is buffered and notifies once. Must be called on the main thread.
+     */
+    public void setBackground(boolean background) {
+        if (mBackground == background) return;
+        mBackground = background;
+        if (mEmulator == null) return;
+
+        if (background) {
+            mEmulator.setTranscriptRows(BACKGROUND_TRANSCRIPT_ROWS);
+        } else {
+            mEmulator.setTranscriptRows(TRANSCRIPT_ROWS);
+            flushBackgroundOutput();
+            mBackgroundOutput = null;
+            notifyScreenUpdate();
+        }
+    }
+
+    public boolean isBackground() {
+        return mBackground;
+    }
+
+    private void bufferBackgroundOutput(byte[] data, int length) {
+        if (mBackgroundOutput == null) mBackgroundOutput = new byte[BACKGROUND_OUTPUT_BUFFER_SIZE];
+        if (mBackgroundOutputLength + length > mBackgroundOutput.length) flushBackgroundOutput();
+        System.arraycopy(data, 0, mBackgroundOutput, mBackgroundOutputLength, length);
+        mBackgroundOutputLength += length;
+    }
+
+    /** Let the emulator parse the output buffered in the background, without notifying about screen changes. */
+    private void flushBackgroundOutput() {
+        if (mBackgroundOutputLength == 0) return;
+        mEmulator.append(mBackgroundOutput, mBackgroundOutputLength);
+        mBackgroundOutputLength = 0;
+    }
+
     /** Write data to the shell process. */
     @Override
     public void write(byte[] data, int offset, int count) {
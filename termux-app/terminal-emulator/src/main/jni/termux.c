@@ -1,7 +1,10 @@
 #include <dirent.h>
+#include <errno.h>
 #include <fcntl.h>
 #include <jni.h>
+#include <limits.h>
 #include <signal.h>
+#include <stdbool.h>
 #include <stdio.h>
 #include <stdlib.h>
 #include <string.h>
@@ -15,6 +18,28 @@
 # define LACKS_PTSNAME_R
 #endif
 
+#ifdef __linux__
+# define HAS_FAST_SPAWN
+# include <sys/syscall.h>
+# ifdef __ANDROID__
+#  include <sys/system_properties.h>
+# endif
+// These have the same number on every architecture since they were added after the syscall tables were unified.
+# ifndef __NR_close_range
+#  define __NR_close_range 436
+# endif
+# ifndef __NR_pidfd_open
+#  define __NR_pidfd_open 434
+# endif
+# ifndef __NR_pidfd_send_signal
+#  define __NR_pidfd_send_signal 424
+# endif
+#endif
+
+// Must match JNI.STILL_RUNNING and JNI.WAIT_FAILED.
+#define WAIT_STILL_RUNNING INT_MIN
+#define WAIT_FAILED (INT_MIN + 1)
+
 static int throw_runtime_exception(JNIEnv* env, char const* message)
 {
     jclass exClass = (*env)->FindClass(env, "java/lang/RuntimeException");
@@ -22,6 +47,187 @@ static int throw_runtime_exception(JNIEnv* env, char const* message)
     return -1;
 }
 
+#ifdef HAS_FAST_SPAWN
+/** Toggled through JNI.setFastSpawnEnabled(), mostly so that the spawn benchmark can compare both paths. */
+static bool fast_spawn_enabled = true;
+
+/** -1 if not yet probed, otherwise whether close_range(2) may be used. */
+static int close_range_usable = -1;
+
+/** -1 if not yet probed, otherwise whether pidfd_open(2) and pidfd_send_signal(2) may be used. */
+static int pidfd_usable = -1;
+
+/**
+ * Older app seccomp policies kill the process on unknown system calls instead of returning ENOSYS, so newer calls are
+ * never probed below the first release whose policy allows them.
+ */
+static bool sdk_allows(int min_sdk)
+{
+#ifdef __ANDROID__
+    char sdk[PROP_VALUE_MAX] = { 0 };
+    return __system_property_get("ro.build.version.sdk", sdk) > 0 && atoi(sdk) >= min_sdk;
+#else
+    (void) min_sdk;
+    return true;
+#endif
+}
+
+static bool can_use_close_range(void)
+{
+    if (close_range_usable != -1) return close_range_usable;
+    // An empty range only tells us whether the kernel knows the call (Linux >= 5.9).
+    close_range_usable = sdk_allows(33) && syscall(__NR_close_range, ~0U, ~0U, 0) == 0;
+    return close_range_usable;
+}
+
+static bool can_use_pidfd(void)
+{
+    if (pidfd_usable != -1) return pidfd_usable;
+    pidfd_usable = 0;
+    if (sdk_allows(31)) {
+        // Linux >= 5.3 for pidfd_open(2), which implies pidfd_send_signal(2) from 5.1.
+        int pidfd = (int) syscall(__NR_pidfd_open, getpid(), 0);
+        if (pidfd >= 0) {
+            close(pidfd);
+            pidfd_usable = 1;
+        }
+    }
+    return pidfd_usable;
+}
+
+struct linux_dirent64 {
+    unsigned long long d_ino;
+    long long d_off;
+    unsigned short d_reclen;
+    unsigned char d_type;
+    char d_name[];
+};
+
+/**
+ * Close every descriptor above stderr. Only uses raw system calls and the stack, since after vfork() the child
+ * borrows the memory of the parent and must neither allocate nor take locks that another parent thread may hold.
+ */
+static void close_inherited_fds(void)
+{
+    if (close_range_usable == 1 && syscall(__NR_close_range, 3, ~0U, 0) == 0) return;
+
+    int dir_fd = open("/proc/self/fd", O_RDONLY | O_DIRECTORY | O_CLOEXEC);
+    if (dir_fd < 0) return;
+    char buffer[4096];
+    long bytes_read;
+    while ((bytes_read = syscall(SYS_getdents64, dir_fd, buffer, sizeof(buffer))) > 0) {
+        for (long offset = 0; offset < bytes_read;) {
+            struct linux_dirent64* entry = (struct linux_dirent64*) (buffer + offset);
+            offset += entry->d_reclen;
+            int fd = 0;
+            char const* c = entry->d_name;
+            if (*c < '0' || *c > '9') continue;
+            for (; *c >= '0' && *c <= '9'; c++) fd = fd * 10 + (*c - '0');
+            if (fd > 2 && fd != dir_fd) close(fd);
+        }
+    }
+    close(dir_fd);
+}
+
+/** Async-signal-safe replacement for perror() with the same "call("arg"): message" output. */
+static void write_spawn_error(char const* call, char const* arg)
+{
+    char const* reason = strerror(errno);
+    write(2, call, strlen(call));
+    write(2, "(\"", 2);
+    write(2, arg, strlen(arg));
+    write(2, "\"): ", 4);
+    write(2, reason, strlen(reason));
+    write(2, "\n", 1);
+}
+
+/**
+ * Set up the standard streams and exec. With a devname the child gets a new session with the pseudoterminal as its
+ * controlling terminal, otherwise stdin is /dev/null and stdout and stderr both go to output_fd.
+ */
+static void __attribute__((noreturn)) exec_in_spawned_child(char const* devname,
+        int output_fd,
+        char const* cmd,
+        char const* cwd,
+        char* const argv[],
+        char* const envp[])
+{
+    // Caught signals would run parent handlers on the shared address space until exec, so reset them first.
+    // Ignored signals stay ignored, as they would across fork() and exec().
+    for (int sig = 1; sig < NSIG; sig++) {
+        struct sigaction action;
+        if (sigaction(sig, NULL, &action) != 0) continue;
+        if (action.sa_handler == SIG_DFL || action.sa_handler == SIG_IGN) continue;
+        action.sa_handler = SIG_DFL;
+        action.sa_flags = 0;
+        sigaction(sig, &action, NULL);
+    }
+
+    // Clear signals which the Android java process may have blocked, including the ones blocked around vfork():
+    sigset_t signals_to_unblock;
+    sigfillset(&signals_to_unblock);
+    sigprocmask(SIG_UNBLOCK, &signals_to_unblock, 0);
+
+    if (devname != NULL) {
+        setsid();
+
+        int pts = open(devname, O_RDWR);
+        if (pts < 0) _exit(-1);
+
+        dup2(pts, 0);
+        dup2(pts, 1);
+        dup2(pts, 2);
+    } else {
+        int null_fd = open("/dev/null", O_RDONLY);
+        if (null_fd < 0) _exit(-1);
+
+        dup2(null_fd, 0);
+        dup2(output_fd, 1);
+        dup2(output_fd, 2);
+    }
+
+    close_inherited_fds();
+
+    if (chdir(cwd) != 0) write_spawn_error("chdir", cwd);
+
+    static char* const empty_environment[] = { NULL };
+    execve(cmd, argv, envp ? envp : empty_environment);
+    // Show terminal output about failing exec() call:
+    write_spawn_error("exec", cmd);
+    _exit(1);
+}
+
+/**
+ * Start the child with vfork() so that the page tables of a large app process are not copied. The environment is
+ * handed to execve() directly instead of being rebuilt with clearenv()/putenv(), which would modify the parent, so
+ * this path needs a command with a slash and no PATH lookup.
+ *
+ * @return the pid of the child, or -1 if the caller should fall back to fork().
+ */
+static pid_t spawn_with_vfork(char const* devname,
+        int output_fd,
+        char const* cmd,
+        char const* cwd,
+        char* const argv[],
+        char* const envp[])
+{
+    if (!fast_spawn_enabled || strchr(cmd, '/') == NULL) return -1;
+    // Probe in the parent so that the result is cached before the child reads it.
+    can_use_close_range();
+
+    // No signal handler of ours may run in the child before it has reset the dispositions.
+    sigset_t all_signals, previous_signals;
+    sigfillset(&all_signals);
+    pthread_sigmask(SIG_SETMASK, &all_signals, &previous_signals);
+
+    pid_t pid = vfork();
+    if (pid == 0) exec_in_spawned_child(devname, output_fd, cmd, cwd, argv, envp);
+
+    pthread_sigmask(SIG_SETMASK, &previous_signals, NULL);
+    return pid;
+}
+#endif
+
 static int create_subprocess(JNIEnv* env,
         char const* cmd,
         char const* cwd,
@@ -60,6 +266,14 @@ static int create_subprocess(JNIEnv* env,
     struct winsize sz = { .ws_row = (unsigned short) rows, .ws_col = (unsigned short) columns };
     ioctl(ptm, TIOCSWINSZ, &sz);
 
+#ifdef HAS_FAST_SPAWN
+    pid_t spawned_pid = spawn_with_vfork(devname, -1, cmd, cwd, argv, envp);
+    if (spawned_pid > 0) {
+        *pProcessId = (int) spawned_pid;
+        return ptm;
+    }
+#endif
+
     pid_t pid = fork();
     if (pid < 0) {
         return throw_runtime_exception(env, "Fork failed");
@@ -112,6 +326,79 @@ static int create_subprocess(JNIEnv* env,
     }
 }
 
+/**
+ * Start a child with stdout and stderr going to a pipe and stdin from /dev/null, like a {@link ProcessBuilder} with
+ * redirectErrorStream(true), without the reaper thread and pid hiding of java.lang.Process.
+ *
+ * @return the read end of the output pipe.
+ */
+static int spawn_piped(JNIEnv* env,
+        char const* cmd,
+        char const* cwd,
+        char* const argv[],
+        char* const envp[],
+        int* pProcessId,
+        int* pPidFd)
+{
+#ifdef HAS_FAST_SPAWN
+    // Both paths exec with execve(), which does no PATH lookup.
+    if (strchr(cmd, '/') == NULL) return throw_runtime_exception(env, "spawn() needs a command path");
+
+    // Close-on-exec so that children spawned concurrently from other threads do not keep the pipe open.
+    int output[2];
+    if (pipe2(output, O_CLOEXEC) != 0) return throw_runtime_exception(env, "Cannot create output pipe");
+
+    pid_t pid = spawn_with_vfork(NULL, output[1], cmd, cwd, argv, envp);
+    if (pid < 0) {
+        pid = fork();
+        if (pid == 0) exec_in_spawned_child(NULL, output[1], cmd, cwd, argv, envp);
+    }
+    close(output[1]);
+    if (pid < 0) {
+        close(output[0]);
+        return throw_runtime_exception(env, "Fork failed");
+    }
+
+    *pProcessId = (int) pid;
+    // The child cannot have been reaped yet, so the pidfd is guaranteed to refer to it.
+    *pPidFd = can_use_pidfd() ? (int) syscall(__NR_pidfd_open, pid, 0) : -1;
+    return output[0];
+#else
+    (void) cmd; (void) cwd; (void) argv; (void) envp; (void) pProcessId; (void) pPidFd;
+    return throw_runtime_exception(env, "spawn() is not supported on this platform");
+#endif
+}
+
+/** Copy a Java string array into a NULL-terminated array of strings, or NULL if it is null or empty. */
+static char** to_string_array(JNIEnv* env, jobjectArray array, bool* failed)
+{
+    jsize size = array ? (*env)->GetArrayLength(env, array) : 0;
+    if (size == 0) return NULL;
+    char** result = (char**) calloc(size + 1, sizeof(char*));
+    if (!result) {
+        *failed = true;
+        return NULL;
+    }
+    for (int i = 0; i < size; ++i) {
+        jstring java_string = (jstring) (*env)->GetObjectArrayElement(env, array, i);
+        char const* utf8 = (*env)->GetStringUTFChars(env, java_string, NULL);
+        if (!utf8) {
+            *failed = true;
+            return result;
+        }
+        result[i] = strdup(utf8);
+        (*env)->ReleaseStringUTFChars(env, java_string, utf8);
+    }
+    return result;
+}
+
+static void free_string_array(char** array)
+{
+    if (!array) return;
+    for (char** tmp = array; *tmp; ++tmp) free(*tmp);
+    free(array);
+}
+
 JNIEXPORT jint JNICALL Java_com_termux_terminal_JNI_createSubprocess(
         JNIEnv* env,
         jclass TERMUX_UNUSED(clazz),
@@ -178,6 +465,47 @@ JNIEXPORT jint JNICALL Java_com_termux_terminal_JNI_createSubprocess(
     return ptm;
 }
 
+JNIEXPORT jint JNICALL Java_com_termux_terminal_JNI_spawn(
+        JNIEnv* env,
+        jclass TERMUX_UNUSED(clazz),
+        jstring cmd,
+        jstring cwd,
+        jobjectArray args,
+        jobjectArray envVars,
+        jintArray processInfoArray)
+{
+    bool failed = false;
+    char** argv = to_string_array(env, args, &failed);
+    char** envp = to_string_array(env, envVars, &failed);
+    if (failed) {
+        free_string_array(argv);
+        free_string_array(envp);
+        return throw_runtime_exception(env, "Couldn't copy argv or envp");
+    }
+
+    int processInfo[2] = { 0, -1 };
+    char const* cmd_cwd = (*env)->GetStringUTFChars(env, cwd, NULL);
+    char const* cmd_utf8 = (*env)->GetStringUTFChars(env, cmd, NULL);
+    int output = spawn_piped(env, cmd_utf8, cmd_cwd, argv, envp, &processInfo[0], &processInfo[1]);
+    (*env)->ReleaseStringUTFChars(env, cmd, cmd_utf8);
+    (*env)->ReleaseStringUTFChars(env, cwd, cmd_cwd);
+
+    free_string_array(argv);
+    free_string_array(envp);
+
+    if (output >= 0) (*env)->SetIntArrayRegion(env, processInfoArray, 0, 2, processInfo);
+    return output;
+}
+
+JNIEXPORT void JNICALL Java_com_termux_terminal_JNI_setFastSpawnEnabled(JNIEnv* TERMUX_UNUSED(env), jclass TERMUX_UNUSED(clazz), jboolean enabled)
+{
+#ifdef HAS_FAST_SPAWN
+    fast_spawn_enabled = enabled;
+#else
+    (void) enabled;
+#endif
+}
+
 JNIEXPORT void JNICALL Java_com_termux_terminal_JNI_setPtyWindowSize(JNIEnv* TERMUX_UNUSED(env), jclass TERMUX_UNUSED(clazz), jint fd, jint rows, jint cols)
 {
     struct winsize sz = { .ws_row = (unsigned short) rows, .ws_col = (unsigned short) cols };
@@ -208,6 +536,40 @@ JNIEXPORT jint JNICALL Java_com_termux_terminal_JNI_waitFor(JNIEnv* TERMUX_UNUSE
     }
 }
 
+JNIEXPORT jint JNICALL Java_com_termux_terminal_JNI_tryWaitFor(JNIEnv* TERMUX_UNUSED(env), jclass TERMUX_UNUSED(clazz), jint pid)
+{
+    int status;
+    pid_t result;
+    do {
+        result = waitpid(pid, &status, WNOHANG);
+    } while (result < 0 && errno == EINTR);
+
+    if (result == 0) return WAIT_STILL_RUNNING;
+    if (result < 0) return WAIT_FAILED;
+    if (WIFEXITED(status)) return WEXITSTATUS(status);
+    if (WIFSIGNALED(status)) return -WTERMSIG(status);
+    return 0;
+}
+
+JNIEXPORT jint JNICALL Java_com_termux_terminal_JNI_waitForExitWithoutReaping(JNIEnv* TERMUX_UNUSED(env), jclass TERMUX_UNUSED(clazz), jint pid)
+{
+    siginfo_t info;
+    while (waitid(P_PID, (id_t) pid, &info, WEXITED | WNOWAIT) != 0) {
+        if (errno != EINTR) return -errno;
+    }
+    return 0;
+}
+
+JNIEXPORT jint JNICALL Java_com_termux_terminal_JNI_sendSignal(JNIEnv* TERMUX_UNUSED(env), jclass TERMUX_UNUSED(clazz), jint pid, jint pidfd, jint signal)
+{
+#ifdef HAS_FAST_SPAWN
+    if (pidfd >= 0) return syscall(__NR_pidfd_send_signal, pidfd, signal, NULL, 0) == 0 ? 0 : -errno;
+#else
+    (void) pidfd;
+#endif
+    return kill(pid, signal) == 0 ? 0 : -errno;
+}
+
 JNIEXPORT void JNICALL Java_com_termux_terminal_JNI_close(JNIEnv* TERMUX_UNUSED(env), jclass TERMUX_UNUSED(clazz), jint fileDescriptor)
 {
     close(fileDescriptor);
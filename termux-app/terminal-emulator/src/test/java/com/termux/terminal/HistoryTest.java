@@ -18,6 +18,27 @@ public class HistoryTest extends TerminalTestCase {
 		assertHistoryStartsWith("666", "555");
 	}
 
+	public void testTranscriptRowsChange() {
+		mTerminal = new TerminalEmulator(mOutput, 3, 3, 10);
+		enterString("111222333444555666777888999");
+		assertLinesAre("777", "888", "999");
+		assertHistoryStartsWith("666", "555", "444", "333", "222", "111");
+
+		// Shrinking drops the oldest transcript rows but keeps the screen and cursor.
+		mTerminal.setTranscriptRows(5);
+		assertLinesAre("777", "888", "999");
+		assertCursorAt(2, 2);
+		assertHistoryStartsWith("666", "555");
+		assertEquals(2, mTerminal.getScreen().getActiveTranscriptRows());
+
+		// Growing again makes room for new output without bringing dropped rows back.
+		mTerminal.setTranscriptRows(10);
+		enterString("\r\nAAA");
+		assertLinesAre("888", "999", "AAA");
+		assertHistoryStartsWith("777", "666", "555");
+		assertEquals(3, mTerminal.getScreen().getActiveTranscriptRows());
+	}
+
 	public void testHistoryWithScrollRegion() {
 		// "CSI P_s ; P_s r" - set Scrolling Region [top;bottom] (default = full size of window) (DECSTBM).
 		withTerminalSized(3, 4).enterString("111222333444");
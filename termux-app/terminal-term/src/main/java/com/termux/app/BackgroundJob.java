@@ -2,13 +2,14 @@ package com.termux.app;
 
 import android.util.Log;
 
+import com.termux.terminal.Subprocess;
+
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.lang.reflect.Field;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -22,7 +23,7 @@ public final class BackgroundJob {
 
     private static final String LOG_TAG = "termux-task";
 
-    final Process mProcess;
+    final Subprocess mProcess;
 
     public BackgroundJob(String cwd, String fileToExecute, final String[] args, final TermuxService service) {
         String[] env = buildEnvironment(false, cwd, service.filesPath, service.homePath, service.prefixPath);
@@ -31,9 +32,9 @@ public final class BackgroundJob {
         final String[] progArray = setupProcessArgs(fileToExecute, args, service.prefixPath);
         final String processDescription = Arrays.toString(progArray);
 
-        Process process;
+        Subprocess process;
         try {
-            process = Runtime.getRuntime().exec(progArray, env, new File(cwd));
+            process = Subprocess.start(progArray[0], cwd, progArray, env);
         } catch (IOException e) {
             mProcess = null;
             // TODO: Visible error message?
@@ -42,13 +43,14 @@ public final class BackgroundJob {
         }
 
         mProcess = process;
-        final int pid = getPid(mProcess);
+        final int pid = mProcess.getPid();
 
         new Thread() {
             @Override
             public void run() {
                 Log.i(LOG_TAG, "[" + pid + "] starting: " + processDescription);
-                InputStream stdout = mProcess.getInputStream();
+                // Holds stderr as well, since the process is started with both going to the same pipe.
+                InputStream stdout = mProcess.getOutput();
                 BufferedReader reader = new BufferedReader(new InputStreamReader(stdout, StandardCharsets.UTF_8));
                 String line;
                 try {
@@ -60,37 +62,15 @@ public final class BackgroundJob {
                     Log.e(LOG_TAG, "Error reading output", e);
                 }
 
-                try {
-                    int exitCode = mProcess.waitFor();
-                    service.onBackgroundJobExited(BackgroundJob.this);
-                    if (exitCode == 0) {
-                        Log.i(LOG_TAG, "[" + pid + "] exited normally");
-                    } else {
-                        Log.w(LOG_TAG, "[" + pid + "] exited with code: " + exitCode);
-                    }
-                } catch (InterruptedException e) {
-                    // Ignore.
+                int exitCode = mProcess.waitFor();
+                service.onBackgroundJobExited(BackgroundJob.this);
+                if (exitCode == 0) {
+                    Log.i(LOG_TAG, "[" + pid + "] exited normally");
+                } else {
+                    Log.w(LOG_TAG, "[" + pid + "] exited with code: " + exitCode);
                 }
             }
         }.start();
-
-
-        new Thread() {
-            @Override
-            public void run() {
-                InputStream stderr = mProcess.getErrorStream();
-                BufferedReader reader = new BufferedReader(new InputStreamReader(stderr, StandardCharsets.UTF_8));
-                String line;
-                try {
-                    // FIXME: Long lines.
-                    while ((line = reader.readLine()) != null) {
-                        Log.i(LOG_TAG, "[" + pid + "] stderr: " + line);
-                    }
-                } catch (IOException e) {
-                    // Ignore.
-                }
-            }
-        };
     }
 
 
@@ -122,20 +102,6 @@ public final class BackgroundJob {
         }
     }
 
-    public static int getPid(Process p) {
-        try {
-            Field f = p.getClass().getDeclaredField("pid");
-            f.setAccessible(true);
-            try {
-                return f.getInt(p);
-            } finally {
-                f.setAccessible(false);
-            }
-        } catch (Throwable e) {
-            return -1;
-        }
-    }
-
     static String[] setupProcessArgs(String fileToExecute, String[] args, String prefix_path) {
         // The file to execute may either be:
         // - An elf file, in which we execute it directly.
@@ -568,6 +568,8 @@ public final class TermuxActivity extends Activity implements ServiceConnection
 
         // The current terminal session may have changed while being away, force
         // a refresh of the displayed terminal:
+        TerminalSession currentSession = getCurrentTermSession();
+        if (currentSession != null) currentSession.setBackground(false);
         mTerminalView.onScreenUpdated();
     }
 
@@ -576,7 +578,11 @@ public final class TermuxActivity extends Activity implements ServiceConnection
         super.onStop();
         mIsVisible = false;
         TerminalSession currentSession = getCurrentTermSession();
-        if (currentSession != null) TermuxPreferences.storeCurrentSession(this, currentSession);
+        if (currentSession != null) {
+            TermuxPreferences.storeCurrentSession(this, currentSession);
+            // Nothing is drawn while stopped, so let the session skip screen updates until onStart().
+            currentSession.setBackground(true);
+        }
         unregisterReceiver(mBroadcastReceiever);
         getDrawer().closeDrawers();
     }
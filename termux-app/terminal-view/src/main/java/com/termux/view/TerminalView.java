@@ -221,6 +221,9 @@ public final class TerminalView extends View {
         if (session == mTermSession) return false;
         mTopRow = 0;
 
+        // The previously shown session keeps running, but nothing draws it any longer.
+        if (mTermSession != null) mTermSession.setBackground(true);
+        session.setBackground(false);
         mTermSession = session;
         mEmulator = null;
         mCombiningAccent = 0;